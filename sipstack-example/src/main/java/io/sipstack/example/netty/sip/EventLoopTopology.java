@@ -0,0 +1,349 @@
+/**
+ * 
+ */
+package io.sipstack.example.netty.sip;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * How the {@link SimpleSipStack} lays out its event loops. There are three
+ * kinds of them: the acceptor loops that accept the stream based connections,
+ * the I/O loops that serve those connections once accepted (or established by
+ * us) and the UDP loops that serve the UDP sockets. By default, each kind gets
+ * a group of its own, with a single acceptor thread, one I/O thread per core
+ * and one UDP thread per UDP socket. Note that a UDP socket is served by a
+ * single loop so more UDP threads than sockets just sit there, idle, see
+ * {@link SimpleSipStack.Builder#udpSockets(int)}.
+ * 
+ * A {@link Builder#shared(boolean)} topology puts all the sockets on a single
+ * group, configured by the I/O settings, which is what you want on a small box
+ * or when the stack shares the box with a lot of other threads.
+ * 
+ * The threads of a group can be pinned to CPUs, e.g. to the cores of the NUMA
+ * node the network card is attached to (see {@link #cpusOf(int)}). The CPUs
+ * are handed out to the threads of the group in order, wrapping around if
+ * there are more threads than CPUs, and the name of a pinned thread ends with
+ * the CPU it is pinned to. The actual pinning is up to the
+ * {@link ThreadAffinity}.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public final class EventLoopTopology {
+
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(EventLoopTopology.class);
+
+    private static final int[] NO_CPUS = new int[0];
+
+    /**
+     * The topology that is used unless told otherwise.
+     */
+    public static final EventLoopTopology DEFAULT = with().build();
+
+    private final boolean shared;
+
+    private final int acceptorThreads;
+
+    private final int ioThreads;
+
+    private final int udpThreads;
+
+    private final int[] acceptorCpus;
+
+    private final int[] ioCpus;
+
+    private final int[] udpCpus;
+
+    private final ThreadAffinity affinity;
+
+    private EventLoopTopology(final Builder builder) {
+        this.shared = builder.shared;
+        this.acceptorThreads = builder.acceptorThreads;
+        this.ioThreads = builder.ioThreads;
+        this.udpThreads = builder.udpThreads;
+        this.acceptorCpus = builder.acceptorCpus;
+        this.ioCpus = builder.ioCpus;
+        this.udpCpus = builder.udpCpus;
+        this.affinity = builder.affinity;
+    }
+
+    public boolean isShared() {
+        return this.shared;
+    }
+
+    public int getAcceptorThreads() {
+        return this.acceptorThreads;
+    }
+
+    public int getIoThreads() {
+        return this.ioThreads;
+    }
+
+    /**
+     * The number of UDP threads, where zero means one per UDP socket.
+     * 
+     * @return
+     */
+    public int getUdpThreads() {
+        return this.udpThreads;
+    }
+
+    public int[] getAcceptorCpus() {
+        return this.acceptorCpus.clone();
+    }
+
+    public int[] getIoCpus() {
+        return this.ioCpus.clone();
+    }
+
+    public int[] getUdpCpus() {
+        return this.udpCpus.clone();
+    }
+
+    EventLoopGroup newAcceptorGroup(final Transport transport) {
+        return newGroup(transport, "sip-acceptor", this.acceptorThreads, this.acceptorCpus);
+    }
+
+    EventLoopGroup newIoGroup(final Transport transport) {
+        return newGroup(transport, this.shared ? "sip" : "sip-io", this.ioThreads, this.ioCpus);
+    }
+
+    EventLoopGroup newUdpGroup(final Transport transport, final int udpSockets) {
+        final int threads = this.udpThreads > 0 ? this.udpThreads : udpSockets;
+        return newGroup(transport, "sip-udp", threads, this.udpCpus);
+    }
+
+    private EventLoopGroup newGroup(final Transport transport, final String name, final int threads,
+            final int[] cpus) {
+        return transport.newEventLoopGroup(threads, new AffinityThreadFactory(name, cpus, this.affinity));
+    }
+
+    /**
+     * The CPUs of the given NUMA node, as listed by the kernel. Linux only.
+     * 
+     * @param node
+     * @return
+     * @throws IllegalArgumentException
+     *             in case there is no such node (or we aren't on Linux).
+     */
+    public static int[] cpusOf(final int node) {
+        final String cpuList;
+        try {
+            cpuList = new String(Files.readAllBytes(Paths.get("/sys/devices/system/node/node" + node + "/cpulist")),
+                    StandardCharsets.US_ASCII).trim();
+        } catch (final IOException e) {
+            throw new IllegalArgumentException("Unable to find the CPUs of NUMA node " + node, e);
+        }
+        return parseCpuList(cpuList);
+    }
+
+    /**
+     * Parse a list of CPUs in the format the kernel uses, e.g. "0-3,8,10-11".
+     * 
+     * @param cpuList
+     * @return
+     */
+    public static int[] parseCpuList(final String cpuList) {
+        final List<Integer> cpus = new ArrayList<>();
+        for (final String range : cpuList.split(",")) {
+            if (range.isEmpty()) {
+                continue;
+            }
+            final int dash = range.indexOf('-');
+            final int from = Integer.parseInt(range.substring(0, dash == -1 ? range.length() : dash).trim());
+            final int to = dash == -1 ? from : Integer.parseInt(range.substring(dash + 1).trim());
+            for (int cpu = from; cpu <= to; ++cpu) {
+                cpus.add(cpu);
+            }
+        }
+        return cpus.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    @Override
+    public String toString() {
+        if (this.shared) {
+            return "shared " + describe(this.ioThreads, this.ioCpus);
+        }
+        return "acceptor " + describe(this.acceptorThreads, this.acceptorCpus) + ", io "
+                + describe(this.ioThreads, this.ioCpus) + ", udp "
+                + (this.udpThreads > 0 ? describe(this.udpThreads, this.udpCpus) : "one per socket");
+    }
+
+    private static String describe(final int threads, final int[] cpus) {
+        final String count = threads == 1 ? "1 thread" : threads + " threads";
+        return cpus.length == 0 ? count : count + " on CPUs " + Arrays.toString(cpus);
+    }
+
+    public static Builder with() {
+        return new Builder();
+    }
+
+    /**
+     * Names the threads of a group and pins each one of them to its CPU as
+     * it starts. The threads are the {@link io.netty.util.concurrent.FastThreadLocalThread}s
+     * of Netty, which the fast thread locals of the codec (e.g. the one of
+     * the {@link io.sipstack.netty.codec.sip.CachedClock}) depend on.
+     */
+    private static final class AffinityThreadFactory extends DefaultThreadFactory {
+
+        private final int[] cpus;
+
+        private final ThreadAffinity affinity;
+
+        private int next;
+
+        private AffinityThreadFactory(final String name, final int[] cpus, final ThreadAffinity affinity) {
+            super(name);
+            this.cpus = cpus;
+            this.affinity = affinity;
+        }
+
+        @Override
+        protected synchronized Thread newThread(final Runnable r, final String name) {
+            if (this.cpus.length == 0) {
+                return super.newThread(r, name);
+            }
+
+            final int cpu = this.cpus[this.next++ % this.cpus.length];
+            return super.newThread(() -> {
+                try {
+                    this.affinity.pin(cpu);
+                } catch (final Exception e) {
+                    logger.warn("Unable to pin {} to CPU {}, it will run unpinned", name, cpu, e);
+                }
+                r.run();
+            }, name + "-cpu" + cpu);
+        }
+    }
+
+    public static class Builder {
+
+        private boolean shared;
+
+        private int acceptorThreads = 1;
+
+        private int ioThreads = Runtime.getRuntime().availableProcessors();
+
+        private int udpThreads;
+
+        private int[] acceptorCpus = NO_CPUS;
+
+        private int[] ioCpus = NO_CPUS;
+
+        private int[] udpCpus = NO_CPUS;
+
+        private ThreadAffinity affinity;
+
+        private Builder() {
+            // use EventLoopTopology.with()
+        }
+
+        /**
+         * Put all the sockets on a single group, the one of the I/O threads.
+         * Default is a group per kind of socket.
+         * 
+         * @param shared
+         * @return
+         */
+        public Builder shared(final boolean shared) {
+            this.shared = shared;
+            return this;
+        }
+
+        /**
+         * The number of threads accepting connections. Default is one, which
+         * is plenty unless you are accepting thousands of connections per
+         * second.
+         * 
+         * @param acceptorThreads
+         * @return
+         */
+        public Builder acceptorThreads(final int acceptorThreads) {
+            this.acceptorThreads = acceptorThreads;
+            return this;
+        }
+
+        /**
+         * The number of threads serving the stream based connections.
+         * Default is one per core.
+         * 
+         * @param ioThreads
+         * @return
+         */
+        public Builder ioThreads(final int ioThreads) {
+            this.ioThreads = ioThreads;
+            return this;
+        }
+
+        /**
+         * The number of threads serving the UDP sockets. Default is one per
+         * socket.
+         * 
+         * @param udpThreads
+         * @return
+         */
+        public Builder udpThreads(final int udpThreads) {
+            this.udpThreads = udpThreads;
+            return this;
+        }
+
+        public Builder acceptorCpus(final int... acceptorCpus) {
+            this.acceptorCpus = acceptorCpus.clone();
+            return this;
+        }
+
+        public Builder ioCpus(final int... ioCpus) {
+            this.ioCpus = ioCpus.clone();
+            return this;
+        }
+
+        public Builder udpCpus(final int... udpCpus) {
+            this.udpCpus = udpCpus.clone();
+            return this;
+        }
+
+        /**
+         * What pins the threads to their CPUs, which must be given if any of
+         * the groups has CPUs. See {@link ThreadAffinity#taskset()} if you
+         * have no native affinity library at hand.
+         * 
+         * @param affinity
+         * @return
+         */
+        public Builder affinity(final ThreadAffinity affinity) {
+            this.affinity = affinity;
+            return this;
+        }
+
+        public EventLoopTopology build() {
+            if (this.acceptorThreads < 1 || this.ioThreads < 1 || this.udpThreads < 0) {
+                throw new IllegalArgumentException("Every group needs at least one thread");
+            }
+
+            final boolean pinned = this.acceptorCpus.length > 0 || this.ioCpus.length > 0 || this.udpCpus.length > 0;
+            if (pinned && this.affinity == null) {
+                throw new IllegalArgumentException("Pinning threads to CPUs requires a ThreadAffinity");
+            }
+
+            for (final int[] cpus : new int[][] { this.acceptorCpus, this.ioCpus, this.udpCpus }) {
+                for (final int cpu : cpus) {
+                    if (cpu < 0) {
+                        throw new IllegalArgumentException("There is no such thing as CPU " + cpu);
+                    }
+                }
+            }
+            return new EventLoopTopology(this);
+        }
+    }
+
+}
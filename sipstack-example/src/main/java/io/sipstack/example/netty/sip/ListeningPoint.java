@@ -0,0 +1,339 @@
+/**
+ * 
+ */
+package io.sipstack.example.netty.sip;
+
+import io.pkts.buffer.Buffers;
+import io.pkts.packet.sip.address.SipURI;
+import io.pkts.packet.sip.header.ContactHeader;
+import io.sipstack.netty.codec.sip.EncodedHeader;
+import io.sipstack.netty.codec.sip.EncodedVia;
+import io.sipstack.netty.codec.sip.TransportProtocol;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An ip:port and a transport that the {@link SimpleSipStack} listens on. A
+ * node that sits on several networks (e.g. a signaling and a trunk VLAN) has a
+ * listening point on each one of them and which one a message goes out over
+ * is decided by its destination: a listening point is given the networks it
+ * routes to (see {@link Builder#route(String)}) and the stack picks the
+ * listening point with the most specific route to the destination, or the
+ * first listening point without any routes if none of them has one.
+ * 
+ * Every listening point comes with its Via- and Contact-headers encoded up
+ * front, so that a handler forwarding a request out over the listening point
+ * doesn't have to build them for every request, see {@link #getVia()} and
+ * {@link #getContact()}.
+ * 
+ * A listening point runs on the event loops of the stack unless it is given
+ * an {@link EventLoopTopology} of its own, in which case it gets event loops
+ * of its own (and thereby threads and, possibly, CPUs of its own).
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public final class ListeningPoint {
+
+    private final String name;
+
+    private final TransportProtocol transport;
+
+    private final boolean secure;
+
+    private final String ip;
+
+    private final InetAddress address;
+
+    private final int port;
+
+    private final List<Route> routes;
+
+    private final EventLoopTopology topology;
+
+    private final EncodedVia via;
+
+    private volatile EncodedHeader contact;
+
+    private ListeningPoint(final Builder builder, final InetAddress address) {
+        this.name = builder.name;
+        this.transport = builder.transport;
+        this.secure = builder.secure;
+        this.ip = builder.ip;
+        this.address = address;
+        this.port = builder.port;
+        this.routes = Collections.unmodifiableList(new ArrayList<>(builder.routes));
+        this.topology = builder.topology;
+        this.via = EncodedVia.of(getViaTransport(), this.ip, this.port);
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public TransportProtocol getTransport() {
+        return this.transport;
+    }
+
+    /**
+     * Whether this is a secure WebSocket listening point. A TLS listening
+     * point is always secure.
+     * 
+     * @return
+     */
+    public boolean isSecure() {
+        return this.secure || this.transport == TransportProtocol.TLS;
+    }
+
+    public String getIp() {
+        return this.ip;
+    }
+
+    public InetAddress getAddress() {
+        return this.address;
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    /**
+     * The topology of the event loops of its own, or null if it runs on the
+     * event loops of the stack.
+     * 
+     * @return
+     */
+    public EventLoopTopology getTopology() {
+        return this.topology;
+    }
+
+    /**
+     * The transport as it goes into a Via-header, e.g. "WSS" for a secure
+     * WebSocket.
+     * 
+     * @return
+     */
+    public String getViaTransport() {
+        return this.secure && this.transport == TransportProtocol.WS ? "WSS" : this.transport.toString();
+    }
+
+    /**
+     * The Via-header of this listening point, which only lacks a branch.
+     * 
+     * @return
+     */
+    public EncodedVia getVia() {
+        return this.via;
+    }
+
+    /**
+     * The Contact-header of this listening point, i.e.,
+     * &lt;sip:ip:port;transport=tcp&gt; (no transport parameter for UDP).
+     * 
+     * @return
+     */
+    public EncodedHeader getContact() {
+        EncodedHeader contact = this.contact;
+        if (contact == null) {
+            final SipURI uri = SipURI.with().host(Buffers.wrap(this.via.getHost())).port(this.port).build();
+            if (this.transport != TransportProtocol.UDP) {
+                uri.setParameter("transport", getViaTransport().toLowerCase());
+            }
+            contact = EncodedHeader.of(ContactHeader.with(uri).build());
+            this.contact = contact;
+        }
+        return contact;
+    }
+
+    /**
+     * Whether this listening point has any routes, i.e., whether it only is
+     * used for the networks it routes to.
+     * 
+     * @return
+     */
+    public boolean hasRoutes() {
+        return !this.routes.isEmpty();
+    }
+
+    /**
+     * How well this listening point routes to the given destination.
+     * 
+     * @param destination
+     * @return the prefix length of the most specific route to the
+     *         destination or -1 (negative one) if there is none.
+     */
+    public int routeTo(final InetAddress destination) {
+        final byte[] bytes = destination.getAddress();
+        int best = -1;
+        for (final Route route : this.routes) {
+            if (route.prefixLength > best && route.matches(bytes)) {
+                best = route.prefixLength;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public String toString() {
+        return this.name + " " + getViaTransport().toLowerCase() + " " + this.via.getHost() + ":" + this.port;
+    }
+
+    /**
+     * 
+     * @param transport
+     *            UDP, TCP, TLS or WS.
+     * @param ip
+     *            the ip-address to bind to, which also goes into the Via- and
+     *            Contact-headers.
+     * @param port
+     * @return
+     */
+    public static Builder with(final TransportProtocol transport, final String ip, final int port) {
+        return new Builder(transport, ip, port);
+    }
+
+    /**
+     * A network, e.g. 10.20.0.0/16.
+     */
+    private static final class Route {
+        private final byte[] network;
+        private final int prefixLength;
+
+        private Route(final byte[] network, final int prefixLength) {
+            this.network = network;
+            this.prefixLength = prefixLength;
+        }
+
+        private boolean matches(final byte[] address) {
+            if (address.length != this.network.length) {
+                return false;
+            }
+            final int bytes = this.prefixLength / 8;
+            for (int i = 0; i < bytes; ++i) {
+                if (address[i] != this.network[i]) {
+                    return false;
+                }
+            }
+            final int bits = this.prefixLength % 8;
+            if (bits == 0) {
+                return true;
+            }
+            final int mask = 0xFF00 >> bits & 0xFF;
+            return (address[bytes] & mask) == (this.network[bytes] & mask);
+        }
+    }
+
+    public static class Builder {
+
+        private final TransportProtocol transport;
+
+        private final String ip;
+
+        private final int port;
+
+        private String name;
+
+        private boolean secure;
+
+        private final List<Route> routes = new ArrayList<>(2);
+
+        private EventLoopTopology topology;
+
+        private Builder(final TransportProtocol transport, final String ip, final int port) {
+            this.transport = transport;
+            this.ip = ip;
+            this.port = port;
+        }
+
+        /**
+         * The name of the listening point, e.g. "trunk", which is what it
+         * goes by in the logs. Default is the transport and the port.
+         * 
+         * @param name
+         * @return
+         */
+        public Builder name(final String name) {
+            this.name = name;
+            return this;
+        }
+
+        /**
+         * Make a WebSocket listening point a secure one, which requires the
+         * stack to have a {@link io.sipstack.netty.codec.sip.TlsConfiguration}.
+         * 
+         * @param secure
+         * @return
+         */
+        public Builder secure(final boolean secure) {
+            this.secure = secure;
+            return this;
+        }
+
+        /**
+         * Use this listening point for the destinations within the given
+         * network, in CIDR notation, e.g. "10.20.0.0/16" or "2001:db8::/32".
+         * An address without a prefix length is a network of its own.
+         * 
+         * @param network
+         * @return
+         */
+        public Builder route(final String network) {
+            final int slash = network.indexOf('/');
+            final String ip = slash == -1 ? network : network.substring(0, slash);
+            final byte[] bytes;
+            try {
+                bytes = InetAddress.getByName(ip).getAddress();
+            } catch (final UnknownHostException e) {
+                throw new IllegalArgumentException("Invalid network " + network, e);
+            }
+
+            final int prefixLength = slash == -1 ? bytes.length * 8 : Integer.parseInt(network.substring(slash + 1));
+            if (prefixLength < 0 || prefixLength > bytes.length * 8) {
+                throw new IllegalArgumentException("Invalid prefix length of network " + network);
+            }
+            this.routes.add(new Route(bytes, prefixLength));
+            return this;
+        }
+
+        /**
+         * Give the listening point event loops of its own. Default is to run
+         * on the ones of the stack.
+         * 
+         * @param topology
+         * @return
+         */
+        public Builder topology(final EventLoopTopology topology) {
+            this.topology = topology;
+            return this;
+        }
+
+        public ListeningPoint build() {
+            if (this.transport == null || this.transport == TransportProtocol.SCTP) {
+                throw new IllegalArgumentException("A listening point must be UDP, TCP, TLS or WS");
+            }
+            if (this.secure && this.transport != TransportProtocol.WS) {
+                throw new IllegalArgumentException("Only a WebSocket listening point can be made secure, "
+                        + "use TLS for anything else");
+            }
+            if (this.ip == null || this.port <= 0) {
+                throw new IllegalArgumentException("A listening point needs an ip-address and a port");
+            }
+
+            final InetAddress address;
+            try {
+                address = InetAddress.getByName(this.ip);
+            } catch (final UnknownHostException e) {
+                throw new IllegalArgumentException("Unable to resolve " + this.ip, e);
+            }
+
+            if (this.name == null) {
+                this.name = (this.secure ? "wss" : this.transport.toString().toLowerCase()) + "-" + this.port;
+            }
+            return new ListeningPoint(this, address);
+        }
+    }
+
+}
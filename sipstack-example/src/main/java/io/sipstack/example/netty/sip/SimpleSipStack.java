@@ -3,28 +3,62 @@
  */
 package io.sipstack.example.netty.sip;
 
+import io.netty.bootstrap.AbstractBootstrap;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.DatagramChannel;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioDatagramChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.websocketx.WebSocketFrameAggregator;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.Future;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
 import io.pkts.buffer.Buffer;
+import io.sipstack.netty.codec.sip.BatchCounters;
+import io.sipstack.netty.codec.sip.CachedClock;
 import io.sipstack.netty.codec.sip.Connection;
+import io.sipstack.netty.codec.sip.ConnectionLimiter;
+import io.sipstack.netty.codec.sip.ConnectionManager;
+import io.sipstack.netty.codec.sip.DecoderConfiguration;
+import io.sipstack.netty.codec.sip.FlushCoalescingHandler;
+import io.sipstack.netty.codec.sip.FramingGuard;
+import io.sipstack.netty.codec.sip.IdleReaper;
+import io.sipstack.netty.codec.sip.OutboundOverflow;
+import io.sipstack.netty.codec.sip.OverflowPolicy;
 import io.sipstack.netty.codec.sip.SipMessageDatagramDecoder;
+import io.sipstack.netty.codec.sip.SipMessageDispatcher;
 import io.sipstack.netty.codec.sip.SipMessageEncoder;
 import io.sipstack.netty.codec.sip.SipMessageEvent;
 import io.sipstack.netty.codec.sip.SipMessageStreamDecoder;
+import io.sipstack.netty.codec.sip.SipMessageWebSocketDecoder;
+import io.sipstack.netty.codec.sip.SipMessageWebSocketEncoder;
+import io.sipstack.netty.codec.sip.TlsConfiguration;
+import io.sipstack.netty.codec.sip.TcpFallback;
+import io.sipstack.netty.codec.sip.TlsCounters;
+import io.sipstack.netty.codec.sip.TransportProtocol;
 import io.sipstack.netty.codec.sip.UdpConnection;
 
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Bootstrap netty and setup the sip message encoder/decoder for basic SIP support.
@@ -33,17 +67,110 @@ import java.net.InetSocketAddress;
  * of SIP messages but it is the very first layer of a true SIP stack (see rfc3261 for the various
  * layers of SIP).
  * 
+ * By default, the stack runs on the NIO {@link Transport}, which reads into heap buffers that the
+ * decoders frame and parse the messages straight out of. Epoll saves system calls but can only
+ * read into direct buffers, out of which every message has to be copied, so it only pays off when
+ * the system calls are what is holding you back, see {@link Transport#getAllocator()}. Use the
+ * {@link Builder} to pick a transport of your own (e.g. {@link Transport#best()}) or to tweak
+ * anything else.
+ * 
+ * On epoll, the UDP listening point can be made up of several sockets bound to the same ip:port
+ * (see {@link Builder#udpSockets(int)}), each with its own event loop, so that UDP isn't limited to
+ * a single core. A message received over one of them is answered over the same socket (that is the
+ * socket of the {@link UdpConnection} of the event) and {@link #connect(String, int)} always picks
+ * the same socket for the same remote address.
+ * 
+ * The accepted stream based connections that have been idle for too long can be closed by an
+ * {@link IdleReaper} shared by all the listening points (off by default, see
+ * {@link Builder#tcpIdleTimeout(long)}), the TCP connections we establish ourselves are closed by
+ * another one after five minutes of idling (see {@link Builder#tcpOutboundIdleTimeout(long)}) and
+ * the number of accepted connections can be capped, in total and per source ip-address, see
+ * {@link Builder#tcpMaxConnections(int)}. How many connections each listening point has right now
+ * can be had through {@link #getConnectionReport()}. Connections that never complete the message
+ * they started sending can be closed by a {@link FramingGuard}, see
+ * {@link Builder#framingGuard(long, long)}.
+ * 
+ * A request that is too large for UDP (see {@link Builder#udpSizeLimit(int)}) is sent over TCP
+ * instead, as RFC 3261 section 18.1.1 says, provided that there is a TCP listening point on the same
+ * ip:port as the UDP one, see {@link TcpFallback}. The TCP connection is the existing flow to the
+ * destination or a new one, and should that fail, the request goes out over UDP after all.
+ * 
+ * The outbound buffer of a TCP connection is bounded by its write buffer water marks (Netty's
+ * defaults unless {@link Builder#tcpWriteBufferWaterMarks(int, int)} says otherwise) and once a
+ * slow peer has let it fill up, sending to it throws an
+ * {@link io.sipstack.netty.codec.sip.OutboundOverflowException} (which the proxy examples turn into
+ * a 503) until it has drained, see {@link Builder#tcpOverflowPolicy(OverflowPolicy)}. Flushes are
+ * coalesced per read cycle only if asked for, see {@link Builder#tcpBatching(boolean)}, and the
+ * queued bytes per listening point are part of {@link #getConnectionReport()}. That is, for the
+ * full write coalescing and back pressure, build the stack with {@code tcpBatching(true)}, keep the
+ * default {@code tcpOverflowPolicy(OverflowPolicy.REJECT)} and tune
+ * {@code tcpWriteBufferWaterMarks(low, high)} to the peers you have.
+ * 
+ * Give the stack a {@link TlsConfiguration} (see {@link Builder#tls(TlsConfiguration)}) and it will
+ * also listen for TLS connections, by default on the port after the one of UDP and TCP. Give it a
+ * WebSocket port (see {@link Builder#wsPort(int)} and {@link Builder#wssPort(int)}) and it will
+ * accept SIP over WebSockets (RFC 7118) as well, which is what WebRTC clients speak. A WebSocket
+ * connection is a flow just like any other so responses and in-dialog requests go back over it.
+ * 
+ * The stack can listen on any number of additional {@link ListeningPoint}s (see
+ * {@link Builder#listeningPoint(ListeningPoint)}), e.g. one on each VLAN the node sits on, each one
+ * with event loops of its own if need be. Which listening point a message goes out over is picked by
+ * its destination, see {@link #getListeningPoint(TransportProtocol, InetAddress)}, and the
+ * listening point comes with its Via- and Contact-headers encoded up front so handlers don't have to
+ * build them over and over again.
+ * 
+ * How many event loops there are, which sockets they serve and which CPUs they run on is up to the
+ * {@link EventLoopTopology} (see {@link Builder#topology(EventLoopTopology)}). Once started, the
+ * stack logs which event loop ended up owning which socket, see {@link #getTopologyReport()}.
+ * 
  * @author jonas@jonasborjesson.com
  */
 public class SimpleSipStack {
 
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(SimpleSipStack.class);
+
+    /**
+     * The maximum size of the HTTP request that upgrades a connection to a
+     * WebSocket.
+     */
+    private static final int MAX_WS_HANDSHAKE_SIZE = 8192;
+
     private final String ip;
 
     private final int port;
 
-    private final EventLoopGroup bossGroup = new NioEventLoopGroup();
-    private final EventLoopGroup workerGroup = new NioEventLoopGroup();
-    private final EventLoopGroup udpGroup = new NioEventLoopGroup();
+    /**
+     * The framing limits etc. used by the decoders of both listening points.
+     */
+    private final DecoderConfiguration decoderConfiguration;
+
+    /**
+     * The transport we actually ended up on, which may be a fallback of the
+     * one asked for.
+     */
+    private final Transport transport;
+
+    private final EventLoopTopology topology;
+
+    /**
+     * The groups of the acceptor, the I/O and the UDP event loops, which are
+     * all the same group if the topology is shared.
+     */
+    private final EventLoopGroup bossGroup;
+    private final EventLoopGroup workerGroup;
+    private final EventLoopGroup udpGroup;
+
+    /**
+     * The name of the thread of each event loop, as recorded by the loop
+     * itself once it got going, see {@link #recordThreadNames()}.
+     */
+    private final Map<EventExecutor, String> threadNames = new ConcurrentHashMap<>();
+
+    /**
+     * The workers that parse and handle the messages received over UDP, or
+     * null if they are handled on the UDP event loop itself.
+     */
+    private final EventExecutorGroup dispatchGroup;
 
     /**
      * The TCP based bootstrap.
@@ -55,72 +182,1405 @@ public class SimpleSipStack {
      */
     private final Bootstrap bootstrap;
 
-    private Channel udpListeningPoint = null;
+    /**
+     * The number of UDP sockets to bind to the same ip:port.
+     */
+    private final int udpSockets;
+
+    /**
+     * All the UDP sockets bound to our ip:port. Unless we are running with
+     * SO_REUSEPORT, there is only one.
+     */
+    private Channel[] udpListeningPoints = null;
+
+    /**
+     * The counters of the UDP sockets if they are batching their flushes,
+     * null otherwise.
+     */
+    private final BatchCounters udpCounters;
+
+    /**
+     * The counters of the TCP connections if they are batching their
+     * flushes, null otherwise.
+     */
+    private final BatchCounters tcpCounters;
+
+    /**
+     * Closes the idle stream based connections that were accepted, null if
+     * they are never closed.
+     */
+    private final IdleReaper reaper;
+
+    /**
+     * Closes the idle outbound TCP connections, i.e., the ones we pooled to
+     * the destinations we send to, null if they are never closed.
+     */
+    private final IdleReaper outboundReaper;
+
+    /**
+     * Caps the number of connections accepted by the stream based listening
+     * points, null if there is no cap.
+     */
+    private final ConnectionLimiter limiter;
+
+    /**
+     * The water marks of the outbound buffers of the TCP connections, zero
+     * if the defaults of Netty should be used.
+     */
+    private final int tcpLowWaterMark;
+    private final int tcpHighWaterMark;
+
+    /**
+     * What happens to the messages sent over a stream based connection whose
+     * outbound buffer is full, for all the listening points, null to queue
+     * them anyway.
+     */
+    private final OutboundOverflow tcpOverflow;
+
+    private Channel tcpListeningPoint = null;
+
+    /**
+     * Sets up the pipeline of both the accepted and the outbound TCP
+     * connections.
+     */
+    private final ChannelInitializer<SocketChannel> tcpInitializer;
+
+    private final ConnectionManager connectionManager;
+
+    /**
+     * The configuration of the TLS and the secure WebSocket listening points,
+     * null if there are none.
+     */
+    private final TlsConfiguration tls;
+
+    /**
+     * The TLS and WebSocket listening points, null for the ones we don't
+     * have.
+     */
+    private final BoundListeningPoint tlsListeningPoint;
+    private final BoundListeningPoint wsListeningPoint;
+    private final BoundListeningPoint wssListeningPoint;
+
+    /**
+     * All the listening points, the UDP and TCP ones on our ip:port (which
+     * share the {@link #connectionManager} and are bound separately) first,
+     * then the TLS and WebSocket ones and last the additional ones, which is
+     * also the order in which they are considered when picking the default
+     * listening point of a transport.
+     */
+    private final List<BoundListeningPoint> listeningPoints = new ArrayList<>();
+
+    /**
+     * The clock of the decoders of all the listening points, which only reads
+     * the system clocks once per read cycle.
+     */
+    private final CachedClock clock = new CachedClock();
 
     public SimpleSipStack(final SimpleChannelInboundHandler<SipMessageEvent> handler, final String ip, final int port) {
-        this.ip = ip;
-        this.port = port;
+        this(handler, ip, port, DecoderConfiguration.DEFAULT);
+    }
 
-        this.bootstrap = createUDPListeningPoint(handler);
-        this.serverBootstrap = createTCPListeningPoint(handler);
+    public SimpleSipStack(final SimpleChannelInboundHandler<SipMessageEvent> handler, final String ip,
+            final int port, final DecoderConfiguration decoderConfiguration) {
+        this(handler, ip, port, decoderConfiguration, 0);
     }
 
+    /**
+     * 
+     * @param handler
+     * @param ip
+     * @param port
+     * @param decoderConfiguration
+     * @param workers
+     *            the number of threads to parse and handle the messages
+     *            received over UDP on, typically the number of cores. If
+     *            zero, everything is done on the UDP event loop. Note that
+     *            the handler must be thread safe if there are workers.
+     */
+    public SimpleSipStack(final SimpleChannelInboundHandler<SipMessageEvent> handler, final String ip,
+            final int port, final DecoderConfiguration decoderConfiguration, final int workers) {
+        this(with(handler).ip(ip).port(port).decoderConfiguration(decoderConfiguration).workers(workers));
+    }
+
+    private SimpleSipStack(final Builder builder) {
+        this.ip = builder.ip;
+        this.port = builder.port;
+        this.transport = builder.transport.orFallback();
+        if (builder.udpSockets > 1 && this.transport.getReusePortOption() != null) {
+            this.udpSockets = builder.udpSockets;
+        } else {
+            if (builder.udpSockets > 1) {
+                // the builder only lets this through for a transport that
+                // supports it, so we must have fallen back to one that doesn't
+                logger.warn("{} isn't available and {} doesn't support SO_REUSEPORT, binding a single UDP socket "
+                        + "instead of {}", builder.transport, this.transport, builder.udpSockets);
+            }
+            this.udpSockets = 1;
+        }
+        this.topology = builder.topology;
+        this.workerGroup = this.topology.newIoGroup(this.transport);
+        if (this.topology.isShared()) {
+            this.bossGroup = this.workerGroup;
+            this.udpGroup = this.workerGroup;
+        } else {
+            this.bossGroup = this.topology.newAcceptorGroup(this.transport);
+            this.udpGroup = this.topology.newUdpGroup(this.transport, this.udpSockets);
+        }
+        this.udpCounters = builder.udpBatching ? new BatchCounters() : null;
+        this.tcpCounters = builder.tcpBatching ? new BatchCounters() : null;
+        this.tcpLowWaterMark = builder.tcpLowWaterMark;
+        this.tcpHighWaterMark = builder.tcpHighWaterMark;
+        this.reaper = builder.tcpIdleTimeout > 0 ? new IdleReaper(this.clock, builder.tcpIdleTimeout) : null;
+        this.outboundReaper = builder.tcpOutboundIdleTimeout > 0
+                ? new IdleReaper(this.clock, builder.tcpOutboundIdleTimeout) : null;
+        this.limiter = builder.tcpMaxConnections > 0 || builder.tcpMaxConnectionsPerIp > 0
+                ? new ConnectionLimiter(builder.tcpMaxConnections, builder.tcpMaxConnectionsPerIp) : null;
+        final DecoderConfiguration config;
+        if (builder.decoderConfiguration.getFramingGuard() == null && builder.framingMaxBytes > 0) {
+            config = DecoderConfiguration.with(builder.decoderConfiguration).framingGuard(
+                    new FramingGuard(this.clock, builder.framingMaxBytes, builder.framingMaxTime)).build();
+        } else {
+            config = builder.decoderConfiguration;
+        }
+        if (builder.workers > 0) {
+            this.dispatchGroup = new DefaultEventExecutorGroup(builder.workers);
+            this.decoderConfiguration = DecoderConfiguration.with(config).lazyParsing(true).build();
+        } else {
+            this.dispatchGroup = null;
+            this.decoderConfiguration = config;
+        }
+
+        this.bootstrap = createUDPListeningPoint(builder.handler, this.udpGroup);
+        this.tcpInitializer = createTCPInitializer(builder.handler, null, null);
+        this.serverBootstrap = createTCPListeningPoint(this.tcpInitializer, this.bossGroup, this.workerGroup);
+        final Bootstrap client = createTCPClient(this.workerGroup);
+        this.tcpOverflow = builder.tcpOverflowPolicy != null ? new OutboundOverflow(builder.tcpOverflowPolicy) : null;
+        if (this.tcpOverflow != null) {
+            this.serverBootstrap.childAttr(OutboundOverflow.KEY, this.tcpOverflow);
+            client.attr(OutboundOverflow.KEY, this.tcpOverflow);
+        }
+        this.connectionManager = new ConnectionManager(new InetSocketAddress(this.ip, this.port), client,
+                this.tcpInitializer, this.outboundReaper);
+
+        for (final TransportProtocol transport : new TransportProtocol[] { TransportProtocol.UDP,
+                TransportProtocol.TCP }) {
+            final ListeningPoint lp = ListeningPoint.with(transport, this.ip, this.port)
+                    .name(transport.toString().toLowerCase()).build();
+            final BoundListeningPoint bound = new BoundListeningPoint(lp,
+                    transport == TransportProtocol.UDP ? this.udpGroup : this.workerGroup);
+            bound.manager = this.connectionManager;
+            this.listeningPoints.add(bound);
+        }
+
+        this.tls = builder.tls;
+        if (this.tls != null) {
+            final int tlsPort = builder.tlsPort > 0 ? builder.tlsPort : this.port + 1;
+            this.tlsListeningPoint = createListeningPoint(builder,
+                    ListeningPoint.with(TransportProtocol.TLS, this.ip, tlsPort).name("tls").build(), client);
+        } else {
+            this.tlsListeningPoint = null;
+        }
+        this.wsListeningPoint = builder.wsPort > 0 ? createListeningPoint(builder,
+                ListeningPoint.with(TransportProtocol.WS, this.ip, builder.wsPort).name("ws").build(), client) : null;
+        this.wssListeningPoint = builder.wssPort > 0 ? createListeningPoint(builder,
+                ListeningPoint.with(TransportProtocol.WS, this.ip, builder.wssPort).name("wss").secure(true).build(),
+                client) : null;
+
+        for (final ListeningPoint lp : builder.listeningPoints) {
+            createListeningPoint(builder, lp, client);
+        }
+
+        if (builder.udpSizeLimit > 0) {
+            for (final BoundListeningPoint lp : this.listeningPoints) {
+                if (lp.lp.getTransport() == TransportProtocol.UDP) {
+                    addTcpFallback(lp, builder.udpSizeLimit);
+                }
+            }
+        }
+    }
+
+    /**
+     * Send the requests that are too large for the UDP listening point over
+     * the TCP listening point on the same ip:port, if there is one.
+     */
+    private void addTcpFallback(final BoundListeningPoint udp, final int limit) {
+        for (final BoundListeningPoint lp : this.listeningPoints) {
+            if (lp.lp.getTransport() == TransportProtocol.TCP && lp.lp.getPort() == udp.lp.getPort()
+                    && lp.lp.getAddress().equals(udp.lp.getAddress())) {
+                udp.fallback = new TcpFallback(limit, lp.manager);
+                final AbstractBootstrap<?, ?> bootstrap = udp.bootstrap != null ? udp.bootstrap : this.bootstrap;
+                bootstrap.attr(TcpFallback.KEY, udp.fallback);
+                return;
+            }
+        }
+    }
+
+    public static Builder with(final SimpleChannelInboundHandler<SipMessageEvent> handler) {
+        return new Builder(handler);
+    }
+
+    /**
+     * How well the reads and writes of the UDP sockets are batched.
+     * 
+     * @return the counters or null if UDP batching isn't enabled.
+     */
+    public BatchCounters getUdpCounters() {
+        return this.udpCounters;
+    }
+
+    /**
+     * How well the reads and writes of the TCP connections are batched.
+     * 
+     * @return the counters or null if TCP batching isn't enabled.
+     */
+    public BatchCounters getTcpCounters() {
+        return this.tcpCounters;
+    }
+
+    /**
+     * The handshakes of the TLS connections, both the accepted ones and the
+     * ones we established.
+     * 
+     * @return the counters or null if the stack doesn't do TLS.
+     */
+    public TlsCounters getTlsCounters() {
+        return this.tls == null ? null : this.tls.getCounters();
+    }
+
+    /**
+     * How often the requests sent over the UDP listening point on our
+     * ip:port have been too large for UDP.
+     * 
+     * @return the counters or null if the size of UDP requests isn't limited.
+     */
+    public TcpFallback getTcpFallback() {
+        return this.listeningPoints.get(0).fallback;
+    }
+
+    /**
+     * Same as {@link #getTcpFallback()} but for the given UDP listening
+     * point.
+     * 
+     * @param lp
+     * @return the counters or null if the requests sent over the listening
+     *         point are not limited in size (which also is the case if there
+     *         is no TCP listening point on the same ip:port).
+     */
+    public TcpFallback getTcpFallback(final ListeningPoint lp) {
+        return bound(lp).fallback;
+    }
+
+    public EventLoopTopology getTopology() {
+        return this.topology;
+    }
+
+    /**
+     * Which event loop (thread) owns which of the sockets we are listening
+     * on. The connections accepted by a stream based listening point are
+     * spread across the I/O event loops. Only available once the stack has
+     * been started. The names of the threads are the ones the event loops
+     * recorded themselves as they got going so asking for the report never
+     * blocks, not even when done from an event loop.
+     * 
+     * @return
+     */
+    public String getTopologyReport() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("Event loops on ").append(this.transport).append(" (").append(this.topology).append(')');
+        if (this.udpListeningPoints != null) {
+            for (final Channel socket : this.udpListeningPoints) {
+                report(sb, "udp", socket, null);
+            }
+        }
+        if (this.tcpListeningPoint != null) {
+            report(sb, "tcp", this.tcpListeningPoint, this.workerGroup);
+        }
+        for (final BoundListeningPoint lp : boundListeningPoints()) {
+            final boolean udp = lp.lp.getTransport() == TransportProtocol.UDP;
+            for (final Channel channel : lp.channels) {
+                report(sb, lp.lp.getName(), channel, udp ? null : lp.connections);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The reaper of the idle stream based connections that were accepted.
+     * 
+     * @return the reaper or null if idle connections are never closed.
+     */
+    public IdleReaper getIdleReaper() {
+        return this.reaper;
+    }
+
+    /**
+     * The reaper of the idle outbound TCP connections.
+     * 
+     * @return the reaper or null if idle connections are never closed.
+     */
+    public IdleReaper getOutboundIdleReaper() {
+        return this.outboundReaper;
+    }
+
+    /**
+     * The limits on the number of accepted connections, along with how many
+     * we currently have.
+     * 
+     * @return the limiter or null if there are no limits.
+     */
+    public ConnectionLimiter getConnectionLimiter() {
+        return this.limiter;
+    }
+
+    /**
+     * The connection manager of the given listening point, which among
+     * other things knows how many connections the listening point has.
+     * 
+     * @param lp
+     * @return
+     */
+    public ConnectionManager getConnectionManager(final ListeningPoint lp) {
+        return bound(lp).manager;
+    }
+
+    /**
+     * How many connections each of the stream based listening points has
+     * right now and how many bytes they have queued up, which walks all the
+     * connections so ask for it every now and then rather than per message.
+     * 
+     * @return
+     */
+    public String getConnectionReport() {
+        final StringBuilder sb = new StringBuilder("Connections");
+        for (final BoundListeningPoint lp : this.listeningPoints) {
+            if (lp.lp.getTransport() != TransportProtocol.UDP) {
+                sb.append("\n  ").append(lp.lp.getName()).append(' ').append(lp.lp.getIp()).append(':')
+                .append(lp.lp.getPort()).append(": ").append(lp.manager.getInboundCount()).append(" inbound, ")
+                .append(lp.manager.getOutboundCount()).append(" outbound, ").append(lp.manager.getQueuedBytes())
+                .append(" bytes queued");
+            }
+        }
+        if (this.reaper != null) {
+            sb.append("\n  inbound ").append(this.reaper);
+        }
+        if (this.outboundReaper != null) {
+            sb.append("\n  outbound ").append(this.outboundReaper);
+        }
+        if (this.decoderConfiguration.getFramingGuard() != null) {
+            sb.append("\n  ").append(this.decoderConfiguration.getFramingGuard());
+        }
+        if (this.tcpOverflow != null) {
+            sb.append("\n  ").append(this.tcpOverflow);
+        }
+        if (this.limiter != null) {
+            sb.append("\n  ").append(this.limiter);
+        }
+        return sb.toString();
+    }
+
+    private void report(final StringBuilder sb, final String name, final Channel channel,
+            final EventLoopGroup connections) {
+        sb.append("\n  ").append(name).append(' ').append(channel.localAddress()).append(" -> ")
+        .append(threadOf(channel));
+        if (connections != null) {
+            sb.append(", connections on ").append(threadsOf(connections));
+        }
+    }
+
+    private String threadOf(final Channel channel) {
+        return threadOf(channel.eventLoop());
+    }
+
+    private String threadsOf(final EventLoopGroup group) {
+        final List<String> threads = new ArrayList<>();
+        group.children().forEach(loop -> threads.add(threadOf(loop)));
+        return threads.toString();
+    }
+
+    /**
+     * The name of the thread of the event loop, if it has been recorded yet.
+     * Asking the loop itself would mean blocking on it, which may very well
+     * be done from another event loop, so we never do.
+     */
+    private String threadOf(final EventExecutor loop) {
+        final String name = this.threadNames.get(loop);
+        if (name != null) {
+            return name;
+        }
+        return loop.inEventLoop() ? Thread.currentThread().getName() : "(not started)";
+    }
+
+    /**
+     * Have every event loop record the name of its thread, which is only
+     * known to the thread itself, once it gets around to it. Nothing waits
+     * for it here.
+     * 
+     * @return the futures of the recordings.
+     */
+    private List<Future<?>> recordThreadNames() {
+        final Map<EventLoopGroup, Boolean> groups = new IdentityHashMap<>();
+        groups.put(this.bossGroup, true);
+        groups.put(this.workerGroup, true);
+        groups.put(this.udpGroup, true);
+        for (final BoundListeningPoint lp : this.listeningPoints) {
+            lp.groups.forEach(group -> groups.put(group, true));
+        }
+
+        final List<Future<?>> futures = new ArrayList<>();
+        for (final EventLoopGroup group : groups.keySet()) {
+            for (final EventExecutor loop : group.children()) {
+                futures.add(loop.submit(() -> this.threadNames.put(loop, Thread.currentThread().getName())));
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * The transport the stack is running on.
+     * 
+     * @return
+     */
+    public Transport getTransport() {
+        return this.transport;
+    }
+
+    /**
+     * The flows of the stack, see {@link ConnectionManager}.
+     * 
+     * @return
+     */
+    public ConnectionManager getConnectionManager() {
+        return this.connectionManager;
+    }
+
+    /**
+     * The TLS flows of the stack.
+     * 
+     * @return the manager or null if the stack doesn't do TLS.
+     */
+    public ConnectionManager getTlsConnectionManager() {
+        return this.tlsListeningPoint == null ? null : this.tlsListeningPoint.manager;
+    }
+
+    /**
+     * The flows of the WebSocket listening point.
+     * 
+     * @return the manager or null if the stack doesn't do WebSockets.
+     */
+    public ConnectionManager getWsConnectionManager() {
+        return this.wsListeningPoint == null ? null : this.wsListeningPoint.manager;
+    }
+
+    /**
+     * The flows of the secure WebSocket listening point.
+     * 
+     * @return the manager or null if the stack doesn't do secure WebSockets.
+     */
+    public ConnectionManager getWssConnectionManager() {
+        return this.wssListeningPoint == null ? null : this.wssListeningPoint.manager;
+    }
+
+    /**
+     * Get a UDP {@link Connection} to the given remote address. If there are
+     * several UDP sockets, the same remote address always gets the same
+     * socket so that everything we send to a particular remote comes from the
+     * same socket.
+     * 
+     * @param ip
+     * @param port
+     * @return
+     */
     public Connection connect(final String ip, final int port) {
-        final InetSocketAddress remoteAddress = new InetSocketAddress(ip, port);
-        return new UdpConnection(this.udpListeningPoint, remoteAddress);
+        return connect(TransportProtocol.UDP, ip, port);
+    }
+
+    /**
+     * Get a {@link Connection} to the given remote address over the given
+     * transport. For TCP, that is the connection we already have to the
+     * remote address (whether it connected to us or we to it) or a new one,
+     * which can be used right away even though it may not have been
+     * established yet. WebSocket connections can only be established by the
+     * remote end so for them, there must already be one. It goes out over the
+     * listening point picked by
+     * {@link #getListeningPoint(TransportProtocol, InetAddress)}.
+     * 
+     * @param transport
+     * @param ip
+     * @param port
+     * @return
+     */
+    public Connection connect(final TransportProtocol transport, final String ip, final int port) {
+        final InetSocketAddress remote = new InetSocketAddress(ip, port);
+        if (transport == TransportProtocol.WS) {
+            for (final BoundListeningPoint lp : this.listeningPoints) {
+                final Connection connection = lp.lp.getTransport() == transport
+                        ? lp.manager.find(transport, remote) : null;
+                if (connection != null) {
+                    return connection;
+                }
+            }
+            throw new IllegalArgumentException("There is no WebSocket connection to " + remote);
+        }
+        return connect(getListeningPoint(transport, remote.getAddress()), remote);
+    }
+
+    /**
+     * Get a {@link Connection} to the given remote address out over the given
+     * listening point, see {@link #connect(TransportProtocol, String, int)}.
+     * 
+     * @param lp
+     *            one of the listening points of this stack.
+     * @param remote
+     * @return
+     */
+    public Connection connect(final ListeningPoint lp, final InetSocketAddress remote) {
+        return bound(lp).manager.connect(lp.getTransport(), remote);
+    }
+
+    /**
+     * All the listening points of the stack, including the ones on the ip:port
+     * of the stack itself.
+     * 
+     * @return
+     */
+    public List<ListeningPoint> getListeningPoints() {
+        final List<ListeningPoint> lps = new ArrayList<>(this.listeningPoints.size());
+        this.listeningPoints.forEach(lp -> lps.add(lp.lp));
+        return Collections.unmodifiableList(lps);
+    }
+
+    /**
+     * The listening point to send a message to the given destination out
+     * over. That is the listening point of the transport with the most
+     * specific route to the destination or, if none of them has a route to
+     * it, the first one without any routes at all.
+     * 
+     * @param transport
+     * @param destination
+     *            the address of the destination, null if it isn't known.
+     * @return
+     * @throws IllegalStateException
+     *             in case there is no listening point for the transport (that
+     *             will take the destination).
+     */
+    public ListeningPoint getListeningPoint(final TransportProtocol transport, final InetAddress destination) {
+        BoundListeningPoint best = null;
+        BoundListeningPoint fallback = null;
+        int bestRoute = -1;
+        for (final BoundListeningPoint lp : this.listeningPoints) {
+            if (lp.lp.getTransport() != transport) {
+                continue;
+            }
+
+            if (!lp.lp.hasRoutes()) {
+                if (fallback == null) {
+                    fallback = lp;
+                }
+            } else if (destination != null) {
+                final int route = lp.lp.routeTo(destination);
+                if (route > bestRoute) {
+                    best = lp;
+                    bestRoute = route;
+                }
+            }
+        }
+
+        if (best != null) {
+            return best.lp;
+        }
+        if (fallback != null) {
+            return fallback.lp;
+        }
+        throw new IllegalStateException("The stack has no " + transport + " listening point"
+                + (destination == null ? "" : " for " + destination.getHostAddress()));
+    }
+
+    /**
+     * The listening point the given connection belongs to, which for a flow
+     * that isn't ours (or no longer is around) is the listening point that
+     * would have been picked for its remote address.
+     * 
+     * @param connection
+     * @return
+     */
+    public ListeningPoint getListeningPoint(final Connection connection) {
+        final TransportProtocol transport = TransportProtocol.of(connection);
+        for (final BoundListeningPoint lp : this.listeningPoints) {
+            if (lp.lp.getTransport() == transport && lp.manager.manages(connection)) {
+                return lp.lp;
+            }
+        }
+        return getListeningPoint(transport, connection.getRemoteAddress().getAddress());
+    }
+
+    private BoundListeningPoint bound(final ListeningPoint lp) {
+        for (final BoundListeningPoint bound : this.listeningPoints) {
+            if (bound.lp == lp) {
+                return bound;
+            }
+        }
+        throw new IllegalArgumentException(lp + " is not a listening point of this stack");
     }
 
     public Connection connect(final Buffer ip, final int port) {
         return connect(ip.toString(), port);
     }
 
+    /**
+     * Start the stack and block until it is stopped.
+     * 
+     * @throws Exception
+     */
     public void run() throws Exception {
         try {
-            final InetSocketAddress socketAddress = new InetSocketAddress(this.ip, this.port);
-            this.udpListeningPoint = this.bootstrap.bind(socketAddress).sync().channel();
-            this.serverBootstrap.bind(socketAddress).sync().channel().closeFuture().await();
+            start();
+            this.tcpListeningPoint.closeFuture().await();
         } finally {
-            this.bossGroup.shutdownGracefully();
-            this.workerGroup.shutdownGracefully();
-            this.udpGroup.shutdownGracefully();
+            shutdown();
+        }
+    }
+
+    private void start(final IdleReaper reaper) {
+        if (reaper != null) {
+            // a tenth of the idle timeout is precise enough, but there is no
+            // point in sweeping more often than once a second unless the
+            // timeout itself is shorter than that
+            final long timeout = reaper.getIdleTimeout();
+            reaper.start(this.workerGroup, Math.max(timeout / 10, Math.min(timeout, 1000)), TimeUnit.MILLISECONDS);
         }
     }
 
-    private Bootstrap createUDPListeningPoint(final SimpleChannelInboundHandler<SipMessageEvent> handler) {
+    /**
+     * Bind both listening points and return once they are up.
+     * 
+     * @throws Exception
+     */
+    public void start() throws Exception {
+        final List<Future<?>> recorded = recordThreadNames();
+        final FramingGuard guard = this.decoderConfiguration.getFramingGuard();
+        if (guard != null) {
+            guard.start(this.workerGroup, 1, TimeUnit.SECONDS);
+        }
+        start(this.reaper);
+        start(this.outboundReaper);
+
+        final InetSocketAddress socketAddress = new InetSocketAddress(this.ip, this.port);
+        final Channel[] sockets = new Channel[this.udpSockets];
+        for (int i = 0; i < sockets.length; ++i) {
+            sockets[i] = this.bootstrap.bind(socketAddress).sync().channel();
+            this.connectionManager.addUdpChannel(sockets[i]);
+        }
+        this.udpListeningPoints = sockets;
+        this.tcpListeningPoint = this.serverBootstrap.bind(socketAddress).sync().channel();
+        for (final BoundListeningPoint lp : boundListeningPoints()) {
+            final boolean udp = lp.lp.getTransport() == TransportProtocol.UDP;
+            for (int i = 0; i < (udp ? this.udpSockets : 1); ++i) {
+                final Channel channel = lp.bootstrap.bind(lp.lp.getAddress(), lp.lp.getPort()).sync().channel();
+                lp.channels.add(channel);
+                if (udp) {
+                    lp.manager.addUdpChannel(channel);
+                }
+            }
+        }
+
+        if (logger.isInfoEnabled()) {
+            // we are blocking on the binds anyway so we might as well wait
+            // for the names to make it into the report
+            recorded.forEach(Future::syncUninterruptibly);
+            logger.info(getTopologyReport());
+        }
+    }
+
+    /**
+     * Close both listening points and release all the threads.
+     */
+    public void shutdown() {
+        if (this.udpListeningPoints != null) {
+            for (final Channel socket : this.udpListeningPoints) {
+                socket.close().awaitUninterruptibly();
+            }
+        }
+        if (this.tcpListeningPoint != null) {
+            this.tcpListeningPoint.close().awaitUninterruptibly();
+        }
+        // with a shared topology, these are all the same group
+        final Map<EventLoopGroup, Boolean> groups = new IdentityHashMap<>();
+        groups.put(this.bossGroup, true);
+        groups.put(this.workerGroup, true);
+        groups.put(this.udpGroup, true);
+        for (final BoundListeningPoint lp : boundListeningPoints()) {
+            for (final Channel channel : lp.channels) {
+                channel.close().awaitUninterruptibly();
+            }
+            lp.groups.forEach(group -> groups.put(group, true));
+        }
+        groups.keySet().forEach(EventLoopGroup::shutdownGracefully);
+        if (this.dispatchGroup != null) {
+            this.dispatchGroup.shutdownGracefully();
+        }
+    }
+
+    private Bootstrap createUDPListeningPoint(final SimpleChannelInboundHandler<SipMessageEvent> handler,
+            final EventLoopGroup group) {
         final Bootstrap b = new Bootstrap();
-        b.group(this.udpGroup)
-        .channel(NioDatagramChannel.class)
+        b.group(group)
+        .channel(this.transport.getDatagramChannel())
+        .option(ChannelOption.ALLOCATOR, this.transport.getAllocator())
         .handler(new ChannelInitializer<DatagramChannel>() {
             @Override
             protected void initChannel(final DatagramChannel ch) throws Exception {
                 final ChannelPipeline pipeline = ch.pipeline();
-                pipeline.addLast("decoder", new SipMessageDatagramDecoder());
+                pipeline.addLast("clock", SimpleSipStack.this.clock.getUpdater());
+                if (SimpleSipStack.this.udpCounters != null) {
+                    pipeline.addLast("batching", new FlushCoalescingHandler(SimpleSipStack.this.udpCounters));
+                }
+                pipeline.addLast("decoder", new SipMessageDatagramDecoder(SimpleSipStack.this.clock,
+                        SimpleSipStack.this.decoderConfiguration));
                 pipeline.addLast("encoder", new SipMessageEncoder());
-                pipeline.addLast("handler", handler);
+                if (SimpleSipStack.this.dispatchGroup != null) {
+                    pipeline.addLast("handler", new SipMessageDispatcher(SimpleSipStack.this.dispatchGroup, handler));
+                } else {
+                    pipeline.addLast("handler", handler);
+                }
             }
         });
+        if (this.udpSockets > 1) {
+            // each socket gets its own event loop (the group has exactly
+            // one per socket) and thereby its own pipeline and thread.
+            b.option(this.transport.getReusePortOption(), true);
+        }
         return b;
     }
 
-    private ServerBootstrap createTCPListeningPoint(final SimpleChannelInboundHandler<SipMessageEvent> handler) {
-        final ServerBootstrap b = new ServerBootstrap();
+    /**
+     * The listening points that are bound by themselves, i.e., all but the
+     * UDP and TCP ones on our ip:port.
+     */
+    private List<BoundListeningPoint> boundListeningPoints() {
+        final List<BoundListeningPoint> lps = new ArrayList<>(this.listeningPoints.size());
+        for (final BoundListeningPoint lp : this.listeningPoints) {
+            if (lp.bootstrap != null) {
+                lps.add(lp);
+            }
+        }
+        return lps;
+    }
+
+    /**
+     * Create everything needed to run the listening point and add it to our
+     * listening points. Unless it has a topology of its own, it runs on our
+     * event loops and shares the client bootstrap with the other stream
+     * based listening points.
+     */
+    private BoundListeningPoint createListeningPoint(final Builder builder, final ListeningPoint lp,
+            final Bootstrap client) {
+        final TransportProtocol transport = lp.getTransport();
+        final EventLoopTopology topology = lp.getTopology();
+        final List<EventLoopGroup> groups = new ArrayList<>(2);
+        EventLoopGroup boss = this.bossGroup;
+        EventLoopGroup io = transport == TransportProtocol.UDP ? this.udpGroup : this.workerGroup;
+        if (topology != null) {
+            if (transport == TransportProtocol.UDP && !topology.isShared()) {
+                io = topology.newUdpGroup(this.transport, this.udpSockets);
+                groups.add(io);
+            } else {
+                io = topology.newIoGroup(this.transport);
+                boss = topology.isShared() ? io : topology.newAcceptorGroup(this.transport);
+                groups.add(io);
+                if (boss != io) {
+                    groups.add(boss);
+                }
+            }
+        }
+
+        final BoundListeningPoint bound = new BoundListeningPoint(lp, io);
+        bound.groups.addAll(groups);
+        final InetSocketAddress local = new InetSocketAddress(lp.getAddress(), lp.getPort());
+        if (transport == TransportProtocol.UDP) {
+            bound.bootstrap = createUDPListeningPoint(builder.handler, io);
+            bound.manager = new ConnectionManager(transport, local, null, null, null);
+        } else {
+            final TlsConfiguration tls = lp.isSecure() ? this.tls : null;
+            final ChannelInitializer<SocketChannel> initializer = transport == TransportProtocol.WS
+                    ? createWSInitializer(builder.handler, bound, tls) : createTCPInitializer(builder.handler, bound, tls);
+            final ServerBootstrap server = createTCPListeningPoint(initializer, boss, io);
+            Bootstrap outbound = client;
+            if (io != this.workerGroup) {
+                outbound = createTCPClient(io);
+                if (this.tcpOverflow != null) {
+                    outbound.attr(OutboundOverflow.KEY, this.tcpOverflow);
+                }
+            }
+            if (this.tcpOverflow != null) {
+                server.childAttr(OutboundOverflow.KEY, this.tcpOverflow);
+            }
+            bound.bootstrap = server;
+            bound.manager = new ConnectionManager(transport, local, outbound, initializer, this.outboundReaper);
+        }
+        this.listeningPoints.add(bound);
+        return bound;
+    }
 
-        b.group(this.bossGroup, this.workerGroup)
-        .channel(NioServerSocketChannel.class)
-        .childHandler(new ChannelInitializer<SocketChannel>() {
+    /**
+     * 
+     * @param handler
+     * @param lp
+     *            the listening point the connections belong to, null for
+     *            the plain TCP one.
+     * @param tls
+     *            the TLS configuration if the connections are TLS
+     *            connections, null for plain TCP.
+     * @return
+     */
+    private ChannelInitializer<SocketChannel> createTCPInitializer(
+            final SimpleChannelInboundHandler<SipMessageEvent> handler, final BoundListeningPoint lp,
+            final TlsConfiguration tls) {
+        return new ChannelInitializer<SocketChannel>() {
+            @Override
+            public void initChannel(final SocketChannel ch) throws Exception {
+                configureWaterMarks(ch.config());
+                final ChannelPipeline pipeline = ch.pipeline();
+                pipeline.addLast("clock", SimpleSipStack.this.clock.getUpdater());
+                if (ch.parent() != null) {
+                    // an accepted connection, which the connection manager
+                    // needs to know about. The outbound ones it already knows
+                    // (and it has already given them to the outbound reaper).
+                    if (SimpleSipStack.this.reaper != null) {
+                        pipeline.addLast("idle", SimpleSipStack.this.reaper);
+                    }
+                    final ConnectionManager manager = lp == null ? SimpleSipStack.this.connectionManager : lp.manager;
+                    pipeline.addLast("flows", manager.getFlowTracker());
+                }
+                if (SimpleSipStack.this.tcpCounters != null) {
+                    pipeline.addLast("batching", new FlushCoalescingHandler(SimpleSipStack.this.tcpCounters));
+                }
+                pipeline.addLast("decoder", new SipMessageStreamDecoder(SimpleSipStack.this.clock,
+                        SimpleSipStack.this.decoderConfiguration));
+                pipeline.addLast("encoder", new SipMessageEncoder());
+                pipeline.addLast("handler", handler);
+                if (tls != null) {
+                    tls.initChannel(ch);
+                }
+            }
+        };
+    }
+
+    /**
+     * The WebSocket connections start out as HTTP, which is upgraded to a
+     * WebSocket with the SIP sub-protocol, after which every frame is handed
+     * straight to the {@link SipMessageWebSocketDecoder}.
+     * 
+     * @param handler
+     * @param lp
+     * @param tls
+     *            the TLS configuration for secure WebSockets, null for plain
+     *            ones.
+     * @return
+     */
+    private ChannelInitializer<SocketChannel> createWSInitializer(
+            final SimpleChannelInboundHandler<SipMessageEvent> handler, final BoundListeningPoint lp,
+            final TlsConfiguration tls) {
+        final DecoderConfiguration config = this.decoderConfiguration;
+        final int maxMessageSize = (int) Math.min(Integer.MAX_VALUE,
+                (long) config.getMaxInitialLineSize() + config.getMaxHeadersSize() + config.getMaxContentLength());
+        return new ChannelInitializer<SocketChannel>() {
             @Override
             public void initChannel(final SocketChannel ch) throws Exception {
+                configureWaterMarks(ch.config());
                 final ChannelPipeline pipeline = ch.pipeline();
-                pipeline.addLast("decoder", new SipMessageStreamDecoder());
+                pipeline.addLast("clock", SimpleSipStack.this.clock.getUpdater());
+                if (SimpleSipStack.this.reaper != null) {
+                    pipeline.addLast("idle", SimpleSipStack.this.reaper);
+                }
+                pipeline.addLast("http", new HttpServerCodec());
+                pipeline.addLast("http-aggregator", new HttpObjectAggregator(MAX_WS_HANDSHAKE_SIZE));
+                pipeline.addLast("ws", new WebSocketServerProtocolHandler("/", SipMessageWebSocketDecoder.SUBPROTOCOL,
+                        false, maxMessageSize));
+                pipeline.addLast("ws-aggregator", new WebSocketFrameAggregator(maxMessageSize));
+                pipeline.addLast("flows", lp.manager.getFlowTracker());
+                if (SimpleSipStack.this.tcpCounters != null) {
+                    pipeline.addLast("batching", new FlushCoalescingHandler(SimpleSipStack.this.tcpCounters));
+                }
+                pipeline.addLast("decoder", new SipMessageWebSocketDecoder(SimpleSipStack.this.clock, config));
+                pipeline.addLast("ws-encoder", new SipMessageWebSocketEncoder());
                 pipeline.addLast("encoder", new SipMessageEncoder());
                 pipeline.addLast("handler", handler);
+                if (tls != null) {
+                    tls.initChannel(ch);
+                }
             }
-        })
+        };
+    }
+
+    private ServerBootstrap createTCPListeningPoint(final ChannelInitializer<SocketChannel> initializer,
+            final EventLoopGroup boss, final EventLoopGroup worker) {
+        final ServerBootstrap b = new ServerBootstrap();
+
+        b.group(boss, worker)
+        .channel(this.transport.getServerSocketChannel())
+        .childHandler(initializer)
         .option(ChannelOption.SO_BACKLOG, 128)
         .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000)
         .childOption(ChannelOption.SO_KEEPALIVE, true)
-        .childOption(ChannelOption.TCP_NODELAY, true);
+        .childOption(ChannelOption.TCP_NODELAY, true)
+        .childOption(ChannelOption.ALLOCATOR, this.transport.getAllocator());
+        if (this.limiter != null) {
+            b.handler(this.limiter);
+        }
+        return b;
+    }
+
+    private Bootstrap createTCPClient(final EventLoopGroup group) {
+        final Bootstrap b = new Bootstrap();
+        b.group(group)
+        .channel(this.transport.getSocketChannel())
+        .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000)
+        .option(ChannelOption.SO_KEEPALIVE, true)
+        .option(ChannelOption.TCP_NODELAY, true)
+        .option(ChannelOption.ALLOCATOR, this.transport.getAllocator());
         return b;
     }
 
+    /**
+     * Netty refuses a high water mark below the current low one (and vice
+     * versa) so the order in which they are set depends on which way we are
+     * moving them.
+     */
+    private void configureWaterMarks(final ChannelConfig config) {
+        if (this.tcpHighWaterMark == 0) {
+            return;
+        }
+
+        if (this.tcpHighWaterMark >= config.getWriteBufferLowWaterMark()) {
+            config.setWriteBufferHighWaterMark(this.tcpHighWaterMark);
+            config.setWriteBufferLowWaterMark(this.tcpLowWaterMark);
+        } else {
+            config.setWriteBufferLowWaterMark(this.tcpLowWaterMark);
+            config.setWriteBufferHighWaterMark(this.tcpHighWaterMark);
+        }
+    }
+
+    public static class Builder {
+
+        private final SimpleChannelInboundHandler<SipMessageEvent> handler;
+
+        private String ip = "127.0.0.1";
+
+        private int port = 5060;
+
+        private Transport transport = Transport.NIO;
+
+        private DecoderConfiguration decoderConfiguration = DecoderConfiguration.DEFAULT;
+
+        private int workers;
+
+        private int udpSockets = 1;
+
+        private boolean udpBatching;
+
+        private boolean tcpBatching;
+
+        private OverflowPolicy tcpOverflowPolicy = OverflowPolicy.REJECT;
+
+        private int tcpLowWaterMark;
+
+        private int tcpHighWaterMark;
+
+        private long tcpIdleTimeout;
+
+        private long tcpOutboundIdleTimeout = TimeUnit.MINUTES.toMillis(5);
+
+        private long framingMaxBytes;
+
+        private long framingMaxTime;
+
+        private int tcpMaxConnections;
+
+        private int tcpMaxConnectionsPerIp;
+
+        private int udpSizeLimit = TcpFallback.DEFAULT_LIMIT;
+
+        private TlsConfiguration tls;
+
+        private int tlsPort;
+
+        private int wsPort;
+
+        private int wssPort;
+
+        private EventLoopTopology topology = EventLoopTopology.DEFAULT;
+
+        private final List<ListeningPoint> listeningPoints = new ArrayList<>();
+
+        private Builder(final SimpleChannelInboundHandler<SipMessageEvent> handler) {
+            this.handler = handler;
+        }
+
+        public Builder ip(final String ip) {
+            this.ip = ip;
+            return this;
+        }
+
+        public Builder port(final int port) {
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * The transport to run on. If it isn't available on this host, the
+         * stack falls back to {@link Transport#NIO}, which also is the
+         * default.
+         * 
+         * @param transport
+         * @return
+         */
+        public Builder transport(final Transport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        public Builder decoderConfiguration(final DecoderConfiguration decoderConfiguration) {
+            this.decoderConfiguration = decoderConfiguration;
+            return this;
+        }
+
+        /**
+         * The number of threads to parse and handle the messages received
+         * over UDP on, see {@link SipMessageDispatcher}.
+         * 
+         * @param workers
+         * @return
+         */
+        public Builder workers(final int workers) {
+            this.workers = workers;
+            return this;
+        }
+
+        /**
+         * Bind the given number of UDP sockets to the same ip:port using
+         * SO_REUSEPORT, each one with its own event loop, and let the kernel
+         * spread the traffic across them. Typically one per core. Only
+         * supported by {@link Transport#EPOLL}, asking for more than one socket
+         * on any other transport is refused by {@link #build()}. Should epoll
+         * turn out not to be available at runtime, the stack falls back to
+         * NIO and a single socket (and logs a warning saying so).
+         * 
+         * @param udpSockets
+         * @return
+         */
+        public Builder udpSockets(final int udpSockets) {
+            this.udpSockets = udpSockets;
+            return this;
+        }
+
+        /**
+         * Flush everything written to a UDP socket during a read cycle in
+         * one go, see {@link FlushCoalescingHandler}.
+         * 
+         * @param udpBatching
+         * @return
+         */
+        public Builder udpBatching(final boolean udpBatching) {
+            this.udpBatching = udpBatching;
+            return this;
+        }
+
+        /**
+         * Flush everything written to a TCP connection during a read cycle
+         * in one go, see {@link FlushCoalescingHandler}.
+         * 
+         * @param tcpBatching
+         * @return
+         */
+        public Builder tcpBatching(final boolean tcpBatching) {
+            this.tcpBatching = tcpBatching;
+            return this;
+        }
+
+        /**
+         * What to do with messages sent over a TCP connection whose outbound
+         * buffer is full. Default is {@link OverflowPolicy#REJECT}, i.e.,
+         * sending may throw an
+         * {@link io.sipstack.netty.codec.sip.OutboundOverflowException}, which
+         * your handlers then have to deal with (e.g. by answering the request
+         * with a 503, as the proxy examples do). A handler that doesn't just
+         * has the exception end up in its exceptionCaught() and the message
+         * isn't sent. Note that TCP is a reliable transport so nothing will
+         * retransmit a message that {@link OverflowPolicy#DROP} throws away.
+         * Null lets the buffer grow without bounds.
+         * 
+         * @param tcpOverflowPolicy
+         * @return
+         */
+        public Builder tcpOverflowPolicy(final OverflowPolicy tcpOverflowPolicy) {
+            this.tcpOverflowPolicy = tcpOverflowPolicy;
+            return this;
+        }
+
+        /**
+         * The number of queued bytes at which a TCP connection stops
+         * accepting messages (high) and at which it starts accepting them
+         * again (low). If not set, the defaults of Netty are used.
+         * 
+         * @param low
+         * @param high
+         * @return
+         */
+        public Builder tcpWriteBufferWaterMarks(final int low, final int high) {
+            if (low < 0 || high < low) {
+                throw new IllegalArgumentException("The low water mark must be between zero and the high one");
+            }
+            this.tcpLowWaterMark = low;
+            this.tcpHighWaterMark = high;
+            return this;
+        }
+
+        /**
+         * The time (in milliseconds) a stream based connection that was
+         * accepted may be idle before it is closed, zero to never close them,
+         * which is the default. A client that registered over TCP can very
+         * well be quiet for the entire registration (often an hour or more)
+         * and once its connection has been closed we can no longer reach it,
+         * so if you do turn this on, make it longer than the registrations you
+         * accept or have the clients keep their connections alive (RFC 5626).
+         * See {@link IdleReaper} and {@link #tcpOutboundIdleTimeout(long)} for
+         * the connections we establish ourselves.
+         * 
+         * @param tcpIdleTimeout
+         * @return
+         */
+        public Builder tcpIdleTimeout(final long tcpIdleTimeout) {
+            this.tcpIdleTimeout = tcpIdleTimeout;
+            return this;
+        }
+
+        /**
+         * The time (in milliseconds) a TCP connection that we established
+         * (e.g. to a destination we proxied to) may be idle before it is
+         * closed, zero to never close them. Default is five minutes, since
+         * otherwise every destination we ever sent to keeps a connection
+         * forever. A new one is established the next time we send there. See
+         * {@link IdleReaper}.
+         * 
+         * @param tcpOutboundIdleTimeout
+         * @return
+         */
+        public Builder tcpOutboundIdleTimeout(final long tcpOutboundIdleTimeout) {
+            this.tcpOutboundIdleTimeout = tcpOutboundIdleTimeout;
+            return this;
+        }
+
+        /**
+         * The limits of the {@link FramingGuard} that protects the stream
+         * based listening points against peers that never complete their
+         * messages, unless the {@link DecoderConfiguration} comes with a guard
+         * of its own. The guard is off by default, so a stack behaves just like
+         * it did before there was a guard unless you ask for one. Something
+         * like 64 MB held in partially framed messages and 32 seconds (64*T1)
+         * to complete a message is a reasonable start. A maximum of zero bytes
+         * turns the guard off.
+         * 
+         * @param maxBytes
+         *            the maximum number of bytes held in partially framed
+         *            messages across all connections.
+         * @param maxFramingTime
+         *            the maximum time (in milliseconds) a connection may spend
+         *            on a single message.
+         * @return
+         */
+        public Builder framingGuard(final long maxBytes, final long maxFramingTime) {
+            if (maxBytes > 0 && maxFramingTime < 1) {
+                throw new IllegalArgumentException("The maximum framing time must be positive");
+            }
+            this.framingMaxBytes = maxBytes;
+            this.framingMaxTime = maxFramingTime;
+            return this;
+        }
+
+        /**
+         * The maximum number of connections accepted by all the stream based
+         * listening points together, zero (the default) for no limit. See
+         * {@link ConnectionLimiter}.
+         * 
+         * @param tcpMaxConnections
+         * @return
+         */
+        public Builder tcpMaxConnections(final int tcpMaxConnections) {
+            if (tcpMaxConnections < 0) {
+                throw new IllegalArgumentException("The maximum number of connections cannot be negative");
+            }
+            this.tcpMaxConnections = tcpMaxConnections;
+            return this;
+        }
+
+        /**
+         * The maximum number of connections accepted from a single
+         * ip-address, zero (the default) for no limit.
+         * 
+         * @param tcpMaxConnectionsPerIp
+         * @return
+         */
+        public Builder tcpMaxConnectionsPerIp(final int tcpMaxConnectionsPerIp) {
+            if (tcpMaxConnectionsPerIp < 0) {
+                throw new IllegalArgumentException("The maximum number of connections cannot be negative");
+            }
+            this.tcpMaxConnectionsPerIp = tcpMaxConnectionsPerIp;
+            return this;
+        }
+
+        /**
+         * The size (in bytes) above which a request is sent over TCP rather
+         * than UDP, see {@link TcpFallback}. If the destination can't be
+         * reached over TCP, the request still goes out over UDP. Default is
+         * the 1300 bytes of RFC 3261, for when the path MTU isn't known. If it
+         * is, use 200 bytes less than the path MTU. Zero to send everything
+         * over UDP, no matter the size.
+         * 
+         * @param udpSizeLimit
+         * @return
+         */
+        public Builder udpSizeLimit(final int udpSizeLimit) {
+            if (udpSizeLimit < 0) {
+                throw new IllegalArgumentException("The UDP size limit cannot be negative");
+            }
+            this.udpSizeLimit = udpSizeLimit;
+            return this;
+        }
+
+        /**
+         * Also listen for TLS connections, and allow for TLS connections to
+         * be established, using the given configuration. The settings for
+         * TCP apply to TLS as well.
+         * 
+         * @param tls
+         * @return
+         */
+        public Builder tls(final TlsConfiguration tls) {
+            this.tls = tls;
+            return this;
+        }
+
+        /**
+         * The port of the TLS listening point. Default is the port after the
+         * one of UDP and TCP.
+         * 
+         * @param tlsPort
+         * @return
+         */
+        public Builder tlsPort(final int tlsPort) {
+            this.tlsPort = tlsPort;
+            return this;
+        }
+
+        /**
+         * Accept SIP over WebSockets on the given port. Default is not to.
+         * 
+         * @param wsPort
+         * @return
+         */
+        public Builder wsPort(final int wsPort) {
+            this.wsPort = wsPort;
+            return this;
+        }
+
+        /**
+         * Accept SIP over secure WebSockets on the given port, which requires
+         * a {@link #tls(TlsConfiguration)}. Default is not to.
+         * 
+         * @param wssPort
+         * @return
+         */
+        public Builder wssPort(final int wssPort) {
+            this.wssPort = wssPort;
+            return this;
+        }
+
+        /**
+         * How to lay out the event loops. Default is
+         * {@link EventLoopTopology#DEFAULT}, i.e., a single acceptor thread,
+         * one I/O thread per core and one UDP thread per UDP socket.
+         * 
+         * @param topology
+         * @return
+         */
+        public Builder topology(final EventLoopTopology topology) {
+            this.topology = topology;
+            return this;
+        }
+
+        /**
+         * Listen on the given listening point as well. A secure one requires
+         * a {@link #tls(TlsConfiguration)}.
+         * 
+         * @param listeningPoint
+         * @return
+         */
+        public Builder listeningPoint(final ListeningPoint listeningPoint) {
+            this.listeningPoints.add(listeningPoint);
+            return this;
+        }
+
+        public SimpleSipStack build() {
+            if (this.handler == null) {
+                throw new IllegalArgumentException("You must specify the handler");
+            }
+            if (this.wssPort > 0 && this.tls == null) {
+                throw new IllegalArgumentException("Secure WebSockets require a TLS configuration");
+            }
+            if (this.transport == null) {
+                throw new IllegalArgumentException("You must specify the transport");
+            }
+            if (this.topology == null) {
+                throw new IllegalArgumentException("You must specify the event loop topology");
+            }
+            if (this.udpSockets > 1 && this.transport.getReusePortOption() == null) {
+                throw new IllegalArgumentException("Binding " + this.udpSockets + " UDP sockets requires "
+                        + "SO_REUSEPORT, which the " + this.transport + " transport doesn't support");
+            }
+            for (final ListeningPoint lp : this.listeningPoints) {
+                if (lp.isSecure() && this.tls == null) {
+                    throw new IllegalArgumentException("The secure listening point " + lp
+                            + " requires a TLS configuration");
+                }
+            }
+            return new SimpleSipStack(this);
+        }
+    }
+
+    /**
+     * A listening point along with everything needed to run it.
+     */
+    private static final class BoundListeningPoint {
+        private final ListeningPoint lp;
+
+        /**
+         * The event loops serving the connections (or UDP sockets) of the
+         * listening point.
+         */
+        private final EventLoopGroup connections;
+
+        /**
+         * The event loops the listening point has of its own, if any.
+         */
+        private final List<EventLoopGroup> groups = new ArrayList<>(0);
+
+        /**
+         * Null for the UDP and TCP listening points on our ip:port, which are
+         * bound separately.
+         */
+        private AbstractBootstrap<?, ?> bootstrap;
+        private ConnectionManager manager;
+        private final List<Channel> channels = new ArrayList<>(1);
+
+        /**
+         * The fallback of a UDP listening point, if it has one.
+         */
+        private TcpFallback fallback;
+
+        private BoundListeningPoint(final ListeningPoint lp, final EventLoopGroup connections) {
+            this.lp = lp;
+            this.connections = connections;
+        }
+    }
+
 }
@@ -0,0 +1,56 @@
+/**
+ * 
+ */
+package io.sipstack.example.netty.sip;
+
+import java.io.File;
+import java.io.InputStream;
+
+/**
+ * Pins the calling thread to a CPU. The JDK has no way of doing so itself so
+ * this is where a native affinity library plugs in, see
+ * {@link EventLoopTopology.Builder#affinity(ThreadAffinity)}. The event loop
+ * threads call it once, as they start and before they run their loop.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+@FunctionalInterface
+public interface ThreadAffinity {
+
+    /**
+     * Pin the calling thread to the given CPU.
+     * 
+     * @param cpu
+     * @throws Exception
+     *             in case the thread couldn't be pinned, in which case it just
+     *             runs wherever the scheduler puts it.
+     */
+    void pin(int cpu) throws Exception;
+
+    /**
+     * An affinity that needs nothing but Linux and its taskset utility,
+     * which it runs once per thread to pin the thread by its id. Good enough
+     * for threads that are started once and then live for as long as the
+     * process does, which is what event loop threads do.
+     * 
+     * @return
+     */
+    static ThreadAffinity taskset() {
+        return cpu -> {
+            final String tid = new File("/proc/thread-self").getCanonicalFile().getName();
+            final Process process = new ProcessBuilder("taskset", "-p", "-c", Integer.toString(cpu), tid)
+                    .redirectErrorStream(true).start();
+            try (final InputStream in = process.getInputStream()) {
+                while (in.read() != -1) {
+                    // just drain it
+                }
+            }
+            final int exit = process.waitFor();
+            if (exit != 0) {
+                throw new IllegalStateException("taskset exited with " + exit + " when pinning thread " + tid
+                        + " to CPU " + cpu);
+            }
+        };
+    }
+
+}
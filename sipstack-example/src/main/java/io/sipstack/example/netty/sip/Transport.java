@@ -0,0 +1,202 @@
+/**
+ * 
+ */
+package io.sipstack.example.netty.sip;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.sipstack.netty.codec.sip.PooledDirectByteBufAllocator;
+import io.sipstack.netty.codec.sip.PooledHeapByteBufAllocator;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The I/O transports the {@link SimpleSipStack} can run on. The JDK's NIO
+ * works everywhere, but on Linux the native epoll transport saves a fair
+ * amount of system calls and garbage per message. A native transport needs
+ * its native library, so always check {@link #isAvailable()} (or simply use
+ * {@link #orFallback()}) before using it.
+ * 
+ * The transports don't read into the same kind of buffers, so always use the
+ * allocator of the transport, see {@link #getAllocator()}.
+ * 
+ * Note that the version of Netty we are on does not ship an io_uring
+ * transport so epoll is as native as it gets for now.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public enum Transport {
+
+    NIO {
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(final int threads) {
+            return new NioEventLoopGroup(threads);
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(final int threads, final ThreadFactory threadFactory) {
+            return new NioEventLoopGroup(threads, threadFactory);
+        }
+
+        @Override
+        public Class<? extends DatagramChannel> getDatagramChannel() {
+            return NioDatagramChannel.class;
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> getServerSocketChannel() {
+            return NioServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> getSocketChannel() {
+            return NioSocketChannel.class;
+        }
+
+        @Override
+        public ChannelOption<Boolean> getReusePortOption() {
+            // not until JDK 9
+            return null;
+        }
+
+        @Override
+        public ByteBufAllocator getAllocator() {
+            return PooledHeapByteBufAllocator.DEFAULT;
+        }
+    },
+
+    EPOLL {
+        @Override
+        public boolean isAvailable() {
+            return Epoll.isAvailable();
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(final int threads) {
+            return new EpollEventLoopGroup(threads);
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(final int threads, final ThreadFactory threadFactory) {
+            return new EpollEventLoopGroup(threads, threadFactory);
+        }
+
+        @Override
+        public Class<? extends DatagramChannel> getDatagramChannel() {
+            return EpollDatagramChannel.class;
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> getServerSocketChannel() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> getSocketChannel() {
+            return EpollSocketChannel.class;
+        }
+
+        @Override
+        public ChannelOption<Boolean> getReusePortOption() {
+            return EpollChannelOption.SO_REUSEPORT;
+        }
+
+        @Override
+        public ByteBufAllocator getAllocator() {
+            return PooledDirectByteBufAllocator.DEFAULT;
+        }
+    };
+
+    /**
+     * Whether this transport can be used on this host.
+     * 
+     * @return
+     */
+    public abstract boolean isAvailable();
+
+    /**
+     * 
+     * @param threads
+     *            the number of threads, where zero means Netty's default
+     *            (twice the number of cores).
+     * @return
+     */
+    public abstract EventLoopGroup newEventLoopGroup(int threads);
+
+    /**
+     * 
+     * @param threads
+     *            the number of threads, where zero means Netty's default.
+     * @param threadFactory
+     *            the factory of the threads, see {@link EventLoopTopology}.
+     * @return
+     */
+    public abstract EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory);
+
+    public abstract Class<? extends DatagramChannel> getDatagramChannel();
+
+    public abstract Class<? extends ServerSocketChannel> getServerSocketChannel();
+
+    public abstract Class<? extends SocketChannel> getSocketChannel();
+
+    /**
+     * The option for SO_REUSEPORT, which allows several sockets to be bound
+     * to the same ip:port and has the kernel spread the traffic across them.
+     * 
+     * @return the option or null if the transport doesn't support it.
+     */
+    public abstract ChannelOption<Boolean> getReusePortOption();
+
+    /**
+     * The allocator for the channels of this transport. NIO reads into pooled
+     * heap buffers so that the decoders can parse straight out of them (see
+     * {@link PooledHeapByteBufAllocator}). The native transport can only read
+     * into direct buffers, which the decoders copy each message out of
+     * instead (see {@link PooledDirectByteBufAllocator}).
+     * 
+     * @return
+     */
+    public abstract ByteBufAllocator getAllocator();
+
+    /**
+     * This transport if it is available, otherwise {@link #NIO}.
+     * 
+     * @return
+     */
+    public Transport orFallback() {
+        return isAvailable() ? this : NIO;
+    }
+
+    /**
+     * The transport with the fewest system calls available on this host.
+     * Note that on epoll, every message is copied out of the direct buffer it
+     * was read into (see {@link #getAllocator()}) so this is only the best
+     * transport when the system calls outweigh the copying, which is why it
+     * isn't the default of the {@link SimpleSipStack}.
+     * 
+     * @return
+     */
+    public static Transport best() {
+        return EPOLL.orFallback();
+    }
+
+}
@@ -0,0 +1,150 @@
+/**
+ * 
+ */
+package io.sipstack.example.netty.sip.benchmark;
+
+import io.sipstack.example.netty.sip.SimpleSipStack;
+import io.sipstack.example.netty.sip.Transport;
+import io.sipstack.example.netty.sip.uas.UASHandler;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the same load against a UAS on each of the {@link Transport}s that are
+ * available on this host so that you can pick the best one for the box you're
+ * on. The load is a number of clients, each sending an OPTIONS over UDP and
+ * waiting for the 200 OK before sending the next one, so what is measured is
+ * the number of requests per second the stack can turn around.
+ * 
+ * <pre>
+ * java io.sipstack.example.netty.sip.benchmark.TransportBenchmark [seconds] [clients]
+ * </pre>
+ * 
+ * Note that the clients run in the same process (and on the same box) as the
+ * UAS, so use the numbers to compare the transports with each other, not as
+ * the absolute capacity of the stack. For that, use SIPp from a different box
+ * (see {@link io.sipstack.example.netty.sip.uas.UAS}).
+ * 
+ * A transport that doesn't answer a single request is broken rather than slow
+ * and fails the run (the exit status is non-zero), so a short run such as
+ * <code>TransportBenchmark 1 1</code> doubles as a smoke test of the
+ * transports available on the host.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public final class TransportBenchmark {
+
+    private static final String IP = "127.0.0.1";
+
+    private static final int PORT = 5090;
+
+    private static final int WARMUP_SECONDS = 2;
+
+    private TransportBenchmark() {
+        // left empty intentionally
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        final int clients = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+
+        boolean failed = false;
+        for (final Transport transport : Transport.values()) {
+            if (!transport.isAvailable()) {
+                System.out.println(transport + ": not available on this host, skipping");
+                continue;
+            }
+
+            final int port = PORT + transport.ordinal();
+            final SimpleSipStack stack =
+                    SimpleSipStack.with(new UASHandler()).ip(IP).port(port).transport(transport).build();
+            stack.start();
+            try {
+                run(port, clients, WARMUP_SECONDS);
+                final Result result = run(port, clients, seconds);
+                System.out.printf("%s: %d requests/s, %d timeouts%n", transport, result.responses / seconds,
+                        result.timeouts);
+                if (result.responses == 0) {
+                    System.out.println(transport + ": FAILED, not a single request was answered");
+                    failed = true;
+                }
+            } finally {
+                stack.shutdown();
+            }
+        }
+
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    private static Result run(final int port, final int clients, final int seconds) throws Exception {
+        final LongAdder responses = new LongAdder();
+        final LongAdder timeouts = new LongAdder();
+        final long deadline = System.currentTimeMillis() + seconds * 1000L;
+        final InetSocketAddress uas = new InetSocketAddress(IP, port);
+
+        final List<Thread> threads = new ArrayList<>(clients);
+        for (int i = 0; i < clients; ++i) {
+            final int client = i;
+            final Thread thread = new Thread(() -> {
+                try (DatagramSocket socket = new DatagramSocket(0)) {
+                    socket.setSoTimeout(1000);
+                    final byte[] buffer = new byte[4096];
+                    final DatagramPacket response = new DatagramPacket(buffer, buffer.length);
+                    long seq = 0;
+                    while (System.currentTimeMillis() < deadline) {
+                        final byte[] request = options(port, socket.getLocalPort(), client, ++seq);
+                        socket.send(new DatagramPacket(request, request.length, uas));
+                        try {
+                            socket.receive(response);
+                            responses.increment();
+                        } catch (final SocketTimeoutException e) {
+                            timeouts.increment();
+                        }
+                    }
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                }
+            }, "benchmark-client-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        return new Result(responses.sum(), timeouts.sum());
+    }
+
+    private static byte[] options(final int port, final int localPort, final int client, final long seq) {
+        final String id = client + "-" + seq;
+        final String msg = "OPTIONS sip:uas@" + IP + ":" + port + " SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP " + IP + ":" + localPort + ";branch=z9hG4bK-" + id + "\r\n"
+                + "From: <sip:benchmark@" + IP + ">;tag=" + client + "\r\n"
+                + "To: <sip:uas@" + IP + ">\r\n"
+                + "Call-ID: " + id + "@benchmark\r\n"
+                + "CSeq: 1 OPTIONS\r\n"
+                + "Max-Forwards: 70\r\n"
+                + "Content-Length: 0\r\n\r\n";
+        return msg.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static final class Result {
+        private final long responses;
+        private final long timeouts;
+
+        private Result(final long responses, final long timeouts) {
+            this.responses = responses;
+            this.timeouts = timeouts;
+        }
+    }
+
+}
@@ -2,18 +2,30 @@ package io.sipstack.example.netty.sip.proxy;
 
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
 import io.pkts.packet.sip.SipMessage;
 import io.pkts.packet.sip.SipRequest;
 import io.pkts.packet.sip.SipResponse;
 import io.pkts.packet.sip.address.SipURI;
 import io.pkts.packet.sip.header.RouteHeader;
 import io.pkts.packet.sip.header.ViaHeader;
+import io.sipstack.example.netty.sip.ListeningPoint;
 import io.sipstack.example.netty.sip.SimpleSipStack;
 import io.sipstack.netty.codec.sip.Connection;
+import io.sipstack.netty.codec.sip.ForwardedMessage;
+import io.sipstack.netty.codec.sip.OutboundOverflowException;
 import io.sipstack.netty.codec.sip.SipMessageEvent;
 
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.LongAdder;
+
 public final class ProxyHandler extends SimpleChannelInboundHandler<SipMessageEvent> {
 
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(ProxyHandler.class);
+
+    private final LongAdder droppedResponses = new LongAdder();
+
     private SimpleSipStack stack;
 
     public ProxyHandler() {
@@ -26,21 +38,19 @@ public final class ProxyHandler extends SimpleChannelInboundHandler<SipMessageEv
 
     @Override
     protected void channelRead0(final ChannelHandlerContext ctx, final SipMessageEvent event) throws Exception {
-        final SipMessage msg = event.getMessage();
+        if (!event.isRequest()) {
+            proxyResponse(event);
+            return;
+        }
 
+        final SipMessage msg = event.getMessage();
         try {
-            if (msg.isRequest()) {
-                final SipURI next = getNextHop(msg.toRequest());
-                proxyTo(next, msg.toRequest());
-            } else {
-                // responses follow Via-headers to those are easy. Just pop the top-most via
-                // since it is supposed to be us and then proxy to the second via. We should
-                // check so that the via header we just popped indeed is pointing to us but
-                // for now we will ignore these details.
-                final SipResponse response = msg.toResponse();
-                response.popViaHeader();
-                proxy(response);
-            }
+            final SipURI next = getNextHop(msg.toRequest());
+            proxyTo(next, ForwardedMessage.of(event));
+        } catch (final OutboundOverflowException e) {
+            // the next hop isn't keeping up with what we are sending it so
+            // rather than queuing up even more, tell the UAC to back off.
+            event.getConnection().send(msg.toRequest().createResponse(503));
         } catch (final IllegalArgumentException e) {
             // Taking the lazy way out. If we find anything that isn't to our liking then
             // we will bail out with an IllegalArgumentException, which we will turn
@@ -60,15 +70,43 @@ public final class ProxyHandler extends SimpleChannelInboundHandler<SipMessageEv
     }
 
     /**
-     * Proxy the response to
+     * Responses follow Via-headers so those are easy. Just pop the top-most via since it is
+     * supposed to be us and then proxy to the second via. We should check so that the via header
+     * we just popped indeed is pointing to us but for now we will ignore these details.
      * 
-     * @param via
-     * @param msg
+     * The response is never parsed, both the Via we pop and the one we proxy to are picked out
+     * of the bytes it came in as, and what actually goes out on the wire is the response as we
+     * received it minus the top-most via, written straight out of the buffer it came in on.
+     * 
+     * @param event
      */
-    private void proxy(final SipResponse msg) {
-        final ViaHeader via = msg.getViaHeader();
-        final Connection connection = this.stack.connect(via.getHost(), via.getPort());
-        connection.send(msg);
+    private void proxyResponse(final SipMessageEvent event) {
+        final ForwardedMessage msg = ForwardedMessage.of(event).popViaHeader();
+        final InetSocketAddress next = msg.getViaSentBy();
+        if (next == null) {
+            // we don't send any requests of our own so a response that only had our Via (or
+            // none at all) has nowhere to go.
+            this.droppedResponses.increment();
+            logger.warn("Dropping a {} response without a Via to forward it to", event.getMethod());
+            return;
+        }
+
+        try {
+            this.stack.connect(next.getHostString(), next.getPort()).send(msg);
+        } catch (final OutboundOverflowException e) {
+            // there is no one to tell, the UAS will retransmit the response if it cares.
+            this.droppedResponses.increment();
+        }
+    }
+
+    /**
+     * The number of responses that were dropped since there was no Via to forward them to or
+     * since the next hop wasn't keeping up.
+     * 
+     * @return
+     */
+    public long getDroppedResponses() {
+        return this.droppedResponses.sum();
     }
 
     /**
@@ -79,11 +117,10 @@ public final class ProxyHandler extends SimpleChannelInboundHandler<SipMessageEv
      * @param destination
      * @param msg
      */
-    private void proxyTo(final SipURI destination, final SipRequest msg) {
+    private void proxyTo(final SipURI destination, final ForwardedMessage msg) {
         final Connection connection = this.stack.connect(destination.getHost(), destination.getPort());
-        final ViaHeader via =
-                ViaHeader.with().host("127.0.0.1").port(5060).transportUDP().branch(ViaHeader.generateBranch()).build();
-        msg.addHeaderFirst(via);
+        final ListeningPoint lp = this.stack.getListeningPoint(connection);
+        msg.addHeaderFirst(lp.getVia().withBranch(ViaHeader.generateBranch()));
         connection.send(msg);
     }
 
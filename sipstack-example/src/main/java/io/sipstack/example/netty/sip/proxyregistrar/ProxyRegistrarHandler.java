@@ -2,6 +2,8 @@ package io.sipstack.example.netty.sip.proxyregistrar;
 
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
 import io.pkts.buffer.Buffer;
 import io.pkts.buffer.Buffers;
 import io.pkts.packet.sip.SipMessage;
@@ -13,12 +15,17 @@ import io.pkts.packet.sip.header.ContactHeader;
 import io.pkts.packet.sip.header.ExpiresHeader;
 import io.pkts.packet.sip.header.RouteHeader;
 import io.pkts.packet.sip.header.ViaHeader;
+import io.sipstack.example.netty.sip.ListeningPoint;
 import io.sipstack.example.netty.sip.SimpleSipStack;
 import io.sipstack.example.netty.sip.registrar.Binding;
 import io.sipstack.netty.codec.sip.Connection;
+import io.sipstack.netty.codec.sip.ForwardedMessage;
+import io.sipstack.netty.codec.sip.OutboundOverflowException;
 import io.sipstack.netty.codec.sip.SipMessageEvent;
 
+import java.net.InetSocketAddress;
 import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * 
@@ -27,8 +34,12 @@ import java.util.List;
  */
 public final class ProxyRegistrarHandler extends SimpleChannelInboundHandler<SipMessageEvent> {
 
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(ProxyRegistrarHandler.class);
+
     private final LocationService locationService = LocationService.getInstance();
 
+    private final LongAdder droppedResponses = new LongAdder();
+
     private SimpleSipStack stack;
 
     public void setStack(final SimpleSipStack stack) {
@@ -38,35 +49,97 @@ public final class ProxyRegistrarHandler extends SimpleChannelInboundHandler<Sip
 
     @Override
     protected void channelRead0(final ChannelHandlerContext ctx, final SipMessageEvent event) throws Exception {
+        if (!event.isRequest()) {
+            proxyResponse(event);
+            return;
+        }
+
         final Connection connection = event.getConnection();
         final SipMessage msg = event.getMessage();
 
-        if (msg.isRequest() && msg.isOptions()) {
+        if (msg.isOptions()) {
             // many clients will send out an OPTIONS request as a ping mechanism
             // and no reason to forward it so we will just response with a 200.
             connection.send(msg.toRequest().createResponse(200));
-        } else if (msg.isRequest() && msg.isRegister()) {
-            final SipResponse response = processRegisterRequest(msg.toRequest());
+        } else if (msg.isRegister()) {
+            final SipResponse response = processRegisterRequest(msg.toRequest(), connection);
             connection.send(response);
-        } else if (msg.isRequest()) {
-            final SipURI next = getNextHop(msg.toRequest());
-            if (next != null) {
-                proxyTo(next, msg.toRequest());
-            } else {
+        } else {
+            final Connection next = getNextHop(msg.toRequest());
+            if (next == null) {
                 connection.send(msg.toRequest().createResponse(404));
+                return;
             }
-        } else {
-            // responses follow Via-headers to those are easy. Just pop the top-most via
-            // since it is supposed to be us and then proxy to the second via. We should
-            // check so that the via header we just popped indeed is pointing to us but
-            // for now we will ignore these details.
-            final SipResponse response = msg.toResponse();
-            response.popViaHeader();
-            proxy(response);
+
+            final Buffer branch = event.getViaBranch();
+            if (branch == null) {
+                // our branch is derived from the one of the request (see proxyTo) so a request
+                // without one (e.g. from an RFC 2543 element) is one we can't proxy statelessly.
+                connection.send(msg.toRequest().createResponse(400));
+                return;
+            }
+
+            try {
+                proxyTo(next, ForwardedMessage.of(event), branch);
+            } catch (final OutboundOverflowException e) {
+                // the next hop isn't keeping up with what we are sending it so
+                // rather than queuing up even more, tell the UAC to back off.
+                connection.send(msg.toRequest().createResponse(503));
+            }
+        }
+    }
+
+    /**
+     * Responses follow Via-headers so those are easy. Just pop the top-most via since it is
+     * supposed to be us and then proxy to the second via. We should check so that the via header
+     * we just popped indeed is pointing to us but for now we will ignore these details.
+     * 
+     * The response is never parsed, both the Via we pop and the one we proxy to are picked out
+     * of the bytes it came in as, and what actually goes out on the wire is the response as we
+     * received it minus the top-most via, written straight out of the buffer it came in on.
+     * 
+     * @param event
+     */
+    private void proxyResponse(final SipMessageEvent event) {
+        final ForwardedMessage msg = ForwardedMessage.of(event).popViaHeader();
+        final InetSocketAddress next = msg.getViaSentBy();
+        if (next == null) {
+            // we don't send any requests of our own so a response that only had our Via (or
+            // none at all) has nowhere to go.
+            this.droppedResponses.increment();
+            logger.warn("Dropping a {} response without a Via to forward it to", event.getMethod());
+            return;
+        }
+
+        try {
+            this.stack.connect(next.getHostString(), next.getPort()).send(msg);
+        } catch (final OutboundOverflowException e) {
+            // there is no one to tell, the UAS will retransmit the response if it cares.
+            this.droppedResponses.increment();
         }
     }
 
-    private SipURI lookupLocation(final SipRequest request) {
+    /**
+     * The number of responses that were dropped since there was no Via to forward them to or
+     * since the next hop wasn't keeping up.
+     * 
+     * @return
+     */
+    public long getDroppedResponses() {
+        return this.droppedResponses.sum();
+    }
+
+    /**
+     * Find where to reach the user the request is targeting. If the UA
+     * registered over a flow that is still open, the request goes down that
+     * very flow since that is how a UA behind a NAT (and any UA using SIP
+     * outbound, see RFC 5626) can be reached. Otherwise, we fall back to the
+     * contact address of the binding.
+     * 
+     * @param request
+     * @return the connection to the UA or null if the user isn't registered.
+     */
+    private Connection lookupLocation(final SipRequest request) {
         final SipURI requestURI = (SipURI) request.getRequestUri();
         final SipURI aor = SipURI.with().user(requestURI.getUser()).host(requestURI.getHost()).build();
         final List<Binding> bindings = this.locationService.getBindings(aor);
@@ -80,7 +153,12 @@ public final class ProxyRegistrarHandler extends SimpleChannelInboundHandler<Sip
         // if there are multiple bindings you should really fork the request
         // but since this is a simple example we will simply ignore any
         // but the first registration.
-        return bindings.get(0).getContact();
+        final Binding binding = bindings.get(0);
+        final Connection flow = binding.getFlow();
+        if (flow != null && flow.isOpen()) {
+            return flow;
+        }
+        return connect(binding.getContact());
     }
 
     /**
@@ -96,9 +174,9 @@ public final class ProxyRegistrarHandler extends SimpleChannelInboundHandler<Sip
      * happen :-)
      * 
      * @param request
-     * @return
+     * @return the connection to the next hop or null if there is none.
      */
-    private SipURI getNextHop(final SipRequest request) {
+    private Connection getNextHop(final SipRequest request) {
 
         if (request.isInitial() || request.isAck()) {
             return lookupLocation(request);
@@ -112,22 +190,15 @@ public final class ProxyRegistrarHandler extends SimpleChannelInboundHandler<Sip
         // ignore this.
         final RouteHeader route = request.getRouteHeader();
         if (route != null) {
-            return (SipURI) route.getAddress().getURI();
+            return connect((SipURI) route.getAddress().getURI());
         }
 
-        return (SipURI) request.getRequestUri();
+        return connect((SipURI) request.getRequestUri());
     }
 
-    /**
-     * Proxy the response to
-     * 
-     * @param via
-     * @param msg
-     */
-    private void proxy(final SipResponse msg) {
-        final ViaHeader via = msg.getViaHeader();
-        final Connection connection = this.stack.connect(via.getHost(), via.getPort());
-        connection.send(msg);
+    private Connection connect(final SipURI destination) {
+        final int port = destination.getPort();
+        return this.stack.connect(destination.getHost(), port == -1 ? 5060 : port);
     }
 
     /**
@@ -135,13 +206,14 @@ public final class ProxyRegistrarHandler extends SimpleChannelInboundHandler<Sip
      * request went "via this network address using this protocol". The {@link ViaHeader}s are used
      * for responses to find their way back the exact same path as the request took.
      * 
-     * @param destination
+     * @param connection
+     *            the connection to the next hop.
      * @param msg
+     * @param otherBranch
+     *            the branch of the top-most Via of the request, as picked out
+     *            by the decoder while framing the message. Never null.
      */
-    private void proxyTo(final SipURI destination, final SipRequest msg) {
-        final int port = destination.getPort();
-        final Connection connection = this.stack.connect(destination.getHost(), port == -1 ? 5060 : port);
-
+    private void proxyTo(final Connection connection, final ForwardedMessage msg, final Buffer otherBranch) {
         // SIP is pretty powerful but there are a lot of little details to get things working.
         // E.g., this sample application is acting as a stateless proxy and in order to
         // correctly relay re-transmissions or e.g. CANCELs we have to make sure to always
@@ -153,30 +225,23 @@ public final class ProxyRegistrarHandler extends SimpleChannelInboundHandler<Sip
         // now we are relying on the upstream element to do the right thing :-)
         //
         // See section 16.11 in RFC3263 for more information.
-        final Buffer otherBranch = msg.getViaHeader().getBranch();
         final Buffer myBranch = Buffers.createBuffer(otherBranch.getReadableBytes() + 4);
         otherBranch.getBytes(myBranch);
         myBranch.write((byte) '-');
         myBranch.write((byte) 'a');
         myBranch.write((byte) 'b');
         myBranch.write((byte) 'c');
-        final ViaHeader via = ViaHeader.with().host("10.0.1.28").port(5060).transportUDP().branch(myBranch).build();
+        // The Via-header goes out with the listening point the request goes out over, which
+        // has it encoded up until the branch so all that is left to do is to append ours.
+        final ListeningPoint lp = this.stack.getListeningPoint(connection);
 
         // This is how you should generate the branch parameter if you are a stateful proxy:
         // Note the ViaHeader.generateBranch()...
-        // ViaHeader.with().host("10.0.1.28").port(5060).transportUDP().branch(ViaHeader.generateBranch()).build();
+        // lp.getVia().withBranch(ViaHeader.generateBranch());
 
-        msg.addHeaderFirst(via);
+        msg.addHeaderFirst(lp.getVia().withBranch(myBranch));
 
-        try {
-            connection.send(msg);
-        } catch (final IndexOutOfBoundsException e) {
-            System.out.println("this is the message:");
-            System.out.println(msg.getRequestUri());
-            System.out.println(msg.getMethod());
-            System.out.println(msg);
-            e.printStackTrace();
-        }
+        connection.send(msg);
     }
 
     /**
@@ -184,8 +249,11 @@ public final class ProxyRegistrarHandler extends SimpleChannelInboundHandler<Sip
      * little exercise, we are skipping many steps just to keep things simple.
      * 
      * @param request
+     * @param flow
+     *            the flow the request arrived over, which is where requests
+     *            to the UA will go for as long as it stays open.
      */
-    private SipResponse processRegisterRequest(final SipRequest request) {
+    private SipResponse processRegisterRequest(final SipRequest request, final Connection flow) {
         final SipURI requestURI = (SipURI) request.getRequestUri();
         final Buffer domain = requestURI.getHost();
         final SipURI aor = getAOR(request);
@@ -201,6 +269,7 @@ public final class ProxyRegistrarHandler extends SimpleChannelInboundHandler<Sip
         builder.callId(request.getCallIDHeader());
         builder.expires(getExpires(request));
         builder.cseq(request.getCSeqHeader());
+        builder.flow(flow);
 
         // NOTE: this is also cheating. There may be multiple contacts
         // and they must all get processed but whatever...
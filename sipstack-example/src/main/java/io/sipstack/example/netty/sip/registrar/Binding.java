@@ -6,6 +6,7 @@ package io.sipstack.example.netty.sip.registrar;
 import io.pkts.packet.sip.address.SipURI;
 import io.pkts.packet.sip.header.CSeqHeader;
 import io.pkts.packet.sip.header.CallIdHeader;
+import io.sipstack.netty.codec.sip.Connection;
 
 
 /**
@@ -14,6 +15,12 @@ import io.pkts.packet.sip.header.CallIdHeader;
  * Note, this is a simplified version and doesn't contain e.g. Path headers, which are crucial for a
  * real network.
  * 
+ * A binding also remembers the flow the REGISTER request arrived over. A UA
+ * behind a NAT can often only be reached over that flow and a UA using SIP
+ * outbound (RFC 5626) keeps it alive for exactly that reason, so requests
+ * to the UA should go down that flow for as long as it is open and only
+ * fall back to the contact address once it has been closed.
+ * 
  * @author jonas@jonasborjesson.com
  */
 public class Binding {
@@ -28,13 +35,19 @@ public class Binding {
 
     private final CallIdHeader callId;
 
+    private final Connection flow;
+
     private Binding(final SipURI aor, final int expires, final CSeqHeader cseq, final SipURI contact,
-            final CallIdHeader callId) {
-        this.aor = aor;
+            final CallIdHeader callId, final Connection flow) {
+        // the headers are views of the buffer the REGISTER request was read
+        // from and that buffer goes back to its pool once the request has
+        // been processed, so we have to make our own copies.
+        this.aor = aor.clone();
         this.expires = expires;
-        this.cseq = cseq;
+        this.cseq = cseq.clone();
         this.contact = contact.clone();
-        this.callId = callId;
+        this.callId = callId.clone();
+        this.flow = flow;
     }
 
     public SipURI getAor() {
@@ -57,6 +70,15 @@ public class Binding {
         return this.callId;
     }
 
+    /**
+     * The flow the REGISTER request that created this binding arrived over.
+     * 
+     * @return the flow or null if it isn't known.
+     */
+    public Connection getFlow() {
+        return this.flow;
+    }
+
     @Override
     public String toString() {
         return this.contact.toString();
@@ -78,6 +100,8 @@ public class Binding {
 
         private CallIdHeader callId;
 
+        private Connection flow;
+
         private Builder() {
             // just to prevent instantiation
         }
@@ -107,11 +131,17 @@ public class Binding {
             return this;
         }
 
+        public Builder flow(final Connection flow) {
+            this.flow = flow;
+            return this;
+        }
+
         public Binding build() {
             // of course, we really should validate things here
             // but since this is a basic example, we will ignore
             // this for now
-            return new Binding(this.aor, this.expires, this.cseq, this.contact, this.callId);
+            return new Binding(this.aor, this.expires, this.cseq, this.contact, this.callId,
+                    this.flow);
         }
 
     }
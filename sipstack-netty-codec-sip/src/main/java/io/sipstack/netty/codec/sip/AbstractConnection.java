@@ -6,16 +6,17 @@ package io.sipstack.netty.codec.sip;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
-import io.pkts.buffer.Buffer;
 import io.pkts.packet.sip.SipMessage;
-import io.pkts.packet.sip.impl.SipParser;
 
-import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
 
 /**
+ * A connection is looked up for pretty much every message that goes through
+ * the stack so the addresses (and their string and byte representations) are
+ * computed the first time they are asked for and then cached. Note that this
+ * means that the arrays returned by {@link #getRawLocalIpAddress()} and
+ * {@link #getRawRemoteIpAddress()} are shared and must not be modified.
+ * 
  * @author jonas@jonasborjesson.com
  */
 public abstract class AbstractConnection implements Connection {
@@ -24,6 +25,21 @@ public abstract class AbstractConnection implements Connection {
     private final Channel channel;
     private final InetSocketAddress remote;
 
+    /**
+     * The local address of the channel, which isn't known until the channel
+     * has been bound (or connected) so it is looked up lazily.
+     */
+    private InetSocketAddress local;
+    private String localIpAddress;
+
+    /**
+     * Arrays, unlike the strings and addresses, aren't safe to hand over to
+     * another thread through a data race.
+     */
+    private volatile byte[] rawLocalIpAddress;
+    private volatile byte[] rawRemoteIpAddress;
+    private String remoteIpAddress;
+
     /*
      * protected AbstractConnection(final ChannelHandlerContext ctx, final InetSocketAddress remote)
      * { this.ctx = ctx; this.channel = null; this.remote = remote; }
@@ -39,22 +55,39 @@ public abstract class AbstractConnection implements Connection {
         return this.channel;
     }
 
+    private InetSocketAddress local() {
+        if (this.local == null) {
+            this.local = (InetSocketAddress) this.channel.localAddress();
+        }
+        return this.local;
+    }
+
     @Override
     public byte[] getRawRemoteIpAddress() {
-        return this.remote.getAddress().getAddress();
+        byte[] raw = this.rawRemoteIpAddress;
+        if (raw == null) {
+            raw = this.remote.getAddress().getAddress();
+            this.rawRemoteIpAddress = raw;
+        }
+        return raw;
     }
 
     @Override
     public byte[] getRawLocalIpAddress() {
-        final SocketAddress local = this.channel.localAddress();
-        final InetAddress address = ((InetSocketAddress) local).getAddress();
-        return address.getAddress();
+        byte[] raw = this.rawLocalIpAddress;
+        if (raw == null) {
+            raw = local().getAddress().getAddress();
+            this.rawLocalIpAddress = raw;
+        }
+        return raw;
     }
 
     @Override
     public final String getLocalIpAddress() {
-        final SocketAddress local = this.channel.localAddress();
-        return ((InetSocketAddress) local).getAddress().getHostAddress();
+        if (this.localIpAddress == null) {
+            this.localIpAddress = local().getAddress().getHostAddress();
+        }
+        return this.localIpAddress;
     }
 
     @Override
@@ -64,13 +97,15 @@ public abstract class AbstractConnection implements Connection {
 
     @Override
     public final String getRemoteIpAddress() {
-        return this.remote.getAddress().getHostAddress();
+        if (this.remoteIpAddress == null) {
+            this.remoteIpAddress = this.remote.getAddress().getHostAddress();
+        }
+        return this.remoteIpAddress;
     }
 
     @Override
     public int getLocalPort() {
-        final SocketAddress local = this.channel.localAddress();
-        return ((InetSocketAddress) local).getPort();
+        return local().getPort();
     }
 
     @Override
@@ -78,6 +113,11 @@ public abstract class AbstractConnection implements Connection {
         return this.remote.getPort();
     }
 
+    @Override
+    public boolean isOpen() {
+        return this.channel.isOpen();
+    }
+
     @Override
     public boolean isUDP() {
         return false;
@@ -117,23 +157,34 @@ public abstract class AbstractConnection implements Connection {
      * @return the resulting {@link ByteBuf}
      */
     protected ByteBuf toByteBuf(final SipMessage msg) {
-        try {
-            final Buffer b = msg.toBuffer();
-            final int capacity = b.capacity() + 2;
-            final ByteBuf buffer = this.channel.alloc().buffer(capacity, capacity);
-
-            for (int i = 0; i < b.getReadableBytes(); ++i) {
-                buffer.writeByte(b.getByte(i));
-            }
-            buffer.writeByte(SipParser.CR);
-            buffer.writeByte(SipParser.LF);
+        return compact(SipMessageEncoder.toByteBuf(msg));
+    }
+
+    /**
+     * Same as {@link #toByteBuf(SipMessage)} but for a message that is being
+     * forwarded.
+     * 
+     * @param msg
+     * @return
+     */
+    protected ByteBuf toByteBuf(final ForwardedMessage msg) {
+        return compact(msg.toByteBuf());
+    }
+
+    /**
+     * Use the compact form if the {@link CompactForm} of the channel (if any)
+     * says so for the remote end of this connection. Note that there is no
+     * way of overriding that per connection: the decoders cache and share
+     * the connections, so anything set on one would leak into every later
+     * message to the same remote end. Whatever is special about a destination
+     * goes into the {@link CompactForm.Policy}.
+     */
+    private ByteBuf compact(final ByteBuf buffer) {
+        final CompactForm compact = this.channel.attr(CompactForm.KEY).get();
+        if (compact == null || !compact.useCompactForm(this.remote)) {
             return buffer;
-        } catch (final IOException e) {
-            // shouldn't be possible since the underlying buffer
-            // from the msg is backed by a byte-array.
-            // TODO: do something appropriate other than this
-            throw new RuntimeException("Unable to convert SipMessage to a ByteBuf due to IOException", e);
         }
+        return compact.encode(buffer);
     }
 
 }
@@ -0,0 +1,97 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps track of how well the reads and writes of one or more channels are
+ * batched, i.e., how many messages are read per read cycle and how many
+ * messages are written per flush, see {@link FlushCoalescingHandler}. The same
+ * counters can (and typically should) be shared by all the channels of a
+ * listening point.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public final class BatchCounters {
+
+    private final LongAdder readBatches = new LongAdder();
+    private final LongAdder messagesRead = new LongAdder();
+    private final LongAccumulator largestReadBatch = new LongAccumulator(Long::max, 0);
+
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder messagesFlushed = new LongAdder();
+    private final LongAccumulator largestFlush = new LongAccumulator(Long::max, 0);
+
+    void read(final int messages) {
+        if (messages > 0) {
+            this.readBatches.increment();
+            this.messagesRead.add(messages);
+            this.largestReadBatch.accumulate(messages);
+        }
+    }
+
+    void flushed(final int messages) {
+        if (messages > 0) {
+            this.flushes.increment();
+            this.messagesFlushed.add(messages);
+            this.largestFlush.accumulate(messages);
+        }
+    }
+
+    /**
+     * The number of read cycles that read at least one message.
+     * 
+     * @return
+     */
+    public long getReadBatches() {
+        return this.readBatches.sum();
+    }
+
+    public long getMessagesRead() {
+        return this.messagesRead.sum();
+    }
+
+    public long getLargestReadBatch() {
+        return this.largestReadBatch.get();
+    }
+
+    public double getAverageReadBatch() {
+        return average(getMessagesRead(), getReadBatches());
+    }
+
+    /**
+     * The number of flushes that actually had something to flush.
+     * 
+     * @return
+     */
+    public long getFlushes() {
+        return this.flushes.sum();
+    }
+
+    public long getMessagesFlushed() {
+        return this.messagesFlushed.sum();
+    }
+
+    public long getLargestFlush() {
+        return this.largestFlush.get();
+    }
+
+    public double getAverageFlush() {
+        return average(getMessagesFlushed(), getFlushes());
+    }
+
+    private static double average(final long messages, final long batches) {
+        return batches == 0 ? 0 : (double) messages / batches;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("reads: %d batches (avg %.2f, max %d), flushes: %d (avg %.2f, max %d)",
+                getReadBatches(), getAverageReadBatch(), getLargestReadBatch(), getFlushes(), getAverageFlush(),
+                getLargestFlush());
+    }
+
+}
@@ -0,0 +1,148 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import io.netty.buffer.ByteBuf;
+import io.pkts.buffer.Buffer;
+import io.pkts.buffer.Buffers;
+
+/**
+ * The SIP parser (pkts) works on byte-arrays whereas Netty hands us
+ * {@link ByteBuf}s, which may or may not be backed by an array. The
+ * {@link ByteBufView} bridges the two by handing out {@link Buffer}s that are
+ * views straight into the array backing the {@link ByteBuf}, i.e., nothing is
+ * copied. This is true for heap buffers, pooled or not, so if you want the
+ * decoders to be zero-copy, make sure the channel is configured with a heap
+ * based {@link io.netty.buffer.ByteBufAllocator}.
+ * 
+ * The {@link ByteBufView} is not a {@link Buffer} itself, so a {@link ByteBuf}
+ * that isn't backed by an array (a direct buffer) is copied: every section
+ * that is wrapped is copied into an array of its own. Only the sections that
+ * are asked for are copied, so looking at a few of the headers of a lazily
+ * parsed message (see {@link HeaderIndex}) only copies those headers, whereas
+ * fully parsing it copies all of it. Forwarding a message never copies it,
+ * see {@link #retainedSlice(int, int)}.
+ * 
+ * Since the {@link Buffer}s are views of the {@link ByteBuf}, the
+ * {@link ByteBuf} must not be released (and potentially returned to its pool)
+ * while the {@link Buffer}s are still in use. The decoders take care of this
+ * by handing over the ownership of the {@link ByteBuf} (see
+ * {@link #getByteBuf()}) to the {@link SipMessageEvent}, which in turn will
+ * release it when the event itself is released.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public final class ByteBufView {
+
+    private final ByteBuf buffer;
+
+    private byte[] array;
+
+    private int offset;
+
+    /**
+     * @param buffer
+     *            the buffer to view. The view takes ownership of the buffer so
+     *            if you need to keep using it, you must retain it first.
+     */
+    public ByteBufView(final ByteBuf buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Check whether the view is backed directly by the {@link ByteBuf} or if
+     * we have to copy whatever is wrapped.
+     * 
+     * @return
+     */
+    public boolean isZeroCopy() {
+        return this.buffer.hasArray();
+    }
+
+    /**
+     * Wrap all the readable bytes of the underlying {@link ByteBuf}.
+     * 
+     * @return
+     */
+    public Buffer wrap() {
+        return wrap(0, length());
+    }
+
+    /**
+     * Wrap a section of the underlying {@link ByteBuf}. The indexes are
+     * relative to the reader index of the {@link ByteBuf}.
+     * 
+     * @param start
+     *            the index of the first byte (inclusive)
+     * @param stop
+     *            the index of the last byte (exclusive)
+     * @return
+     */
+    public Buffer wrap(final int start, final int stop) {
+        if (!this.buffer.hasArray()) {
+            final byte[] section = new byte[stop - start];
+            this.buffer.getBytes(this.buffer.readerIndex() + start, section);
+            return Buffers.wrap(section);
+        }
+
+        ensureArray();
+        return Buffers.wrap(this.array, this.offset + start, this.offset + stop);
+    }
+
+    /**
+     * Get a section of the view as a retained slice of the underlying
+     * {@link ByteBuf}, which the caller must release once done with it.
+     * 
+     * @param start
+     *            the index of the first byte (inclusive)
+     * @param stop
+     *            the index of the last byte (exclusive)
+     * @return
+     */
+    public ByteBuf retainedSlice(final int start, final int stop) {
+        return this.buffer.slice(this.buffer.readerIndex() + start, stop - start).retain();
+    }
+
+    /**
+     * The number of bytes this view covers.
+     * 
+     * @return
+     */
+    public int length() {
+        return this.buffer.readableBytes();
+    }
+
+    /**
+     * Get a single byte out of the view without wrapping it. The index is
+     * relative to the reader index of the {@link ByteBuf}.
+     * 
+     * @param index
+     * @return
+     */
+    public byte getByte(final int index) {
+        if (this.array != null) {
+            return this.array[this.offset + index];
+        }
+        return this.buffer.getByte(this.buffer.readerIndex() + index);
+    }
+
+    /**
+     * Get the {@link ByteBuf} backing this view, which the caller takes over
+     * the ownership of and must release once none of the {@link Buffer}s are
+     * in use anymore.
+     * 
+     * @return
+     */
+    public ByteBuf getByteBuf() {
+        return this.buffer;
+    }
+
+    private void ensureArray() {
+        if (this.array == null) {
+            this.array = this.buffer.array();
+            this.offset = this.buffer.arrayOffset() + this.buffer.readerIndex();
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.concurrent.FastThreadLocal;
+
+/**
+ * A {@link Clock} that reads the system clocks once per read cycle and then
+ * hands out the same time to every message framed during that cycle. Since
+ * a read cycle typically frames several messages (see
+ * {@link io.netty.channel.ChannelOption#MAX_MESSAGES_PER_READ}) that saves us
+ * a couple of clock readings per message, and all the messages that came off
+ * of the socket together get the same arrival time, which is the time they
+ * actually arrived (or close enough).
+ * 
+ * The time is cached per thread and is only valid while the thread is in the
+ * middle of a read cycle, which is kept track of by the handler you get from
+ * {@link #getUpdater()}. Put it first in the pipeline of every channel that
+ * uses the clock. Outside of a read cycle (e.g. on a
+ * {@link SipMessageDispatcher} worker or in a scheduled task) the clock
+ * simply reads the system clocks, so it is always safe to use.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public final class CachedClock implements Clock {
+
+    private final FastThreadLocal<Time> time = new FastThreadLocal<Time>() {
+        @Override
+        protected Time initialValue() {
+            return new Time();
+        }
+    };
+
+    private final Updater updater = new Updater();
+
+    /**
+     * The handler that keeps track of the read cycles. It is sharable so use
+     * the same one for all the channels.
+     * 
+     * @return
+     */
+    public ChannelHandler getUpdater() {
+        return this.updater;
+    }
+
+    @Override
+    public long getCurrentTimeMillis() {
+        final Time time = this.time.get();
+        return time.valid ? time.millis : System.currentTimeMillis();
+    }
+
+    @Override
+    public long getNanoTime() {
+        final Time time = this.time.get();
+        return time.valid ? time.nanos : System.nanoTime();
+    }
+
+    private static final class Time {
+        private boolean valid;
+        private long millis;
+        private long nanos;
+    }
+
+    @Sharable
+    private final class Updater extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+            final Time time = CachedClock.this.time.get();
+            if (!time.valid) {
+                time.millis = System.currentTimeMillis();
+                time.nanos = System.nanoTime();
+                time.valid = true;
+            }
+            ctx.fireChannelRead(msg);
+        }
+
+        @Override
+        public void channelReadComplete(final ChannelHandlerContext ctx) throws Exception {
+            CachedClock.this.time.get().valid = false;
+            ctx.fireChannelReadComplete();
+        }
+
+        @Override
+        public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+            // we may never see the end of the read cycle that closed the
+            // channel
+            CachedClock.this.time.get().valid = false;
+            ctx.fireChannelInactive();
+        }
+    }
+
+}
@@ -17,4 +17,16 @@ public interface Clock {
      */
     long getCurrentTimeMillis();
 
+    /**
+     * Get the current value of a monotonic clock with nanosecond resolution.
+     * Just as with {@link System#nanoTime()}, the value has nothing to do
+     * with the wall clock and is only useful for measuring the time that has
+     * elapsed between two readings.
+     * 
+     * @return
+     */
+    default long getNanoTime() {
+        return System.nanoTime();
+    }
+
 }
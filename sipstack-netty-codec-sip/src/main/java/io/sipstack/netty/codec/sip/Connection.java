@@ -110,6 +110,18 @@ public interface Connection {
      */
     boolean isWS();
 
+    /**
+     * Check whether the underlying channel is still open. An outbound
+     * connection that is still being established is considered open. Once a
+     * connection has been closed it stays closed so anyone holding on to it,
+     * e.g. to send requests back down the flow a client registered over (see
+     * RFC 5626), should fall back to some other way of reaching the remote
+     * end.
+     * 
+     * @return
+     */
+    boolean isOpen();
+
     /**
      * Send a message over this connection.
      * 
@@ -117,6 +129,15 @@ public interface Connection {
      */
     void send(SipMessage msg);
 
+    /**
+     * Send a message that is being forwarded over this connection. Only the
+     * changes made to the message will be serialized, the rest of it is
+     * written straight out of the buffer it was received in.
+     * 
+     * @param msg
+     */
+    void send(ForwardedMessage msg);
+
     public boolean connect();
 
 }
@@ -0,0 +1,177 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Puts a cap on the number of accepted connections, in total as well as per
+ * source ip-address, so that a single misbehaving (or malicious) client can't
+ * have us run out of file descriptors. The limits are enforced at accept time:
+ * the {@link ConnectionLimiter} is a handler of the server channel (see
+ * {@link io.netty.bootstrap.ServerBootstrap#handler(io.netty.channel.ChannelHandler)})
+ * and a connection over the limit is closed before it is registered with an
+ * event loop, i.e., before it has a pipeline or has read a single byte.
+ * 
+ * The limiter is sharable and the limits apply to all the server channels it
+ * is a handler of, so use the same one for all the listening points that
+ * should share the limits. Connections we establish ourselves are not
+ * limited.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+@Sharable
+public final class ConnectionLimiter extends ChannelInboundHandlerAdapter {
+
+    private final int maxConnections;
+
+    private final int maxConnectionsPerIp;
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    /**
+     * The number of accepted connections per ip-address, guarded by itself.
+     */
+    private final Map<InetAddress, Integer> perIp = new HashMap<>();
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder rejectedPerIp = new LongAdder();
+
+    /**
+     * 
+     * @param maxConnections
+     *            the maximum number of accepted connections, zero for no
+     *            limit.
+     * @param maxConnectionsPerIp
+     *            the maximum number of accepted connections from a single
+     *            ip-address, zero for no limit.
+     */
+    public ConnectionLimiter(final int maxConnections, final int maxConnectionsPerIp) {
+        if (maxConnections < 0 || maxConnectionsPerIp < 0) {
+            throw new IllegalArgumentException("The connection limits cannot be negative");
+        }
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerIp = maxConnectionsPerIp;
+    }
+
+    @Override
+    public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+        final Channel child = (Channel) msg;
+        final InetAddress ip = ((InetSocketAddress) child.remoteAddress()).getAddress();
+        if (!acquire(ip)) {
+            child.unsafe().closeForcibly();
+            return;
+        }
+
+        child.closeFuture().addListener(f -> release(ip));
+        ctx.fireChannelRead(msg);
+    }
+
+    private boolean acquire(final InetAddress ip) {
+        if (this.connections.incrementAndGet() > this.maxConnections && this.maxConnections > 0) {
+            this.connections.decrementAndGet();
+            this.rejected.increment();
+            return false;
+        }
+
+        // connections are accepted at a far lower rate than messages are
+        // processed so a lock is good enough here
+        synchronized (this.perIp) {
+            final Integer count = this.perIp.get(ip);
+            final int n = count == null ? 0 : count;
+            if (n >= this.maxConnectionsPerIp && this.maxConnectionsPerIp > 0) {
+                this.connections.decrementAndGet();
+                this.rejectedPerIp.increment();
+                return false;
+            }
+            this.perIp.put(ip, n + 1);
+        }
+        return true;
+    }
+
+    private void release(final InetAddress ip) {
+        this.connections.decrementAndGet();
+        synchronized (this.perIp) {
+            final int n = this.perIp.get(ip);
+            if (n == 1) {
+                this.perIp.remove(ip);
+            } else {
+                this.perIp.put(ip, n - 1);
+            }
+        }
+    }
+
+    /**
+     * The number of accepted connections currently open.
+     * 
+     * @return
+     */
+    public int getConnections() {
+        return this.connections.get();
+    }
+
+    /**
+     * The number of accepted connections from the given ip-address currently
+     * open.
+     * 
+     * @param ip
+     * @return
+     */
+    public int getConnections(final InetAddress ip) {
+        synchronized (this.perIp) {
+            final Integer count = this.perIp.get(ip);
+            return count == null ? 0 : count;
+        }
+    }
+
+    /**
+     * The number of ip-addresses we currently have accepted connections
+     * from.
+     * 
+     * @return
+     */
+    public int getSources() {
+        synchronized (this.perIp) {
+            return this.perIp.size();
+        }
+    }
+
+    /**
+     * The number of connections that have been rejected because of the limit
+     * on the total number of connections.
+     * 
+     * @return
+     */
+    public long getRejected() {
+        return this.rejected.sum();
+    }
+
+    /**
+     * The number of connections that have been rejected because of the limit
+     * on the number of connections per ip-address.
+     * 
+     * @return
+     */
+    public long getRejectedPerIp() {
+        return this.rejectedPerIp.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("connections: %d (max %d) from %d sources (max %d each), rejected: %d (per ip %d)",
+                getConnections(), this.maxConnections, getSources(), this.maxConnectionsPerIp, getRejected(),
+                getRejectedPerIp());
+    }
+
+}
@@ -0,0 +1,398 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.AttributeKey;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps track of all the flows of a listening point, inbound as well as
+ * outbound, so that a message that is to be sent to a remote end we already
+ * have a connection to goes out over that connection rather than over a new
+ * one. A flow is identified by its transport, the remote address and the
+ * local listening point.
+ * 
+ * Inbound flows are registered by adding the {@link #getFlowTracker()} to
+ * the pipeline of every accepted channel. Outbound stream based flows are
+ * established by {@link #connect(TransportProtocol, InetSocketAddress)},
+ * which doesn't wait for the connection to be established. Anything sent
+ * over the returned {@link Connection} before then is held on to and written
+ * once the connection is up (or failed if it never comes up). Outbound flows
+ * that have been idle for too long are closed by the {@link IdleReaper}, if
+ * the manager is given one (the accepted ones are up to whoever sets up their
+ * pipeline).
+ * 
+ * UDP has no flows as such, so a UDP {@link Connection} is simply a view of
+ * one of the UDP channels of the listening point. If there are several of
+ * them, the same remote address always gets the same channel.
+ * 
+ * A manager handles the flows of a single stream based transport, TCP, TLS
+ * or WebSocket, so each listening point gets a manager of its own. A UDP
+ * listening point of its own (i.e., one on another ip:port than the TCP one)
+ * gets a manager for UDP, which holds nothing but the UDP channels. WebSocket
+ * flows are always established by the remote end, so for them all
+ * {@link #connect(TransportProtocol, InetSocketAddress)} does is to find the
+ * flow.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public final class ConnectionManager {
+
+    private static final AttributeKey<Key> FLOW = AttributeKey.valueOf("sipstack.flow");
+
+    private final TransportProtocol transport;
+
+    private final InetSocketAddress listeningPoint;
+
+    private final Bootstrap bootstrap;
+
+    private final Map<Key, AbstractConnection> flows = new ConcurrentHashMap<>();
+
+    private final List<Channel> udpChannels = new CopyOnWriteArrayList<>();
+
+    private final FlowTracker tracker = new FlowTracker();
+
+    private final LongAdder inbound = new LongAdder();
+    private final LongAdder outbound = new LongAdder();
+
+    /**
+     * Manage the TCP flows of the listening point, see
+     * {@link #ConnectionManager(TransportProtocol, InetSocketAddress, Bootstrap, ChannelHandler, IdleReaper)}.
+     */
+    public ConnectionManager(final InetSocketAddress listeningPoint, final Bootstrap bootstrap,
+            final ChannelHandler handler, final IdleReaper reaper) {
+        this(TransportProtocol.TCP, listeningPoint, bootstrap, handler, reaper);
+    }
+
+    /**
+     * 
+     * @param transport
+     *            the transport of the flows, TCP, TLS, WS or UDP. For
+     *            TLS, the handler is expected to add the
+     *            {@link io.netty.handler.ssl.SslHandler}, see
+     *            {@link TlsConfiguration#initChannel(Channel)}.
+     * @param listeningPoint
+     *            the local address of the listening point the flows belong to.
+     *            Outbound connections are bound to its ip-address.
+     * @param bootstrap
+     *            the bootstrap to use for outbound TCP connections. It must be
+     *            configured with an event loop group and a channel but
+     *            whatever handler it has is replaced. Not used (and may be
+     *            null) for UDP.
+     * @param handler
+     *            the handler that sets up the pipeline of an outbound
+     *            connection, typically the same {@link ChannelInitializer} as
+     *            for the accepted connections.
+     * @param reaper
+     *            the reaper closing the outbound connections that have been
+     *            idle for too long. Null to never close them.
+     */
+    public ConnectionManager(final TransportProtocol transport, final InetSocketAddress listeningPoint,
+            final Bootstrap bootstrap, final ChannelHandler handler, final IdleReaper reaper) {
+        if (transport == TransportProtocol.SCTP) {
+            throw new IllegalArgumentException("Flows over " + transport + " are not supported");
+        }
+        this.transport = transport;
+        this.listeningPoint = listeningPoint;
+        if (transport == TransportProtocol.UDP) {
+            this.bootstrap = null;
+            return;
+        }
+        this.bootstrap = bootstrap.clone().handler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(final Channel ch) throws Exception {
+                final ChannelPipeline pipeline = ch.pipeline();
+                if (reaper != null) {
+                    pipeline.addLast("idle", reaper);
+                }
+                pipeline.addLast("flows", ConnectionManager.this.tracker);
+                pipeline.addLast(handler);
+            }
+        });
+    }
+
+    public TransportProtocol getTransport() {
+        return this.transport;
+    }
+
+    /**
+     * The handler that registers an accepted channel as a flow, and removes
+     * it again once it closes. It is sharable so use the same one for all
+     * the channels.
+     * 
+     * @return
+     */
+    public ChannelHandler getFlowTracker() {
+        return this.tracker;
+    }
+
+    /**
+     * Add one of the UDP channels of the listening point.
+     * 
+     * @param channel
+     */
+    public void addUdpChannel(final Channel channel) {
+        this.udpChannels.add(channel);
+    }
+
+    /**
+     * The number of flows (both inbound and outbound) currently open.
+     * 
+     * @return
+     */
+    public int getFlowCount() {
+        return this.flows.size();
+    }
+
+    /**
+     * The number of connections established by the remote end that
+     * currently are open.
+     * 
+     * @return
+     */
+    public long getInboundCount() {
+        return this.inbound.sum();
+    }
+
+    /**
+     * The number of connections established by us that currently are open,
+     * including the ones that are still being established.
+     * 
+     * @return
+     */
+    public long getOutboundCount() {
+        return this.outbound.sum();
+    }
+
+    /**
+     * The number of bytes that have been written to the stream based flows
+     * but not yet sent, see {@link TcpConnection#getQueuedBytes()}. This
+     * walks all the flows so don't ask for it for every message.
+     * 
+     * @return
+     */
+    public long getQueuedBytes() {
+        long queued = 0;
+        for (final AbstractConnection connection : this.flows.values()) {
+            if (connection instanceof TcpConnection) {
+                queued += ((TcpConnection) connection).getQueuedBytes();
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * Find an existing flow to the remote address.
+     * 
+     * @param transport
+     * @param remote
+     * @return the connection of the flow or null if there is none (or if the
+     *         transport isn't the one of this manager).
+     */
+    public Connection find(final TransportProtocol transport, final InetSocketAddress remote) {
+        return this.flows.get(new Key(transport, remote, this.listeningPoint));
+    }
+
+    /**
+     * Whether the given connection is one of the flows (or, for UDP, goes
+     * out over one of the channels) of this manager.
+     * 
+     * @param connection
+     * @return
+     */
+    public boolean manages(final Connection connection) {
+        if (!(connection instanceof AbstractConnection)) {
+            return false;
+        }
+
+        final Channel channel = ((AbstractConnection) connection).channel();
+        if (connection.isUDP()) {
+            return this.udpChannels.contains(channel);
+        }
+        final Key key = channel.attr(FLOW).get();
+        final AbstractConnection flow = key == null ? null : this.flows.get(key);
+        return flow != null && flow.channel() == channel;
+    }
+
+    /**
+     * Get a {@link Connection} to the remote address, which is an existing
+     * flow if there is one or a new outbound connection if there isn't.
+     * 
+     * @param transport
+     * @param remote
+     * @return
+     */
+    public Connection connect(final TransportProtocol transport, final InetSocketAddress remote) {
+        if (transport == TransportProtocol.UDP) {
+            return connectUdp(remote);
+        }
+
+        if (transport != this.transport) {
+            throw new IllegalArgumentException("Outbound " + transport + " connections are not supported by a "
+                    + this.transport + " connection manager");
+        }
+
+        final Key key = new Key(transport, remote, this.listeningPoint);
+        final AbstractConnection existing = this.flows.get(key);
+        if (existing != null) {
+            if (existing.channel().isOpen()) {
+                return existing;
+            }
+            this.flows.remove(key, existing);
+        }
+        if (transport == TransportProtocol.WS) {
+            throw new IllegalArgumentException("There is no WebSocket connection to " + remote
+                    + " and we cannot establish one");
+        }
+        return connectStream(key);
+    }
+
+    private Connection connectUdp(final InetSocketAddress remote) {
+        final List<Channel> channels = this.udpChannels;
+        if (channels.isEmpty()) {
+            throw new IllegalStateException("There are no UDP channels");
+        }
+        final Channel channel = channels.get((remote.hashCode() & Integer.MAX_VALUE) % channels.size());
+        return new UdpConnection(channel, remote);
+    }
+
+    private AbstractConnection connectStream(final Key key) {
+        final InetSocketAddress local = new InetSocketAddress(this.listeningPoint.getAddress(), 0);
+
+        // the flow must be marked as ours before it is connected or the flow
+        // tracker will take it for an inbound one once it becomes active, and
+        // whatever is sent before the pipeline has been set up must already
+        // end up in the pending writes. Just like the Bootstrap, connect once
+        // the pipeline has been set up, i.e., after channelRegistered()
+        final ChannelFuture registered = this.bootstrap.register();
+        final Channel channel = registered.channel();
+        channel.attr(FLOW).set(key);
+        channel.pipeline().addFirst("pending", new PendingWritesHandler());
+        final ChannelPromise future = channel.newPromise();
+        registered.addListener(f -> {
+            if (f.isSuccess()) {
+                channel.eventLoop().execute(() -> channel.connect(key.remote, local, future));
+            } else {
+                future.setFailure(f.cause());
+            }
+        });
+        final AbstractConnection connection = newConnection(channel, key.remote);
+
+        final AbstractConnection other = this.flows.putIfAbsent(key, connection);
+        if (other != null) {
+            // someone else beat us to it
+            channel.close();
+            return other;
+        }
+
+        count(channel, this.outbound);
+
+        future.addListener(f -> {
+            if (!f.isSuccess()) {
+                this.flows.remove(key, connection);
+                final PendingWritesHandler pending = channel.pipeline().get(PendingWritesHandler.class);
+                if (pending != null) {
+                    pending.failAll(f.cause());
+                }
+            }
+        });
+        future.addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+        return connection;
+    }
+
+    private static void count(final Channel channel, final LongAdder gauge) {
+        gauge.increment();
+        channel.closeFuture().addListener(f -> gauge.decrement());
+    }
+
+    private AbstractConnection newConnection(final Channel channel, final InetSocketAddress remote) {
+        if (this.transport == TransportProtocol.TLS) {
+            return new TlsConnection(channel, remote);
+        } else if (this.transport == TransportProtocol.WS) {
+            return new WsConnection(channel, remote);
+        }
+        return new TcpConnection(channel, remote);
+    }
+
+    /**
+     * Registers the accepted channels as flows and removes flows as they
+     * close.
+     */
+    @Sharable
+    private final class FlowTracker extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelActive(final ChannelHandlerContext ctx) throws Exception {
+            final Channel channel = ctx.channel();
+            if (channel.attr(FLOW).get() == null) {
+                final InetSocketAddress remote = (InetSocketAddress) channel.remoteAddress();
+                final Key key = new Key(ConnectionManager.this.transport, remote,
+                        ConnectionManager.this.listeningPoint);
+                channel.attr(FLOW).set(key);
+                ConnectionManager.this.flows.putIfAbsent(key, newConnection(channel, remote));
+                count(channel, ConnectionManager.this.inbound);
+            }
+            ctx.fireChannelActive();
+        }
+
+        @Override
+        public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+            final Channel channel = ctx.channel();
+            final Key key = channel.attr(FLOW).get();
+            if (key != null) {
+                ConnectionManager.this.flows.computeIfPresent(key, (k, c) -> c.channel() == channel ? null : c);
+            }
+            ctx.fireChannelInactive();
+        }
+    }
+
+    private static final class Key {
+        private final TransportProtocol transport;
+        private final InetSocketAddress remote;
+        private final InetSocketAddress local;
+
+        private Key(final TransportProtocol transport, final InetSocketAddress remote,
+                final InetSocketAddress local) {
+            this.transport = transport;
+            this.remote = remote;
+            this.local = local;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * this.transport.hashCode() + this.remote.hashCode()) + this.local.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) other;
+            return this.transport == key.transport && this.remote.equals(key.remote)
+                    && this.local.equals(key.local);
+        }
+    }
+
+}
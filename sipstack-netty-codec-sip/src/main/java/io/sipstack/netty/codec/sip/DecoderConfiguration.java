@@ -0,0 +1,244 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+/**
+ * The limits and settings used by the decoders when framing messages. Each
+ * listening point can have its own configuration, e.g. a trunk facing
+ * interface that receives large multipart INVITEs may need far more generous
+ * limits than the interface facing the phones.
+ * 
+ * Messages with a body larger than the {@link #getStreamingThreshold()} will
+ * not have their body handed to the {@link io.pkts.packet.sip.SipMessage}.
+ * Instead, the body is collected as a chain of the (pooled) buffers it was
+ * read into and is available through
+ * {@link SipMessageEvent#getStreamedContent()}. That way, a large message
+ * never forces a large contiguous allocation. By default, nothing is
+ * streamed.
+ * 
+ * To protect against peers that never complete their messages, give the
+ * configuration a {@link FramingGuard}. Without one, a partial message may
+ * sit around forever.
+ * 
+ * With lazy parsing, the decoders only frame the message and find the fast
+ * fields of the {@link HeaderIndex}. The message is then parsed by whoever
+ * handles the event, which is what allows e.g. the {@link SipMessageDispatcher}
+ * to move the parsing off of the I/O thread.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public final class DecoderConfiguration {
+
+    /**
+     * The configuration that is used unless told otherwise.
+     */
+    public static final DecoderConfiguration DEFAULT = with().build();
+
+    private final int maxInitialLineSize;
+
+    private final int maxHeadersSize;
+
+    private final int maxContentLength;
+
+    private final int maxMessagesPerRead;
+
+    private final int streamingThreshold;
+
+    private final FramingGuard framingGuard;
+
+    private final boolean lazyParsing;
+
+    private DecoderConfiguration(final int maxInitialLineSize, final int maxHeadersSize,
+            final int maxContentLength, final int maxMessagesPerRead, final int streamingThreshold,
+            final FramingGuard framingGuard, final boolean lazyParsing) {
+        this.maxInitialLineSize = maxInitialLineSize;
+        this.maxHeadersSize = maxHeadersSize;
+        this.maxContentLength = maxContentLength;
+        this.maxMessagesPerRead = maxMessagesPerRead;
+        this.streamingThreshold = streamingThreshold;
+        this.framingGuard = framingGuard;
+        this.lazyParsing = lazyParsing;
+    }
+
+    /**
+     * The maximum allowed size of the initial line.
+     * 
+     * @return
+     */
+    public int getMaxInitialLineSize() {
+        return this.maxInitialLineSize;
+    }
+
+    /**
+     * The maximum allowed size of all headers combined.
+     * 
+     * @return
+     */
+    public int getMaxHeadersSize() {
+        return this.maxHeadersSize;
+    }
+
+    /**
+     * The maximum allowed content length.
+     * 
+     * @return
+     */
+    public int getMaxContentLength() {
+        return this.maxContentLength;
+    }
+
+    /**
+     * The maximum number of messages to decode per read off of a stream
+     * based connection.
+     * 
+     * @return
+     */
+    public int getMaxMessagesPerRead() {
+        return this.maxMessagesPerRead;
+    }
+
+    /**
+     * Bodies larger than this are streamed, see the class documentation.
+     * 
+     * @return
+     */
+    public int getStreamingThreshold() {
+        return this.streamingThreshold;
+    }
+
+    /**
+     * The guard keeping track of the partially framed messages.
+     * 
+     * @return the guard or null if there is none.
+     */
+    public FramingGuard getFramingGuard() {
+        return this.framingGuard;
+    }
+
+    /**
+     * Whether the decoders should leave the parsing of the message to
+     * whoever handles the event, see the class documentation.
+     * 
+     * @return
+     */
+    public boolean isLazyParsing() {
+        return this.lazyParsing;
+    }
+
+    public static Builder with() {
+        return new Builder();
+    }
+
+    /**
+     * Start out with all the settings of the given configuration.
+     * 
+     * @param config
+     * @return
+     */
+    public static Builder with(final DecoderConfiguration config) {
+        return new Builder()
+        .maxInitialLineSize(config.maxInitialLineSize)
+        .maxHeadersSize(config.maxHeadersSize)
+        .maxContentLength(config.maxContentLength)
+        .maxMessagesPerRead(config.maxMessagesPerRead)
+        .streamingThreshold(config.streamingThreshold)
+        .framingGuard(config.framingGuard)
+        .lazyParsing(config.lazyParsing);
+    }
+
+    public static class Builder {
+
+        private int maxInitialLineSize = SipMessageStreamDecoder.MAX_ALLOWED_INITIAL_LINE_SIZE;
+
+        private int maxHeadersSize = SipMessageStreamDecoder.MAX_ALLOWED_HEADERS_SIZE;
+
+        private int maxContentLength = SipMessageStreamDecoder.MAX_ALLOWED_CONTENT_LENGTH;
+
+        private int maxMessagesPerRead = SipMessageStreamDecoder.DEFAULT_MAX_MESSAGES_PER_READ;
+
+        private int streamingThreshold = Integer.MAX_VALUE;
+
+        private FramingGuard framingGuard;
+
+        private boolean lazyParsing;
+
+        private Builder() {
+            // just to prevent instantiation
+        }
+
+        public Builder maxInitialLineSize(final int maxInitialLineSize) {
+            this.maxInitialLineSize = maxInitialLineSize;
+            return this;
+        }
+
+        public Builder maxHeadersSize(final int maxHeadersSize) {
+            this.maxHeadersSize = maxHeadersSize;
+            return this;
+        }
+
+        public Builder maxContentLength(final int maxContentLength) {
+            this.maxContentLength = maxContentLength;
+            return this;
+        }
+
+        public Builder maxMessagesPerRead(final int maxMessagesPerRead) {
+            this.maxMessagesPerRead = maxMessagesPerRead;
+            return this;
+        }
+
+        /**
+         * Stream any body larger than the given number of bytes.
+         * 
+         * @param streamingThreshold
+         * @return
+         */
+        public Builder streamingThreshold(final int streamingThreshold) {
+            this.streamingThreshold = streamingThreshold;
+            return this;
+        }
+
+        /**
+         * Have the decoders report their partially framed messages to the
+         * given guard, which typically is shared by all decoders.
+         * 
+         * @param framingGuard
+         * @return
+         */
+        public Builder framingGuard(final FramingGuard framingGuard) {
+            this.framingGuard = framingGuard;
+            return this;
+        }
+
+        /**
+         * Only frame the messages and leave the parsing to whoever handles
+         * the events.
+         * 
+         * @param lazyParsing
+         * @return
+         */
+        public Builder lazyParsing(final boolean lazyParsing) {
+            this.lazyParsing = lazyParsing;
+            return this;
+        }
+
+        public DecoderConfiguration build() {
+            if (this.maxInitialLineSize < 1 || this.maxHeadersSize < 1 || this.maxContentLength < 0) {
+                throw new IllegalArgumentException("The framing limits must be positive");
+            }
+
+            if (this.maxMessagesPerRead < 1) {
+                throw new IllegalArgumentException("The maximum number of messages per read must be at least one");
+            }
+
+            if (this.streamingThreshold < 0) {
+                throw new IllegalArgumentException("The streaming threshold cannot be negative");
+            }
+
+            return new DecoderConfiguration(this.maxInitialLineSize, this.maxHeadersSize, this.maxContentLength,
+                    this.maxMessagesPerRead, this.streamingThreshold, this.framingGuard, this.lazyParsing);
+        }
+
+    }
+
+}
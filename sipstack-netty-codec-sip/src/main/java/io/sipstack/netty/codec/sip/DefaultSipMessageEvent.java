@@ -3,24 +3,183 @@
  */
 package io.sipstack.netty.codec.sip;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.Recycler;
+import io.netty.util.Recycler.Handle;
+import io.netty.util.ReferenceCounted;
+import io.pkts.buffer.Buffer;
 import io.pkts.packet.sip.SipMessage;
 
 /**
+ * The default {@link SipMessageEvent}. If the {@link SipMessage} is a view of
+ * a buffer that was read off of the network, the event holds on to that buffer
+ * and will release it when the event itself is released. Since Netty will
+ * release any {@link ReferenceCounted} message once it has been consumed by
+ * e.g. a {@link io.netty.channel.SimpleChannelInboundHandler} this means that
+ * the underlying buffer goes back to its pool as soon as the event has been
+ * processed. If you need to hang on to the message after that, you must
+ * {@link #retain()} the event.
+ * 
+ * If the event was given a {@link HeaderIndex}, the fast fields are taken
+ * from it. Otherwise we will have to ask the {@link SipMessage} for them.
+ * 
+ * An event with a {@link HeaderIndex} may also be created without a
+ * {@link SipMessage}, in which case the message isn't parsed until someone
+ * asks for it through {@link #getMessage()}. That way, the thread that frames
+ * the message only has to find the fast fields and the (comparatively)
+ * expensive parsing is done by whoever handles the event. Note that this also
+ * means that a message that cannot be parsed isn't detected until then.
+ * 
+ * The events created by the decoders come out of a pool (see
+ * {@link #newInstance(Connection, SipMessage, long, ByteBuf, HeaderIndex, ByteBuf)})
+ * and go back to it when they are released, so don't hang on to an event
+ * after it has been released. If you do need it, {@link #retain()} it.
+ * 
  * @author jonas@jonasborjesson.com
  */
-public class DefaultSipMessageEvent implements SipMessageEvent {
+public class DefaultSipMessageEvent extends AbstractReferenceCounted implements SipMessageEvent {
+
+    private static final Recycler<DefaultSipMessageEvent> RECYCLER = new Recycler<DefaultSipMessageEvent>() {
+        @Override
+        protected DefaultSipMessageEvent newObject(final Handle<DefaultSipMessageEvent> handle) {
+            return new DefaultSipMessageEvent(handle);
+        }
+    };
 
-    private final Connection connection;
-    private final SipMessage msg;
-    private final long arrivalTime;
+    /**
+     * The handle of the pool this event came from or null if it didn't come
+     * from one.
+     */
+    private final Handle<DefaultSipMessageEvent> handle;
+
+    private Connection connection;
+    /**
+     * The message or null if it hasn't been parsed yet.
+     */
+    private SipMessage msg;
+    private long arrivalTime;
+    private long arrivalNanoTime;
+
+    /**
+     * The buffer the message is a view of (if any).
+     */
+    private ByteBuf buffer;
+
+    private HeaderIndex index;
+
+    /**
+     * The body of the message if it was streamed.
+     */
+    private ByteBuf content;
 
     /**
      * 
      */
     public DefaultSipMessageEvent(final Connection connection, final SipMessage msg, final long arrivalTime) {
+        this(connection, msg, arrivalTime, null, null);
+    }
+
+    /**
+     * 
+     * @param connection
+     * @param msg
+     * @param arrivalTime
+     * @param buffer
+     *            the buffer the message is a view of. The event takes
+     *            ownership of the buffer and will release it once the event
+     *            itself is released. May be null.
+     */
+    public DefaultSipMessageEvent(final Connection connection, final SipMessage msg, final long arrivalTime,
+            final ByteBuf buffer) {
+        this(connection, msg, arrivalTime, buffer, null, null);
+    }
+
+    /**
+     * 
+     * @param connection
+     * @param msg
+     * @param arrivalTime
+     * @param buffer
+     *            the buffer the message is a view of. The event takes
+     *            ownership of the buffer and will release it once the event
+     *            itself is released. May be null.
+     * @param index
+     *            the index of the headers as recorded when the message was
+     *            framed. May be null, unless the message is.
+     */
+    public DefaultSipMessageEvent(final Connection connection, final SipMessage msg, final long arrivalTime,
+            final ByteBuf buffer, final HeaderIndex index) {
+        this(connection, msg, arrivalTime, buffer, index, null);
+    }
+
+    /**
+     * 
+     * @param connection
+     * @param msg
+     * @param arrivalTime
+     * @param buffer
+     *            the buffer the message is a view of. The event takes
+     *            ownership of the buffer and will release it once the event
+     *            itself is released. May be null.
+     * @param index
+     *            the index of the headers as recorded when the message was
+     *            framed. May be null, unless the message is.
+     * @param content
+     *            the body of the message if it was streamed. Just as with the
+     *            buffer, the event takes ownership of it. May be null.
+     */
+    public DefaultSipMessageEvent(final Connection connection, final SipMessage msg, final long arrivalTime,
+            final ByteBuf buffer, final HeaderIndex index, final ByteBuf content) {
+        if (msg == null && index == null) {
+            throw new IllegalArgumentException("Either the message or the header index must be given");
+        }
+        this.handle = null;
+        init(connection, msg, arrivalTime, System.nanoTime(), buffer, index, content);
+    }
+
+    private DefaultSipMessageEvent(final Handle<DefaultSipMessageEvent> handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * Get an event from the pool of the current thread. The event goes back
+     * to the pool once it has been released, which may be done by any
+     * thread. The arguments are the same as for
+     * {@link #DefaultSipMessageEvent(Connection, SipMessage, long, ByteBuf, HeaderIndex, ByteBuf)}
+     * except for the arrival time according to the monotonic clock, which the
+     * constructors simply take from {@link System#nanoTime()}.
+     * 
+     * @param connection
+     * @param msg
+     * @param arrivalTime
+     * @param arrivalNanoTime
+     * @param buffer
+     * @param index
+     * @param content
+     * @return
+     */
+    static DefaultSipMessageEvent newInstance(final Connection connection, final SipMessage msg,
+            final long arrivalTime, final long arrivalNanoTime, final ByteBuf buffer, final HeaderIndex index,
+            final ByteBuf content) {
+        if (msg == null && index == null) {
+            throw new IllegalArgumentException("Either the message or the header index must be given");
+        }
+        final DefaultSipMessageEvent event = RECYCLER.get();
+        event.setRefCnt(1);
+        event.init(connection, msg, arrivalTime, arrivalNanoTime, buffer, index, content);
+        return event;
+    }
+
+    private void init(final Connection connection, final SipMessage msg, final long arrivalTime,
+            final long arrivalNanoTime, final ByteBuf buffer, final HeaderIndex index, final ByteBuf content) {
         this.connection = connection;
         this.msg = msg;
         this.arrivalTime = arrivalTime;
+        this.arrivalNanoTime = arrivalNanoTime;
+        this.buffer = buffer;
+        this.index = index;
+        this.content = content;
     }
 
     @Override
@@ -30,6 +189,9 @@ public class DefaultSipMessageEvent implements SipMessageEvent {
 
     @Override
     public SipMessage getMessage() {
+        if (this.msg == null) {
+            this.msg = this.index.toSipMessage();
+        }
         return this.msg;
     }
 
@@ -38,4 +200,92 @@ public class DefaultSipMessageEvent implements SipMessageEvent {
         return this.arrivalTime;
     }
 
+    @Override
+    public long getArrivalNanoTime() {
+        return this.arrivalNanoTime;
+    }
+
+    @Override
+    public HeaderIndex getHeaderIndex() {
+        return this.index;
+    }
+
+    @Override
+    public ByteBuf getStreamedContent() {
+        return this.content;
+    }
+
+    @Override
+    public Buffer getCallId() {
+        if (this.index != null) {
+            return this.index.getCallId();
+        }
+        return getMessage().getCallIDHeader().getCallId();
+    }
+
+    @Override
+    public Buffer getViaBranch() {
+        if (this.index != null) {
+            return this.index.getViaBranch();
+        }
+        return getMessage().getViaHeader().getBranch();
+    }
+
+    @Override
+    public long getCSeqNumber() {
+        if (this.index != null) {
+            return this.index.getCSeqNumber();
+        }
+        return getMessage().getCSeqHeader().getSeqNumber();
+    }
+
+    @Override
+    public Buffer getCSeqMethod() {
+        if (this.index != null) {
+            return this.index.getCSeqMethod();
+        }
+        return getMessage().getCSeqHeader().getMethod();
+    }
+
+    @Override
+    public Buffer getMethod() {
+        if (this.index != null) {
+            return this.index.getMethod();
+        }
+        return getMessage().getMethod();
+    }
+
+    @Override
+    public boolean isRequest() {
+        if (this.index != null) {
+            return this.index.isRequest();
+        }
+        return getMessage().isRequest();
+    }
+
+    @Override
+    public ReferenceCounted touch(final Object hint) {
+        if (this.buffer != null) {
+            this.buffer.touch(hint);
+        }
+        if (this.content != null) {
+            this.content.touch(hint);
+        }
+        return this;
+    }
+
+    @Override
+    protected void deallocate() {
+        if (this.buffer != null) {
+            this.buffer.release();
+        }
+        if (this.content != null) {
+            this.content.release();
+        }
+        if (this.handle != null) {
+            init(null, null, 0, 0, null, null, null);
+            this.handle.recycle(this);
+        }
+    }
+
 }
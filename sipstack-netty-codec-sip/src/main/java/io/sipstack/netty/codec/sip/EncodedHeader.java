@@ -0,0 +1,94 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import io.pkts.packet.sip.header.SipHeader;
+
+import java.util.function.Supplier;
+
+/**
+ * A header that is serialized once and then added as is to any number of
+ * {@link ForwardedMessage}s, e.g. the Contact-header of a listening point.
+ * Adding it to a message costs no more than a duplicate of the bytes of the
+ * header, as opposed to serializing the header over and over again.
+ * 
+ * A message that has no {@link HeaderIndex} is serialized as a whole anyway
+ * so it gets a {@link SipHeader} instead, see {@link #toSipHeader()}.
+ * 
+ * See {@link EncodedVia} for a Via-header that is encoded up until its
+ * branch.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public final class EncodedHeader {
+
+    private final String name;
+
+    /**
+     * The entire header line, including the CRLF ending it. It is never
+     * released so every user of it gets a duplicate.
+     */
+    private final ByteBuf line;
+
+    private final Supplier<SipHeader> header;
+
+    EncodedHeader(final String name, final ByteBuf line, final Supplier<SipHeader> header) {
+        this.name = name;
+        this.line = Unpooled.unreleasableBuffer(line);
+        this.header = header;
+    }
+
+    /**
+     * Encode the given header. Any change made to the header afterwards is
+     * not reflected by the encoded header.
+     * 
+     * @param header
+     * @return
+     */
+    public static EncodedHeader of(final SipHeader header) {
+        final SipHeader copy = header.clone();
+        return new EncodedHeader(copy.getName().toString(), ForwardedMessage.encode(copy), copy::clone);
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * The header as a {@link SipHeader} of its own, for adding it to a
+     * {@link io.pkts.packet.sip.SipMessage} that is to be serialized as a
+     * whole.
+     * 
+     * @return
+     */
+    public SipHeader toSipHeader() {
+        return this.header.get();
+    }
+
+    /**
+     * The number of bytes of the header line, including the CRLF.
+     * 
+     * @return
+     */
+    public int length() {
+        return this.line.readableBytes();
+    }
+
+    /**
+     * The bytes of the header line, which are shared with everyone else
+     * encoding the header.
+     */
+    ByteBuf encode() {
+        return this.line.duplicate();
+    }
+
+    @Override
+    public String toString() {
+        return this.line.toString(CharsetUtil.US_ASCII).trim();
+    }
+
+}
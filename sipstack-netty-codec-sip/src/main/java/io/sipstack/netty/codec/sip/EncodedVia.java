@@ -0,0 +1,135 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import io.pkts.buffer.Buffer;
+import io.pkts.packet.sip.header.ViaHeader;
+
+/**
+ * The Via-header of a listening point, encoded up until the value of its
+ * branch parameter, i.e., "Via: SIP/2.0/UDP 10.0.1.28:5060;branch=". Every
+ * request we forward needs a Via-header of its own but all that differs
+ * between them is the branch, so all that is left to do for each request is
+ * to append the branch, see {@link #withBranch(Buffer)}.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public final class EncodedVia {
+
+    private static final ByteBuf CRLF = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(new byte[] {
+            RawMessage.CR, RawMessage.LF }));
+
+    private final String transport;
+
+    private final String host;
+
+    private final int port;
+
+    private final ByteBuf prefix;
+
+    private EncodedVia(final String transport, final String host, final int port) {
+        this.transport = transport;
+        this.host = host;
+        this.port = port;
+        final String prefix = "Via: SIP/2.0/" + transport + " " + host + ":" + port + ";branch=";
+        this.prefix = Unpooled.unreleasableBuffer(Unpooled.copiedBuffer(prefix, CharsetUtil.US_ASCII));
+    }
+
+    /**
+     * 
+     * @param transport
+     *            the transport as it goes into the Via-header, i.e., one of
+     *            UDP, TCP, TLS, SCTP, WS or WSS.
+     * @param host
+     *            the ip-address (or host name) of the listening point.
+     * @param port
+     * @return
+     */
+    public static EncodedVia of(final String transport, final String host, final int port) {
+        switch (transport) {
+            case "UDP":
+            case "TCP":
+            case "TLS":
+            case "SCTP":
+            case "WS":
+            case "WSS":
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown transport " + transport);
+        }
+
+        if (port <= 0 || port > 65535) {
+            throw new IllegalArgumentException("Invalid port " + port);
+        }
+
+        // an IPv6 reference must be enclosed in brackets (see RFC 3261
+        // section 25.1)
+        final boolean ipv6 = host.indexOf(':') != -1 && host.charAt(0) != '[';
+        return new EncodedVia(transport, ipv6 ? "[" + host + "]" : host, port);
+    }
+
+    public String getTransport() {
+        return this.transport;
+    }
+
+    public String getHost() {
+        return this.host;
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    /**
+     * The Via-header with the given branch, ready to be added to a
+     * {@link ForwardedMessage}. The encoded part of the header is shared, only
+     * the (readable bytes of the) branch is copied.
+     * 
+     * @param branch
+     * @return
+     */
+    public EncodedHeader withBranch(final Buffer branch) {
+        final ByteBuf value = Unpooled.buffer(branch.getReadableBytes());
+        ForwardedMessage.write(branch, value);
+        final ByteBuf line = Unpooled.wrappedBuffer(this.prefix.duplicate(), value, CRLF.duplicate());
+        return new EncodedHeader("Via", line, () -> toViaHeader(branch));
+    }
+
+    /**
+     * The Via-header with the given branch as a {@link ViaHeader}, for when
+     * the message is to be serialized as a whole anyway.
+     * 
+     * @param branch
+     * @return
+     */
+    public ViaHeader toViaHeader(final Buffer branch) {
+        final ViaHeader.Builder builder = ViaHeader.with().host(this.host).port(this.port).branch(branch);
+        switch (this.transport) {
+            case "UDP":
+                builder.transportUDP();
+                break;
+            case "TCP":
+                builder.transportTCP();
+                break;
+            case "TLS":
+                builder.transportTLS();
+                break;
+            default:
+                // the builder has no notion of secure WebSockets (nor of
+                // SCTP) so this is as close as it gets.
+                builder.transportWS();
+                break;
+        }
+        return builder.build();
+    }
+
+    @Override
+    public String toString() {
+        return this.prefix.toString(CharsetUtil.US_ASCII);
+    }
+
+}
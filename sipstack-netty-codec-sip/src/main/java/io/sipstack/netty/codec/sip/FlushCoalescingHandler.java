@@ -0,0 +1,156 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * Every {@link Connection#send(io.pkts.packet.sip.SipMessage)} ends with a
+ * flush and every flush is a trip through the pipeline down to the transport
+ * and (at least) one system call. Most of the messages we send are sent as a
+ * direct result of a message we just read, and since the transport reads
+ * several messages per read cycle (see
+ * {@link io.netty.channel.ChannelOption#MAX_MESSAGES_PER_READ}), the
+ * {@link FlushCoalescingHandler} holds on to the flushes issued during a read
+ * cycle and issues a single flush once the cycle is complete. That way, all
+ * the messages written during the cycle go out in one go.
+ * 
+ * A flush issued outside of a read cycle (e.g. by a handler running on a
+ * {@link SipMessageDispatcher} worker) is postponed until the event loop has
+ * processed whatever else is already queued up, which allows writes coming in
+ * from several threads to share a single flush as well.
+ * 
+ * Put the handler first in the pipeline, i.e., closest to the transport. How
+ * well things are batched is kept track of by the {@link BatchCounters}.
+ * 
+ * Note that the transports of the version of Netty we are on still send (and
+ * receive) one datagram per system call, there is no sendmmsg/recvmmsg or
+ * GSO, so for UDP what is saved is the flushes, the wake ups of the event loop
+ * and the trips through the pipeline.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public final class FlushCoalescingHandler extends ChannelDuplexHandler {
+
+    private final BatchCounters counters;
+
+    private ChannelHandlerContext ctx;
+
+    private boolean inRead;
+
+    /**
+     * The number of messages read in the current read cycle.
+     */
+    private int read;
+
+    /**
+     * The number of messages written since the last flush.
+     */
+    private int written;
+
+    private boolean flushPending;
+
+    private boolean flushScheduled;
+
+    private final Runnable flushTask = () -> {
+        this.flushScheduled = false;
+        if (this.flushPending) {
+            flushNow(this.ctx);
+        }
+    };
+
+    public FlushCoalescingHandler() {
+        this(new BatchCounters());
+    }
+
+    /**
+     * 
+     * @param counters
+     *            the counters to report to, which may be shared with other
+     *            channels.
+     */
+    public FlushCoalescingHandler(final BatchCounters counters) {
+        this.counters = counters;
+    }
+
+    public BatchCounters getCounters() {
+        return this.counters;
+    }
+
+    @Override
+    public void handlerAdded(final ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void handlerRemoved(final ChannelHandlerContext ctx) throws Exception {
+        if (this.flushPending) {
+            flushNow(ctx);
+        }
+    }
+
+    @Override
+    public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+        this.inRead = true;
+        ++this.read;
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelReadComplete(final ChannelHandlerContext ctx) throws Exception {
+        this.inRead = false;
+        this.counters.read(this.read);
+        this.read = 0;
+        if (this.flushPending) {
+            flushNow(ctx);
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelWritabilityChanged(final ChannelHandlerContext ctx) throws Exception {
+        // no point in holding on to the writes if the transport
+        // already is struggling to keep up.
+        if (this.flushPending && !ctx.channel().isWritable()) {
+            flushNow(ctx);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise)
+            throws Exception {
+        ++this.written;
+        ctx.write(msg, promise);
+    }
+
+    @Override
+    public void flush(final ChannelHandlerContext ctx) throws Exception {
+        this.flushPending = true;
+        if (this.inRead || this.flushScheduled) {
+            return;
+        }
+
+        this.flushScheduled = true;
+        ctx.channel().eventLoop().execute(this.flushTask);
+    }
+
+    @Override
+    public void close(final ChannelHandlerContext ctx, final ChannelPromise promise) throws Exception {
+        if (this.flushPending) {
+            flushNow(ctx);
+        }
+        ctx.close(promise);
+    }
+
+    private void flushNow(final ChannelHandlerContext ctx) {
+        this.flushPending = false;
+        this.counters.flushed(this.written);
+        this.written = 0;
+        ctx.flush();
+    }
+
+}
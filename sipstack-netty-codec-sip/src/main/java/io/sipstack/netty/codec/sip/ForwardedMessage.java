@@ -0,0 +1,553 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.pkts.buffer.Buffer;
+import io.pkts.packet.sip.SipMessage;
+import io.pkts.packet.sip.header.SipHeader;
+import io.pkts.packet.sip.header.ViaHeader;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A proxy typically only touches a header or two of the messages it forwards,
+ * it adds a Via-header to requests and pops the top-most Via-header off of
+ * responses, but if it makes those changes on the {@link SipMessage} itself,
+ * the entire message has to be serialized again when it is sent. The
+ * {@link ForwardedMessage} instead records the changes relative to the bytes
+ * the message was framed out of (see {@link HeaderIndex}) and when it is time
+ * to write it to the network, everything that wasn't touched is written as
+ * slices of the inbound buffer and only the new headers are serialized. As
+ * such, the cost of forwarding a message is proportional to the size of the
+ * changes, not to the size of the message.
+ * 
+ * The message isn't parsed unless it has to be, i.e., unless it has no
+ * {@link HeaderIndex} or someone asks for it through {@link #getMessage()}.
+ * Whatever the {@link ForwardedMessage} needs to know about the message,
+ * such as whether it is a request or where its top-most Via points to, is
+ * picked out of the bytes the message was framed out of.
+ * 
+ * Note that the changes are not reflected in {@link #getMessage()}, which
+ * still is the message as it was received. Also, since the untouched parts
+ * are slices of the inbound buffer, the message must be sent (or rather,
+ * {@link #toByteBuf()} must be called) before the {@link SipMessageEvent} it
+ * came from is released, i.e., before your handler returns (unless you
+ * retained the event).
+ * 
+ * Headers that are added to a lot of messages, such as the Via- and
+ * Contact-headers of a listening point, can be encoded once up front, see
+ * {@link EncodedHeader} and {@link EncodedVia}.
+ * 
+ * If the event doesn't have a {@link HeaderIndex} there is nothing to slice
+ * and the changes are simply made on the {@link SipMessage} itself, which
+ * then is serialized as usual.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public final class ForwardedMessage {
+
+    private static final ByteBuf HCOLON = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(new byte[] {
+            RawMessage.COLON, RawMessage.SP }));
+
+    private final SipMessageEvent event;
+
+    /**
+     * The message of the event if it has no {@link HeaderIndex}, null
+     * otherwise, see {@link #getMessage()}.
+     */
+    private final SipMessage msg;
+
+    private final HeaderIndex index;
+
+    /**
+     * The body of the message, if it was streamed.
+     */
+    private final ByteBuf content;
+
+    /**
+     * The headers added to the top of the message, in the order in which they
+     * were added, i.e., the last one is the top-most header. Each one is
+     * either a {@link SipHeader} or an {@link EncodedHeader}.
+     */
+    private List<Object> first;
+
+    /**
+     * The headers added to the bottom of the message.
+     */
+    private List<Object> last;
+
+    /**
+     * The changes to the headers of the original message, one slot per
+     * header in the {@link HeaderIndex}. Allocated on the first change.
+     */
+    private SipHeader[] replaced;
+    private boolean[] removed;
+
+    /**
+     * If the first value(s) of a header have been removed (e.g. a Via-header
+     * with several comma separated values got popped) this is where the
+     * remaining values start. -1 (negative one) if the value is untouched.
+     */
+    private int[] valueStart;
+
+    /**
+     * The position (in the {@link HeaderIndex}) of the header holding the
+     * current top-most Via. -2 means that we haven't looked it up yet.
+     */
+    private int topVia = -2;
+
+    private ForwardedMessage(final SipMessageEvent event, final SipMessage msg, final HeaderIndex index,
+            final ByteBuf content) {
+        this.event = event;
+        this.msg = msg;
+        this.index = index;
+        this.content = content;
+    }
+
+    /**
+     * Create a new {@link ForwardedMessage} out of the message of the given
+     * event. The message is only parsed if the event has no
+     * {@link HeaderIndex}.
+     * 
+     * @param event
+     * @return
+     */
+    public static ForwardedMessage of(final SipMessageEvent event) {
+        final HeaderIndex index = event.getHeaderIndex();
+        return new ForwardedMessage(event, index == null ? event.getMessage() : null, index,
+                event.getStreamedContent());
+    }
+
+    /**
+     * The message as it was received, which is parsed (unless it already has
+     * been) if the message has a {@link HeaderIndex}.
+     * 
+     * @return
+     */
+    public SipMessage getMessage() {
+        return this.msg != null ? this.msg : this.event.getMessage();
+    }
+
+    /**
+     * Whether the message is a request, without parsing it.
+     * 
+     * @return
+     */
+    public boolean isRequest() {
+        return this.index != null ? this.index.isRequest() : this.msg.isRequest();
+    }
+
+    /**
+     * Add a header above all the other headers.
+     * 
+     * @param header
+     * @return
+     */
+    public ForwardedMessage addHeaderFirst(final SipHeader header) {
+        if (this.index == null) {
+            this.msg.addHeaderFirst(header);
+            return this;
+        }
+
+        return addFirst(header);
+    }
+
+    /**
+     * Add a header that has already been encoded above all the other headers.
+     * 
+     * @param header
+     * @return
+     */
+    public ForwardedMessage addHeaderFirst(final EncodedHeader header) {
+        if (this.index == null) {
+            this.msg.addHeaderFirst(header.toSipHeader());
+            return this;
+        }
+
+        return addFirst(header);
+    }
+
+    private ForwardedMessage addFirst(final Object header) {
+        if (this.first == null) {
+            this.first = new ArrayList<>(2);
+        }
+        this.first.add(header);
+        return this;
+    }
+
+    /**
+     * Add a header below all the other headers.
+     * 
+     * @param header
+     * @return
+     */
+    public ForwardedMessage addHeader(final SipHeader header) {
+        if (this.index == null) {
+            this.msg.addHeader(header);
+            return this;
+        }
+
+        return addLast(header);
+    }
+
+    /**
+     * Add a header that has already been encoded below all the other headers.
+     * 
+     * @param header
+     * @return
+     */
+    public ForwardedMessage addHeader(final EncodedHeader header) {
+        if (this.index == null) {
+            this.msg.addHeader(header.toSipHeader());
+            return this;
+        }
+
+        return addLast(header);
+    }
+
+    private ForwardedMessage addLast(final Object header) {
+        if (this.last == null) {
+            this.last = new ArrayList<>(2);
+        }
+        this.last.add(header);
+        return this;
+    }
+
+    /**
+     * Replace the first header with the same name as the given header. If
+     * there is no such header, the header is added to the bottom of the
+     * message. Note that only the name exactly as given by the header is
+     * considered, i.e., if it is in its long form, any header in its compact
+     * form will not be replaced.
+     * 
+     * @param header
+     * @return
+     */
+    public ForwardedMessage setHeader(final SipHeader header) {
+        if (this.index == null) {
+            this.msg.setHeader(header);
+            return this;
+        }
+
+        final int i = this.index.indexOf(header.getName().toString());
+        if (i == -1) {
+            return addHeader(header);
+        }
+
+        ensureChanges();
+        this.replaced[i] = header;
+        return this;
+    }
+
+    /**
+     * Remove the top-most Via, which is either the first value of the
+     * top-most Via-header or, if that header only has a single value, the
+     * entire header.
+     * 
+     * @return
+     */
+    public ForwardedMessage popViaHeader() {
+        if (this.index == null) {
+            this.msg.popViaHeader();
+            return this;
+        }
+
+        if (this.first != null) {
+            for (int i = this.first.size() - 1; i >= 0; --i) {
+                if (isVia(nameOf(this.first.get(i)))) {
+                    this.first.remove(i);
+                    return this;
+                }
+            }
+        }
+
+        if (this.topVia == -2) {
+            this.topVia = nextVia(-1);
+        }
+
+        if (this.topVia == -1) {
+            return this;
+        }
+
+        ensureChanges();
+        final int via = this.topVia;
+        final int start = this.valueStart[via] == -1 ? this.index.getValueStart(via) : this.valueStart[via];
+        final int comma = this.index.findComma(start, this.index.getValueEnd(via));
+        if (comma == -1 || this.replaced[via] != null) {
+            this.removed[via] = true;
+            this.topVia = nextVia(via);
+        } else {
+            int next = comma + 1;
+            while (next < this.index.getValueEnd(via) && isWhitespace(this.index.getByte(next))) {
+                ++next;
+            }
+            this.valueStart[via] = next;
+        }
+        return this;
+    }
+
+    /**
+     * The sent-by (host and port) of the top-most Via of the message as it
+     * stands, i.e., once our own Via has been popped off of a response (see
+     * {@link #popViaHeader()}) this is where the response is to be sent next.
+     * The Via is picked out of the bytes of the message so the message isn't
+     * parsed just for this. Only the Vias of the message as it was received
+     * are considered, not any that have been added to it.
+     * 
+     * @return the sent-by as an unresolved address, with the default port of
+     *         the transport if the Via didn't state one, or null if there is
+     *         no Via left (or if it can't be made sense of).
+     */
+    public InetSocketAddress getViaSentBy() {
+        if (this.index == null) {
+            final ViaHeader via = this.msg.getViaHeader();
+            if (via == null) {
+                return null;
+            }
+            final int port = via.getPort();
+            return InetSocketAddress.createUnresolved(via.getHost().toString(),
+                    port == -1 ? defaultPort(via.getTransport().toString()) : port);
+        }
+
+        if (this.topVia == -2) {
+            this.topVia = nextVia(-1);
+        }
+
+        if (this.topVia == -1) {
+            return null;
+        }
+
+        final int via = this.topVia;
+        final int start = this.valueStart == null || this.valueStart[via] == -1 ? this.index.getValueStart(via)
+                : this.valueStart[via];
+        final int comma = this.index.findComma(start, this.index.getValueEnd(via));
+        return parseSentBy(start, comma == -1 ? this.index.getValueEnd(via) : comma);
+    }
+
+    /**
+     * Parse the sent-by out of a single Via value, which is the
+     * sent-protocol ("SIP / 2.0 / UDP") followed by the host and an optional
+     * port, then the parameters.
+     */
+    private InetSocketAddress parseSentBy(final int start, final int stop) {
+        int i = start;
+        for (int slashes = 0; slashes < 2; ++i) {
+            if (i == stop) {
+                return null;
+            }
+            if (this.index.getByte(i) == '/') {
+                ++slashes;
+            }
+        }
+
+        i = skipWhitespace(i, stop);
+        final StringBuilder transport = new StringBuilder(4);
+        while (i < stop && !isWhitespace(this.index.getByte(i))) {
+            transport.append((char) this.index.getByte(i++));
+        }
+        i = skipWhitespace(i, stop);
+
+        final StringBuilder host = new StringBuilder(32);
+        final boolean ipv6 = i < stop && this.index.getByte(i) == '[';
+        while (i < stop) {
+            final byte b = this.index.getByte(i);
+            if (ipv6 ? b == ']' : b == RawMessage.COLON || b == RawMessage.SEMI || isWhitespace(b)) {
+                break;
+            }
+            host.append((char) b);
+            ++i;
+        }
+
+        if (ipv6 && i < stop) {
+            host.append(']');
+            ++i;
+        }
+
+        if (host.length() == 0) {
+            return null;
+        }
+
+        i = skipWhitespace(i, stop);
+        if (i == stop || this.index.getByte(i) != RawMessage.COLON) {
+            return InetSocketAddress.createUnresolved(host.toString(), defaultPort(transport.toString()));
+        }
+
+        i = skipWhitespace(i + 1, stop);
+        int port = 0;
+        int digits = 0;
+        while (i < stop && RawMessage.isDigit(this.index.getByte(i)) && digits < 5) {
+            port = port * 10 + this.index.getByte(i++) - '0';
+            ++digits;
+        }
+        if (digits == 0 || port > 0xFFFF) {
+            return null;
+        }
+        return InetSocketAddress.createUnresolved(host.toString(), port);
+    }
+
+    private int skipWhitespace(int i, final int stop) {
+        while (i < stop && isWhitespace(this.index.getByte(i))) {
+            ++i;
+        }
+        return i;
+    }
+
+    /**
+     * The default port of the transport of a Via, see section 19.1.2 in RFC
+     * 3261.
+     */
+    private static int defaultPort(final String transport) {
+        return "TLS".equalsIgnoreCase(transport) || "WSS".equalsIgnoreCase(transport) ? 5061 : 5060;
+    }
+
+    /**
+     * Encode the message, including all the changes, into a {@link ByteBuf}
+     * ready to be written to the network.
+     * 
+     * @return
+     */
+    public ByteBuf toByteBuf() {
+        if (this.index == null) {
+            return SipMessageEncoder.toByteBuf(this.msg);
+        }
+
+        final List<ByteBuf> parts = new ArrayList<>();
+        final int headersStart = this.index.getHeadersStart();
+        parts.add(this.index.retainedSlice(0, headersStart));
+
+        if (this.first != null) {
+            for (int i = this.first.size() - 1; i >= 0; --i) {
+                parts.add(encode(this.first.get(i)));
+            }
+        }
+
+        int pos = headersStart;
+        if (this.removed != null) {
+            for (int i = 0; i < this.index.size(); ++i) {
+                if (!this.removed[i] && this.replaced[i] == null && this.valueStart[i] == -1) {
+                    continue;
+                }
+
+                final int lineStart = this.index.getNameStart(i);
+                final int next = this.index.getNextLineStart(i);
+                addSlice(parts, pos, lineStart);
+                if (this.removed[i]) {
+                    // nothing to write
+                } else if (this.replaced[i] != null) {
+                    parts.add(encode(this.replaced[i]));
+                } else {
+                    parts.add(this.index.retainedSlice(lineStart, this.index.getNameEnd(i)));
+                    parts.add(HCOLON.duplicate());
+                    parts.add(this.index.retainedSlice(this.valueStart[i], next));
+                }
+                pos = next;
+            }
+        }
+
+        if (this.last != null) {
+            final int end = this.index.getHeadersEnd() + 2;
+            addSlice(parts, pos, end);
+            for (final Object header : this.last) {
+                parts.add(encode(header));
+            }
+            pos = end;
+        }
+
+        addSlice(parts, pos, this.index.getFrameLength());
+        if (this.content != null) {
+            parts.add(this.content.duplicate().retain());
+        }
+        return Unpooled.wrappedBuffer(parts.size(), parts.toArray(new ByteBuf[parts.size()]));
+    }
+
+    private void addSlice(final List<ByteBuf> parts, final int start, final int stop) {
+        if (stop > start) {
+            parts.add(this.index.retainedSlice(start, stop));
+        }
+    }
+
+    private void ensureChanges() {
+        if (this.removed == null) {
+            final int size = this.index.size();
+            this.replaced = new SipHeader[size];
+            this.removed = new boolean[size];
+            this.valueStart = new int[size];
+            Arrays.fill(this.valueStart, -1);
+        }
+    }
+
+    private int nextVia(final int from) {
+        final int via = this.index.indexOf("via", from + 1);
+        final int compact = this.index.indexOf("v", from + 1);
+        if (via == -1 || compact == -1) {
+            return Math.max(via, compact);
+        }
+        return Math.min(via, compact);
+    }
+
+    private static String nameOf(final Object header) {
+        if (header instanceof EncodedHeader) {
+            return ((EncodedHeader) header).getName();
+        }
+        return ((SipHeader) header).getName().toString();
+    }
+
+    private static boolean isVia(final String name) {
+        return "via".equalsIgnoreCase(name) || "v".equalsIgnoreCase(name);
+    }
+
+    private static boolean isWhitespace(final byte b) {
+        return b == RawMessage.SP || b == RawMessage.HTAB;
+    }
+
+    private static ByteBuf encode(final Object header) {
+        if (header instanceof EncodedHeader) {
+            return ((EncodedHeader) header).encode();
+        }
+        return encode((SipHeader) header);
+    }
+
+    /**
+     * Serialize a header, including the CRLF ending the header line. Only
+     * the readable bytes of the name and the value are written, whatever the
+     * arrays backing them may hold beyond that.
+     */
+    static ByteBuf encode(final SipHeader header) {
+        final Buffer name = header.getName();
+        final Buffer value = header.getValue();
+        final ByteBuf line = Unpooled.buffer(name.getReadableBytes() + value.getReadableBytes() + 4);
+        write(name, line);
+        line.writeByte(RawMessage.COLON).writeByte(RawMessage.SP);
+        write(value, line);
+        return line.writeByte(RawMessage.CR).writeByte(RawMessage.LF);
+    }
+
+    /**
+     * Write the readable bytes of the buffer, which is all of the buffer
+     * unless someone has been reading from it. They are written one by one
+     * since {@link Buffer#getArray()} doesn't say where within the array they
+     * are: the buffer may very well be a view of a section of a larger array,
+     * such as one of the frame (see {@link ByteBufView#wrap(int, int)}), and
+     * its indexes are relative to the start of that section.
+     */
+    static void write(final Buffer buffer, final ByteBuf out) {
+        final int stop = buffer.getWriterIndex();
+        try {
+            for (int i = buffer.getReaderIndex(); i < stop; ++i) {
+                out.writeByte(buffer.getByte(i));
+            }
+        } catch (final IOException e) {
+            // only a buffer that is read off of a stream can fail and the
+            // ones we write never are
+            throw new IllegalArgumentException("Unable to read the buffer", e);
+        }
+    }
+
+}
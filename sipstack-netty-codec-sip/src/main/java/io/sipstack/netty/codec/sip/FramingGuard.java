@@ -0,0 +1,313 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import io.netty.channel.Channel;
+
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stream based connection that never completes the message it started
+ * sending (by accident or on purpose, a.k.a. slowloris) will have its partial
+ * message sitting in memory forever and with enough of those connections we
+ * will run out of memory. The {@link FramingGuard} protects against this by
+ * keeping track of all the connections that are in the middle of a message
+ * and:
+ * 
+ * <ul>
+ * <li>closes any connection that hasn't completed its message within the
+ * maximum framing time. Since a peer that has stopped sending will not trigger
+ * any reads, this is checked by a periodic sweep (see
+ * {@link #start(ScheduledExecutorService, long, TimeUnit)}) as well as whenever
+ * more data arrives.</li>
+ * <li>puts a cap on the total number of bytes held in partially framed
+ * messages across all connections. Whenever the cap is exceeded, the
+ * connections that have been at it the longest are closed until we are back
+ * under the cap.</li>
+ * </ul>
+ * 
+ * A single guard is typically shared by all the decoders in the process (see
+ * {@link DecoderConfiguration.Builder#framingGuard(FramingGuard)}) and all
+ * time is measured using the monotonic time of the {@link Clock} given to the
+ * guard.
+ * 
+ * The flows are kept ordered by when they started on their current message,
+ * so both the sweep and the eviction when over the cap only ever look at the
+ * oldest flows, no matter how many connections are in the middle of a
+ * message.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public final class FramingGuard {
+
+    /**
+     * Orders the flows by when they started on their current message, the
+     * oldest first. Flows that started at the very same time are told apart
+     * by the order in which they were added.
+     */
+    private static final Comparator<Flow> OLDEST_FIRST = (a, b) -> {
+        final long diff = a.startTime - b.startTime;
+        return diff != 0 ? (diff < 0 ? -1 : 1) : Long.compare(a.sequence, b.sequence);
+    };
+
+    private final Clock clock;
+
+    private final long maxBytes;
+
+    /**
+     * The maximum framing time in nanoseconds.
+     */
+    private final long maxFramingTime;
+
+    /**
+     * The total number of bytes held by all the flows.
+     */
+    private final AtomicLong inFlight = new AtomicLong();
+
+    /**
+     * The flows that are in the middle of a message, the oldest first. The
+     * start time and sequence of a flow must not change while it is in here.
+     */
+    private final ConcurrentSkipListSet<Flow> flows = new ConcurrentSkipListSet<>(OLDEST_FIRST);
+
+    /**
+     * The number of flows in {@link #flows}, which is expensive to count.
+     */
+    private final AtomicInteger flowCount = new AtomicInteger();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * 
+     * @param clock
+     * @param maxBytes
+     *            the maximum number of bytes that may be held in partially
+     *            framed messages across all connections.
+     * @param maxFramingTime
+     *            the maximum time (in milliseconds) a connection may spend on
+     *            a single message.
+     */
+    public FramingGuard(final Clock clock, final long maxBytes, final long maxFramingTime) {
+        if (maxBytes < 1 || maxFramingTime < 1) {
+            throw new IllegalArgumentException("The limits of the framing guard must be positive");
+        }
+        this.clock = clock;
+        this.maxBytes = maxBytes;
+        this.maxFramingTime = TimeUnit.MILLISECONDS.toNanos(maxFramingTime);
+    }
+
+    /**
+     * Schedule the periodic sweep for connections that have exceeded the
+     * maximum framing time.
+     * 
+     * @param executor
+     *            the executor to run the sweep on, e.g. one of your event loop
+     *            groups.
+     * @param period
+     * @param unit
+     * @return the future of the scheduled sweep, which you can use to cancel
+     *         it.
+     */
+    public ScheduledFuture<?> start(final ScheduledExecutorService executor, final long period, final TimeUnit unit) {
+        return executor.scheduleAtFixedRate(this::sweep, period, period, unit);
+    }
+
+    /**
+     * Close all the connections that have exceeded the maximum framing time.
+     */
+    public void sweep() {
+        final long now = this.clock.getNanoTime();
+        for (final Flow flow : this.flows) {
+            if (now - flow.startTime <= this.maxFramingTime) {
+                // and neither has anyone after it
+                return;
+            }
+            evict(flow);
+        }
+    }
+
+    /**
+     * The maximum number of bytes that may be held in partially framed
+     * messages across all connections.
+     * 
+     * @return
+     */
+    public long getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    /**
+     * The maximum time (in milliseconds) a connection may spend on a single
+     * message.
+     * 
+     * @return
+     */
+    public long getMaxFramingTime() {
+        return TimeUnit.NANOSECONDS.toMillis(this.maxFramingTime);
+    }
+
+    /**
+     * The number of bytes currently held in partially framed messages.
+     * 
+     * @return
+     */
+    public long getBytesInFlight() {
+        return this.inFlight.get();
+    }
+
+    /**
+     * The number of connections currently in the middle of a message.
+     * 
+     * @return
+     */
+    public int getFlowsInFlight() {
+        return this.flowCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("framing: %d flows, %d bytes in flight (max %d bytes, %d ms)", getFlowsInFlight(),
+                getBytesInFlight(), this.maxBytes, getMaxFramingTime());
+    }
+
+    Flow newFlow(final Channel channel) {
+        return new Flow(channel);
+    }
+
+    /**
+     * Report that the flow now is holding on to the given number of bytes of
+     * a message that isn't complete yet.
+     * 
+     * @return false if the flow has been evicted, in which case the connection
+     *         is about to be closed and the caller should stop decoding.
+     */
+    boolean update(final Flow flow, final int bytes) {
+        final long now = this.clock.getNanoTime();
+        synchronized (flow) {
+            if (flow.evicted) {
+                return false;
+            }
+
+            if (!flow.framing) {
+                flow.startTime = now;
+                flow.sequence = this.sequence.incrementAndGet();
+                flow.framing = true;
+                add(flow);
+            } else if (now - flow.startTime > this.maxFramingTime) {
+                evict(flow);
+                return false;
+            }
+
+            this.inFlight.addAndGet(bytes - flow.bytes);
+            flow.bytes = bytes;
+        }
+
+        if (this.inFlight.get() > this.maxBytes) {
+            evictOldest();
+        }
+
+        return !flow.evicted;
+    }
+
+    /**
+     * Report that the flow is done with its current message (or is going
+     * away), i.e., it no longer holds on to any bytes.
+     */
+    void finish(final Flow flow) {
+        synchronized (flow) {
+            release(flow);
+        }
+    }
+
+    /**
+     * Close the flows that have been working on their messages the longest
+     * until we're back under the cap.
+     */
+    private void evictOldest() {
+        while (this.inFlight.get() > this.maxBytes) {
+            final Flow oldest = this.flows.pollFirst();
+            if (oldest == null) {
+                return;
+            }
+            this.flowCount.decrementAndGet();
+            evict(oldest);
+        }
+    }
+
+    private void evict(final Flow flow) {
+        synchronized (flow) {
+            if (flow.evicted || !flow.framing) {
+                // either someone beat us to it or the flow completed its
+                // message in the meantime.
+                return;
+            }
+            flow.evicted = true;
+            release(flow);
+        }
+        flow.channel.close();
+    }
+
+    private void add(final Flow flow) {
+        if (this.flows.add(flow)) {
+            this.flowCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Take the flow out of the ordered flows (unless it already has been, see
+     * {@link #evictOldest()}) and give back its bytes. Must be called while
+     * holding the lock of the flow.
+     */
+    private void release(final Flow flow) {
+        if (flow.framing && this.flows.remove(flow)) {
+            this.flowCount.decrementAndGet();
+        }
+        flow.framing = false;
+        this.inFlight.addAndGet(-flow.bytes);
+        flow.bytes = 0;
+    }
+
+    /**
+     * The state the guard keeps for each decoder.
+     */
+    static final class Flow {
+
+        private final Channel channel;
+
+        /**
+         * When (in nanoseconds) the current message was started. Only valid
+         * while the flow is {@link #framing}.
+         */
+        private volatile long startTime;
+
+        /**
+         * Tells flows that started at the same time apart.
+         */
+        private volatile long sequence;
+
+        /**
+         * Whether we are in the middle of a message.
+         */
+        private volatile boolean framing;
+
+        /**
+         * The number of bytes of the current message, all of which are
+         * counted as in flight by the guard.
+         */
+        private int bytes;
+
+        private volatile boolean evicted;
+
+        private Flow(final Channel channel) {
+            this.channel = channel;
+        }
+    }
+
+}
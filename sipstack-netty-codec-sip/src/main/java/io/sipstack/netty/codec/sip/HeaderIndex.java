@@ -0,0 +1,380 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import io.netty.buffer.ByteBuf;
+import io.pkts.buffer.Buffer;
+import io.pkts.packet.sip.SipMessage;
+
+/**
+ * While framing a message, the {@link RawMessage} has to walk through every
+ * single header line anyway (looking for the Content-Length header) so while
+ * at it, it records where each header is located within the frame. The
+ * {@link HeaderIndex} is that record, i.e., nothing but a few ints per header
+ * and a view of the frame itself.
+ * 
+ * On top of that, the handful of fields that pretty much every router,
+ * dispatcher and transaction layer needs (the Call-ID, the branch of the
+ * top-most Via, the CSeq and the method) are extracted up front so they can
+ * be had as {@link Buffer}s straight out of the frame without the need to ask
+ * pkts to parse the headers. Just as with the {@link SipMessageEvent}, these
+ * {@link Buffer}s are views of the frame and must not be used once the event
+ * has been released.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public final class HeaderIndex {
+
+    /**
+     * Each header takes up four slots in the index: the start and end of the
+     * name followed by the start and end of the value.
+     */
+    static final int SLOTS_PER_HEADER = 4;
+
+    /**
+     * The offsets of the fast fields. Each field takes up two slots, the start
+     * and the end (exclusive) of the field within the frame.
+     */
+    static final int METHOD = 0;
+    static final int CALL_ID = 2;
+    static final int VIA_BRANCH = 4;
+    static final int CSEQ_METHOD = 6;
+    static final int FIELDS = 8;
+
+    private final ByteBufView frame;
+
+    private final int[] headers;
+
+    private final int count;
+
+    private final int[] fields;
+
+    private final long cseqNumber;
+
+    /**
+     * The length of the initial line, excluding the CRLF.
+     */
+    private final int initialLineLength;
+
+    /**
+     * The offset of the double CRLF separating the headers from the payload.
+     */
+    private final int headersEnd;
+
+    /**
+     * 
+     * @param frame
+     *            the view of the frame the offsets are pointing into.
+     * @param headers
+     *            the offsets of the headers, {@link #SLOTS_PER_HEADER} per
+     *            header.
+     * @param count
+     *            the number of headers in the index.
+     * @param fields
+     *            the offsets of the fast fields, where a start of -1 means that
+     *            the field wasn't found.
+     * @param cseqNumber
+     *            the sequence number of the CSeq header or -1 if there was
+     *            none.
+     * @param initialLineLength
+     *            the length of the initial line, excluding the CRLF.
+     * @param headersEnd
+     *            the offset of the double CRLF separating the headers from
+     *            the payload.
+     */
+    HeaderIndex(final ByteBufView frame, final int[] headers, final int count, final int[] fields,
+            final long cseqNumber, final int initialLineLength, final int headersEnd) {
+        this.frame = frame;
+        this.headers = headers;
+        this.count = count;
+        this.fields = fields;
+        this.cseqNumber = cseqNumber;
+        this.initialLineLength = initialLineLength;
+        this.headersEnd = headersEnd;
+    }
+
+    /**
+     * The number of headers in this index. Note that a header line with
+     * several comma separated values (e.g. "Via: a, b") is a single header as
+     * far as the index is concerned.
+     * 
+     * @return
+     */
+    public int size() {
+        return this.count;
+    }
+
+    /**
+     * Get the name of the header at the given position, exactly as it
+     * appeared on the wire (i.e. it may very well be in its compact form).
+     * 
+     * @param index
+     * @return
+     */
+    public Buffer getName(final int index) {
+        final int slot = slot(index);
+        return this.frame.wrap(this.headers[slot], this.headers[slot + 1]);
+    }
+
+    /**
+     * Get the value of the header at the given position, without any leading
+     * or trailing white space. If the header was folded over several lines, the value
+     * includes all of them.
+     * 
+     * @param index
+     * @return
+     */
+    public Buffer getValue(final int index) {
+        final int slot = slot(index);
+        return this.frame.wrap(this.headers[slot + 2], this.headers[slot + 3]);
+    }
+
+    /**
+     * Find the first header with the given name. The comparison is case
+     * insensitive but it will not map between the long and the compact form
+     * of a header name so if you are looking for e.g. the Via header, you will
+     * have to ask for both "Via" and "v".
+     * 
+     * @param name
+     * @return the position of the header or -1 (negative one) if there is no
+     *         such header.
+     */
+    public int indexOf(final String name) {
+        return indexOf(name, 0);
+    }
+
+    /**
+     * Find the first header with the given name, starting at the given
+     * position.
+     *
+     * @param name
+     * @param from
+     * @return the position of the header or -1 (negative one) if there is no
+     *         such header.
+     * @see #indexOf(String)
+     */
+    public int indexOf(final String name, final int from) {
+        for (int i = Math.max(from, 0); i < this.count; ++i) {
+            if (isHeader(i, name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isHeader(final int index, final String name) {
+        final int slot = index * SLOTS_PER_HEADER;
+        final int start = this.headers[slot];
+        if (this.headers[slot + 1] - start != name.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < name.length(); ++i) {
+            if ((this.frame.getByte(start + i) | 0x20) != (name.charAt(i) | 0x20)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the value of the first header with the given name.
+     * 
+     * @param name
+     * @return the value or null if there is no such header.
+     * @see #indexOf(String)
+     */
+    public Buffer getValue(final String name) {
+        final int index = indexOf(name);
+        return index == -1 ? null : getValue(index);
+    }
+
+    /**
+     * Whether the message is a request, as opposed to a response, whose
+     * initial line starts with the SIP version.
+     * 
+     * @return
+     */
+    public boolean isRequest() {
+        return this.initialLineLength < 4 || (this.frame.getByte(0) | 0x20) != 's'
+                || (this.frame.getByte(1) | 0x20) != 'i' || (this.frame.getByte(2) | 0x20) != 'p'
+                || this.frame.getByte(3) != '/';
+    }
+
+    /**
+     * The method of a request or, for a response, the method of the CSeq
+     * header.
+     * 
+     * @return
+     */
+    public Buffer getMethod() {
+        return getField(METHOD);
+    }
+
+    /**
+     * The value of the Call-ID header.
+     * 
+     * @return the Call-ID or null if there was none.
+     */
+    public Buffer getCallId() {
+        return getField(CALL_ID);
+    }
+
+    /**
+     * The branch parameter of the top-most Via header.
+     * 
+     * @return the branch or null if there was no Via header or if it didn't
+     *         have a branch parameter.
+     */
+    public Buffer getViaBranch() {
+        return getField(VIA_BRANCH);
+    }
+
+    /**
+     * The sequence number of the CSeq header.
+     * 
+     * @return the sequence number or -1 (negative one) if there was no CSeq
+     *         header.
+     */
+    public long getCSeqNumber() {
+        return this.cseqNumber;
+    }
+
+    /**
+     * The method of the CSeq header.
+     * 
+     * @return the method or null if there was no CSeq header.
+     */
+    public Buffer getCSeqMethod() {
+        return getField(CSEQ_METHOD);
+    }
+
+    /**
+     * Parse the frame into a {@link SipMessage}. If the body of the message
+     * was streamed, the message will not have a payload.
+     *
+     * @return
+     * @throws io.pkts.packet.sip.SipParseException
+     *             in case the initial line isn't a SIP initial line.
+     */
+    SipMessage toSipMessage() {
+        final int headersStart = getHeadersStart();
+        final int payloadStart = this.headersEnd + 4;
+        final int frameLength = this.frame.length();
+        final Buffer payload = payloadStart < frameLength ? this.frame.wrap(payloadStart, frameLength) : null;
+        return RawMessage.toSipMessage(this.frame.wrap(0, this.initialLineLength),
+                this.frame.wrap(headersStart, Math.max(headersStart, this.headersEnd)), payload);
+    }
+
+    /**
+     * A hash of the Call-ID, computed straight off of the frame so that the
+     * Call-ID doesn't have to be wrapped (or copied) just to pick e.g. which
+     * thread a message should be processed on.
+     *
+     * @return the hash or zero if there is no Call-ID.
+     */
+    int hashCallId() {
+        final int start = this.fields[CALL_ID];
+        if (start == -1) {
+            return 0;
+        }
+
+        final int stop = this.fields[CALL_ID + 1];
+        int hash = 1;
+        for (int i = start; i < stop; ++i) {
+            hash = 31 * hash + this.frame.getByte(i);
+        }
+        return hash;
+    }
+
+    /**
+     * The offset within the frame where the header at the given position
+     * starts.
+     */
+    int getNameStart(final int index) {
+        return this.headers[slot(index)];
+    }
+
+    int getNameEnd(final int index) {
+        return this.headers[slot(index) + 1];
+    }
+
+    int getValueStart(final int index) {
+        return this.headers[slot(index) + 2];
+    }
+
+    int getValueEnd(final int index) {
+        return this.headers[slot(index) + 3];
+    }
+
+    /**
+     * The offset within the frame where the line following the header at
+     * the given position starts. For the last header, that is where the
+     * empty line separating the headers from the payload starts.
+     */
+    int getNextLineStart(final int index) {
+        return index + 1 < this.count ? getNameStart(index + 1) : getHeadersEnd() + 2;
+    }
+
+    /**
+     * The offset within the frame where the first header starts.
+     */
+    int getHeadersStart() {
+        return this.initialLineLength + 2;
+    }
+
+    int getHeadersEnd() {
+        return this.headersEnd;
+    }
+
+    /**
+     * The length of the entire frame.
+     */
+    int getFrameLength() {
+        return this.frame.length();
+    }
+
+    /**
+     * Find the comma separating the first value of a header from the next
+     * one, if any.
+     *
+     * @return the offset of the comma or -1 (negative one).
+     */
+    int findComma(final int start, final int stop) {
+        for (int i = start; i < stop; ++i) {
+            if (this.frame.getByte(i) == RawMessage.COMMA) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    byte getByte(final int offset) {
+        return this.frame.getByte(offset);
+    }
+
+    /**
+     * Get a retained slice of the frame, see
+     * {@link ByteBufView#retainedSlice(int, int)}.
+     */
+    ByteBuf retainedSlice(final int start, final int stop) {
+        return this.frame.retainedSlice(start, stop);
+    }
+
+    private Buffer getField(final int field) {
+        final int start = this.fields[field];
+        if (start == -1) {
+            return null;
+        }
+        return this.frame.wrap(start, this.fields[field + 1]);
+    }
+
+    private int slot(final int index) {
+        if (index < 0 || index >= this.count) {
+            throw new IndexOutOfBoundsException("No header at index " + index);
+        }
+        return index * SLOTS_PER_HEADER;
+    }
+
+}
@@ -0,0 +1,201 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Closes the stream based connections that haven't read or written anything
+ * for too long. With a {@link io.netty.handler.timeout.IdleStateHandler} in
+ * every pipeline, each connection has a task of its own scheduled (and
+ * rescheduled) on its event loop, which with 100k connections is 100k tasks
+ * for the event loops to shuffle around and 100k objects for the garbage
+ * collector to trace. The {@link IdleReaper} instead has every connection
+ * record the time of its latest activity, which is just a write to a field,
+ * and a single periodic sweep (see
+ * {@link #start(ScheduledExecutorService, long, TimeUnit)}) closes the ones
+ * that have been idle for too long. As such, a connection is closed somewhere
+ * between the idle timeout and the idle timeout plus the period of the sweep.
+ * 
+ * The reaper is a handler, it is sharable so use the same one for all the
+ * channels, typically all the channels of the process. Put it early in the
+ * pipeline since it only sees what is read before it and what is written
+ * after it. Note that the CRLF keep-alive pings count as activity, so a flow
+ * that is kept alive by its client is never reaped.
+ * 
+ * All time is measured using the monotonic clock of the {@link Clock} given to
+ * the reaper.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+@Sharable
+public final class IdleReaper extends ChannelDuplexHandler {
+
+    private static final AttributeKey<Flow> FLOW = AttributeKey.valueOf("sipstack.idleReaper");
+
+    private final Clock clock;
+
+    private final long idleTimeout;
+
+    private final Set<Flow> flows = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder reaped = new LongAdder();
+
+    /**
+     * 
+     * @param clock
+     * @param idleTimeout
+     *            the time (in milliseconds) a connection may be idle before it
+     *            is closed.
+     */
+    public IdleReaper(final Clock clock, final long idleTimeout) {
+        if (idleTimeout < 1) {
+            throw new IllegalArgumentException("The idle timeout must be positive");
+        }
+        this.clock = clock;
+        this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+    }
+
+    /**
+     * Schedule the periodic sweep for idle connections.
+     * 
+     * @param executor
+     *            the executor to run the sweep on, e.g. one of your event loop
+     *            groups.
+     * @param period
+     * @param unit
+     * @return the future of the scheduled sweep, which you can use to cancel
+     *         it.
+     */
+    public ScheduledFuture<?> start(final ScheduledExecutorService executor, final long period, final TimeUnit unit) {
+        return executor.scheduleAtFixedRate(this::sweep, period, period, unit);
+    }
+
+    /**
+     * Close all the connections that have been idle for too long.
+     */
+    public void sweep() {
+        final long now = this.clock.getNanoTime();
+        for (final Flow flow : this.flows) {
+            if (now - flow.lastActivity > this.idleTimeout && this.flows.remove(flow)) {
+                this.reaped.increment();
+                flow.channel.close();
+            }
+        }
+    }
+
+    /**
+     * The time (in milliseconds) a connection may be idle before it is
+     * closed.
+     * 
+     * @return
+     */
+    public long getIdleTimeout() {
+        return TimeUnit.NANOSECONDS.toMillis(this.idleTimeout);
+    }
+
+    /**
+     * The number of connections currently kept track of.
+     * 
+     * @return
+     */
+    public int getConnections() {
+        return this.flows.size();
+    }
+
+    /**
+     * The number of connections that have been closed for being idle.
+     * 
+     * @return
+     */
+    public long getReaped() {
+        return this.reaped.sum();
+    }
+
+    @Override
+    public void handlerAdded(final ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isActive()) {
+            track(ctx.channel());
+        }
+    }
+
+    @Override
+    public void channelActive(final ChannelHandlerContext ctx) throws Exception {
+        track(ctx.channel());
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+        final Flow flow = ctx.channel().attr(FLOW).get();
+        if (flow != null) {
+            this.flows.remove(flow);
+        }
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+        touch(ctx.channel());
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise)
+            throws Exception {
+        touch(ctx.channel());
+        ctx.write(msg, promise);
+    }
+
+    private void track(final Channel channel) {
+        final Attribute<Flow> attr = channel.attr(FLOW);
+        if (attr.get() == null) {
+            final Flow flow = new Flow(channel, this.clock.getNanoTime());
+            attr.set(flow);
+            this.flows.add(flow);
+        }
+    }
+
+    private void touch(final Channel channel) {
+        final Flow flow = channel.attr(FLOW).get();
+        if (flow != null) {
+            flow.lastActivity = this.clock.getNanoTime();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("idle timeout: %d ms, connections: %d, reaped: %d",
+                getIdleTimeout(), getConnections(), getReaped());
+    }
+
+    /**
+     * The state the reaper keeps for each connection.
+     */
+    private static final class Flow {
+
+        private final Channel channel;
+
+        private volatile long lastActivity;
+
+        private Flow(final Channel channel, final long lastActivity) {
+            this.channel = channel;
+            this.lastActivity = lastActivity;
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import io.netty.util.AttributeKey;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@link OverflowPolicy} of a set of stream based channels along with how
+ * many messages it has been applied to. The {@link OutboundOverflow} of a
+ * channel (see {@link #KEY}) is consulted by the {@link TcpConnection} of the
+ * channel whenever its outbound buffer is above the high water mark.
+ * 
+ * The counters belong to the instance, so use the same one for all the
+ * channels you want counted together, e.g. one per stack or per listening
+ * point, just as with the {@link CompactForm}.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public final class OutboundOverflow {
+
+    /**
+     * The {@link OutboundOverflow} to use for all the messages written to a
+     * channel.
+     */
+    public static final AttributeKey<OutboundOverflow> KEY = AttributeKey.valueOf("sipstack.outboundOverflow");
+
+    private final OverflowPolicy policy;
+
+    private final LongAdder count = new LongAdder();
+
+    public OutboundOverflow(final OverflowPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("The overflow policy cannot be null");
+        }
+        this.policy = policy;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return this.policy;
+    }
+
+    /**
+     * Count a message the policy is about to be applied to.
+     * 
+     * @return the policy to apply.
+     */
+    OverflowPolicy apply() {
+        this.count.increment();
+        return this.policy;
+    }
+
+    /**
+     * The number of messages the policy has been applied to.
+     * 
+     * @return
+     */
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("overflow: %s applied to %d messages", this.policy, getCount());
+    }
+
+}
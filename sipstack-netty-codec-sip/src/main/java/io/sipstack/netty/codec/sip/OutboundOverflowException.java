@@ -0,0 +1,24 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+/**
+ * Thrown by {@link Connection#send(io.pkts.packet.sip.SipMessage)} when the
+ * outbound buffer of the connection is full and the {@link OverflowPolicy} of
+ * the connection is {@link OverflowPolicy#REJECT}. Since there is nowhere to
+ * queue it, the message has not been sent.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public final class OutboundOverflowException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param message
+     */
+    public OutboundOverflowException(final String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+/**
+ * What to do with a message that is about to be sent over a stream based
+ * connection whose outbound buffer already is above its high water mark (see
+ * {@link io.netty.channel.ChannelOption#WRITE_BUFFER_HIGH_WATER_MARK}), i.e.,
+ * when the peer isn't reading as fast as we are writing. Without a policy,
+ * the message is queued anyway and a slow peer can make the outbound buffer
+ * grow without bounds.
+ * 
+ * The policy is configured on the channel through an {@link OutboundOverflow},
+ * which also keeps track of how many messages it has been applied to.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Refuse to send the message by throwing an
+     * {@link OutboundOverflowException}, which allows the application to e.g.
+     * answer the request it was about to forward with a 503.
+     */
+    REJECT,
+
+    /**
+     * Silently drop the message.
+     */
+    DROP,
+
+    /**
+     * Drop the message and close the connection.
+     */
+    CLOSE
+
+}
@@ -0,0 +1,73 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.PendingWriteQueue;
+
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * Netty fails anything written to a channel that isn't connected yet but
+ * since the {@link ConnectionManager} hands out the {@link Connection} for an
+ * outbound flow as soon as it has started connecting, whatever is sent before
+ * the connection has been established is held on to here and written once it
+ * has. After that, the handler removes itself from the pipeline.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+final class PendingWritesHandler extends ChannelDuplexHandler {
+
+    private PendingWriteQueue pending;
+
+    @Override
+    public void handlerAdded(final ChannelHandlerContext ctx) throws Exception {
+        this.pending = new PendingWriteQueue(ctx);
+    }
+
+    @Override
+    public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise)
+            throws Exception {
+        if (ctx.channel().isActive() || !ctx.channel().isOpen()) {
+            // once closed, there is nothing to wait for so let it fail
+            ctx.write(msg, promise);
+        } else {
+            this.pending.add(msg, promise);
+        }
+    }
+
+    @Override
+    public void flush(final ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isActive()) {
+            ctx.flush();
+        }
+    }
+
+    @Override
+    public void channelActive(final ChannelHandlerContext ctx) throws Exception {
+        this.pending.removeAndWriteAll();
+        ctx.flush();
+        ctx.pipeline().remove(this);
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    public void close(final ChannelHandlerContext ctx, final ChannelPromise promise) throws Exception {
+        failAll(new ClosedChannelException());
+        ctx.close(promise);
+    }
+
+    /**
+     * Fail everything that has been written so far, e.g. because we never
+     * managed to connect.
+     */
+    void failAll(final Throwable cause) {
+        if (!this.pending.isEmpty()) {
+            this.pending.removeAndFailAll(cause);
+        }
+    }
+
+}
@@ -0,0 +1,45 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+/**
+ * A pooled allocator that will hand out direct buffers for I/O, no matter
+ * what Netty thinks of the platform. The native transports (epoll) read
+ * straight into the memory of the buffer and cannot do so with a heap buffer,
+ * but Netty will fall back to heap buffers for I/O if it doesn't trust its
+ * low-level access to direct buffers on this JVM. The decoders then have to
+ * copy every message out of the direct buffer (see {@link ByteBufView}),
+ * which is the price of a native transport.
+ * 
+ * For the JDK's NIO, use the {@link PooledHeapByteBufAllocator} instead.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public final class PooledDirectByteBufAllocator extends PooledByteBufAllocator {
+
+    public static final PooledDirectByteBufAllocator DEFAULT = new PooledDirectByteBufAllocator();
+
+    public PooledDirectByteBufAllocator() {
+        super(true);
+    }
+
+    @Override
+    public ByteBuf ioBuffer() {
+        return directBuffer();
+    }
+
+    @Override
+    public ByteBuf ioBuffer(final int initialCapacity) {
+        return directBuffer(initialCapacity);
+    }
+
+    @Override
+    public ByteBuf ioBuffer(final int initialCapacity, final int maxCapacity) {
+        return directBuffer(initialCapacity, maxCapacity);
+    }
+
+}
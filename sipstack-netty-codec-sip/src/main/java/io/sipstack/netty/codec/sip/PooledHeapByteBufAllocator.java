@@ -0,0 +1,48 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+/**
+ * A pooled allocator that will hand out heap buffers even for I/O. Netty will
+ * by default read from the socket into direct buffers but since the SIP
+ * parser works on byte-arrays, the decoders would then have to copy every
+ * single message into a new byte-array. By reading into pooled heap buffers
+ * the decoders can instead hand out views straight into the pooled array (see
+ * {@link ByteBufView}) and the buffer goes back to the pool when the
+ * {@link SipMessageEvent} is released.
+ * 
+ * Configure it on the channel through the
+ * {@link io.netty.channel.ChannelOption#ALLOCATOR} option. It is for the
+ * JDK's NIO only, the native transports cannot read into a heap buffer, see
+ * {@link PooledDirectByteBufAllocator}.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public final class PooledHeapByteBufAllocator extends PooledByteBufAllocator {
+
+    public static final PooledHeapByteBufAllocator DEFAULT = new PooledHeapByteBufAllocator();
+
+    public PooledHeapByteBufAllocator() {
+        super(false);
+    }
+
+    @Override
+    public ByteBuf ioBuffer() {
+        return heapBuffer();
+    }
+
+    @Override
+    public ByteBuf ioBuffer(final int initialCapacity) {
+        return heapBuffer(initialCapacity);
+    }
+
+    @Override
+    public ByteBuf ioBuffer(final int initialCapacity, final int maxCapacity) {
+        return heapBuffer(initialCapacity, maxCapacity);
+    }
+
+}
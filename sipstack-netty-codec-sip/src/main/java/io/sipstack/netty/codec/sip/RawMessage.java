@@ -3,14 +3,51 @@
  */
 package io.sipstack.netty.codec.sip;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufProcessor;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.util.Recycler;
+import io.netty.util.Recycler.Handle;
 import io.pkts.buffer.Buffer;
-import io.pkts.buffer.Buffers;
+import io.pkts.packet.sip.SipMessage;
+import io.pkts.packet.sip.impl.SipInitialLine;
+import io.pkts.packet.sip.impl.SipRequestImpl;
+import io.pkts.packet.sip.impl.SipRequestLine;
+import io.pkts.packet.sip.impl.SipResponseImpl;
+import io.pkts.packet.sip.impl.SipResponseLine;
 
-import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Represents a raw sip message coming off of the network.
  * 
+ * The {@link RawMessage} frames a SIP message directly out of the (cumulated)
+ * {@link ByteBuf} handed to us by Netty. Instead of pushing every single byte
+ * through a state machine we scan the buffer in bulk, looking for the double
+ * CRLF that separates the headers from the body, and then we go back and look
+ * up the Content-Length header among the headers we just found. Once the entire
+ * message is available we will grab a retained slice of the inbound buffer and
+ * the initial line, the headers and the payload are all just views into that
+ * slice, i.e., nothing is copied.
+ * 
+ * Since we have to walk through all the header lines anyway, we record where
+ * each one of them is located as well as pick out a few fields that are
+ * needed for pretty much every message that goes through the stack (see
+ * {@link HeaderIndex}).
+ * 
+ * If the body of the message is larger than the streaming threshold, we will
+ * not wait for the entire message to be available in a single buffer (which
+ * would force the cumulation buffer to grow to the size of the message).
+ * Instead, the headers are sliced off as soon as they are complete and the
+ * body is collected as a chain of slices of whatever buffers it arrives in,
+ * see {@link #getStreamedContent()}.
+ * 
+ * Note that a {@link RawMessage} only keeps track of where in the buffer the
+ * message is located and does not consume any bytes until the entire message
+ * is available. Therefore, the same buffer must be given to
+ * {@link #frame(ByteBuf)} until the message is complete, which is exactly what
+ * you get from a {@link io.netty.handler.codec.ByteToMessageDecoder}.
+ * 
  * @author jonas@jonasborjesson.com
  */
 public final class RawMessage {
@@ -25,24 +62,93 @@ public final class RawMessage {
 
     public static final byte HTAB = '\t';
 
+    public static final byte COMMA = ',';
+
+    public static final byte SEMI = ';';
+
+    public static final byte EQUALS = '=';
+
+    /**
+     * The long and the compact form of the Content-Length header name.
+     */
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes();
+    private static final byte[] CONTENT_LENGTH_COMPACT = "l".getBytes();
+
+    private static final byte[] CALL_ID = "call-id".getBytes();
+    private static final byte[] CALL_ID_COMPACT = "i".getBytes();
+
+    private static final byte[] VIA = "via".getBytes();
+    private static final byte[] VIA_COMPACT = "v".getBytes();
+
+    private static final byte[] CSEQ = "cseq".getBytes();
+
+    private static final byte[] BRANCH = "branch".getBytes();
+
+    private static final byte[] SIP_VERSION = "sip/".getBytes();
+
+    private static final ByteBufProcessor FIND_COLON = b -> b != COLON;
+
+    private static final ByteBufProcessor FIND_SP = b -> b != SP;
+
+    /**
+     * {@link RawMessage}s are pooled per thread so that a decoder only needs
+     * to hold on to one while it actually is in the middle of framing a
+     * message. See {@link #newInstance(int, int, int)}.
+     */
+    private static final Recycler<RawMessage> RECYCLER = new Recycler<RawMessage>() {
+        @Override
+        protected RawMessage newObject(final Handle<RawMessage> handle) {
+            return new RawMessage(handle);
+        }
+    };
+
+    private final Handle<RawMessage> handle;
+
+    /**
+     * The maximum allowed size of the initial line.
+     */
+    private int maxAllowedInitialLineSize;
+
+    /**
+     * The maximum allowed size of all the headers combined.
+     */
+    private int maxAllowedHeaderSize;
+
+    /**
+     * The maximum allowed content length.
+     */
+    private int maxAllowedContentLength;
+
     /**
-     * Every SIP message has an initial line, which is either a request line or
-     * a response line. We don't care which but this is that one line...
+     * Bodies larger than this are streamed.
      */
-    private final byte[] initialLine;
-    private int initalLineIndex = 0;
+    private int streamingThreshold;
 
     /**
-     * All the headers from the SIP message will be stored in this buffer.
+     * Searches for the double CRLF separating the headers from the payload and
+     * remembers where the first CRLF (the end of the initial line) was found.
+     * It keeps its state between invocations so if only parts of the headers
+     * have been received, we will pick up where we left off once more data
+     * arrives.
      */
-    private final byte[] headers;
-    private int headersIndex = 0;
+    private final DoubleCRLFFinder finder = new DoubleCRLFFinder();
 
     /**
-     * The payload of the SIP message.
+     * The number of bytes of the current message (counted from the reader
+     * index of the buffer) that we already have scanned for the double CRLF.
      */
-    private byte[] payload;
-    private int payloadIndex = 0;
+    private int scanned = 0;
+
+    /**
+     * The length of the initial line, excluding the CRLF.
+     */
+    private int initialLineLength = -1;
+
+    /**
+     * The offset (relative to the start of the message) of the double CRLF
+     * separating the headers from the payload.
+     */
+    private int headersEnd = -1;
 
     /**
      * The content length as stated in the SIP message itself. For
@@ -56,23 +162,45 @@ public final class RawMessage {
     private int contentLength = -1;
 
     /**
-     * The maximum allowed content length.
+     * Once the entire message has been framed, this is a view of the retained
+     * slice of the inbound buffer that contains the message.
+     */
+    private ByteBufView frame;
+
+    /**
+     * The offsets (relative to the start of the message) of all the headers
+     * found so far, see {@link HeaderIndex#SLOTS_PER_HEADER}. Grows as needed
+     * and since {@link RawMessage}s are pooled, we will rarely have to.
      */
-    private final int maxAllowedContentLength;
+    private int[] headers = new int[HeaderIndex.SLOTS_PER_HEADER * 16];
 
-    private Byte lastByte = -1;
+    private int headerCount;
+
+    /**
+     * The offsets of the fast fields, see {@link HeaderIndex}.
+     */
+    private final int[] fields = new int[HeaderIndex.FIELDS];
 
-    private boolean crlf = false;
+    private long cseqNumber = -1;
 
-    private State state = State.INIT;
+    /**
+     * Whether the message is framed out of a datagram, in which case a
+     * missing Content-Length header means that the rest of the datagram is
+     * the payload.
+     */
+    private boolean datagram;
 
-    private boolean done = false;
+    /**
+     * The body of the message, if it is being streamed.
+     */
+    private CompositeByteBuf content;
 
     /**
-     * Used for detecting the content-length header
+     * The number of bytes of the streamed body we are still waiting for.
      */
-    private final Buffer contentLengthBuffer = Buffers.wrap("Content-Length");
-    int contentLengthIndex = 1; // because we will trigger on 'C'
+    private int remaining;
+
+    private State state = State.INIT;
 
     public enum State {
         /**
@@ -80,41 +208,34 @@ public final class RawMessage {
          * for stream based protocols according to RFC 3261.
          */
         INIT,
-        /**
-         * While in this state, we will consume the initial line in the SIP
-         * message. We will not verify it is correct that is up to later stages
-         * of the processing.
-         */
-        GET_INITIAL_LINE,
 
         /**
-         * Consume all headers. Apart from the Content-Length header we will in
-         * this state just seek to find the double CRLF indicating the
-         * separation between headers and potentially a body. The headers are
-         * merely just framed at this stage.
+         * While in this state, we are looking for the double CRLF that
+         * separates the initial line and the headers from the payload. Once
+         * found, we will look up the Content-Length header among the headers
+         * we just framed. The headers are merely just framed at this stage.
          */
         GET_HEADERS,
 
         /**
          * Once we have found the separator between the headers and the payload
-         * we will just blindly a byte at a time until we have read the entire
-         * payload. The length of the payload was discovered during the
-         * GET_HEADERS phase where we were not only just consuming all headers
-         * but we were looking for the Content-Length header as well.
+         * we simply wait until the entire payload is available in the buffer.
+         * The length of the payload was discovered when we left the
+         * GET_HEADERS state.
          */
         GET_PAYLOAD,
 
         /**
-         * Whenever we encounter something that potentially could be the start
-         * of the Content-Length header we will enter this state. While in this
-         * state, we will see if the next byte is the next expected byte in the
-         * token "Content-Length" (for the long version of the header name). If
-         * the next byte isn't what we expect, such in the case of e.g. Call-ID
-         * where we would bail on 'a' or Content-Type where we would eventually
-         * bail on the 'T', then we would once again move over to the state
-         * {@link #GET_HEADERS}.
+         * The payload is too large to wait for so it is consumed as it comes
+         * in. The headers have already been sliced off of the buffer at this
+         * point.
+         */
+        STREAM_PAYLOAD,
+
+        /**
+         * The entire message has been framed.
          */
-        IS_CONTENT_LENGTH_HEADER, CONSUME_COLON, CONSUME_LWS, EXPECT_COLON, CONSUME_DIGIT;
+        DONE;
     }
 
     /**
@@ -131,102 +252,468 @@ public final class RawMessage {
      */
     public RawMessage(final int maxAllowedInitialLineSize, final int maxAllowedHeaderSize,
             final int maxAllowedContentLength) {
-        this.initialLine = new byte[maxAllowedInitialLineSize];
-        this.headers = new byte[maxAllowedHeaderSize];
+        this.handle = null;
+        Arrays.fill(this.fields, -1);
+        init(maxAllowedInitialLineSize, maxAllowedHeaderSize, maxAllowedContentLength, Integer.MAX_VALUE);
+    }
+
+    private RawMessage(final Handle<RawMessage> handle) {
+        this.handle = handle;
+        Arrays.fill(this.fields, -1);
+    }
+
+    /**
+     * Get a {@link RawMessage} from the pool of the current thread. Once you
+     * are done with it, hand it back through {@link #recycle()}.
+     * 
+     * @param maxAllowedInitialLineSize
+     *            the maximum allowed size (in bytes) of the initial line.
+     * @param maxAllowedHeaderSize
+     *            the maximum allowed size (in bytes) of all the headers
+     *            combined.
+     * @param maxAllowedContentLength
+     *            the maximum allowed size (in bytes) of the payload of the
+     *            message.
+     * @return
+     */
+    public static RawMessage newInstance(final int maxAllowedInitialLineSize, final int maxAllowedHeaderSize,
+            final int maxAllowedContentLength) {
+        final RawMessage message = RECYCLER.get();
+        message.init(maxAllowedInitialLineSize, maxAllowedHeaderSize, maxAllowedContentLength, Integer.MAX_VALUE);
+        return message;
+    }
+
+    /**
+     * Get a {@link RawMessage} from the pool of the current thread, using the
+     * limits of the given configuration.
+     * 
+     * @param config
+     * @return
+     */
+    public static RawMessage newInstance(final DecoderConfiguration config) {
+        final RawMessage message = RECYCLER.get();
+        message.init(config.getMaxInitialLineSize(), config.getMaxHeadersSize(), config.getMaxContentLength(),
+                config.getStreamingThreshold());
+        return message;
+    }
+
+    private void init(final int maxAllowedInitialLineSize, final int maxAllowedHeaderSize,
+            final int maxAllowedContentLength, final int streamingThreshold) {
+        this.maxAllowedInitialLineSize = maxAllowedInitialLineSize;
+        this.maxAllowedHeaderSize = maxAllowedHeaderSize;
         this.maxAllowedContentLength = maxAllowedContentLength;
+        this.streamingThreshold = streamingThreshold;
     }
 
-    private boolean isCRLF(final byte b) {
-        if (this.lastByte == CR && b == LF) {
-            this.crlf = true;
-            return true;
+    /**
+     * Reset this {@link RawMessage} so that it can be used for framing the
+     * next message. Note that the frame of the current message is not
+     * released since it belongs to whoever got it through
+     * {@link #getFrame()}, unless the message still is incomplete, in which
+     * case nobody else can have gotten hold of it.
+     */
+    public void reset() {
+        if (this.state != State.DONE) {
+            if (this.frame != null) {
+                this.frame.getByteBuf().release();
+            }
+            if (this.content != null) {
+                this.content.release();
+            }
         }
-        return false;
-    }
 
-    private boolean doubleCRLF(final byte b) {
-        return this.crlf && isCRLF(b);
+        this.finder.reset();
+        this.scanned = 0;
+        this.initialLineLength = -1;
+        this.headersEnd = -1;
+        this.contentLength = -1;
+        this.frame = null;
+        this.headerCount = 0;
+        Arrays.fill(this.fields, -1);
+        this.cseqNumber = -1;
+        this.datagram = false;
+        this.content = null;
+        this.remaining = 0;
+        this.state = State.INIT;
     }
 
-    public void write(final byte b) throws MaxMessageSizeExceededException, IOException {
+    /**
+     * Reset this {@link RawMessage} and hand it back to the pool it came
+     * from (if any).
+     */
+    public void recycle() {
+        reset();
+        if (this.handle != null) {
+            this.handle.recycle(this);
+        }
+    }
 
+    /**
+     * Try to frame a SIP message out of the buffer. Any leading CRLFs will be
+     * consumed but other than that, nothing will be read from the buffer until
+     * the entire message is available at which point the reader index of the
+     * buffer is moved past the message. The exception being a message with a
+     * body that is large enough to be streamed, in which case the headers, and
+     * then the body, are read as they become available.
+     * 
+     * @param buffer
+     *            the buffer to frame the message out of.
+     * @return true if the message is complete, false if we need more data.
+     * @throws MaxMessageSizeExceededException
+     *             in case any of the sections of the SIP message exceed their
+     *             maximum allowed size.
+     */
+    public boolean frame(final ByteBuf buffer) throws MaxMessageSizeExceededException {
         if (this.state == State.INIT) {
-            if (b == CR || isCRLF(b)) {
-                // ignore
-            } else {
-                this.state = State.GET_INITIAL_LINE;
-                this.crlf = false;
-                writeToInitialLine(b);
+            final int index = buffer.forEachByte(ByteBufProcessor.FIND_NON_CRLF);
+            if (index == -1) {
+                buffer.skipBytes(buffer.readableBytes());
+                return false;
             }
-        } else if (this.state == State.GET_INITIAL_LINE) {
-            if (isCRLF(b)) {
-                this.state = State.GET_HEADERS;
-            } else if (b == CR) {
-                this.crlf = false;
-                // ignore
-            } else {
-                this.crlf = false;
-                writeToInitialLine(b);
+            buffer.readerIndex(index);
+            this.state = State.GET_HEADERS;
+        }
+
+        if (this.state == State.GET_HEADERS) {
+            final int start = buffer.readerIndex();
+            final int readable = buffer.readableBytes();
+            final int index = buffer.forEachByte(start + this.scanned, readable - this.scanned, this.finder);
+            if (index == -1) {
+                this.scanned = readable;
+                checkHeaderLimits(this.scanned);
+                return false;
             }
-        } else if (this.state == State.GET_HEADERS) {
-            writeToHeaders(b);
-            if (doubleCRLF(b)) {
-                if (getContentLength() > 0) {
-                    this.state = State.GET_PAYLOAD;
-                } else {
-                    this.state = State.GET_PAYLOAD;
-                    this.done = true;
-                }
-            } else if (isCRLF(b)) {
-                // ignore
-            } else if (b == CR) {
-                // ignore
-            } else if (b == 'C') {
-                this.state = State.IS_CONTENT_LENGTH_HEADER;
+
+            this.scanned = index - start + 1;
+            this.headersEnd = this.scanned - 4;
+            this.initialLineLength = this.finder.getInitialLineLength();
+            checkHeaderLimits(this.headersEnd);
+            final int contentLength = indexHeaders(buffer, start);
+            if (contentLength == -1) {
+                setContentLength(this.datagram ? readable - this.scanned : 0);
             } else {
-                this.crlf = false;
+                setContentLength(contentLength);
             }
-        } else if (this.state == State.IS_CONTENT_LENGTH_HEADER) {
-            writeToHeaders(b);
-            if (this.contentLengthBuffer.getByte(this.contentLengthIndex++) != b) {
-                this.contentLengthIndex = 1;
-                this.state = State.GET_HEADERS;
-            } else if (this.contentLengthIndex == this.contentLengthBuffer.capacity()) {
-                this.contentLengthIndex = 1;
-                this.state = State.CONSUME_COLON;
+            this.state = State.GET_PAYLOAD;
+
+            if (!this.datagram && this.contentLength > this.streamingThreshold) {
+                this.frame = new ByteBufView(buffer.readSlice(this.headersEnd + 4).retain());
+                this.content = buffer.alloc().compositeBuffer(Integer.MAX_VALUE);
+                this.remaining = this.contentLength;
+                this.state = State.STREAM_PAYLOAD;
             }
-        } else if (this.state == State.CONSUME_COLON) {
-            writeToHeaders(b);
-            if (b == SP || b == HTAB) {
-                // consume
-            } else if (b == COLON) {
-                this.state = State.CONSUME_DIGIT;
-            } else {
-                throw new RuntimeException("Expected HCOLON got " + Character.toString((char) b));
+        }
+
+        if (this.state == State.STREAM_PAYLOAD) {
+            final int length = Math.min(this.remaining, buffer.readableBytes());
+            if (length > 0) {
+                this.content.addComponent(buffer.readSlice(length).retain());
+                this.content.writerIndex(this.content.writerIndex() + length);
+                this.remaining -= length;
+            }
+
+            if (this.remaining > 0) {
+                return false;
             }
-        } else if (this.state == State.CONSUME_DIGIT) {
-            writeToHeaders(b);
-            if (this.contentLength == -1 && (b == SP || b == HTAB)) {
-                // consume
-            } else if (isDigit(b)) {
-                if (this.contentLength == -1) {
-                    this.contentLength = 0;
+            this.state = State.DONE;
+        }
+
+        if (this.state == State.GET_PAYLOAD) {
+            final int length = this.headersEnd + 4 + this.contentLength;
+            if (buffer.readableBytes() < length) {
+                return false;
+            }
+
+            this.frame = new ByteBufView(buffer.readSlice(length).retain());
+            this.state = State.DONE;
+        }
+
+        return this.state == State.DONE;
+    }
+
+    /**
+     * Frame a SIP message out of a datagram. The entire message must be
+     * present in the buffer and unlike {@link #frame(ByteBuf)}, a missing
+     * Content-Length header means that whatever follows the headers is the
+     * payload (see section 18.3 in RFC 3261). Anything beyond the stated
+     * Content-Length is ignored.
+     * 
+     * A datagram without a body may also lack the empty line that ends the
+     * headers, in which case the end of the datagram is the end of the
+     * headers. Since the frame (and anything forwarding it) expects the empty
+     * line to be there, such a datagram is copied into a buffer of its own
+     * with the missing CRLFs added, which is the only time a datagram is
+     * copied.
+     * 
+     * @param buffer
+     * @return true if the message could be framed, false if the datagram is
+     *         truncated (or simply isn't a SIP message).
+     * @throws MaxMessageSizeExceededException
+     */
+    public boolean frameDatagram(final ByteBuf buffer) throws MaxMessageSizeExceededException {
+        this.datagram = true;
+        if (frame(buffer) || this.state != State.GET_HEADERS || this.finder.getInitialLineLength() == -1) {
+            return this.state == State.DONE;
+        }
+
+        final ByteBuf terminated = terminate(buffer);
+        reset();
+        this.datagram = true;
+        try {
+            return frame(terminated);
+        } finally {
+            terminated.release();
+        }
+    }
+
+    /**
+     * Copy the datagram and end it with the empty line that it lacks.
+     */
+    private static ByteBuf terminate(final ByteBuf buffer) {
+        final int readable = buffer.readableBytes();
+        final int end = buffer.writerIndex();
+        final boolean crlf = readable >= 2 && buffer.getByte(end - 2) == CR && buffer.getByte(end - 1) == LF;
+        final ByteBuf terminated = buffer.alloc().heapBuffer(readable + 4);
+        terminated.writeBytes(buffer, buffer.readerIndex(), readable);
+        if (!crlf) {
+            terminated.writeByte(CR).writeByte(LF);
+        }
+        return terminated.writeByte(CR).writeByte(LF);
+    }
+
+    private void checkHeaderLimits(final int length) throws MaxMessageSizeExceededException {
+        final int initialLine = this.finder.getInitialLineLength();
+        if (initialLine == -1 && length > this.maxAllowedInitialLineSize
+                || initialLine > this.maxAllowedInitialLineSize) {
+            throw new MaxMessageSizeExceededException("Maximum initial line exceeded");
+        }
+
+        if (initialLine != -1 && length - initialLine - 2 > this.maxAllowedHeaderSize) {
+            throw new MaxMessageSizeExceededException("Maximum allowed header size exceeded");
+        }
+    }
+
+    /**
+     * Walk through the headers, one line at a time, and record where each
+     * header is located. While at it, look for the Content-Length header (long
+     * or compact form) as well as the fast fields of the {@link HeaderIndex}.
+     * 
+     * @param buffer
+     * @param start
+     *            the index in the buffer where the message starts.
+     * @return the content length or -1 (negative one) if there was no
+     *         Content-Length header.
+     */
+    private int indexHeaders(final ByteBuf buffer, final int start) {
+        int contentLength = -1;
+        boolean topVia = true;
+        final int end = start + this.headersEnd;
+        int lineStart = start + this.initialLineLength + 2;
+        while (lineStart < end) {
+            int lineEnd = buffer.forEachByte(lineStart, end - lineStart, ByteBufProcessor.FIND_CRLF);
+            if (lineEnd == -1) {
+                lineEnd = end;
+            }
+
+            if (isWhitespace(buffer.getByte(lineStart))) {
+                // a folded line, which is a continuation of the previous header
+                if (this.headerCount > 0) {
+                    this.headers[this.headerCount * HeaderIndex.SLOTS_PER_HEADER - 1] = lineEnd - start;
                 }
-                this.contentLength = this.contentLength * 10 + b - 48;
-            } else {
-                setContentLength(this.contentLength);
-                this.state = State.GET_HEADERS;
+                lineStart = lineEnd + 2;
+                continue;
             }
-        } else if (this.state == State.GET_PAYLOAD) {
-            writeToPayload(b);
-            if (payloadCompleted()) {
-                this.done = true;
+
+            final int colon = buffer.forEachByte(lineStart, lineEnd - lineStart, FIND_COLON);
+            if (colon != -1) {
+                final int nameEnd = trimEnd(buffer, lineStart, colon);
+                final int valueStart = skipWhitespace(buffer, colon + 1, lineEnd);
+                final int valueEnd = trimEnd(buffer, valueStart, lineEnd);
+                addHeader(lineStart - start, nameEnd - start, valueStart - start, valueEnd - start);
+
+                if (contentLength == -1
+                        && isHeader(buffer, lineStart, nameEnd, CONTENT_LENGTH, CONTENT_LENGTH_COMPACT)) {
+                    contentLength = parseContentLength(buffer, valueStart, lineEnd);
+                } else if (this.fields[HeaderIndex.CALL_ID] == -1
+                        && isHeader(buffer, lineStart, nameEnd, CALL_ID, CALL_ID_COMPACT)) {
+                    setField(HeaderIndex.CALL_ID, valueStart - start, valueEnd - start);
+                } else if (topVia && isHeader(buffer, lineStart, nameEnd, VIA, VIA_COMPACT)) {
+                    topVia = false;
+                    findViaBranch(buffer, start, valueStart, lineEnd);
+                } else if (this.cseqNumber == -1 && isHeader(buffer, lineStart, nameEnd, CSEQ, null)) {
+                    parseCSeq(buffer, start, valueStart, lineEnd);
+                }
             }
-        } else {
-            throw new RuntimeException("Unknown state " + this.state);
+            lineStart = lineEnd + 2;
+        }
+
+        if (!isResponseLine(buffer, start)) {
+            final int sp = buffer.forEachByte(start, this.initialLineLength, FIND_SP);
+            if (sp != -1) {
+                setField(HeaderIndex.METHOD, 0, sp - start);
+            }
+        } else if (this.fields[HeaderIndex.CSEQ_METHOD] != -1) {
+            setField(HeaderIndex.METHOD, this.fields[HeaderIndex.CSEQ_METHOD],
+                    this.fields[HeaderIndex.CSEQ_METHOD + 1]);
+        }
+
+        return contentLength;
+    }
+
+    private void addHeader(final int nameStart, final int nameEnd, final int valueStart, final int valueEnd) {
+        final int slot = this.headerCount * HeaderIndex.SLOTS_PER_HEADER;
+        if (slot == this.headers.length) {
+            this.headers = Arrays.copyOf(this.headers, this.headers.length * 2);
+        }
+        this.headers[slot] = nameStart;
+        this.headers[slot + 1] = nameEnd;
+        this.headers[slot + 2] = valueStart;
+        this.headers[slot + 3] = valueEnd;
+        ++this.headerCount;
+    }
+
+    private void setField(final int field, final int start, final int stop) {
+        this.fields[field] = start;
+        this.fields[field + 1] = stop;
+    }
+
+    /**
+     * Find the branch parameter of the first Via within the header value. A
+     * Via header may contain several comma separated values but only the
+     * top-most one is of interest.
+     */
+    private void findViaBranch(final ByteBuf buffer, final int start, final int valueStart, final int lineEnd) {
+        int i = valueStart;
+        while (i < lineEnd) {
+            final byte b = buffer.getByte(i++);
+            if (b == COMMA) {
+                return;
+            }
+
+            if (b != SEMI) {
+                continue;
+            }
+
+            i = skipWhitespace(buffer, i, lineEnd);
+            if (!startsWith(buffer, i, lineEnd, BRANCH)) {
+                continue;
+            }
+
+            i = skipWhitespace(buffer, i + BRANCH.length, lineEnd);
+            if (i == lineEnd || buffer.getByte(i) != EQUALS) {
+                continue;
+            }
+
+            final int branchStart = skipWhitespace(buffer, i + 1, lineEnd);
+            int branchEnd = branchStart;
+            while (branchEnd < lineEnd && !isParameterEnd(buffer.getByte(branchEnd))) {
+                ++branchEnd;
+            }
+            setField(HeaderIndex.VIA_BRANCH, branchStart - start, branchEnd - start);
+            return;
+        }
+    }
+
+    /**
+     * Parse the CSeq header, which is the sequence number followed by the
+     * method.
+     */
+    private void parseCSeq(final ByteBuf buffer, final int start, final int valueStart, final int lineEnd) {
+        long number = 0;
+        int i = valueStart;
+        while (i < lineEnd && number <= Integer.MAX_VALUE) {
+            final byte b = buffer.getByte(i);
+            if (!isDigit(b)) {
+                break;
+            }
+            number = number * 10 + b - 48;
+            ++i;
+        }
+
+        if (i == valueStart) {
+            return;
+        }
+
+        this.cseqNumber = number;
+        final int methodStart = skipWhitespace(buffer, i, lineEnd);
+        int methodEnd = methodStart;
+        while (methodEnd < lineEnd && !isWhitespace(buffer.getByte(methodEnd))) {
+            ++methodEnd;
+        }
+
+        if (methodEnd > methodStart) {
+            setField(HeaderIndex.CSEQ_METHOD, methodStart - start, methodEnd - start);
         }
+    }
 
-        this.lastByte = b;
+    /**
+     * Check whether the header name (which must not contain any trailing
+     * white space) matches either the long or the compact form of the given
+     * header (case insensitive).
+     */
+    private static boolean isHeader(final ByteBuf buffer, final int nameStart, final int nameEnd,
+            final byte[] name, final byte[] compact) {
+        final int length = nameEnd - nameStart;
+        if (length == name.length) {
+            return startsWith(buffer, nameStart, nameEnd, name);
+        }
+        return compact != null && length == compact.length && startsWith(buffer, nameStart, nameEnd, compact);
+    }
+
+    /**
+     * Check whether the bytes starting at the given index matches the given
+     * (lower case) bytes, ignoring case.
+     */
+    private static boolean startsWith(final ByteBuf buffer, final int index, final int end, final byte[] bytes) {
+        if (end - index < bytes.length) {
+            return false;
+        }
+
+        for (int i = 0; i < bytes.length; ++i) {
+            if ((buffer.getByte(index + i) | 0x20) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isResponseLine(final ByteBuf buffer, final int start) {
+        return startsWith(buffer, start, start + this.initialLineLength, SIP_VERSION);
+    }
+
+    private static int skipWhitespace(final ByteBuf buffer, int index, final int end) {
+        while (index < end && isWhitespace(buffer.getByte(index))) {
+            ++index;
+        }
+        return index;
+    }
+
+    private static int trimEnd(final ByteBuf buffer, final int start, int end) {
+        while (end > start && isWhitespace(buffer.getByte(end - 1))) {
+            --end;
+        }
+        return end;
+    }
+
+    private static boolean isParameterEnd(final byte b) {
+        return b == SEMI || b == COMMA || isWhitespace(b);
+    }
+
+    private static int parseContentLength(final ByteBuf buffer, final int start, final int end) {
+        long contentLength = 0;
+        for (int i = start; i < end && contentLength <= Integer.MAX_VALUE; ++i) {
+            final byte b = buffer.getByte(i);
+            if (isDigit(b)) {
+                contentLength = contentLength * 10 + b - 48;
+            } else if (!isWhitespace(b)) {
+                break;
+            }
+        }
+        return (int) Math.min(contentLength, Integer.MAX_VALUE);
+    }
+
+    private static boolean isWhitespace(final byte b) {
+        return b == SP || b == HTAB;
     }
 
     public static boolean isDigit(final char ch) {
@@ -238,7 +725,7 @@ public final class RawMessage {
     }
 
     public boolean isComplete() {
-        return this.done;
+        return this.state == State.DONE;
     }
 
     /**
@@ -247,26 +734,7 @@ public final class RawMessage {
      * @return
      */
     public Buffer getInitialLine() {
-        return Buffers.wrap(this.initialLine, 0, this.initalLineIndex);
-    }
-
-    /**
-     * Write a byte to the initial line. if the operation succeeds, true will be
-     * returned but if we hit the maximum allocated length of the initial line,
-     * then we will return false. The reason for this upper boundary is that you
-     * don't want an attacker to have you look for the initial line forever so
-     * once we hit our maximum allowed size of the initial line we will give up
-     * and the connection should be dropped.
-     * 
-     * @param b
-     * @return
-     */
-    public void writeToInitialLine(final byte b) throws MaxMessageSizeExceededException {
-        try {
-            this.initialLine[this.initalLineIndex++] = b;
-        } catch (final IndexOutOfBoundsException e) {
-            throw new MaxMessageSizeExceededException("Maximum initial line exceeded");
-        }
+        return wrap(0, this.initialLineLength);
     }
 
     /**
@@ -275,73 +743,80 @@ public final class RawMessage {
      * @return
      */
     public Buffer getHeaders() {
-        return Buffers.wrap(this.headers, 0, this.headersIndex);
+        final int start = this.initialLineLength + 2;
+        return wrap(start, Math.max(start, this.headersEnd));
     }
 
     /**
-     * Write a byte to the header section of this raw message.
+     * Get the payload of this raw message.
      * 
-     * @param b
-     *            the byte to write
-     * @return true if there were still space in the header section, false
-     *         otherwise
+     * @return the payload or null if there is no payload or if the payload
+     *         was streamed.
      */
-    public void writeToHeaders(final byte b) throws MaxMessageSizeExceededException {
-        try {
-            this.headers[this.headersIndex++] = b;
-        } catch (final IndexOutOfBoundsException e) {
-            throw new MaxMessageSizeExceededException("Maximum allowed header size exceeded");
+    public Buffer getPayload() {
+        if (this.contentLength <= 0 || this.content != null) {
+            return null;
         }
+        final int start = this.headersEnd + 4;
+        return wrap(start, start + this.contentLength);
     }
 
     /**
-     * Get the payload of this raw message.
+     * Get the framed message as a slice of the inbound buffer. The returned
+     * {@link ByteBuf} is retained and it is up to the caller to release it
+     * once the message no longer is in use.
      * 
-     * @return the payload or null if there is no payload.
+     * @return
      */
-    public Buffer getPayload() {
-        if (this.payloadIndex == 0) {
-            return null;
-        }
-        return Buffers.wrap(this.payload);
+    public ByteBuf getFrame() {
+        return this.frame == null ? null : this.frame.getByteBuf();
     }
 
     /**
-     * Write the next byte to the payload section of this message.
+     * Get the body of the message if it was streamed, in which case it is a
+     * chain of retained slices of the buffers it was read from and it is up
+     * to the caller to release it.
      * 
-     * @param b
-     * @throws MaxMessageSizeExceededException
+     * @return the body or null if it wasn't streamed.
      */
-    public void writeToPayload(final byte b) throws MaxMessageSizeExceededException {
-        try {
-            this.payload[this.payloadIndex++] = b;
-        } catch (final IndexOutOfBoundsException e) {
-            throw new MaxMessageSizeExceededException("Maximum allowed payload size exceeded");
-        }
+    public CompositeByteBuf getStreamedContent() {
+        return this.content;
     }
 
     /**
-     * For stream based protocols there could be another message coming directly
-     * after this one so you just cant read until the {@link ChannelBuffer} runs
-     * out of bytes. Therefore, you must check how much you have read "manually"
-     * and based on that decide whether you are done with processing the payload
-     * of this message or not.
+     * Get the index of the headers of this message. The index is a view of
+     * the frame and as such, it must not be used once the frame has been
+     * released.
      * 
      * @return
      */
-    public int getPayloadWriteIndex() {
-        // return this.payload.getWriterIndex();
-        return this.payloadIndex;
+    public HeaderIndex getHeaderIndex() {
+        return new HeaderIndex(this.frame,
+                Arrays.copyOf(this.headers, this.headerCount * HeaderIndex.SLOTS_PER_HEADER), this.headerCount,
+                this.fields.clone(), this.cseqNumber, this.initialLineLength, this.headersEnd);
     }
 
     /**
-     * Check whether we have read the entire payload.
+     * Turn the framed message into a {@link SipMessage}, which will be a view
+     * of the frame.
      * 
      * @return
      */
-    public boolean payloadCompleted() {
-        return this.payloadIndex == this.contentLength;
-        // return !this.payload.hasWritableBytes();
+    public SipMessage toSipMessage() {
+        return toSipMessage(getInitialLine(), getHeaders(), getPayload());
+    }
+
+    static SipMessage toSipMessage(final Buffer line, final Buffer headers, final Buffer payload) {
+        final SipInitialLine initialLine = SipInitialLine.parse(line);
+        if (initialLine.isRequestLine()) {
+            return new SipRequestImpl((SipRequestLine) initialLine, headers, payload);
+        } else {
+            return new SipResponseImpl((SipResponseLine) initialLine, headers, payload);
+        }
+    }
+
+    private Buffer wrap(final int start, final int stop) {
+        return this.frame.wrap(start, stop);
     }
 
     /**
@@ -372,16 +847,55 @@ public final class RawMessage {
             throw new MaxMessageSizeExceededException("Content length exceeds the maximum allowed length");
         }
         this.contentLength = contentLength;
-        this.payload = new byte[contentLength];
     }
 
     @Override
     public String toString() {
-        final StringBuilder sb = new StringBuilder();
-        sb.append(this.initialLine.toString());
-        sb.append(this.headers.toString());
-        sb.append(this.payload.toString());
-        return sb.toString();
+        if (this.frame == null) {
+            return "";
+        }
+        return getInitialLine().toString();
+    }
+
+    /**
+     * Scans for the double CRLF and, while at it, remembers the length of the
+     * initial line (the first CRLF we run into).
+     */
+    private static final class DoubleCRLFFinder implements ByteBufProcessor {
+
+        private int count = 0;
+        private int matched = 0;
+        private int initialLineLength = -1;
+
+        @Override
+        public boolean process(final byte value) {
+            ++this.count;
+            if (value == CR) {
+                this.matched = this.matched == 2 ? 3 : 1;
+            } else if (value == LF && (this.matched == 1 || this.matched == 3)) {
+                if (this.initialLineLength == -1) {
+                    this.initialLineLength = this.count - 2;
+                }
+                if (this.matched == 3) {
+                    return false;
+                }
+                this.matched = 2;
+            } else {
+                this.matched = 0;
+            }
+            return true;
+        }
+
+        int getInitialLineLength() {
+            return this.initialLineLength;
+        }
+
+        void reset() {
+            this.count = 0;
+            this.matched = 0;
+            this.initialLineLength = -1;
+        }
+
     }
 
 }
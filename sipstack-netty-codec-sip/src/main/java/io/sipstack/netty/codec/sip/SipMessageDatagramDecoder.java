@@ -4,12 +4,13 @@ import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.socket.DatagramPacket;
 import io.netty.handler.codec.MessageToMessageDecoder;
-import io.pkts.buffer.Buffer;
-import io.pkts.buffer.Buffers;
+import io.netty.util.ReferenceCountUtil;
 import io.pkts.packet.sip.SipMessage;
-import io.pkts.packet.sip.impl.SipParser;
 
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * The {@link SipMessageDatagramDecoder} will frame an incoming UDP packet into
@@ -19,18 +20,83 @@ import java.util.List;
  * {@link SipMessage#verify()}. The philosophy is to simply just frame things as
  * fast as possible and then do lazy parsing as much as possible.
  * 
+ * The framed {@link SipMessage} is a view of the content of the
+ * {@link DatagramPacket} (see {@link ByteBufView}) so if the channel is
+ * configured with a heap based allocator, pooled or not, the datagram is never
+ * copied. The {@link SipMessageEvent} owns the datagram and releases it back
+ * to its pool when the event is released.
+ * 
+ * If the {@link DecoderConfiguration} asks for lazy parsing, the decoder only
+ * frames the datagram and the message is parsed when it is first asked for,
+ * see {@link DefaultSipMessageEvent}.
+ * 
+ * The {@link UdpConnection} of a remote end is kept around for the next
+ * packet from that same remote end. Only the most recently heard from remote
+ * ends are kept (see {@link #MAX_CACHED_CONNECTIONS}) so a flood of packets
+ * from random addresses doesn't grow the cache without bounds.
+ * 
  * @author jonas@jonasborjesson.com
  */
 public final class SipMessageDatagramDecoder extends MessageToMessageDecoder<DatagramPacket> {
 
+    /**
+     * A datagram can't be bigger than this so unless told otherwise, there is
+     * no need for any other limits on the sections of the SIP message.
+     */
+    private static final int MAX_DATAGRAM_SIZE = 65535;
+
+    /**
+     * The maximum number of {@link UdpConnection}s we keep around per channel.
+     */
+    public static final int MAX_CACHED_CONNECTIONS = 4096;
+
     private final Clock clock;
 
+    private final int maxInitialLineSize;
+
+    private final int maxHeadersSize;
+
+    private final int maxContentLength;
+
+    private final boolean lazyParsing;
+
+    /**
+     * The decoder only ever runs on the event loop of its channel so there
+     * is no need for anything fancier than an access ordered map.
+     */
+    private final Map<InetSocketAddress, Connection> connections =
+            new LinkedHashMap<InetSocketAddress, Connection>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<InetSocketAddress, Connection> eldest) {
+                    return size() > MAX_CACHED_CONNECTIONS;
+                }
+            };
+
     public SipMessageDatagramDecoder() {
-        this.clock = new SystemClock();
+        this(new SystemClock());
     }
 
     public SipMessageDatagramDecoder(final Clock clock) {
         this.clock = clock;
+        this.maxInitialLineSize = MAX_DATAGRAM_SIZE;
+        this.maxHeadersSize = MAX_DATAGRAM_SIZE;
+        this.maxContentLength = MAX_DATAGRAM_SIZE;
+        this.lazyParsing = false;
+    }
+
+    /**
+     * 
+     * @param clock
+     * @param config
+     *            the limits to use when framing messages. Since a datagram
+     *            already is in one piece, bodies are never streamed.
+     */
+    public SipMessageDatagramDecoder(final Clock clock, final DecoderConfiguration config) {
+        this.clock = clock;
+        this.maxInitialLineSize = config.getMaxInitialLineSize();
+        this.maxHeadersSize = config.getMaxHeadersSize();
+        this.maxContentLength = config.getMaxContentLength();
+        this.lazyParsing = config.isLazyParsing();
     }
 
     /**
@@ -38,7 +104,9 @@ public final class SipMessageDatagramDecoder extends MessageToMessageDecoder<Dat
      * like TCP. We just assumes that everything is correct and therefore all is
      * needed is to read the first line, which is assumed to be a SIP initial
      * line, then read all headers as one big block and whatever is left better
-     * be the payload (if there is one).
+     * be the payload (if there is one). We still use the same
+     * {@link RawMessage} as for the stream based protocols though since it
+     * builds up the {@link HeaderIndex} while framing the headers.
      * 
      * Of course, things do go wrong. If e.g. the UDP packet is fragmented, then
      * we may end up with a partial SIP message but the user can either decide
@@ -50,6 +118,7 @@ public final class SipMessageDatagramDecoder extends MessageToMessageDecoder<Dat
     protected void decode(final ChannelHandlerContext ctx, final DatagramPacket msg, final List<Object> out)
             throws Exception {
         final long arrivalTime = this.clock.getCurrentTimeMillis();
+        final long arrivalNanoTime = this.clock.getNanoTime();
         final ByteBuf content = msg.content();
 
         // some clients are sending various types of pings even over
@@ -63,26 +132,48 @@ public final class SipMessageDatagramDecoder extends MessageToMessageDecoder<Dat
             return;
         }
 
-        final byte[] b = new byte[content.readableBytes()];
-        content.getBytes(0, b);
-
-        final Buffer buffer = Buffers.wrap(b);
-        SipParser.consumeSWS(buffer);
-        final SipMessage sipMessage = SipParser.frame(buffer);
-        // System.err.println("CSeq header: " + sipMessage.getCSeqHeader());
-
-        // final SipInitialLine initialLine = SipInitialLine.parse(buffer.readLine());
-        // final Buffer headers = buffer.readUntilDoubleCRLF();
-        // SipMessage sipMessage = null;
-        // if (initialLine.isRequestLine()) {
-        // sipMessage = new SipRequestImpl(initialLine.toRequestLine(), headers, buffer);
-        // } else {
-        // sipMessage = new SipResponseImpl(initialLine.toResponseLine(), headers, buffer);
-        // }
-
-        final Connection connection = new UdpConnection(ctx.channel(), msg.sender());
-        final SipMessageEvent event = new DefaultSipMessageEvent(connection, sipMessage, arrivalTime);
+        // the message will be a view of the datagram (if it is heap based)
+        // so the event takes over the ownership of the frame and releases
+        // it once the event itself is released.
+        final RawMessage raw = RawMessage.newInstance(this.maxInitialLineSize, this.maxHeadersSize,
+                this.maxContentLength);
+        final SipMessage sipMessage;
+        final HeaderIndex index;
+        final ByteBuf frame;
+        try {
+            if (!raw.frameDatagram(content)) {
+                // truncated or simply not a SIP message, nothing we can do
+                // about it so just drop it.
+                return;
+            }
+
+            try {
+                sipMessage = this.lazyParsing ? null : raw.toSipMessage();
+            } catch (final RuntimeException e) {
+                ReferenceCountUtil.release(raw.getFrame());
+                throw e;
+            }
+            index = raw.getHeaderIndex();
+            frame = raw.getFrame();
+        } catch (final MaxMessageSizeExceededException e) {
+            // nothing to close for a datagram so just drop it
+            return;
+        } finally {
+            raw.recycle();
+        }
+
+        final SipMessageEvent event = DefaultSipMessageEvent.newInstance(connection(ctx, msg.sender()), sipMessage,
+                arrivalTime, arrivalNanoTime, frame, index, null);
         out.add(event);
     }
 
+    private Connection connection(final ChannelHandlerContext ctx, final InetSocketAddress remote) {
+        Connection connection = this.connections.get(remote);
+        if (connection == null) {
+            connection = new UdpConnection(ctx.channel(), remote);
+            this.connections.put(remote, connection);
+        }
+        return connection;
+    }
+
 }
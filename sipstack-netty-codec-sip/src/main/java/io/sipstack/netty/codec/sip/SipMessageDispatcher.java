@@ -0,0 +1,104 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandler;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.pkts.buffer.Buffer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A UDP listening point is a single channel and as such, everything that
+ * comes in over it is handled by a single event loop, i.e., a single thread,
+ * no matter how many cores the box has. The {@link SipMessageDispatcher} moves
+ * the handling of the {@link SipMessageEvent}s off of the event loop and onto
+ * a group of worker threads, leaving the event loop to do nothing but read
+ * datagrams and frame them. Configure the decoder for lazy parsing (see
+ * {@link DecoderConfiguration.Builder#lazyParsing(boolean)}) and the parsing
+ * of the messages will move to the workers as well.
+ * 
+ * All messages with the same Call-ID are handled by the same worker, in the
+ * order in which they were received, so as far as a single dialog is
+ * concerned, nothing changes. Messages without a Call-ID (which are broken
+ * anyway) all go to the first worker.
+ * 
+ * The dispatcher replaces your handler in the pipeline and invokes it on the
+ * worker, using the context of the dispatcher. Since everything else in the
+ * pipeline still runs on the event loop, the handler must not assume that it
+ * runs on the event loop, which typically isn't an issue since writing to a
+ * channel is thread safe.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+@Sharable
+public final class SipMessageDispatcher extends ChannelInboundHandlerAdapter {
+
+    private final EventExecutor[] workers;
+
+    private final ChannelInboundHandler handler;
+
+    /**
+     * 
+     * @param workers
+     *            the group of worker threads. Each {@link EventExecutor} of the
+     *            group must be single threaded, e.g. a
+     *            {@link io.netty.util.concurrent.DefaultEventExecutorGroup}.
+     * @param handler
+     *            the handler that will handle the events on the workers. Since
+     *            it is shared by all the workers, it must be thread safe.
+     */
+    public SipMessageDispatcher(final EventExecutorGroup workers, final ChannelInboundHandler handler) {
+        final List<EventExecutor> executors = new ArrayList<>();
+        for (final EventExecutor executor : workers) {
+            executors.add(executor);
+        }
+        this.workers = executors.toArray(new EventExecutor[executors.size()]);
+        this.handler = handler;
+    }
+
+    @Override
+    public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+        if (!(msg instanceof SipMessageEvent)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+
+        final SipMessageEvent event = (SipMessageEvent) msg;
+        next(event).execute(() -> dispatch(ctx, event));
+    }
+
+    private void dispatch(final ChannelHandlerContext ctx, final SipMessageEvent event) {
+        try {
+            this.handler.channelRead(ctx, event);
+        } catch (final Throwable t) {
+            try {
+                this.handler.exceptionCaught(ctx, t);
+            } catch (final Throwable ignore) {
+                ctx.fireExceptionCaught(t);
+            }
+        }
+    }
+
+    private EventExecutor next(final SipMessageEvent event) {
+        final int hash = hashCallId(event);
+        return this.workers[(hash & Integer.MAX_VALUE) % this.workers.length];
+    }
+
+    private static int hashCallId(final SipMessageEvent event) {
+        final HeaderIndex index = event.getHeaderIndex();
+        if (index != null) {
+            return index.hashCallId();
+        }
+
+        final Buffer callId = event.getCallId();
+        return callId == null ? 0 : callId.hashCode();
+    }
+
+}
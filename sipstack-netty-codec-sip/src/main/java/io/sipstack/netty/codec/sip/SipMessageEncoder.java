@@ -4,32 +4,107 @@
 package io.sipstack.netty.codec.sip;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.handler.codec.MessageToMessageEncoder;
 import io.pkts.buffer.Buffer;
 import io.pkts.packet.sip.SipMessage;
 import io.pkts.packet.sip.impl.SipParser;
 
-import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
 
 /**
+ * Encodes a {@link SipMessage} into a {@link ByteBuf}. The encoder doesn't
+ * keep any state so a single instance can be shared by all channels.
+ * 
+ * If the encoder is given a {@link CompactForm}, its policy decides whether
+ * the compact form of the headers is used. Otherwise, the {@link CompactForm}
+ * of the channel (if any) is used.
+ * 
  * @author jonas
  *
  */
-public class SipMessageEncoder extends MessageToByteEncoder<SipMessage> {
+@Sharable
+public class SipMessageEncoder extends MessageToMessageEncoder<SipMessage> {
+
+    /**
+     * The CRLF that is written after every message. It cannot be released so
+     * the very same bytes are shared by every message we ever write.
+     */
+    private static final ByteBuf CRLF = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(new byte[] {
+            SipParser.CR, SipParser.LF }));
+
+    private final CompactForm compactForm;
+
+    public SipMessageEncoder() {
+        this(null);
+    }
+
+    /**
+     * 
+     * @param compactForm
+     *            the {@link CompactForm} deciding whether to use the compact
+     *            form of the headers. If null, the one of the channel is used.
+     */
+    public SipMessageEncoder(final CompactForm compactForm) {
+        this.compactForm = compactForm;
+    }
 
     @Override
-    protected void encode(final ChannelHandlerContext ctx, final SipMessage msg, final ByteBuf out) {
-        try {
-            final Buffer b = msg.toBuffer();
-            for (int i = 0; i < b.getReadableBytes(); ++i) {
-                out.writeByte(b.getByte(i));
-            }
-            out.writeByte(SipParser.CR);
-            out.writeByte(SipParser.LF);
-        } catch (final IOException e) {
-            e.printStackTrace();
+    protected void encode(final ChannelHandlerContext ctx, final SipMessage msg, final List<Object> out) {
+        final ByteBuf buffer = toByteBuf(msg);
+        final CompactForm compactForm = getCompactForm(ctx);
+        out.add(compactForm != null && useCompactForm(ctx, compactForm) ? compactForm.encode(buffer) : buffer);
+    }
+
+    private CompactForm getCompactForm(final ChannelHandlerContext ctx) {
+        if (this.compactForm != null) {
+            return this.compactForm;
+        }
+        return ctx.channel().attr(CompactForm.KEY).get();
+    }
+
+    private static boolean useCompactForm(final ChannelHandlerContext ctx, final CompactForm compactForm) {
+        final SocketAddress remote = ctx.channel().remoteAddress();
+        return compactForm.useCompactForm(remote instanceof InetSocketAddress ? (InetSocketAddress) remote : null);
+    }
+
+    /**
+     * Convert the {@link SipMessage} into a {@link ByteBuf} without pushing
+     * it through Netty one byte at a time. The bytes of the message are
+     * wrapped as is and the CRLF is appended as a shared component of a
+     * {@link io.netty.buffer.CompositeByteBuf}, i.e., the CRLF is never
+     * copied and the bytes of the message only if they have to be, see
+     * {@link #wrap(Buffer)}.
+     * 
+     * @param msg
+     *            the {@link SipMessage} to convert.
+     * @return the resulting {@link ByteBuf}
+     */
+    public static ByteBuf toByteBuf(final SipMessage msg) {
+        return Unpooled.wrappedBuffer(wrap(msg.toBuffer()), CRLF.duplicate());
+    }
+
+    /**
+     * Wrap the readable bytes of the buffer of an encoded message. If
+     * {@link Buffer#getArray()} hands out an array of just the readable bytes
+     * (which it does for a freshly encoded message), that array is wrapped as
+     * is. Otherwise there is no telling where within the array the readable
+     * bytes are (the buffer may be a view of a section of a larger array and
+     * its indexes are relative to that section) so they are copied.
+     */
+    private static ByteBuf wrap(final Buffer buffer) {
+        final int length = buffer.getReadableBytes();
+        final byte[] array = buffer.getArray();
+        if (array.length == length) {
+            return Unpooled.wrappedBuffer(array);
         }
+        final ByteBuf copy = Unpooled.buffer(length);
+        ForwardedMessage.write(buffer, copy);
+        return copy;
     }
 
 }
@@ -3,7 +3,10 @@
  */
 package io.sipstack.netty.codec.sip;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelPipeline;
+import io.netty.util.ReferenceCounted;
+import io.pkts.buffer.Buffer;
 import io.pkts.packet.sip.SipMessage;
 
 /**
@@ -14,9 +17,25 @@ import io.pkts.packet.sip.SipMessage;
  * differently in Netty 3) as well as to provide a time stamp for when the
  * message was received on the socket (or rather when it was framed)
  * 
+ * The {@link SipMessage} is typically a view of the buffer it was read from
+ * and that buffer belongs to the event. Therefore the event is
+ * {@link ReferenceCounted} and once it is released, so is the buffer and it may
+ * be handed back to its pool, at which point the {@link SipMessage} (and any
+ * headers you got out of it) must no longer be used. Netty will release the
+ * event for you once your {@link io.netty.channel.SimpleChannelInboundHandler}
+ * is done with it so if you need to keep it around for longer, you must
+ * {@link #retain()} it (or clone the parts you are interested in).
+ * 
+ * The fields needed for routing and transaction matching (Call-ID, the branch
+ * of the top-most Via, CSeq and method) are available straight off of the
+ * event. When the message was framed off of the network they were picked out
+ * already while framing (see {@link HeaderIndex}) so asking for them will not
+ * cause the {@link SipMessage} to parse its headers. The same rules apply to
+ * them though, they are views of the buffer the message was read from.
+ * 
  * @author jonas@jonasborjesson.com
  */
-public interface SipMessageEvent {
+public interface SipMessageEvent extends ReferenceCounted {
 
     /**
      * The {@link Connection} over which this {@link SipMessage} was received.
@@ -39,4 +58,81 @@ public interface SipMessageEvent {
      */
     long getArrivalTime();
 
+    /**
+     * The arrival time of the {@link SipMessage} according to the monotonic
+     * clock of the decoder (see {@link Clock#getNanoTime()}). It is only
+     * useful for measuring how long it took to get somewhere, e.g. the time
+     * the message spent waiting in a queue before being handled is
+     * <code>System.nanoTime() - event.getArrivalNanoTime()</code> (as long as
+     * the clock of the decoder is the system's monotonic clock).
+     * 
+     * @return
+     */
+    long getArrivalNanoTime();
+
+    /**
+     * The index of the headers of the {@link SipMessage} as recorded when the
+     * message was framed.
+     * 
+     * @return the index or null if the message wasn't framed by one of the
+     *         decoders.
+     */
+    HeaderIndex getHeaderIndex();
+
+    /**
+     * If the body of the message was larger than the streaming threshold of
+     * the decoder (see {@link DecoderConfiguration}) it is not part of the
+     * {@link SipMessage} but is available here as a chain of the buffers it
+     * was read into. Just as the rest of the message, it belongs to the event
+     * and is released along with it.
+     * 
+     * @return the body or null if the body wasn't streamed.
+     */
+    ByteBuf getStreamedContent();
+
+    /**
+     * The value of the Call-ID header.
+     * 
+     * @return
+     */
+    Buffer getCallId();
+
+    /**
+     * The branch parameter of the top-most Via header.
+     * 
+     * @return
+     */
+    Buffer getViaBranch();
+
+    /**
+     * The sequence number of the CSeq header.
+     * 
+     * @return
+     */
+    long getCSeqNumber();
+
+    /**
+     * The method of the CSeq header.
+     * 
+     * @return
+     */
+    Buffer getCSeqMethod();
+
+    /**
+     * The method of the request or, if this is a response, the method of the
+     * CSeq header.
+     * 
+     * @return
+     */
+    Buffer getMethod();
+
+    /**
+     * Whether the message is a request or a response. Unlike asking the
+     * {@link SipMessage} itself, this doesn't parse a message that was
+     * framed but not yet parsed.
+     * 
+     * @return
+     */
+    boolean isRequest();
+
 }
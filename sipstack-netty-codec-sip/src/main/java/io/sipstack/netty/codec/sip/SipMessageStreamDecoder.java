@@ -4,18 +4,16 @@
 package io.sipstack.netty.codec.sip;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufProcessor;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
-import io.pkts.buffer.Buffer;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
 import io.pkts.packet.sip.SipMessage;
-import io.pkts.packet.sip.impl.SipInitialLine;
-import io.pkts.packet.sip.impl.SipRequestImpl;
-import io.pkts.packet.sip.impl.SipRequestLine;
-import io.pkts.packet.sip.impl.SipResponseImpl;
-import io.pkts.packet.sip.impl.SipResponseLine;
 
-import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.List;
 
@@ -25,6 +23,8 @@ import java.util.List;
  */
 public class SipMessageStreamDecoder extends ByteToMessageDecoder {
 
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(SipMessageStreamDecoder.class);
+
     /**
      * The maximum allowed initial line. If we pass this threshold we will drop
      * the message and close down the connection (if we are using a connection
@@ -37,76 +37,310 @@ public class SipMessageStreamDecoder extends ByteToMessageDecoder {
      */
     public static final int MAX_ALLOWED_HEADERS_SIZE = 8192;
 
-    public static final int MAX_ALLOWED_CONTENT_LENGTH = 2048;
+    /**
+     * The maximum allowed content length. Use a {@link DecoderConfiguration}
+     * if you need to allow for larger messages (and have a look at the
+     * streaming threshold while at it).
+     */
+    public static final int MAX_ALLOWED_CONTENT_LENGTH = 65536;
+
+    /**
+     * The default maximum number of messages we will decode for a single read
+     * off of the socket before yielding to the other channels on the same
+     * event loop.
+     */
+    public static final int DEFAULT_MAX_MESSAGES_PER_READ = 16;
+
+    /**
+     * The pong (a single CRLF) we answer a keep-alive ping with, see
+     * {@link #keepAlive(ChannelHandlerContext, ByteBuf, int)}. It is shared
+     * by all the decoders so every pong is a duplicate of it, which shares
+     * the content but has indexes of its own.
+     */
+    private static final ByteBuf PONG = Unpooled.unreleasableBuffer(Unpooled.directBuffer(2, 2)
+            .writeByte('\r').writeByte('\n'));
 
     private final Clock clock;
 
     /**
-     * Contains the raw framed message.
+     * The limits etc. to use when framing messages.
+     */
+    private final DecoderConfiguration config;
+
+    /**
+     * When a peer pipelines several messages in the same segment (which is
+     * common for SBCs, load balancers and the like) we will drain all of
+     * them in one go but no more than this many per read. If there are more
+     * complete messages left after that, we will continue in a separate task
+     * on the event loop so that a single busy connection cannot starve the
+     * other connections.
+     */
+    private final int maxMessagesPerRead;
+
+    /**
+     * The number of messages we have decoded during the current read.
+     */
+    private int decodedThisRead;
+
+    /**
+     * Whether we have scheduled a task for decoding the messages that were
+     * left over due to {@link #maxMessagesPerRead}.
+     */
+    private boolean resumeScheduled;
+
+    /**
+     * Contains the raw framed message. This is only set while we are in the
+     * middle of framing a message and is borrowed from (and returned to) a
+     * pool shared by all decoders running on the same thread. That way, the
+     * many connections that just sit there, idle, do not hold on to any
+     * framing memory.
      */
     private RawMessage message;
 
+    /**
+     * Our state within the {@link FramingGuard} (if there is one).
+     */
+    private FramingGuard.Flow flow;
+
+    /**
+     * Once we have decided to drop the connection, we will ignore anything
+     * else that arrives while it is being closed.
+     */
+    private boolean dropped;
+
+    /**
+     * The channel is the same for every message we decode so so is the
+     * connection.
+     */
+    private Connection connection;
+
+    /**
+     * The number of bytes of a keep-alive ping (CRLFCRLF) we have seen so
+     * far, which may be split up across several reads.
+     */
+    private int pingBytes;
+
     /**
      * 
      */
     public SipMessageStreamDecoder(final Clock clock) {
+        this(clock, DecoderConfiguration.DEFAULT);
+    }
+
+    /**
+     * 
+     * @param clock
+     * @param maxMessagesPerRead
+     *            the maximum number of messages to decode per read. If you
+     *            want to go back to decoding only a single message per read,
+     *            use {@link #setSingleDecode(boolean)}.
+     */
+    public SipMessageStreamDecoder(final Clock clock, final int maxMessagesPerRead) {
+        this(clock, DecoderConfiguration.with().maxMessagesPerRead(maxMessagesPerRead).build());
+    }
+
+    /**
+     * 
+     * @param clock
+     * @param config
+     *            the limits etc. to use when framing messages.
+     */
+    public SipMessageStreamDecoder(final Clock clock, final DecoderConfiguration config) {
         this.clock = clock;
-        reset();
+        this.config = config;
+        this.maxMessagesPerRead = config.getMaxMessagesPerRead();
     }
 
     public SipMessageStreamDecoder() {
         this(new SystemClock());
     }
 
+    public SipMessageStreamDecoder(final DecoderConfiguration config) {
+        this(new SystemClock(), config);
+    }
+
     @Override
-    public boolean isSingleDecode() {
-        return true;
+    public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+        this.decodedThisRead = 0;
+        super.channelRead(ctx, msg);
     }
 
     @Override
     protected void decode(final ChannelHandlerContext ctx, final ByteBuf buffer, final List<Object> out)
             throws Exception {
-        try {
-            while (!this.message.isComplete() && buffer.isReadable()) {
-                final byte b = buffer.readByte();
-                this.message.write(b);
+        if (this.dropped) {
+            buffer.skipBytes(buffer.readableBytes());
+            return;
+        }
+
+        if (this.decodedThisRead == this.maxMessagesPerRead) {
+            scheduleResume(ctx);
+            return;
+        }
+
+        if (this.message == null) {
+            // consume any CRLFs in between messages before we bother
+            // getting hold of a RawMessage, answering the keep-alive
+            // pings among them as we go.
+            final int index = buffer.forEachByte(ByteBufProcessor.FIND_NON_CRLF);
+            if (index == -1) {
+                keepAlive(ctx, buffer, buffer.writerIndex());
+                return;
             }
+            keepAlive(ctx, buffer, index);
+            this.pingBytes = 0;
+            this.message = RawMessage.newInstance(this.config);
+        }
+
+        try {
+            this.message.frame(buffer);
         } catch (final MaxMessageSizeExceededException e) {
-            dropConnection(ctx, e.getMessage());
-            // TODO: mark this connection as dead since the future
-            // for closing this decoder may take a while to actually
-            // do its job
-        } catch (final IOException e) {
-            e.printStackTrace();
+            dropConnection(ctx, buffer, e.getMessage());
+            return;
         }
 
-        if (this.message.isComplete()) {
+        if (!this.message.isComplete()) {
+            final FramingGuard guard = this.config.getFramingGuard();
+            if (guard != null && !guard.update(flow(guard, ctx), bytesInFlight(buffer))) {
+                dropConnection(ctx, buffer, "Message not framed in time or out of framing memory");
+            }
+        } else {
             final long arrivalTime = this.clock.getCurrentTimeMillis();
-            final SipMessage msg = toSipMessage(this.message);
-            final Channel channel = ctx.channel();
-            final Connection connection = new TcpConnection(channel, (InetSocketAddress) channel.remoteAddress());
-            out.add(new DefaultSipMessageEvent(connection, msg, arrivalTime));
+            final long arrivalNanoTime = this.clock.getNanoTime();
+            final SipMessage msg;
+            try {
+                msg = this.config.isLazyParsing() ? null : this.message.toSipMessage();
+            } catch (final RuntimeException e) {
+                // don't leak the frame on a message we couldn't parse
+                ReferenceCountUtil.release(this.message.getFrame());
+                ReferenceCountUtil.release(this.message.getStreamedContent());
+                reset();
+                throw e;
+            }
+            out.add(DefaultSipMessageEvent.newInstance(connection(ctx), msg, arrivalTime, arrivalNanoTime,
+                    this.message.getFrame(), this.message.getHeaderIndex(), this.message.getStreamedContent()));
+            ++this.decodedThisRead;
             reset();
         }
     }
 
-    private SipMessage toSipMessage(final RawMessage raw) {
-        final SipInitialLine initialLine = SipInitialLine.parse(raw.getInitialLine());
-        final Buffer headers = raw.getHeaders();
-        final Buffer payload = raw.getPayload();
-        if (initialLine.isRequestLine()) {
-            return new SipRequestImpl((SipRequestLine) initialLine, headers, payload);
-        } else {
-            return new SipResponseImpl((SipResponseLine) initialLine, headers, payload);
+    /**
+     * We have hit the maximum number of messages for this read but there may
+     * be more complete messages waiting in the cumulation buffer and since
+     * they are already off of the socket, no new read will come along and
+     * pick them up. Therefore, schedule a task that will simulate a new (empty)
+     * read, which will decode the next batch.
+     */
+    private void scheduleResume(final ChannelHandlerContext ctx) {
+        if (this.resumeScheduled) {
+            return;
         }
+
+        this.resumeScheduled = true;
+        ctx.executor().execute(() -> {
+            this.resumeScheduled = false;
+            if (ctx.isRemoved()) {
+                return;
+            }
+
+            try {
+                channelRead(ctx, Unpooled.EMPTY_BUFFER);
+                channelReadComplete(ctx);
+            } catch (final Exception e) {
+                ctx.fireExceptionCaught(e);
+            }
+        });
     }
 
-    private void dropConnection(final ChannelHandlerContext ctx, final String reason) {
+    /**
+     * Consume the CRLFs in between messages up until the given index. A
+     * client using SIP outbound (RFC 5626) keeps its flow alive by sending a
+     * double CRLF (the "ping") every now and then, to which we must answer
+     * with a single CRLF (the "pong"). The pings are answered right here
+     * without them ever making it to a {@link RawMessage}, let alone a
+     * {@link SipMessageEvent}, and the pong is written straight back down the
+     * pipeline without a promise of its own.
+     */
+    private void keepAlive(final ChannelHandlerContext ctx, final ByteBuf buffer, final int end) {
+        int pings = 0;
+        for (int i = buffer.readerIndex(); i < end; ++i) {
+            final byte b = buffer.getByte(i);
+            if (b == ((this.pingBytes & 1) == 0 ? '\r' : '\n')) {
+                if (++this.pingBytes == 4) {
+                    this.pingBytes = 0;
+                    ++pings;
+                }
+            } else {
+                this.pingBytes = b == '\r' ? 1 : 0;
+            }
+        }
+        buffer.readerIndex(end);
+
+        if (pings > 0 && !this.dropped) {
+            for (int i = 0; i < pings - 1; ++i) {
+                ctx.write(PONG.duplicate(), ctx.voidPromise());
+            }
+            ctx.writeAndFlush(PONG.duplicate(), ctx.voidPromise());
+        }
     }
 
+    /**
+     * The number of bytes we are holding on to for the message we are
+     * currently framing, which is everything in the cumulation buffer plus
+     * whatever part of the body that has been streamed.
+     */
+    private int bytesInFlight(final ByteBuf buffer) {
+        final ByteBuf content = this.message.getStreamedContent();
+        return buffer.readableBytes() + (content == null ? 0 : content.readableBytes());
+    }
+
+    private Connection connection(final ChannelHandlerContext ctx) {
+        if (this.connection == null) {
+            final Channel channel = ctx.channel();
+            this.connection = TcpConnection.of(channel, (InetSocketAddress) channel.remoteAddress());
+        }
+        return this.connection;
+    }
+
+    private FramingGuard.Flow flow(final FramingGuard guard, final ChannelHandlerContext ctx) {
+        if (this.flow == null) {
+            this.flow = guard.newFlow(ctx.channel());
+        }
+        return this.flow;
+    }
+
+    /**
+     * Drop whatever we have received so far and close the connection. Any
+     * data that arrives while the connection is being closed is ignored.
+     */
+    private void dropConnection(final ChannelHandlerContext ctx, final ByteBuf buffer, final String reason) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Dropping connection to {}: {}", ctx.channel().remoteAddress(), reason);
+        }
+        this.dropped = true;
+        buffer.skipBytes(buffer.readableBytes());
+        reset();
+        ctx.close();
+    }
+
+    @Override
+    protected void handlerRemoved0(final ChannelHandlerContext ctx) throws Exception {
+        reset();
+    }
+
+    /**
+     * Hand the {@link RawMessage} back to the pool. Any frame it may have
+     * produced belongs to the {@link SipMessageEvent} at this point.
+     */
     private void reset() {
-        this.message = new RawMessage(MAX_ALLOWED_INITIAL_LINE_SIZE, MAX_ALLOWED_HEADERS_SIZE,
-                MAX_ALLOWED_CONTENT_LENGTH);
+        if (this.flow != null) {
+            this.config.getFramingGuard().finish(this.flow);
+        }
+
+        if (this.message != null) {
+            this.message.recycle();
+            this.message = null;
+        }
     }
 
 }
@@ -0,0 +1,125 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageDecoder;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+import io.pkts.packet.sip.SipMessage;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * Frames the SIP messages received over a WebSocket (RFC 7118). Every
+ * WebSocket message carries exactly one SIP message so, just as for UDP, the
+ * payload of the frame is framed as a whole and the {@link SipMessage} is a
+ * view of it, i.e., the payload isn't copied and the event takes over the
+ * ownership of it.
+ * 
+ * A WebSocket message may be split up into several frames. Put a
+ * {@link io.netty.handler.codec.http.websocketx.WebSocketFrameAggregator} in
+ * front of the decoder and the fragments are put together as a composite of
+ * the buffers they arrived in, again without copying them. Other than the
+ * text and binary frames, the decoder lets everything through untouched so
+ * the pings and the closing of the WebSocket are still up to the
+ * {@link io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler}.
+ * 
+ * Unlike for UDP, a frame that isn't a SIP message or that breaks the limits
+ * of the {@link DecoderConfiguration} closes the connection.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public final class SipMessageWebSocketDecoder extends MessageToMessageDecoder<WebSocketFrame> {
+
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(SipMessageWebSocketDecoder.class);
+
+    /**
+     * The WebSocket sub-protocol of SIP, see RFC 7118.
+     */
+    public static final String SUBPROTOCOL = "sip";
+
+    private final Clock clock;
+
+    private final DecoderConfiguration config;
+
+    /**
+     * The channel is the same for every message we decode so so is the
+     * connection.
+     */
+    private Connection connection;
+
+    public SipMessageWebSocketDecoder() {
+        this(new SystemClock(), DecoderConfiguration.DEFAULT);
+    }
+
+    public SipMessageWebSocketDecoder(final Clock clock, final DecoderConfiguration config) {
+        this.clock = clock;
+        this.config = config;
+    }
+
+    @Override
+    public boolean acceptInboundMessage(final Object msg) throws Exception {
+        return msg instanceof TextWebSocketFrame || msg instanceof BinaryWebSocketFrame;
+    }
+
+    @Override
+    protected void decode(final ChannelHandlerContext ctx, final WebSocketFrame msg, final List<Object> out)
+            throws Exception {
+        final long arrivalTime = this.clock.getCurrentTimeMillis();
+        final long arrivalNanoTime = this.clock.getNanoTime();
+        final ByteBuf content = msg.content();
+
+        final RawMessage raw = RawMessage.newInstance(this.config);
+        final SipMessage sipMessage;
+        final HeaderIndex index;
+        final ByteBuf frame;
+        try {
+            if (!raw.frameDatagram(content)) {
+                drop(ctx, "the frame does not contain a complete SIP message");
+                return;
+            }
+
+            try {
+                sipMessage = this.config.isLazyParsing() ? null : raw.toSipMessage();
+            } catch (final RuntimeException e) {
+                ReferenceCountUtil.release(raw.getFrame());
+                throw e;
+            }
+            index = raw.getHeaderIndex();
+            frame = raw.getFrame();
+        } catch (final MaxMessageSizeExceededException e) {
+            drop(ctx, e.getMessage());
+            return;
+        } finally {
+            raw.recycle();
+        }
+
+        out.add(DefaultSipMessageEvent.newInstance(connection(ctx), sipMessage, arrivalTime, arrivalNanoTime, frame,
+                index, null));
+    }
+
+    private Connection connection(final ChannelHandlerContext ctx) {
+        if (this.connection == null) {
+            final Channel channel = ctx.channel();
+            this.connection = new WsConnection(channel, (InetSocketAddress) channel.remoteAddress());
+        }
+        return this.connection;
+    }
+
+    private static void drop(final ChannelHandlerContext ctx, final String reason) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Closing WebSocket connection {}: {}", ctx.channel(), reason);
+        }
+        ctx.close();
+    }
+
+}
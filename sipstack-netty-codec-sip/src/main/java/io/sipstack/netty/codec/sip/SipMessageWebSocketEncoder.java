@@ -0,0 +1,33 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+
+import java.util.List;
+
+/**
+ * Puts every encoded SIP message into a WebSocket frame of its own, which is
+ * how RFC 7118 says that they are to be sent. The frame is a view of the
+ * encoded message, nothing is copied. The encoder doesn't keep any state so a
+ * single instance can be shared by all channels.
+ * 
+ * Place it between the WebSocket handlers and the {@link SipMessageEncoder}.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+@Sharable
+public final class SipMessageWebSocketEncoder extends MessageToMessageEncoder<ByteBuf> {
+
+    @Override
+    protected void encode(final ChannelHandlerContext ctx, final ByteBuf msg, final List<Object> out) {
+        // the encoder releases the message once we are done with it
+        out.add(new TextWebSocketFrame(msg.retain()));
+    }
+
+}
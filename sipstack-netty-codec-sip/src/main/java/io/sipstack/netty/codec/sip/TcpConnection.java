@@ -3,27 +3,159 @@
  */
 package io.sipstack.netty.codec.sip;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.ssl.SslHandler;
 import io.pkts.packet.sip.SipMessage;
 
 import java.net.InetSocketAddress;
 
 /**
+ * A stream based connection. If the peer doesn't keep up with what we are
+ * sending, the outbound buffer of the channel eventually goes above its high
+ * water mark and the {@link OverflowPolicy} of the channel (if any) decides
+ * what happens to any further messages until the buffer has drained below the
+ * low water mark again. The policy is the one of the {@link OutboundOverflow}
+ * of the channel.
+ * 
  * @author jonas@jonasborjesson.com
  */
-public final class TcpConnection extends AbstractConnection {
-
+public class TcpConnection extends AbstractConnection {
 
     public TcpConnection(final Channel channel, final InetSocketAddress remote) {
         super(channel, remote);
     }
 
+    /**
+     * Create the connection for the given channel, which is a
+     * {@link TlsConnection} if there is an {@link SslHandler} in its pipeline
+     * and a plain {@link TcpConnection} otherwise.
+     * 
+     * @param channel
+     * @param remote
+     * @return
+     */
+    static TcpConnection of(final Channel channel, final InetSocketAddress remote) {
+        if (channel.pipeline().get(SslHandler.class) != null) {
+            return new TlsConnection(channel, remote);
+        }
+        return new TcpConnection(channel, remote);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isTCP() {
+        return true;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void send(final SipMessage msg) {
-        channel().writeAndFlush(toByteBuf(msg));
+        if (mayWrite()) {
+            channel().writeAndFlush(toByteBuf(msg));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void send(final ForwardedMessage msg) {
+        if (mayWrite()) {
+            channel().writeAndFlush(toByteBuf(msg));
+        }
+    }
+
+    /**
+     * Write a message that has already been encoded, e.g. one that was too
+     * large for UDP, see {@link TcpFallback}. The buffer is taken care of no
+     * matter the outcome, i.e., it is released if it isn't written.
+     * 
+     * @param buffer
+     * @return true if the buffer was written, false if the
+     *         {@link OverflowPolicy} dropped it.
+     * @throws OutboundOverflowException
+     *             if the policy says so.
+     */
+    boolean write(final ByteBuf buffer) {
+        return write(buffer, channel().voidPromise());
+    }
+
+    /**
+     * Same as {@link #write(ByteBuf)} but the outcome of the write, once
+     * there is one, goes to the given promise. Note that the promise isn't
+     * completed at all if the buffer isn't written.
+     * 
+     * @param buffer
+     * @param promise
+     * @return true if the buffer was written, false if the
+     *         {@link OverflowPolicy} dropped it.
+     * @throws OutboundOverflowException
+     *             if the policy says so.
+     */
+    boolean write(final ByteBuf buffer, final ChannelPromise promise) {
+        final boolean write;
+        try {
+            write = mayWrite();
+        } catch (final OutboundOverflowException e) {
+            buffer.release();
+            throw e;
+        }
+
+        if (write) {
+            channel().writeAndFlush(buffer, promise);
+        } else {
+            buffer.release();
+        }
+        return write;
+    }
+
+    /**
+     * The number of bytes that have been written to this connection but not
+     * yet sent.
+     * 
+     * @return
+     */
+    public long getQueuedBytes() {
+        final ChannelOutboundBuffer buffer = channel().unsafe().outboundBuffer();
+        return buffer == null ? 0 : buffer.totalPendingWriteBytes();
+    }
+
+    /**
+     * Check whether we can write to the channel and if not, apply the
+     * {@link OverflowPolicy} of the {@link OutboundOverflow} of the channel.
+     * 
+     * @return true if the message should be written.
+     * @throws OutboundOverflowException
+     *             if the policy says so.
+     */
+    private boolean mayWrite() {
+        final Channel channel = channel();
+        if (channel.isWritable()) {
+            return true;
+        }
+
+        final OutboundOverflow overflow = channel.attr(OutboundOverflow.KEY).get();
+        if (overflow == null) {
+            return true;
+        }
+
+        switch (overflow.apply()) {
+        case REJECT:
+            throw new OutboundOverflowException("Outbound buffer to " + getRemoteAddress() + " is full ("
+                    + getQueuedBytes() + " bytes queued)");
+        case CLOSE:
+            channel.close();
+            return false;
+        default:
+            return false;
+        }
     }
 
     @Override
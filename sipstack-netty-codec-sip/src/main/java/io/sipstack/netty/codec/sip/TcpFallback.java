@@ -0,0 +1,302 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.AttributeKey;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RFC 3261 section 18.1.1 says that a request that is larger than 1300 bytes
+ * (or within 200 bytes of the path MTU, if it is known) must not be sent over
+ * UDP but over a congestion controlled transport such as TCP, since a
+ * datagram that large gets fragmented and a single lost fragment means that
+ * the entire request is lost. The {@link TcpFallback} of a UDP channel (see
+ * {@link #KEY}) does just that: a request that turns out to be larger than
+ * the limit once it has been encoded (i.e., after the {@link CompactForm}, if
+ * any, has had its go at it) is sent over a TCP connection to the same
+ * destination instead, which is an existing flow if we have one and a new one
+ * if we don't, see
+ * {@link ConnectionManager#connect(TransportProtocol, InetSocketAddress)}.
+ * 
+ * A new connection may very well fail (not every UDP peer listens on TCP) and
+ * so may the write itself. Until the request has been written, we hold on to
+ * the encoded datagram and if the request never makes it over TCP, it goes
+ * out over UDP after all, as RFC 3261 says, and is counted as a failed
+ * switch. The same goes for a request that the {@link OverflowPolicy} of the
+ * TCP flow won't take.
+ * 
+ * Since the transport changes, so must the transport of the top-most Via. As
+ * "UDP" and "TCP" are of the same length, that is done by swapping those
+ * three bytes of the encoded request, everything else is left as is. Note
+ * that the sent-by of the Via isn't changed so the TCP listening point must be
+ * on the same ip:port as the UDP one.
+ * 
+ * Responses always go back the way the request came in so they are sent over
+ * UDP no matter their size, they are only counted.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public final class TcpFallback {
+
+    /**
+     * The {@link TcpFallback} of a UDP channel.
+     */
+    public static final AttributeKey<TcpFallback> KEY = AttributeKey.valueOf("sipstack.tcpFallback");
+
+    /**
+     * The limit of RFC 3261 for when the path MTU isn't known.
+     */
+    public static final int DEFAULT_LIMIT = 1300;
+
+    private static final ByteBuf TCP = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(new byte[] {
+            'T', 'C', 'P' }));
+
+    private final int limit;
+
+    private final ConnectionManager tcp;
+
+    private final LongAdder switched = new LongAdder();
+    private final LongAdder switchedBytes = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder oversizedResponses = new LongAdder();
+
+    public TcpFallback(final ConnectionManager tcp) {
+        this(DEFAULT_LIMIT, tcp);
+    }
+
+    /**
+     * 
+     * @param limit
+     *            the size (in bytes) above which a request is sent over TCP.
+     * @param tcp
+     *            the manager of the TCP flows of the listening point on the
+     *            same ip:port as the UDP one.
+     */
+    public TcpFallback(final int limit, final ConnectionManager tcp) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("The limit must be greater than zero");
+        }
+        if (tcp.getTransport() != TransportProtocol.TCP) {
+            throw new IllegalArgumentException("The fallback must be a TCP connection manager, not "
+                    + tcp.getTransport());
+        }
+        this.limit = limit;
+        this.tcp = tcp;
+    }
+
+    public int getLimit() {
+        return this.limit;
+    }
+
+    /**
+     * Send the encoded message over TCP if it is a request larger than the
+     * limit.
+     * 
+     * @param request
+     *            whether the message that was encoded is a request.
+     * @param buffer
+     *            the encoded message, which is taken care of if (and only if)
+     *            true is returned.
+     * @param udp
+     *            the UDP channel the message would have gone out over, which
+     *            it does if the TCP write fails.
+     * @param remote
+     * @return true if the message was handed over to TCP (and, should that
+     *         fail, to UDP), false if it is to be sent over UDP as usual.
+     */
+    boolean send(final boolean request, final ByteBuf buffer, final Channel udp, final InetSocketAddress remote) {
+        final int size = buffer.readableBytes();
+        if (size <= this.limit) {
+            return false;
+        }
+
+        if (!request) {
+            this.oversizedResponses.increment();
+            return false;
+        }
+
+        final int transport = findViaTransport(buffer);
+        final TcpConnection connection;
+        try {
+            connection = transport == -1 ? null : (TcpConnection) this.tcp.connect(TransportProtocol.TCP, remote);
+        } catch (final RuntimeException e) {
+            this.failed.increment();
+            return false;
+        }
+
+        if (connection == null) {
+            this.failed.increment();
+            return false;
+        }
+
+        // the patched buffer holds on to slices of its own so the original
+        // is only released once we know it won't go out over UDP after all
+        final int end = buffer.writerIndex();
+        final ByteBuf patched = Unpooled.wrappedBuffer(
+                buffer.slice(buffer.readerIndex(), transport - buffer.readerIndex()).retain(), TCP.duplicate(),
+                buffer.slice(transport + 3, end - transport - 3).retain());
+
+        // the write completes once the request has made it onto the wire or
+        // not at all, e.g. because we never managed to connect, in which case
+        // the original goes out over UDP
+        final ChannelPromise promise = connection.channel().newPromise();
+        promise.addListener(f -> {
+            if (f.isSuccess()) {
+                buffer.release();
+                this.switched.increment();
+                this.switchedBytes.add(size);
+            } else {
+                this.failed.increment();
+                udp.writeAndFlush(new DatagramPacket(buffer, remote));
+            }
+        });
+
+        final boolean written;
+        try {
+            written = connection.write(patched, promise);
+        } catch (final OutboundOverflowException e) {
+            this.failed.increment();
+            return false;
+        }
+
+        if (!written) {
+            this.failed.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Find the transport of the top-most Via of the encoded request.
+     * 
+     * @param buffer
+     * @return the index of the transport or -1 (negative one) if there is no
+     *         Via or if its transport isn't UDP.
+     */
+    static int findViaTransport(final ByteBuf buffer) {
+        final int end = buffer.writerIndex();
+        int lineStart = buffer.indexOf(buffer.readerIndex(), end, RawMessage.LF) + 1;
+        while (lineStart > 0 && lineStart < end) {
+            final int lf = buffer.indexOf(lineStart, end, RawMessage.LF);
+            if (lf == -1) {
+                return -1;
+            }
+
+            final int lineEnd = lf > lineStart && buffer.getByte(lf - 1) == RawMessage.CR ? lf - 1 : lf;
+            if (lineEnd == lineStart) {
+                // the end of the headers
+                return -1;
+            }
+
+            final int colon = buffer.indexOf(lineStart, lineEnd, RawMessage.COLON);
+            if (colon != -1 && isVia(buffer, lineStart, colon)) {
+                return findTransport(buffer, colon + 1, lineEnd);
+            }
+            lineStart = lf + 1;
+        }
+        return -1;
+    }
+
+    private static boolean isVia(final ByteBuf buffer, final int start, final int colon) {
+        if (isWhitespace(buffer.getByte(start))) {
+            // a continuation of the previous header line
+            return false;
+        }
+
+        int stop = colon;
+        while (stop > start && isWhitespace(buffer.getByte(stop - 1))) {
+            --stop;
+        }
+        final int length = stop - start;
+        if (length == 1) {
+            return (buffer.getByte(start) | 0x20) == 'v';
+        }
+        return length == 3 && (buffer.getByte(start) | 0x20) == 'v' && (buffer.getByte(start + 1) | 0x20) == 'i'
+                && (buffer.getByte(start + 2) | 0x20) == 'a';
+    }
+
+    /**
+     * The transport follows the second slash of the sent-protocol, i.e.,
+     * "SIP / 2.0 / UDP", with optional whitespace around the slashes.
+     */
+    private static int findTransport(final ByteBuf buffer, final int start, final int stop) {
+        final int slash = buffer.indexOf(start, stop, (byte) '/');
+        final int secondSlash = slash == -1 ? -1 : buffer.indexOf(slash + 1, stop, (byte) '/');
+        if (secondSlash == -1) {
+            return -1;
+        }
+
+        int transport = secondSlash + 1;
+        while (transport < stop && isWhitespace(buffer.getByte(transport))) {
+            ++transport;
+        }
+
+        if (transport + 3 >= stop || !isWhitespace(buffer.getByte(transport + 3))) {
+            return -1;
+        }
+
+        final boolean udp = (buffer.getByte(transport) | 0x20) == 'u'
+                && (buffer.getByte(transport + 1) | 0x20) == 'd' && (buffer.getByte(transport + 2) | 0x20) == 'p';
+        return udp ? transport : -1;
+    }
+
+    private static boolean isWhitespace(final byte b) {
+        return b == RawMessage.SP || b == RawMessage.HTAB;
+    }
+
+    /**
+     * The number of requests that were sent over TCP rather than UDP.
+     * 
+     * @return
+     */
+    public long getSwitchedRequests() {
+        return this.switched.sum();
+    }
+
+    /**
+     * The total size of the requests that were sent over TCP rather than UDP.
+     * 
+     * @return
+     */
+    public long getSwitchedBytes() {
+        return this.switchedBytes.sum();
+    }
+
+    /**
+     * The number of requests that were larger than the limit but still went
+     * out over UDP, since they had no UDP Via to change, since we couldn't
+     * connect to the destination over TCP (or the write failed) or since the
+     * outbound buffer of the TCP flow was full (and its {@link OverflowPolicy}
+     * wouldn't take the request).
+     * 
+     * @return
+     */
+    public long getFailedSwitches() {
+        return this.failed.sum();
+    }
+
+    /**
+     * The number of responses that were larger than the limit, which went out
+     * over UDP regardless.
+     * 
+     * @return
+     */
+    public long getOversizedResponses() {
+        return this.oversizedResponses.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("limit: %d bytes, switched to TCP: %d (%d bytes), failed: %d, oversized responses: %d",
+                this.limit, getSwitchedRequests(), getSwitchedBytes(), getFailedSwitches(), getOversizedResponses());
+    }
+
+}
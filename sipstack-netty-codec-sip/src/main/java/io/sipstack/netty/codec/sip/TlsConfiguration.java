@@ -0,0 +1,319 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslServerContext;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import javax.net.ssl.SSLException;
+
+/**
+ * Everything needed to run SIP over TLS on a listening point: the server
+ * context for the connections accepted by the listening point, the client
+ * context for the ones we establish ourselves and the {@link TlsCounters}
+ * keeping track of the handshakes of both.
+ * 
+ * Full handshakes are expensive so the server context caches the sessions of
+ * the clients, which allows a client that reconnects (e.g. a phone that just
+ * switched networks) to resume its session instead. The server context uses
+ * OpenSSL if its native library is available, which is a lot cheaper than
+ * the engine of the JDK and also supports session tickets, and otherwise
+ * falls back to the JDK. If you run several servers behind the same address,
+ * give them all the same {@link Builder#ticketKeys(byte[])} so that a ticket
+ * issued by one of them is honored by the others.
+ * 
+ * The native library comes with netty-tcnative, which this module only
+ * depends on optionally, so a deployment that wants OpenSSL (and session
+ * tickets) has to add io.netty:netty-tcnative itself, of the same version as
+ * the parent pom (tcnative.version) and with the classifier of its platform
+ * (e.g. linux-x86_64), and have the OpenSSL (and APR) shared libraries it
+ * links against installed. Without it, {@link OpenSsl#isAvailable()} is
+ * false, the JDK engine is used and asking for ticket keys fails.
+ * 
+ * The version of Netty we are on only comes with a client context based on
+ * the JDK so outbound connections always use the JDK engine. Since it is
+ * given the address of the remote end, it resumes the session of an earlier
+ * connection to the same remote end.
+ * 
+ * To add TLS to a channel, call {@link #initChannel(Channel)} from the
+ * initializer of the channel.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public final class TlsConfiguration {
+
+    /**
+     * The size of a single set of session ticket keys (the name, the HMAC
+     * secret and the AES key).
+     */
+    public static final int TICKET_KEYS_SIZE = 48;
+
+    private final SslContext serverContext;
+
+    private final SslContext clientContext;
+
+    private final TlsCounters counters;
+
+    private final long handshakeTimeout;
+
+    private TlsConfiguration(final SslContext serverContext, final SslContext clientContext,
+            final TlsCounters counters, final long handshakeTimeout) {
+        this.serverContext = serverContext;
+        this.clientContext = clientContext;
+        this.counters = counters;
+        this.handshakeTimeout = handshakeTimeout;
+    }
+
+    public SslContext getServerContext() {
+        return this.serverContext;
+    }
+
+    public SslContext getClientContext() {
+        return this.clientContext;
+    }
+
+    /**
+     * The counters of the handshakes of all the channels initialized through
+     * {@link #initChannel(Channel)}.
+     * 
+     * @return
+     */
+    public TlsCounters getCounters() {
+        return this.counters;
+    }
+
+    /**
+     * Add TLS to the given channel. An accepted channel (one with a parent)
+     * gets the server side of the handshake and any other channel the client
+     * side, which is set up once the channel connects since the client needs
+     * to know the address of the remote end in order to resume an earlier
+     * session.
+     * 
+     * The {@link SslHandler} goes first in the pipeline, so call this from
+     * the initializer of the channel.
+     * 
+     * @param channel
+     */
+    public void initChannel(final Channel channel) {
+        final ChannelPipeline pipeline = channel.pipeline();
+        if (channel.parent() != null) {
+            pipeline.addFirst("tls", newHandler(this.serverContext.newHandler(channel.alloc())));
+            pipeline.addAfter("tls", "handshake", new TlsHandshakeTracker(this.counters));
+        } else {
+            pipeline.addFirst("tls-connect", new TlsConnector());
+            pipeline.addAfter("tls-connect", "handshake", new TlsHandshakeTracker(this.counters));
+        }
+    }
+
+    private SslHandler newHandler(final SslHandler handler) {
+        if (this.handshakeTimeout > 0) {
+            handler.setHandshakeTimeoutMillis(this.handshakeTimeout);
+        }
+        return handler;
+    }
+
+    /**
+     * The provider the server context will use unless told otherwise.
+     * 
+     * @return
+     */
+    public static SslProvider defaultServerProvider() {
+        return OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
+    }
+
+    /**
+     * 
+     * @param certificateChain
+     *            the certificate chain of the server, in PEM format.
+     * @param privateKey
+     *            the private key of the server, in PKCS#8 PEM format.
+     * @return
+     */
+    public static Builder with(final File certificateChain, final File privateKey) {
+        return new Builder(certificateChain, privateKey);
+    }
+
+    /**
+     * Puts the client side {@link SslHandler} in its own place once the
+     * channel connects and we know who we are connecting to.
+     */
+    private final class TlsConnector extends ChannelOutboundHandlerAdapter {
+
+        @Override
+        public void connect(final ChannelHandlerContext ctx, final SocketAddress remoteAddress,
+                final SocketAddress localAddress, final ChannelPromise promise) throws Exception {
+            final InetSocketAddress remote = (InetSocketAddress) remoteAddress;
+            final SslHandler handler = TlsConfiguration.this.clientContext.newHandler(ctx.alloc(),
+                    remote.getHostString(), remote.getPort());
+            ctx.pipeline().addBefore(ctx.name(), "tls", newHandler(handler));
+            ctx.connect(remoteAddress, localAddress, promise);
+            ctx.pipeline().remove(this);
+        }
+    }
+
+    public static class Builder {
+
+        private final File certificateChain;
+
+        private final File privateKey;
+
+        private String keyPassword;
+
+        private SslProvider provider = defaultServerProvider();
+
+        private File trustedCertificates;
+
+        private long sessionCacheSize;
+
+        private long sessionTimeout;
+
+        private byte[] ticketKeys;
+
+        private long handshakeTimeout;
+
+        private Builder(final File certificateChain, final File privateKey) {
+            this.certificateChain = certificateChain;
+            this.privateKey = privateKey;
+        }
+
+        public Builder keyPassword(final String keyPassword) {
+            this.keyPassword = keyPassword;
+            return this;
+        }
+
+        /**
+         * The provider of the server context. If OpenSSL is asked for but
+         * isn't available, the JDK is used instead.
+         * 
+         * @param provider
+         * @return
+         */
+        public Builder provider(final SslProvider provider) {
+            this.provider = provider;
+            return this;
+        }
+
+        /**
+         * The certificates to trust when connecting to a remote end, in PEM
+         * format. If not set, the default trust store of the JDK is used.
+         * 
+         * @param trustedCertificates
+         * @return
+         */
+        public Builder trustedCertificates(final File trustedCertificates) {
+            this.trustedCertificates = trustedCertificates;
+            return this;
+        }
+
+        /**
+         * The maximum number of sessions to cache. Zero means the default of
+         * the provider.
+         * 
+         * @param sessionCacheSize
+         * @return
+         */
+        public Builder sessionCacheSize(final long sessionCacheSize) {
+            this.sessionCacheSize = sessionCacheSize;
+            return this;
+        }
+
+        /**
+         * For how long (in seconds) a session may be resumed. Zero means the
+         * default of the provider.
+         * 
+         * @param sessionTimeout
+         * @return
+         */
+        public Builder sessionTimeout(final long sessionTimeout) {
+            this.sessionTimeout = sessionTimeout;
+            return this;
+        }
+
+        /**
+         * The keys used to protect the session tickets, one or more sets of
+         * {@link TlsConfiguration#TICKET_KEYS_SIZE} bytes each, where the
+         * first set is used for new tickets. If not set, OpenSSL uses keys of
+         * its own, which are only good for as long as the process is running.
+         * Only supported by OpenSSL, so {@link #build()} refuses ticket keys
+         * when the server context ends up using the JDK.
+         * 
+         * @param ticketKeys
+         * @return
+         */
+        public Builder ticketKeys(final byte[] ticketKeys) {
+            this.ticketKeys = ticketKeys;
+            return this;
+        }
+
+        /**
+         * The time (in milliseconds) a handshake may take before the
+         * connection is closed. Zero means the default of Netty.
+         * 
+         * @param handshakeTimeout
+         * @return
+         */
+        public Builder handshakeTimeout(final long handshakeTimeout) {
+            this.handshakeTimeout = handshakeTimeout;
+            return this;
+        }
+
+        public TlsConfiguration build() throws SSLException {
+            if (this.certificateChain == null || this.privateKey == null) {
+                throw new IllegalArgumentException("The certificate chain and the private key must be given");
+            }
+
+            if (this.sessionCacheSize < 0 || this.sessionTimeout < 0 || this.handshakeTimeout < 0) {
+                throw new IllegalArgumentException("The session cache and the timeouts cannot be negative");
+            }
+
+            if (this.ticketKeys != null
+                    && (this.ticketKeys.length == 0 || this.ticketKeys.length % TICKET_KEYS_SIZE != 0)) {
+                throw new IllegalArgumentException("The ticket keys must be a multiple of " + TICKET_KEYS_SIZE
+                        + " bytes");
+            }
+
+            SslProvider provider = this.provider == null ? defaultServerProvider() : this.provider;
+            if (provider == SslProvider.OPENSSL && !OpenSsl.isAvailable()) {
+                provider = SslProvider.JDK;
+            }
+
+            if (this.ticketKeys != null && provider != SslProvider.OPENSSL) {
+                throw new IllegalArgumentException("Session ticket keys are only supported by OpenSSL, which "
+                        + (OpenSsl.isAvailable() ? "is not the provider" : "is not available"));
+            }
+
+            final SslContext server = SslContext.newServerContext(provider, this.certificateChain,
+                    this.privateKey, this.keyPassword, null, null, this.sessionCacheSize, this.sessionTimeout);
+            final SslContext client = SslContext.newClientContext(SslProvider.JDK, this.trustedCertificates, null,
+                    null, null, this.sessionCacheSize, this.sessionTimeout);
+
+            final TlsCounters counters;
+            if (provider == SslProvider.OPENSSL) {
+                final OpenSslServerContext openSsl = (OpenSslServerContext) server;
+                if (this.ticketKeys != null) {
+                    openSsl.setTicketKeys(this.ticketKeys);
+                }
+                counters = new TlsCounters(openSsl.stats());
+            } else {
+                counters = new TlsCounters();
+            }
+
+            return new TlsConfiguration(server, client, counters, this.handshakeTimeout);
+        }
+
+    }
+
+}
@@ -0,0 +1,39 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import io.netty.channel.Channel;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A TCP connection with an {@link io.netty.handler.ssl.SslHandler} in its
+ * pipeline. Other than that, it behaves just like a {@link TcpConnection},
+ * including the {@link OverflowPolicy}.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public final class TlsConnection extends TcpConnection {
+
+    public TlsConnection(final Channel channel, final InetSocketAddress remote) {
+        super(channel, remote);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isTCP() {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isTLS() {
+        return true;
+    }
+
+}
@@ -0,0 +1,120 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import io.netty.handler.ssl.OpenSslSessionStats;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps track of the TLS handshakes of one or more channels, how many there
+ * were, how long they took and how many of them were resumed (as opposed to
+ * full) handshakes, see {@link TlsHandshakeTracker}.
+ * 
+ * Whether a handshake was resumed is only known per handshake when the
+ * engine is the one of the JDK. The OpenSSL engine doesn't tell, so for a
+ * server context backed by OpenSSL the resumed handshakes are taken from the
+ * statistics of its session cache instead (which include the sessions
+ * resumed through session tickets).
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public final class TlsCounters {
+
+    private final OpenSslSessionStats sessionStats;
+
+    private final LongAdder handshakes = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder handshakeTime = new LongAdder();
+    private final LongAccumulator longestHandshake = new LongAccumulator(Long::max, 0);
+
+    public TlsCounters() {
+        this(null);
+    }
+
+    /**
+     * 
+     * @param sessionStats
+     *            the statistics of the session cache of the OpenSSL server
+     *            context the handshakes are done with, if that is what they
+     *            are done with. May be null.
+     */
+    public TlsCounters(final OpenSslSessionStats sessionStats) {
+        this.sessionStats = sessionStats;
+    }
+
+    /**
+     * 
+     * @param nanos
+     *            the time the handshake took.
+     * @param resumed
+     *            whether an existing session was resumed, null if we don't
+     *            know.
+     */
+    void handshake(final long nanos, final Boolean resumed) {
+        this.handshakes.increment();
+        this.handshakeTime.add(nanos);
+        this.longestHandshake.accumulate(nanos);
+        if (resumed == Boolean.TRUE) {
+            this.resumed.increment();
+        }
+    }
+
+    void failed() {
+        this.failed.increment();
+    }
+
+    /**
+     * The number of successful handshakes.
+     * 
+     * @return
+     */
+    public long getHandshakes() {
+        return this.handshakes.sum();
+    }
+
+    public long getResumedHandshakes() {
+        final long resumed = this.resumed.sum();
+        return this.sessionStats == null ? resumed : resumed + this.sessionStats.hits();
+    }
+
+    public long getFullHandshakes() {
+        return Math.max(0, getHandshakes() - getResumedHandshakes());
+    }
+
+    public long getFailedHandshakes() {
+        return this.failed.sum();
+    }
+
+    /**
+     * The average time of a successful handshake, measured from when the
+     * connection was established until the handshake was complete.
+     * 
+     * @return the time in microseconds.
+     */
+    public long getAverageHandshakeTime() {
+        final long handshakes = getHandshakes();
+        return handshakes == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(this.handshakeTime.sum() / handshakes);
+    }
+
+    /**
+     * The time of the slowest handshake.
+     * 
+     * @return the time in microseconds.
+     */
+    public long getLongestHandshakeTime() {
+        return TimeUnit.NANOSECONDS.toMicros(this.longestHandshake.get());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("handshakes: %d (full %d, resumed %d, failed %d), time: avg %d us, max %d us",
+                getHandshakes(), getFullHandshakes(), getResumedHandshakes(), getFailedHandshakes(),
+                getAverageHandshakeTime(), getLongestHandshakeTime());
+    }
+
+}
@@ -0,0 +1,86 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+
+import javax.net.ssl.SSLSession;
+
+/**
+ * Reports the outcome and the duration of the TLS handshake of a channel to
+ * its {@link TlsCounters}. The handshake is timed from when the connection
+ * is established until the {@link SslHandler} says that the handshake is
+ * complete, which includes the round trips to the remote end.
+ * 
+ * The tracker must be placed right after the {@link SslHandler} and since it
+ * keeps track of when the handshake started, every channel needs its own.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public final class TlsHandshakeTracker extends ChannelInboundHandlerAdapter {
+
+    private final TlsCounters counters;
+
+    private long startMillis;
+
+    private long startNanos;
+
+    public TlsHandshakeTracker(final TlsCounters counters) {
+        this.counters = counters;
+    }
+
+    @Override
+    public void handlerAdded(final ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isActive()) {
+            start();
+        }
+    }
+
+    @Override
+    public void channelActive(final ChannelHandlerContext ctx) throws Exception {
+        start();
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    public void userEventTriggered(final ChannelHandlerContext ctx, final Object evt) throws Exception {
+        if (evt instanceof SslHandshakeCompletionEvent && this.startNanos != 0) {
+            final SslHandshakeCompletionEvent event = (SslHandshakeCompletionEvent) evt;
+            if (event.isSuccess()) {
+                this.counters.handshake(System.nanoTime() - this.startNanos, isResumed(ctx));
+            } else {
+                this.counters.failed();
+            }
+            this.startNanos = 0;
+        }
+        ctx.fireUserEventTriggered(evt);
+    }
+
+    private void start() {
+        this.startMillis = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * A resumed session was created before the handshake started. The
+     * OpenSSL engine doesn't keep track of when a session was created, in
+     * which case we simply don't know.
+     */
+    private Boolean isResumed(final ChannelHandlerContext ctx) {
+        final SslHandler ssl = ctx.pipeline().get(SslHandler.class);
+        if (ssl == null) {
+            return null;
+        }
+        final SSLSession session = ssl.engine().getSession();
+        final long created = session == null ? 0 : session.getCreationTime();
+        if (created == 0) {
+            return null;
+        }
+        return created < this.startMillis;
+    }
+
+}
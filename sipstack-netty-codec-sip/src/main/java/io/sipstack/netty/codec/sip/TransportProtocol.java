@@ -0,0 +1,44 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+/**
+ * The transport protocols a {@link Connection} can be using.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public enum TransportProtocol {
+
+    UDP, TCP, TLS, SCTP, WS;
+
+    /**
+     * Whether this is a stream based protocol, i.e., one with an actual
+     * connection to the remote end.
+     * 
+     * @return
+     */
+    public boolean isStream() {
+        return this != UDP;
+    }
+
+    /**
+     * The protocol of the given {@link Connection}.
+     * 
+     * @param connection
+     * @return
+     */
+    public static TransportProtocol of(final Connection connection) {
+        if (connection.isUDP()) {
+            return UDP;
+        } else if (connection.isTLS()) {
+            return TLS;
+        } else if (connection.isWS()) {
+            return WS;
+        } else if (connection.isSCTP()) {
+            return SCTP;
+        }
+        return TCP;
+    }
+
+}
@@ -1,5 +1,6 @@
 package io.sipstack.netty.codec.sip;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.socket.DatagramPacket;
 import io.pkts.packet.sip.SipMessage;
@@ -7,7 +8,9 @@ import io.pkts.packet.sip.SipMessage;
 import java.net.InetSocketAddress;
 
 /**
- * Encapsulates a
+ * Encapsulates a UDP channel and the remote address to send to. If the
+ * channel has a {@link TcpFallback}, a request that is too large for UDP is
+ * sent over TCP instead.
  * 
  * @author jonas@jonasborjesson.com
  */
@@ -35,8 +38,23 @@ public final class UdpConnection extends AbstractConnection {
      */
     @Override
     public void send(final SipMessage msg) {
-        final DatagramPacket pkt = new DatagramPacket(toByteBuf(msg), getRemoteAddress());
-        channel().writeAndFlush(pkt);
+        send(msg.isRequest(), toByteBuf(msg));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void send(final ForwardedMessage msg) {
+        send(msg.isRequest(), toByteBuf(msg));
+    }
+
+    private void send(final boolean request, final ByteBuf buffer) {
+        final TcpFallback fallback = channel().attr(TcpFallback.KEY).get();
+        if (fallback != null && fallback.send(request, buffer, channel(), getRemoteAddress())) {
+            return;
+        }
+        channel().writeAndFlush(new DatagramPacket(buffer, getRemoteAddress()));
     }
 
     @Override
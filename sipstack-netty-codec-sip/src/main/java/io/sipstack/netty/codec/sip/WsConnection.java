@@ -0,0 +1,40 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import io.netty.channel.Channel;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A WebSocket connection (RFC 7118), which may or may not be running over
+ * TLS. What is written to it is turned into WebSocket frames by the
+ * {@link SipMessageWebSocketEncoder} so other than that, it behaves just like
+ * a {@link TcpConnection}, including the {@link OverflowPolicy}.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+public final class WsConnection extends TcpConnection {
+
+    public WsConnection(final Channel channel, final InetSocketAddress remote) {
+        super(channel, remote);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isTCP() {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isWS() {
+        return true;
+    }
+
+}
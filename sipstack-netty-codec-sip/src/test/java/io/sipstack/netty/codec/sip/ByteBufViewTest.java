@@ -0,0 +1,60 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import static io.sipstack.netty.codec.sip.InetEmbeddedChannel.ascii;
+import static io.sipstack.netty.codec.sip.InetEmbeddedChannel.direct;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class ByteBufViewTest {
+
+    private static final String TEXT = "SIP/2.0 200 OK\r\n";
+
+    @Test
+    public void testHeapBufferIsNotCopied() throws Exception {
+        final ByteBuf buffer = ascii(TEXT);
+        final ByteBufView view = new ByteBufView(buffer);
+        assertTrue(view.isZeroCopy());
+
+        view.wrap();
+        assertEquals(1, buffer.refCnt());
+        assertSame(buffer, view.getByteBuf());
+        buffer.release();
+    }
+
+    /**
+     * A direct buffer has to be copied but only the sections that are
+     * wrapped, and the buffer itself is left to whoever owns it.
+     */
+    @Test
+    public void testDirectBufferIsCopiedSectionBySection() throws Exception {
+        final ByteBuf buffer = direct(TEXT);
+        final ByteBufView view = new ByteBufView(buffer);
+        assertFalse(view.isZeroCopy());
+
+        assertEquals(6, view.wrap(8, 14).getReadableBytes());
+        assertEquals("200 OK", view.wrap(8, 14).toString());
+        assertEquals(TEXT, view.wrap().toString());
+        assertEquals(1, buffer.refCnt());
+        assertEquals(TEXT.length(), view.length());
+        assertEquals('O', view.getByte(TEXT.indexOf('O')));
+
+        final ByteBuf slice = view.retainedSlice(8, 14);
+        assertEquals("200 OK", ascii(slice));
+        slice.release();
+
+        assertSame(buffer, view.getByteBuf());
+        assertTrue(buffer.release());
+    }
+
+}
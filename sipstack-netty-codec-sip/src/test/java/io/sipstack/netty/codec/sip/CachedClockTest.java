@@ -0,0 +1,130 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import static io.sipstack.netty.codec.sip.InetEmbeddedChannel.ascii;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class CachedClockTest {
+
+    private static final String OPTIONS = "OPTIONS sip:alice@example.com SIP/2.0\r\n"
+            + "Via: SIP/2.0/TCP 10.36.10.10:5060;branch=z9hG4bK-1\r\n"
+            + "Call-ID: options-1\r\n"
+            + "CSeq: 1 OPTIONS\r\n"
+            + "Content-Length: 0\r\n"
+            + "\r\n";
+
+    private CachedClock clock;
+
+    /**
+     * The times read by the handler after the updater, one pair per message.
+     */
+    private List<long[]> times;
+
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        this.clock = new CachedClock();
+        this.times = new ArrayList<>();
+        this.channel = new EmbeddedChannel(this.clock.getUpdater(), new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+                CachedClockTest.this.times.add(new long[] {
+                        CachedClockTest.this.clock.getCurrentTimeMillis(),
+                        CachedClockTest.this.clock.getNanoTime() });
+            }
+        });
+    }
+
+    /**
+     * Everything read during the same read cycle gets the same time.
+     */
+    @Test
+    public void testSameTimeWithinReadCycle() throws Exception {
+        this.channel.pipeline().fireChannelRead("a");
+        spin();
+        this.channel.pipeline().fireChannelRead("b");
+        this.channel.pipeline().fireChannelReadComplete();
+
+        assertEquals(2, this.times.size());
+        assertEquals(this.times.get(0)[0], this.times.get(1)[0]);
+        assertEquals(this.times.get(0)[1], this.times.get(1)[1]);
+    }
+
+    /**
+     * The next read cycle reads the clocks anew.
+     */
+    @Test
+    public void testNewTimePerReadCycle() throws Exception {
+        this.channel.pipeline().fireChannelRead("a").fireChannelReadComplete();
+        spin();
+        this.channel.pipeline().fireChannelRead("b").fireChannelReadComplete();
+
+        assertEquals(2, this.times.size());
+        assertTrue(this.times.get(1)[1] > this.times.get(0)[1]);
+    }
+
+    /**
+     * Outside of a read cycle, including after a channel closed in the
+     * middle of one, the clock simply reads the system clocks.
+     */
+    @Test
+    public void testOutsideReadCycle() throws Exception {
+        final long before = this.clock.getNanoTime();
+        spin();
+        assertTrue(this.clock.getNanoTime() > before);
+
+        this.channel.pipeline().fireChannelRead("a");
+        final long cached = this.clock.getNanoTime();
+        this.channel.pipeline().fireChannelInactive();
+        spin();
+        assertTrue(this.clock.getNanoTime() > cached);
+    }
+
+    /**
+     * The messages decoded out of the same read share their arrival time.
+     */
+    @Test
+    public void testArrivalTimeOfPipelinedMessages() throws Exception {
+        final DecoderConfiguration config = DecoderConfiguration.with().lazyParsing(true).build();
+        final InetEmbeddedChannel channel = new InetEmbeddedChannel(this.clock.getUpdater(),
+                new SipMessageStreamDecoder(this.clock, config));
+        try {
+            assertTrue(channel.writeInbound(ascii(OPTIONS + OPTIONS)));
+            final SipMessageEvent first = (SipMessageEvent) channel.readInbound();
+            final SipMessageEvent second = (SipMessageEvent) channel.readInbound();
+            assertEquals(first.getArrivalTime(), second.getArrivalTime());
+            assertEquals(first.getArrivalNanoTime(), second.getArrivalNanoTime());
+            first.release();
+            second.release();
+        } finally {
+            channel.finish();
+        }
+    }
+
+    /**
+     * Wait for the monotonic clock to move on.
+     */
+    private static void spin() {
+        final long start = System.nanoTime();
+        while (System.nanoTime() == start) {
+            Thread.yield();
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import static io.sipstack.netty.codec.sip.InetEmbeddedChannel.ascii;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import io.netty.buffer.ByteBuf;
+import io.pkts.buffer.Buffers;
+import io.pkts.packet.sip.SipMessage;
+
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class CompactFormTest {
+
+    private static final String INVITE = "INVITE sip:bob@example.com SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 10.36.10.10:5060;branch=z9hG4bK-1\r\n"
+            + "From : <sip:alice@example.com>;tag=1\r\n"
+            + "TO:\t<sip:bob@example.com>\r\n"
+            + "Call-ID: invite-1\r\n"
+            + "CSeq: 1 INVITE\r\n"
+            + "Max-Forwards:  70\r\n"
+            + "Contact: <sip:alice@10.36.10.10:5060>\r\n"
+            + "Content-Type: application/sdp\r\n"
+            + "Content-Length: 12\r\n"
+            + "\r\n"
+            + "v=0\r\nFrom: x\r\n";
+
+    private static final String COMPACT = "INVITE sip:bob@example.com SIP/2.0\r\n"
+            + "v:SIP/2.0/UDP 10.36.10.10:5060;branch=z9hG4bK-1\r\n"
+            + "f:<sip:alice@example.com>;tag=1\r\n"
+            + "t:<sip:bob@example.com>\r\n"
+            + "i:invite-1\r\n"
+            + "CSeq:1 INVITE\r\n"
+            + "Max-Forwards:70\r\n"
+            + "m:<sip:alice@10.36.10.10:5060>\r\n"
+            + "c:application/sdp\r\n"
+            + "l:12\r\n"
+            + "\r\n"
+            + "v=0\r\nFrom: x\r\n";
+
+    private static final String OPTIONS = "OPTIONS sip:bob@example.com SIP/2.0\r\n"
+            + "Call-ID: options-1\r\n"
+            + "Content-Length: 0\r\n";
+
+    /**
+     * The names of the headers are compacted, the optional whitespace around
+     * the colon is dropped and the initial line and the body are left as is.
+     */
+    @Test
+    public void testCompact() throws Exception {
+        final ByteBuf message = ascii(INVITE);
+        final ByteBuf compacted = CompactForm.compact(message);
+        assertEquals(COMPACT, ascii(compacted));
+
+        // the compacted message holds on to slices of the original one
+        assertTrue(message.refCnt() > 0);
+        assertTrue(compacted.release());
+        assertEquals(0, message.refCnt());
+    }
+
+    /**
+     * A message that already is as compact as it gets is returned as is.
+     */
+    @Test
+    public void testNothingToCompact() throws Exception {
+        final ByteBuf message = ascii(COMPACT);
+        assertSame(message, CompactForm.compact(message));
+        assertTrue(message.release());
+    }
+
+    /**
+     * The compact names are shared by every message so they must survive
+     * the messages being released.
+     */
+    @Test
+    public void testSharedNames() throws Exception {
+        for (int i = 0; i < 3; ++i) {
+            final ByteBuf compacted = CompactForm.compact(ascii(INVITE));
+            assertEquals(COMPACT, ascii(compacted));
+            assertTrue(compacted.release());
+        }
+    }
+
+    /**
+     * Each {@link CompactForm} counts the messages it compacts on its own.
+     */
+    @Test
+    public void testCounters() throws Exception {
+        final CompactForm compactForm = new CompactForm(CompactForm.Policy.ALWAYS);
+        final CompactForm other = new CompactForm(CompactForm.Policy.ALWAYS);
+        compactForm.encode(ascii(INVITE)).release();
+        compactForm.encode(ascii(INVITE)).release();
+
+        assertEquals(2, compactForm.getMessageCount());
+        assertEquals(2 * INVITE.length(), compactForm.getOriginalBytes());
+        assertEquals(2 * COMPACT.length(), compactForm.getCompactedBytes());
+        assertEquals(2 * (INVITE.length() - COMPACT.length()), compactForm.getBytesSaved());
+        assertEquals(0, other.getMessageCount());
+    }
+
+    /**
+     * The {@link CompactForm} of the channel applies to what is written to
+     * it, as long as its policy says so.
+     */
+    @Test
+    public void testEncoderUsesChannelCompactForm() throws Exception {
+        assertEncoded(new CompactForm(CompactForm.Policy.ALWAYS), "OPTIONS sip:bob@example.com SIP/2.0\r\n"
+                + "i:options-1\r\n"
+                + "l:0\r\n\r\n");
+        assertEncoded(new CompactForm(CompactForm.Policy.NEVER), OPTIONS + "\r\n");
+    }
+
+    private static void assertEncoded(final CompactForm compactForm, final String expected) {
+        final InetEmbeddedChannel channel = new InetEmbeddedChannel(new SipMessageEncoder());
+        channel.attr(CompactForm.KEY).set(compactForm);
+        final SipMessage msg = mock(SipMessage.class);
+        when(msg.toBuffer()).thenReturn(Buffers.wrap(OPTIONS));
+
+        assertTrue(channel.writeOutbound(msg));
+        final ByteBuf buffer = (ByteBuf) channel.readOutbound();
+        assertEquals(expected, ascii(buffer));
+        buffer.release();
+        channel.finish();
+    }
+
+}
@@ -0,0 +1,109 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.net.InetAddress;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class ConnectionLimiterTest {
+
+    private static final InetAddress REMOTE = InetEmbeddedChannel.REMOTE.getAddress();
+
+    /**
+     * Stands in for the server channel, which reads the accepted
+     * connections.
+     */
+    private EmbeddedChannel server;
+
+    @After
+    public void tearDown() throws Exception {
+        if (this.server != null) {
+            this.server.finish();
+        }
+    }
+
+    @Test
+    public void testMaxConnectionsPerIp() throws Exception {
+        final ConnectionLimiter limiter = newLimiter(0, 2);
+        final Channel a = assertAccepted();
+        assertAccepted();
+        assertRejected();
+        assertEquals(2, limiter.getConnections(REMOTE));
+        assertEquals(1, limiter.getSources());
+        assertEquals(1, limiter.getRejectedPerIp());
+        assertEquals(0, limiter.getRejected());
+
+        // once one closes, there is room for another
+        a.close();
+        assertEquals(1, limiter.getConnections(REMOTE));
+        assertAccepted();
+        assertEquals(2, limiter.getConnections());
+    }
+
+    @Test
+    public void testMaxConnections() throws Exception {
+        final ConnectionLimiter limiter = newLimiter(1, 0);
+        final Channel a = assertAccepted();
+        assertRejected();
+        assertEquals(1, limiter.getConnections());
+        assertEquals(1, limiter.getRejected());
+        assertEquals(0, limiter.getRejectedPerIp());
+
+        a.close();
+        assertEquals(0, limiter.getConnections());
+        assertEquals(0, limiter.getSources());
+    }
+
+    /**
+     * Zero means no limit.
+     */
+    @Test
+    public void testNoLimits() throws Exception {
+        final ConnectionLimiter limiter = newLimiter(0, 0);
+        for (int i = 0; i < 10; ++i) {
+            assertAccepted();
+        }
+        assertEquals(10, limiter.getConnections(REMOTE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeLimit() throws Exception {
+        new ConnectionLimiter(-1, 0);
+    }
+
+    private ConnectionLimiter newLimiter(final int maxConnections, final int maxConnectionsPerIp) {
+        final ConnectionLimiter limiter = new ConnectionLimiter(maxConnections, maxConnectionsPerIp);
+        this.server = new EmbeddedChannel(limiter);
+        return limiter;
+    }
+
+    private Channel assertAccepted() {
+        final Channel child = new InetEmbeddedChannel();
+        assertTrue(this.server.writeInbound(child));
+        assertSame(child, this.server.readInbound());
+        assertTrue(child.isOpen());
+        return child;
+    }
+
+    private void assertRejected() {
+        final Channel child = new InetEmbeddedChannel();
+        assertFalse(this.server.writeInbound(child));
+        assertNull(this.server.readInbound());
+        assertFalse(child.isOpen());
+    }
+
+}
@@ -0,0 +1,200 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import static org.junit.Assert.assertEquals;
+import static io.sipstack.netty.codec.sip.InetEmbeddedChannel.ascii;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class ConnectionManagerTest {
+
+    private static final InetSocketAddress LOCAL = new InetSocketAddress("127.0.0.1", 5060);
+
+    private static final String PING = "\r\n\r\n";
+
+    private ConnectionManager udp;
+
+    private EmbeddedChannel[] sockets;
+
+    @Before
+    public void setUp() throws Exception {
+        this.udp = new ConnectionManager(TransportProtocol.UDP, LOCAL, null, null, null);
+        this.sockets = new EmbeddedChannel[4];
+        for (int i = 0; i < this.sockets.length; ++i) {
+            this.sockets[i] = new EmbeddedChannel();
+            this.udp.addUdpChannel(this.sockets[i]);
+        }
+    }
+
+    /**
+     * With several sockets bound to the same ip:port, everything sent to the
+     * same remote address goes out over the same socket.
+     */
+    @Test
+    public void testUdpSocketPerRemote() throws Exception {
+        final InetSocketAddress remote = new InetSocketAddress("10.36.10.10", 5060);
+        final Channel socket = channel(this.udp.connect(TransportProtocol.UDP, remote));
+        for (int i = 0; i < 10; ++i) {
+            final Connection connection = this.udp.connect(TransportProtocol.UDP, remote);
+            assertSame(socket, channel(connection));
+            assertTrue(connection.isUDP());
+            assertTrue(this.udp.manages(connection));
+        }
+    }
+
+    /**
+     * Different remote addresses are spread across the sockets.
+     */
+    @Test
+    public void testUdpSocketsSpread() throws Exception {
+        final Set<Channel> used = new HashSet<>();
+        for (int i = 0; i < 64; ++i) {
+            used.add(channel(this.udp.connect(TransportProtocol.UDP, new InetSocketAddress("10.36.10." + i, 5060))));
+        }
+        assertEquals(this.sockets.length, used.size());
+    }
+
+    /**
+     * A UDP connection over a socket of another listening point isn't ours.
+     */
+    @Test
+    public void testManagesUdp() throws Exception {
+        final InetSocketAddress remote = new InetSocketAddress("10.36.10.10", 5060);
+        assertFalse(this.udp.manages(new UdpConnection(new EmbeddedChannel(), remote)));
+    }
+
+    @Test
+    public void testNoUdpSockets() throws Exception {
+        final ConnectionManager manager = new ConnectionManager(TransportProtocol.UDP, LOCAL, null, null, null);
+        try {
+            manager.connect(TransportProtocol.UDP, new InetSocketAddress("10.36.10.10", 5060));
+            fail("Expected an IllegalStateException");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * An accepted connection is a flow that is found by its remote address
+     * and reused instead of establishing a new one, until it closes.
+     */
+    @Test
+    public void testInboundFlow() throws Exception {
+        final ConnectionManager manager = new ConnectionManager(LOCAL, new Bootstrap(),
+                new ChannelInboundHandlerAdapter(), null);
+        final InetEmbeddedChannel flow = new InetEmbeddedChannel(manager.getFlowTracker());
+        final Connection connection = manager.find(TransportProtocol.TCP, InetEmbeddedChannel.REMOTE);
+        assertSame(flow, channel(connection));
+        assertSame(connection, manager.connect(TransportProtocol.TCP, InetEmbeddedChannel.REMOTE));
+        assertTrue(manager.manages(connection));
+        assertNull(manager.find(TransportProtocol.TLS, InetEmbeddedChannel.REMOTE));
+        assertEquals(1, manager.getFlowCount());
+        assertEquals(1, manager.getInboundCount());
+        assertEquals(0, manager.getOutboundCount());
+
+        flow.close();
+        flow.runPendingTasks();
+        assertNull(manager.find(TransportProtocol.TCP, InetEmbeddedChannel.REMOTE));
+        assertFalse(manager.manages(connection));
+        assertEquals(0, manager.getFlowCount());
+        assertEquals(0, manager.getInboundCount());
+    }
+
+    /**
+     * WebSocket flows can only be established by the remote end.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoOutboundWebSocket() throws Exception {
+        final ConnectionManager manager = new ConnectionManager(TransportProtocol.WS, LOCAL, new Bootstrap(),
+                new ChannelInboundHandlerAdapter(), null);
+        manager.connect(TransportProtocol.WS, InetEmbeddedChannel.REMOTE);
+    }
+
+    /**
+     * A TCP manager doesn't establish flows over other transports.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongTransport() throws Exception {
+        final ConnectionManager manager = new ConnectionManager(LOCAL, new Bootstrap(),
+                new ChannelInboundHandlerAdapter(), null);
+        manager.connect(TransportProtocol.TLS, InetEmbeddedChannel.REMOTE);
+    }
+
+    /**
+     * An outbound flow is handed out right away, whatever is sent over it
+     * before it is connected is written once it is, and it is reused from
+     * then on.
+     */
+    @Test(timeout = 10000)
+    public void testOutboundFlow() throws Exception {
+        final NioEventLoopGroup group = new NioEventLoopGroup(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final StringBuilder received = new StringBuilder();
+        try {
+            final Channel server = new ServerBootstrap().group(group).channel(NioServerSocketChannel.class)
+                    .childHandler(new ChannelInboundHandlerAdapter() {
+                        @Override
+                        public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+                            final ByteBuf buffer = (ByteBuf) msg;
+                            received.append(ascii(buffer));
+                            buffer.release();
+                            if (received.length() == 2 * PING.length()) {
+                                latch.countDown();
+                            }
+                        }
+                    }).bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+            final InetSocketAddress remote = (InetSocketAddress) server.localAddress();
+
+            final Bootstrap client = new Bootstrap().group(group).channel(NioSocketChannel.class);
+            final ConnectionManager manager = new ConnectionManager(LOCAL, client,
+                    new ChannelInboundHandlerAdapter(), null);
+            final TcpConnection connection = (TcpConnection) manager.connect(TransportProtocol.TCP, remote);
+            assertTrue(connection.write(ascii(PING)));
+            assertSame(connection, manager.connect(TransportProtocol.TCP, remote));
+            assertTrue(connection.write(ascii(PING)));
+
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertEquals(PING + PING, received.toString());
+            assertEquals(1, manager.getFlowCount());
+            assertEquals(1, manager.getOutboundCount());
+            assertEquals(0, manager.getInboundCount());
+
+            connection.channel().close().sync();
+            server.close().sync();
+        } finally {
+            group.shutdownGracefully(0, 0, TimeUnit.SECONDS).sync();
+        }
+    }
+
+    private static Channel channel(final Connection connection) {
+        return ((AbstractConnection) connection).channel();
+    }
+
+}
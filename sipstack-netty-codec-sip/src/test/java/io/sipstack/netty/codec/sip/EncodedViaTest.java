@@ -0,0 +1,135 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import static io.sipstack.netty.codec.sip.InetEmbeddedChannel.ascii;
+import static org.junit.Assert.assertEquals;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.pkts.buffer.Buffer;
+import io.pkts.buffer.Buffers;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class EncodedViaTest {
+
+    private static final String INITIAL_LINE = "INVITE sip:alice@example.com SIP/2.0\r\n";
+
+    private static final String HEADERS = "Via: SIP/2.0/UDP 10.36.10.10:5060;branch=z9hG4bK-a\r\n"
+            + "From: <sip:bob@example.com>;tag=1\r\n"
+            + "To: <sip:alice@example.com>\r\n"
+            + "Call-ID: invite-1\r\n"
+            + "CSeq: 1 INVITE\r\n"
+            + "Content-Length: 0\r\n"
+            + "\r\n";
+
+    @Test
+    public void testPrefix() throws Exception {
+        assertEquals("Via: SIP/2.0/UDP 10.36.10.20:5060;branch=", EncodedVia.of("UDP", "10.36.10.20", 5060)
+                .toString());
+        assertEquals("Via: SIP/2.0/WSS example.com:443;branch=", EncodedVia.of("WSS", "example.com", 443).toString());
+    }
+
+    /**
+     * An IPv6 reference goes within brackets, unless it already is.
+     */
+    @Test
+    public void testIPv6() throws Exception {
+        assertEquals("[2001:db8::1]", EncodedVia.of("TCP", "2001:db8::1", 5060).getHost());
+        assertEquals("[2001:db8::1]", EncodedVia.of("TCP", "[2001:db8::1]", 5060).getHost());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownTransport() throws Exception {
+        EncodedVia.of("udp", "10.36.10.20", 5060);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPort() throws Exception {
+        EncodedVia.of("UDP", "10.36.10.20", 65536);
+    }
+
+    /**
+     * Only the readable bytes of the branch end up in the header.
+     */
+    @Test
+    public void testWithBranch() throws Exception {
+        final Buffer branch = Buffers.wrap("xxz9hG4bK-1");
+        branch.readByte();
+        branch.readByte();
+
+        final EncodedHeader via = EncodedVia.of("UDP", "10.36.10.20", 5060).withBranch(branch);
+        assertEquals("Via", via.getName());
+        assertEquals("Via: SIP/2.0/UDP 10.36.10.20:5060;branch=z9hG4bK-1", via.toString());
+        assertEquals(via.toString().length() + 2, via.length());
+    }
+
+    /**
+     * A branch taken out of a frame is a view of a section of the array
+     * backing the frame, which for a pooled buffer is somewhere in the middle
+     * of a much larger chunk, and only that section ends up in the header.
+     */
+    @Test
+    public void testWithBranchOfFrame() throws Exception {
+        final ByteBuf chunk = PooledByteBufAllocator.DEFAULT.heapBuffer(4096);
+        for (int i = 0; i < 1000; ++i) {
+            chunk.writeByte('x');
+        }
+        chunk.writeBytes((INITIAL_LINE + HEADERS).getBytes(StandardCharsets.US_ASCII));
+        chunk.skipBytes(1000);
+
+        final EmbeddedChannel channel = new EmbeddedChannel(new SipMessageDatagramDecoder(new SystemClock(),
+                DecoderConfiguration.with().lazyParsing(true).build()));
+        channel.writeInbound(new DatagramPacket(chunk, new InetSocketAddress("10.36.10.20", 5060),
+                InetEmbeddedChannel.REMOTE));
+        final SipMessageEvent event = channel.readInbound();
+        try {
+            final EncodedHeader via = EncodedVia.of("UDP", "10.36.10.20", 5060).withBranch(event.getViaBranch());
+            assertEquals("Via: SIP/2.0/UDP 10.36.10.20:5060;branch=z9hG4bK-a", via.toString());
+        } finally {
+            event.release();
+            channel.finish();
+        }
+    }
+
+    /**
+     * The encoded Via goes on top of the Via-headers of a forwarded message
+     * and is the one that is popped first.
+     */
+    @Test
+    public void testForwarded() throws Exception {
+        final EncodedHeader via = EncodedVia.of("TCP", "10.36.10.20", 5060).withBranch(Buffers.wrap("z9hG4bK-1"));
+        final EmbeddedChannel channel = new EmbeddedChannel(new SipMessageDatagramDecoder(new SystemClock(),
+                DecoderConfiguration.with().lazyParsing(true).build()));
+        channel.writeInbound(new DatagramPacket(ascii(INITIAL_LINE + HEADERS), new InetSocketAddress("10.36.10.20",
+                5060), InetEmbeddedChannel.REMOTE));
+        final SipMessageEvent event = channel.readInbound();
+        try {
+            final ForwardedMessage msg = ForwardedMessage.of(event).addHeaderFirst(via);
+            assertForwarded(msg, INITIAL_LINE + "Via: SIP/2.0/TCP 10.36.10.20:5060;branch=z9hG4bK-1\r\n" + HEADERS);
+            assertForwarded(msg.popViaHeader(), INITIAL_LINE + HEADERS);
+        } finally {
+            event.release();
+            channel.finish();
+        }
+    }
+
+    private static void assertForwarded(final ForwardedMessage msg, final String expected) {
+        final ByteBuf buffer = msg.toByteBuf();
+        try {
+            assertEquals(expected, ascii(buffer));
+        } finally {
+            buffer.release();
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class FlushCoalescingHandlerTest {
+
+    private BatchCounters counters;
+
+    private EmbeddedChannel channel;
+
+    /**
+     * The number of flushes that made it all the way to the transport.
+     */
+    private int flushes;
+
+    @Before
+    public void setUp() throws Exception {
+        this.counters = new BatchCounters();
+        this.channel = new EmbeddedChannel(new ChannelOutboundHandlerAdapter() {
+            @Override
+            public void flush(final ChannelHandlerContext ctx) throws Exception {
+                ++FlushCoalescingHandlerTest.this.flushes;
+                ctx.flush();
+            }
+        }, new FlushCoalescingHandler(this.counters), new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+                // answer every message right away, just like a UAS would
+                ctx.writeAndFlush(msg);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.channel.finish();
+    }
+
+    /**
+     * Everything written during a read cycle goes out with a single flush
+     * once the cycle is complete.
+     */
+    @Test
+    public void testFlushPerReadCycle() throws Exception {
+        this.channel.pipeline().fireChannelRead("a").fireChannelRead("b").fireChannelRead("c");
+        assertEquals(0, this.flushes);
+        assertNull(this.channel.readOutbound());
+
+        this.channel.pipeline().fireChannelReadComplete();
+        assertEquals(1, this.flushes);
+        assertEquals("a", this.channel.readOutbound());
+        assertEquals("b", this.channel.readOutbound());
+        assertEquals("c", this.channel.readOutbound());
+
+        assertEquals(1, this.counters.getReadBatches());
+        assertEquals(3, this.counters.getMessagesRead());
+        assertEquals(1, this.counters.getFlushes());
+        assertEquals(3, this.counters.getLargestFlush());
+    }
+
+    /**
+     * A flush outside of a read cycle is postponed until the event loop has
+     * processed what is already queued up, so writes issued back to back
+     * share it.
+     */
+    @Test
+    public void testFlushOutsideReadCycle() throws Exception {
+        this.channel.writeAndFlush("a");
+        this.channel.writeAndFlush("b");
+        assertEquals(0, this.flushes);
+
+        this.channel.runPendingTasks();
+        assertEquals(1, this.flushes);
+        assertEquals("a", this.channel.readOutbound());
+        assertEquals("b", this.channel.readOutbound());
+        assertEquals(2.0, this.counters.getAverageFlush(), 0.0);
+    }
+
+    /**
+     * Nothing written is left behind when the channel closes.
+     */
+    @Test
+    public void testFlushOnClose() throws Exception {
+        this.channel.pipeline().fireChannelRead("a");
+        this.channel.close();
+        assertEquals(1, this.flushes);
+        assertEquals("a", this.channel.readOutbound());
+    }
+
+}
@@ -0,0 +1,189 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import static io.sipstack.netty.codec.sip.InetEmbeddedChannel.ascii;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.pkts.buffer.Buffer;
+import io.pkts.buffer.Buffers;
+import io.pkts.packet.sip.header.SipHeader;
+
+import java.net.InetSocketAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class ForwardedMessageTest {
+
+    private static final String INITIAL_LINE = "SIP/2.0 200 OK\r\n";
+
+    private static final String HEADERS = "From: <sip:bob@example.com>;tag=1\r\n"
+            + "To: <sip:alice@example.com>;tag=2\r\n"
+            + "Call-ID: invite-1\r\n"
+            + "CSeq: 1 INVITE\r\n"
+            + "Content-Length: 0\r\n"
+            + "\r\n";
+
+    private static final InetSocketAddress LOCAL = new InetSocketAddress("10.36.10.20", 5060);
+
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        final DecoderConfiguration config = DecoderConfiguration.with().lazyParsing(true).build();
+        this.channel = new EmbeddedChannel(new SipMessageDatagramDecoder(new SystemClock(), config));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.channel.finish();
+    }
+
+    /**
+     * A Via-header with several values only loses its first value.
+     */
+    @Test
+    public void testPopViaHeaderWithSeveralValues() throws Exception {
+        final String vias = "Via: SIP/2.0/UDP a.example.com;branch=z9hG4bK-a,SIP/2.0/UDP b.example.com;branch=z9hG4bK-b,"
+                + "  SIP/2.0/UDP c.example.com;branch=z9hG4bK-c\r\n"
+                + "Via: SIP/2.0/UDP d.example.com;branch=z9hG4bK-d\r\n";
+        final SipMessageEvent event = decode(INITIAL_LINE + vias + HEADERS);
+        try {
+            final ForwardedMessage msg = ForwardedMessage.of(event);
+            assertForwarded(msg.popViaHeader(), "Via: SIP/2.0/UDP b.example.com;branch=z9hG4bK-b,"
+                    + "  SIP/2.0/UDP c.example.com;branch=z9hG4bK-c\r\n"
+                    + "Via: SIP/2.0/UDP d.example.com;branch=z9hG4bK-d\r\n");
+            assertForwarded(msg.popViaHeader(), "Via: SIP/2.0/UDP c.example.com;branch=z9hG4bK-c\r\n"
+                    + "Via: SIP/2.0/UDP d.example.com;branch=z9hG4bK-d\r\n");
+            assertForwarded(msg.popViaHeader(), "Via: SIP/2.0/UDP d.example.com;branch=z9hG4bK-d\r\n");
+            assertForwarded(msg.popViaHeader(), "");
+            assertForwarded(msg.popViaHeader(), "");
+        } finally {
+            event.release();
+        }
+    }
+
+    /**
+     * Same as above but in compact form.
+     */
+    @Test
+    public void testPopCompactViaHeaderWithSeveralValues() throws Exception {
+        final String vias = "v: SIP/2.0/UDP a.example.com;branch=z9hG4bK-a, SIP/2.0/UDP b.example.com;branch=z9hG4bK-b\r\n";
+        final SipMessageEvent event = decode(INITIAL_LINE + vias + HEADERS);
+        try {
+            final ForwardedMessage msg = ForwardedMessage.of(event);
+            assertForwarded(msg.popViaHeader(), "v: SIP/2.0/UDP b.example.com;branch=z9hG4bK-b\r\n");
+            assertForwarded(msg.popViaHeader(), "");
+        } finally {
+            event.release();
+        }
+    }
+
+    /**
+     * The sent-by of the top-most Via left, once ours has been popped, is
+     * where a response goes next.
+     */
+    @Test
+    public void testViaSentBy() throws Exception {
+        final String vias = "Via: SIP/2.0/UDP a.example.com;branch=z9hG4bK-a,SIP/2.0/UDP b.example.com:5070;branch=z9hG4bK-b\r\n"
+                + "v: SIP / 2.0 / TLS [2001:db8::1] ;branch=z9hG4bK-c\r\n";
+        final SipMessageEvent event = decode(INITIAL_LINE + vias + HEADERS);
+        try {
+            assertFalse(event.isRequest());
+            final ForwardedMessage msg = ForwardedMessage.of(event);
+            assertSentBy(msg, "a.example.com", 5060);
+            assertSentBy(msg.popViaHeader(), "b.example.com", 5070);
+            assertSentBy(msg.popViaHeader(), "[2001:db8::1]", 5061);
+            assertNull(msg.popViaHeader().getViaSentBy());
+        } finally {
+            event.release();
+        }
+    }
+
+    /**
+     * Only the readable bytes of the name and value of an added header are
+     * written.
+     */
+    @Test
+    public void testAddHeader() throws Exception {
+        final String vias = "Via: SIP/2.0/UDP a.example.com;branch=z9hG4bK-a\r\n";
+        final SipMessageEvent event = decode(INITIAL_LINE + vias + HEADERS);
+        try {
+            final Buffer name = Buffers.wrap("Subject: X-Foo");
+            for (int i = 0; i < "Subject: ".length(); ++i) {
+                name.readByte();
+            }
+            final SipHeader header = mock(SipHeader.class);
+            when(header.getName()).thenReturn(name);
+            when(header.getValue()).thenReturn(Buffers.wrap("bar"));
+
+            final ByteBuf buffer = ForwardedMessage.of(event).addHeader(header).toByteBuf();
+            assertEquals(INITIAL_LINE + vias + HEADERS.substring(0, HEADERS.length() - 2) + "X-Foo: bar\r\n\r\n",
+                    ascii(buffer));
+            buffer.release();
+        } finally {
+            event.release();
+        }
+    }
+
+    /**
+     * Forwarding a message that has a {@link HeaderIndex} never parses it,
+     * neither to find out what it is nor to pop a Via off of it.
+     */
+    @Test
+    public void testNotParsed() throws Exception {
+        final String vias = "Via: SIP/2.0/UDP a.example.com;branch=z9hG4bK-a\r\n"
+                + "Via: SIP/2.0/UDP b.example.com;branch=z9hG4bK-b\r\n";
+        final SipMessageEvent event = decode(INITIAL_LINE + vias + HEADERS);
+        try {
+            final SipMessageEvent lazy = mock(SipMessageEvent.class);
+            when(lazy.getHeaderIndex()).thenReturn(event.getHeaderIndex());
+
+            final ForwardedMessage msg = ForwardedMessage.of(lazy);
+            assertFalse(msg.isRequest());
+            assertSentBy(msg.popViaHeader(), "b.example.com", 5060);
+            assertForwarded(msg, "Via: SIP/2.0/UDP b.example.com;branch=z9hG4bK-b\r\n");
+            verify(lazy, never()).getMessage();
+        } finally {
+            event.release();
+        }
+    }
+
+    private static void assertSentBy(final ForwardedMessage msg, final String host, final int port) {
+        final InetSocketAddress sentBy = msg.getViaSentBy();
+        assertEquals(host, sentBy.getHostString());
+        assertEquals(port, sentBy.getPort());
+    }
+
+    private SipMessageEvent decode(final String msg) {
+        this.channel.writeInbound(new DatagramPacket(ascii(msg), LOCAL, InetEmbeddedChannel.REMOTE));
+        final SipMessageEvent event = this.channel.readInbound();
+        assertNotNull(event);
+        return event;
+    }
+
+    private static void assertForwarded(final ForwardedMessage msg, final String vias) {
+        final ByteBuf buffer = msg.toByteBuf();
+        try {
+            assertEquals(INITIAL_LINE + vias + HEADERS, ascii(buffer));
+        } finally {
+            buffer.release();
+        }
+    }
+
+}
@@ -0,0 +1,179 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import static io.sipstack.netty.codec.sip.InetEmbeddedChannel.ascii;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class FramingGuardTest {
+
+    private static final String OPTIONS = "OPTIONS sip:alice@example.com SIP/2.0\r\n"
+            + "Via: SIP/2.0/TCP 10.36.10.10:5060;branch=z9hG4bK-1\r\n"
+            + "Call-ID: options-1\r\n"
+            + "CSeq: 1 OPTIONS\r\n"
+            + "Content-Length: 0\r\n"
+            + "\r\n";
+
+    private ManualClock clock;
+
+    private FramingGuard guard;
+
+    @Before
+    public void setUp() throws Exception {
+        this.clock = new ManualClock();
+        this.guard = new FramingGuard(this.clock, 100, 1000);
+    }
+
+    /**
+     * The sweep closes the connections that have been at their message for
+     * too long and leaves the others alone.
+     */
+    @Test
+    public void testSweep() throws Exception {
+        final EmbeddedChannel a = new EmbeddedChannel();
+        final EmbeddedChannel b = new EmbeddedChannel();
+        assertTrue(this.guard.update(this.guard.newFlow(a), 10));
+        this.clock.advance(600);
+        assertTrue(this.guard.update(this.guard.newFlow(b), 20));
+
+        this.clock.advance(600);
+        this.guard.sweep();
+        assertFalse(a.isOpen());
+        assertTrue(b.isOpen());
+        assertEquals(1, this.guard.getFlowsInFlight());
+        assertEquals(20, this.guard.getBytesInFlight());
+
+        this.clock.advance(600);
+        this.guard.sweep();
+        assertFalse(b.isOpen());
+        assertEquals(0, this.guard.getFlowsInFlight());
+        assertEquals(0, this.guard.getBytesInFlight());
+    }
+
+    /**
+     * A flow that is past its deadline when more data arrives is evicted
+     * right away, without waiting for the sweep.
+     */
+    @Test
+    public void testDeadlineOnUpdate() throws Exception {
+        final EmbeddedChannel channel = new EmbeddedChannel();
+        final FramingGuard.Flow flow = this.guard.newFlow(channel);
+        assertTrue(this.guard.update(flow, 10));
+        this.clock.advance(1001);
+        assertFalse(this.guard.update(flow, 20));
+        assertFalse(channel.isOpen());
+        assertEquals(0, this.guard.getBytesInFlight());
+
+        // once evicted, always evicted
+        assertFalse(this.guard.update(flow, 20));
+    }
+
+    /**
+     * When over the cap, the flows that started their messages first are
+     * evicted until we are back under it.
+     */
+    @Test
+    public void testEvictOldest() throws Exception {
+        final EmbeddedChannel a = new EmbeddedChannel();
+        final EmbeddedChannel b = new EmbeddedChannel();
+        final EmbeddedChannel c = new EmbeddedChannel();
+        final FramingGuard.Flow flowA = this.guard.newFlow(a);
+        final FramingGuard.Flow flowB = this.guard.newFlow(b);
+        assertTrue(this.guard.update(flowA, 10));
+        this.clock.advance(1);
+        assertTrue(this.guard.update(flowB, 30));
+        this.clock.advance(1);
+
+        // a growing doesn't change when it started
+        assertTrue(this.guard.update(flowA, 60));
+        assertTrue(this.guard.update(this.guard.newFlow(c), 50));
+
+        assertFalse(a.isOpen());
+        assertTrue(b.isOpen());
+        assertTrue(c.isOpen());
+        assertEquals(2, this.guard.getFlowsInFlight());
+        assertEquals(80, this.guard.getBytesInFlight());
+    }
+
+    /**
+     * A flow that is done with its message gives back its bytes and its
+     * next message gets a deadline of its own.
+     */
+    @Test
+    public void testFinish() throws Exception {
+        final EmbeddedChannel channel = new EmbeddedChannel();
+        final FramingGuard.Flow flow = this.guard.newFlow(channel);
+        assertTrue(this.guard.update(flow, 50));
+        this.clock.advance(900);
+        this.guard.finish(flow);
+        assertEquals(0, this.guard.getFlowsInFlight());
+        assertEquals(0, this.guard.getBytesInFlight());
+
+        assertTrue(this.guard.update(flow, 10));
+        this.clock.advance(900);
+        this.guard.sweep();
+        assertTrue(this.guard.update(flow, 20));
+        assertTrue(channel.isOpen());
+        assertEquals(20, this.guard.getBytesInFlight());
+    }
+
+    /**
+     * The stream decoder reports its partial messages to the guard, which
+     * closes the connection of a peer that stops halfway through.
+     */
+    @Test
+    public void testStreamDecoder() throws Exception {
+        final DecoderConfiguration config = DecoderConfiguration.with().lazyParsing(true)
+                .framingGuard(this.guard).build();
+        final InetEmbeddedChannel channel = new InetEmbeddedChannel(new SipMessageStreamDecoder(this.clock, config));
+
+        assertTrue(channel.writeInbound(ascii(OPTIONS + OPTIONS.substring(0, 10))));
+        ((SipMessageEvent) channel.readInbound()).release();
+        assertNull(channel.readInbound());
+        assertEquals(1, this.guard.getFlowsInFlight());
+        assertEquals(10, this.guard.getBytesInFlight());
+
+        this.clock.advance(1001);
+        this.guard.sweep();
+        assertFalse(channel.isOpen());
+        assertEquals(0, this.guard.getFlowsInFlight());
+        assertEquals(0, this.guard.getBytesInFlight());
+        channel.finish();
+    }
+
+    /**
+     * A {@link Clock} that only moves when told to.
+     */
+    private static final class ManualClock implements Clock {
+
+        private long nanos = 42;
+
+        void advance(final long millis) {
+            this.nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+
+        @Override
+        public long getCurrentTimeMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(this.nanos);
+        }
+
+        @Override
+        public long getNanoTime() {
+            return this.nanos;
+        }
+    }
+
+}
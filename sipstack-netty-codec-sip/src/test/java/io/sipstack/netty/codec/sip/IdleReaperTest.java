@@ -0,0 +1,120 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class IdleReaperTest {
+
+    private ManualClock clock;
+
+    private IdleReaper reaper;
+
+    @Before
+    public void setUp() throws Exception {
+        this.clock = new ManualClock();
+        this.reaper = new IdleReaper(this.clock, 1000);
+    }
+
+    /**
+     * The sweep closes the connections that have been idle for too long and
+     * leaves the others alone.
+     */
+    @Test
+    public void testSweep() throws Exception {
+        final EmbeddedChannel a = new EmbeddedChannel(this.reaper);
+        final EmbeddedChannel b = new EmbeddedChannel(this.reaper);
+        assertEquals(2, this.reaper.getConnections());
+
+        this.clock.advance(600);
+        this.reaper.sweep();
+        assertTrue(a.isOpen());
+        assertTrue(b.isOpen());
+
+        b.pipeline().fireChannelRead("ping");
+        this.clock.advance(600);
+        this.reaper.sweep();
+        assertFalse(a.isOpen());
+        assertTrue(b.isOpen());
+        assertEquals(1, this.reaper.getConnections());
+        assertEquals(1, this.reaper.getReaped());
+
+        a.finish();
+        b.finish();
+    }
+
+    /**
+     * Writing counts as activity just as much as reading does.
+     */
+    @Test
+    public void testWriteIsActivity() throws Exception {
+        final EmbeddedChannel channel = new EmbeddedChannel(this.reaper);
+        this.clock.advance(900);
+        channel.writeOutbound("pong");
+
+        this.clock.advance(900);
+        this.reaper.sweep();
+        assertTrue(channel.isOpen());
+
+        this.clock.advance(200);
+        this.reaper.sweep();
+        assertFalse(channel.isOpen());
+        channel.finish();
+    }
+
+    /**
+     * A connection that closes by itself is no longer kept track of, nor is
+     * it counted as reaped.
+     */
+    @Test
+    public void testClosedConnection() throws Exception {
+        final EmbeddedChannel channel = new EmbeddedChannel(this.reaper);
+        channel.close();
+        assertEquals(0, this.reaper.getConnections());
+
+        this.clock.advance(2000);
+        this.reaper.sweep();
+        assertEquals(0, this.reaper.getReaped());
+        channel.finish();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidIdleTimeout() throws Exception {
+        new IdleReaper(this.clock, 0);
+    }
+
+    /**
+     * A {@link Clock} that only moves when told to.
+     */
+    private static final class ManualClock implements Clock {
+
+        private long nanos = 42;
+
+        void advance(final long millis) {
+            this.nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+
+        @Override
+        public long getCurrentTimeMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(this.nanos);
+        }
+
+        @Override
+        public long getNanoTime() {
+            return this.nanos;
+        }
+    }
+
+}
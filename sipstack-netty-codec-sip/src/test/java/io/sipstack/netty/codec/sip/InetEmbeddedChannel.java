@@ -0,0 +1,52 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An {@link EmbeddedChannel} that is connected to {@link #REMOTE}, since the
+ * decoders and the {@link ConnectionManager} expect the remote address of a
+ * channel to be an {@link InetSocketAddress}.
+ * 
+ * @author jonas@jonasborjesson.com
+ */
+final class InetEmbeddedChannel extends EmbeddedChannel {
+
+    /**
+     * The remote address of every channel. The {@link EmbeddedChannel} asks
+     * for it while it is being constructed, i.e., before any field of ours
+     * has been set, so it has to be a constant.
+     */
+    static final InetSocketAddress REMOTE = new InetSocketAddress("10.36.10.10", 5060);
+
+    InetEmbeddedChannel(final ChannelHandler... handlers) {
+        super(handlers);
+    }
+
+    @Override
+    protected SocketAddress remoteAddress0() {
+        return REMOTE;
+    }
+
+    static ByteBuf ascii(final String s) {
+        return Unpooled.copiedBuffer(s, StandardCharsets.US_ASCII);
+    }
+
+    static ByteBuf direct(final String s) {
+        return Unpooled.directBuffer().writeBytes(s.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    static String ascii(final ByteBuf buffer) {
+        return buffer.toString(StandardCharsets.US_ASCII);
+    }
+
+}
@@ -0,0 +1,184 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import static io.sipstack.netty.codec.sip.InetEmbeddedChannel.ascii;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ReferenceCountUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class RawMessageTest {
+
+    private static final String REGISTER = "REGISTER sip:example.com SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 10.36.10.10:5060;branch=z9hG4bK-1\r\n"
+            + "From: <sip:bob@example.com>;tag=1\r\n"
+            + "To: <sip:bob@example.com>\r\n"
+            + "Call-ID: register-1\r\n"
+            + "CSeq: 17 REGISTER\r\n"
+            + "Contact: <sip:bob@10.36.10.10:5060>\r\n"
+            + "Content-Length: 0\r\n"
+            + "\r\n";
+
+    private RawMessage message;
+
+    /**
+     * The frame of the message framed by {@link #frame(String)}, if any.
+     */
+    private ByteBuf frame;
+
+    @Before
+    public void setUp() throws Exception {
+        this.message = RawMessage.newInstance(DecoderConfiguration.DEFAULT);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ReferenceCountUtil.release(this.frame);
+        this.message.recycle();
+    }
+
+    /**
+     * A decoder only holds on to a {@link RawMessage} while it is framing a
+     * message, after which it goes back to the pool of the thread for the
+     * next message (of any connection) to use.
+     */
+    @Test
+    public void testRecycledMessageIsReused() throws Exception {
+        this.message.recycle();
+        final RawMessage next = RawMessage.newInstance(DecoderConfiguration.DEFAULT);
+        assertSame(this.message, next);
+
+        final RawMessage other = RawMessage.newInstance(DecoderConfiguration.DEFAULT);
+        assertNotSame(next, other);
+        other.recycle();
+        this.message = next;
+    }
+
+    /**
+     * The header index of a pooled message grows as needed and a recycled
+     * message starts over from scratch, no matter what it framed before.
+     */
+    @Test
+    public void testRecycledMessageIsReset() throws Exception {
+        final StringBuilder many = new StringBuilder("OPTIONS sip:alice@example.com SIP/2.0\r\n");
+        for (int i = 0; i < 40; ++i) {
+            many.append("X-Header-").append(i).append(": ").append(i).append("\r\n");
+        }
+        many.append("Content-Length: 0\r\n\r\n");
+
+        final ByteBuf first = ascii(many.toString());
+        assertTrue(this.message.frame(first));
+        assertEquals(41, this.message.getHeaderIndex().size());
+        assertEquals("39", this.message.getHeaderIndex().getValue(39).toString());
+        this.message.getFrame().release();
+        this.message.recycle();
+
+        this.message = RawMessage.newInstance(DecoderConfiguration.DEFAULT);
+        final ByteBuf second = ascii(REGISTER);
+        assertTrue(this.message.frame(second));
+        assertEquals(7, this.message.getHeaderIndex().size());
+        assertEquals("register-1", this.message.getHeaderIndex().getCallId().toString());
+        this.message.getFrame().release();
+
+        assertEquals(1, first.refCnt());
+        assertEquals(1, second.refCnt());
+        first.release();
+        second.release();
+    }
+
+    /**
+     * A message that is recycled before it is complete must not leak the
+     * part of the buffer it has sliced off.
+     */
+    @Test
+    public void testRecycleIncompleteMessage() throws Exception {
+        final ByteBuf buffer = ascii(REGISTER.substring(0, 40));
+        assertFalse(this.message.frame(buffer));
+        this.message.recycle();
+        this.message = RawMessage.newInstance(DecoderConfiguration.DEFAULT);
+        assertEquals(1, buffer.refCnt());
+        assertEquals(0, buffer.readerIndex());
+        buffer.release();
+    }
+
+    /**
+     * The fast fields are picked out while framing, whether the headers are
+     * in their long or compact form.
+     */
+    @Test
+    public void testHeaderIndex() throws Exception {
+        final HeaderIndex index = frame(REGISTER);
+        assertTrue(index.isRequest());
+        assertEquals("REGISTER", index.getMethod().toString());
+        assertEquals("register-1", index.getCallId().toString());
+        assertEquals("z9hG4bK-1", index.getViaBranch().toString());
+        assertEquals(17, index.getCSeqNumber());
+        assertEquals("REGISTER", index.getCSeqMethod().toString());
+
+        assertEquals(5, index.indexOf("contact"));
+        assertEquals("<sip:bob@10.36.10.10:5060>", index.getValue("CONTACT").toString());
+        assertEquals("Contact", index.getName(5).toString());
+        assertEquals(-1, index.indexOf("Contact", 6));
+        assertNull(index.getValue("Route"));
+    }
+
+    @Test
+    public void testHeaderIndexCompactForm() throws Exception {
+        final HeaderIndex index = frame("SIP/2.0 180 Ringing\r\n"
+                + "v : SIP/2.0/UDP 10.36.10.10;branch=z9hG4bK-a, SIP/2.0/UDP 10.36.10.11;branch=z9hG4bK-b\r\n"
+                + "v: SIP/2.0/UDP 10.36.10.12;branch=z9hG4bK-c\r\n"
+                + "i:\tcompact-1 \r\n"
+                + "CSeq:  4711   INVITE\r\n"
+                + "l: 0\r\n"
+                + "\r\n");
+        assertFalse(index.isRequest());
+        assertEquals("INVITE", index.getMethod().toString());
+        assertEquals("compact-1", index.getCallId().toString());
+        assertEquals("z9hG4bK-a", index.getViaBranch().toString());
+        assertEquals(4711, index.getCSeqNumber());
+        assertEquals(5, index.size());
+        assertEquals("v", index.getName(0).toString());
+    }
+
+    /**
+     * A header folded over several lines is a single header, with all the
+     * lines as its value.
+     */
+    @Test
+    public void testFoldedHeader() throws Exception {
+        final HeaderIndex index = frame("MESSAGE sip:alice@example.com SIP/2.0\r\n"
+                + "Subject: hello\r\n"
+                + "  world\r\n"
+                + "Call-ID: folded-1\r\n"
+                + "Content-Length: 0\r\n"
+                + "\r\n");
+        assertEquals(3, index.size());
+        assertEquals("hello\r\n  world", index.getValue("subject").toString());
+        assertEquals("folded-1", index.getCallId().toString());
+        assertEquals(-1, index.getCSeqNumber());
+        assertNull(index.getViaBranch());
+    }
+
+    private HeaderIndex frame(final String msg) throws Exception {
+        final ByteBuf buffer = ascii(msg);
+        assertTrue(this.message.frame(buffer));
+        assertEquals(msg.length(), buffer.readerIndex());
+        buffer.release();
+        this.frame = this.message.getFrame();
+        return this.message.getHeaderIndex();
+    }
+
+}
@@ -0,0 +1,188 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import static io.sipstack.netty.codec.sip.InetEmbeddedChannel.ascii;
+import static io.sipstack.netty.codec.sip.InetEmbeddedChannel.direct;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+
+import java.net.InetSocketAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class SipMessageDatagramDecoderTest {
+
+    private static final String OPTIONS = "OPTIONS sip:alice@example.com SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 10.36.10.10:5060;branch=z9hG4bK-1\r\n"
+            + "From: <sip:bob@example.com>;tag=1\r\n"
+            + "To: <sip:alice@example.com>\r\n"
+            + "Call-ID: options-1\r\n"
+            + "CSeq: 1 OPTIONS\r\n"
+            + "Content-Length: 0\r\n"
+            + "\r\n";
+
+    private static final InetSocketAddress LOCAL = new InetSocketAddress("10.36.10.20", 5060);
+
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        final DecoderConfiguration config = DecoderConfiguration.with().lazyParsing(true).build();
+        this.channel = new EmbeddedChannel(new SipMessageDatagramDecoder(new SystemClock(), config));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.channel.finish();
+    }
+
+    /**
+     * A datagram read into a direct buffer has to be copied before it can be
+     * parsed, which with lazy parsing happens after the event has taken over
+     * the frame. The frame must then stay around until the event is released
+     * (and be released exactly once).
+     */
+    @Test
+    public void testLazyParsingOfDirectBuffer() throws Exception {
+        final ByteBuf content = direct(OPTIONS);
+        assertTrue(this.channel.writeInbound(new DatagramPacket(content, LOCAL, InetEmbeddedChannel.REMOTE)));
+
+        final SipMessageEvent event = this.channel.readInbound();
+        assertNull(this.channel.readInbound());
+        assertEquals(1, content.refCnt());
+
+        assertEquals("options-1", event.getCallId().toString());
+        assertEquals("z9hG4bK-1", event.getViaBranch().toString());
+        assertEquals(1, content.refCnt());
+
+        assertTrue(event.release());
+        assertEquals(0, content.refCnt());
+    }
+
+    /**
+     * Same as above but the event is released without ever being looked at.
+     */
+    @Test
+    public void testReleaseUnparsedDirectBuffer() throws Exception {
+        final ByteBuf content = direct(OPTIONS);
+        assertTrue(this.channel.writeInbound(new DatagramPacket(content, LOCAL, InetEmbeddedChannel.REMOTE)));
+
+        final SipMessageEvent event = this.channel.readInbound();
+        assertTrue(event.release());
+        assertEquals(0, content.refCnt());
+    }
+
+    @Test
+    public void testLazyParsingOfHeapBuffer() throws Exception {
+        final ByteBuf content = ascii(OPTIONS);
+        assertTrue(this.channel.writeInbound(new DatagramPacket(content, LOCAL, InetEmbeddedChannel.REMOTE)));
+
+        final SipMessageEvent event = this.channel.readInbound();
+        assertEquals("options-1", event.getCallId().toString());
+        assertEquals(1, content.refCnt());
+        assertTrue(event.release());
+        assertEquals(0, content.refCnt());
+    }
+
+    /**
+     * The headers of a datagram without a body may end where the datagram
+     * ends, without the empty line (or even the last CRLF).
+     */
+    @Test
+    public void testHeadersEndWithDatagram() throws Exception {
+        final String headers = OPTIONS.substring(0, OPTIONS.length() - 2);
+        assertDatagram(headers, OPTIONS);
+        assertDatagram(headers.substring(0, headers.length() - 2), OPTIONS);
+
+        final String noContentLength = OPTIONS.replace("Content-Length: 0\r\n", "");
+        assertDatagram(noContentLength.substring(0, noContentLength.length() - 4), noContentLength);
+    }
+
+    /**
+     * A datagram that is cut short of its stated Content-Length is dropped.
+     */
+    @Test
+    public void testTruncatedDatagram() throws Exception {
+        final String truncated = OPTIONS.replace("Content-Length: 0", "Content-Length: 10") + "hello";
+        final ByteBuf content = ascii(truncated);
+        assertFalse(this.channel.writeInbound(new DatagramPacket(content, LOCAL, InetEmbeddedChannel.REMOTE)));
+        assertEquals(0, content.refCnt());
+    }
+
+    /**
+     * The connection of a remote end we have heard from recently is reused
+     * rather than created per datagram.
+     */
+    @Test
+    public void testConnectionPerRemote() throws Exception {
+        final InetSocketAddress other = new InetSocketAddress("10.36.10.11", 5060);
+        final SipMessageEvent first = decode(InetEmbeddedChannel.REMOTE);
+        final SipMessageEvent second = decode(InetEmbeddedChannel.REMOTE);
+        final SipMessageEvent third = decode(other);
+        try {
+            assertSame(first.getConnection(), second.getConnection());
+            assertNotSame(first.getConnection(), third.getConnection());
+            assertEquals(other, third.getConnection().getRemoteAddress());
+        } finally {
+            first.release();
+            second.release();
+            third.release();
+        }
+    }
+
+    /**
+     * A released event goes back to the pool and is handed out for the next
+     * message decoded on the same thread.
+     */
+    @Test
+    public void testEventsArePooled() throws Exception {
+        final SipMessageEvent first = decode(InetEmbeddedChannel.REMOTE);
+        assertTrue(first.release());
+
+        final SipMessageEvent second = decode(InetEmbeddedChannel.REMOTE);
+        try {
+            assertSame(first, second);
+            assertEquals("options-1", second.getCallId().toString());
+            assertEquals(1, second.refCnt());
+        } finally {
+            second.release();
+        }
+    }
+
+    private SipMessageEvent decode(final InetSocketAddress remote) {
+        assertTrue(this.channel.writeInbound(new DatagramPacket(ascii(OPTIONS), LOCAL, remote)));
+        return (SipMessageEvent) this.channel.readInbound();
+    }
+
+    private void assertDatagram(final String datagram, final String expected) {
+        final ByteBuf content = ascii(datagram);
+        assertTrue(this.channel.writeInbound(new DatagramPacket(content, LOCAL, InetEmbeddedChannel.REMOTE)));
+
+        final SipMessageEvent event = this.channel.readInbound();
+        assertEquals(0, content.refCnt());
+        try {
+            assertEquals("options-1", event.getCallId().toString());
+            assertEquals("OPTIONS", event.getMethod().toString());
+            final ByteBuf forwarded = ForwardedMessage.of(event).toByteBuf();
+            assertEquals(expected, ascii(forwarded));
+            forwarded.release();
+        } finally {
+            event.release();
+        }
+    }
+
+}
@@ -0,0 +1,207 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import static io.sipstack.netty.codec.sip.InetEmbeddedChannel.ascii;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutor;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class SipMessageDispatcherTest {
+
+    private static final InetSocketAddress LOCAL = new InetSocketAddress("10.36.10.20", 5060);
+
+    private static final int CALLS = 16;
+
+    private static final int MESSAGES_PER_CALL = 5;
+
+    private DefaultEventExecutorGroup workers;
+
+    private List<EventExecutor> executors;
+
+    /**
+     * Decodes the messages the events are made of.
+     */
+    private EmbeddedChannel decoder;
+
+    /**
+     * The events as decoded, which own the frames the header indexes of the
+     * dispatched events point into.
+     */
+    private List<SipMessageEvent> decoded;
+
+    /**
+     * The executor each Call-ID was handled on, one entry per message.
+     */
+    private Map<String, List<EventExecutor>> handledOn;
+
+    /**
+     * The CSeq of each message in the order in which it was handled, per
+     * Call-ID.
+     */
+    private Map<String, List<Long>> handledInOrder;
+
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        this.workers = new DefaultEventExecutorGroup(4);
+        this.executors = new ArrayList<>();
+        for (final EventExecutor executor : this.workers) {
+            this.executors.add(executor);
+        }
+        this.decoder = new EmbeddedChannel(new SipMessageDatagramDecoder(new SystemClock(),
+                DecoderConfiguration.with().lazyParsing(true).build()));
+        this.decoded = new ArrayList<>();
+        this.handledOn = new ConcurrentHashMap<>();
+        this.handledInOrder = new ConcurrentHashMap<>();
+        this.channel = new EmbeddedChannel(new SipMessageDispatcher(this.workers,
+                new SimpleChannelInboundHandler<SipMessageEvent>() {
+                    @Override
+                    protected void channelRead0(final ChannelHandlerContext ctx, final SipMessageEvent event) {
+                        handled(event);
+                    }
+                }));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.workers.shutdownGracefully(0, 0, TimeUnit.SECONDS).syncUninterruptibly();
+        this.channel.finish();
+        this.decoded.forEach(SipMessageEvent::release);
+        this.decoder.finish();
+    }
+
+    /**
+     * All the messages of a Call-ID are handled by the same worker, the one
+     * the hash of the Call-ID points to, in the order in which they were
+     * received. The Call-IDs themselves are spread across the workers.
+     */
+    @Test
+    public void testSameCallIdSameWorker() throws Exception {
+        final List<SipMessageEvent> events = new ArrayList<>();
+        for (int cseq = 1; cseq <= MESSAGES_PER_CALL; ++cseq) {
+            for (int call = 0; call < CALLS; ++call) {
+                final SipMessageEvent event = newEvent("call-" + call, cseq);
+                events.add(event);
+                this.channel.writeInbound(event);
+            }
+        }
+        awaitWorkers();
+
+        assertEquals(CALLS, this.handledOn.size());
+        final Set<EventExecutor> used = new HashSet<>();
+        for (int call = 0; call < CALLS; ++call) {
+            final String callId = "call-" + call;
+            final List<EventExecutor> on = this.handledOn.get(callId);
+            assertNotNull(callId, on);
+            assertEquals(MESSAGES_PER_CALL, on.size());
+            final EventExecutor expected = this.executors.get(
+                    (events.get(call).getHeaderIndex().hashCallId() & Integer.MAX_VALUE) % this.executors.size());
+            for (final EventExecutor executor : on) {
+                assertSame(callId, expected, executor);
+            }
+            used.add(expected);
+
+            final List<Long> order = this.handledInOrder.get(callId);
+            for (int i = 0; i < MESSAGES_PER_CALL; ++i) {
+                assertEquals(callId, i + 1, order.get(i).longValue());
+            }
+        }
+        assertTrue(used.size() > 1);
+    }
+
+    /**
+     * The event is released once the handler is done with it, on the worker.
+     */
+    @Test
+    public void testEventReleasedAfterHandled() throws Exception {
+        final SipMessageEvent event = newEvent("call-1", 1);
+        assertEquals(1, event.refCnt());
+        this.channel.writeInbound(event);
+        awaitWorkers();
+
+        assertEquals(1, this.handledOn.get("call-1").size());
+        assertEquals(0, event.refCnt());
+    }
+
+    /**
+     * Anything that isn't a {@link SipMessageEvent} just passes through on
+     * the event loop.
+     */
+    @Test
+    public void testOtherMessagesPassThrough() throws Exception {
+        assertTrue(this.channel.writeInbound("hello"));
+        assertEquals("hello", this.channel.readInbound());
+        awaitWorkers();
+        assertTrue(this.handledOn.isEmpty());
+    }
+
+    private void handled(final SipMessageEvent event) {
+        EventExecutor on = null;
+        for (final EventExecutor executor : this.executors) {
+            if (executor.inEventLoop()) {
+                on = executor;
+            }
+        }
+        assertNotNull(on);
+
+        final String callId = event.getCallId().toString();
+        this.handledOn.computeIfAbsent(callId, k -> new CopyOnWriteArrayList<>()).add(on);
+        this.handledInOrder.computeIfAbsent(callId, k -> new CopyOnWriteArrayList<>()).add(event.getCSeqNumber());
+    }
+
+    /**
+     * Wait for the workers to be done with everything that has been
+     * dispatched to them so far.
+     */
+    private void awaitWorkers() {
+        for (final EventExecutor executor : this.executors) {
+            executor.submit(() -> null).syncUninterruptibly();
+        }
+    }
+
+    /**
+     * An event of its own, i.e., one that doesn't go back to any pool once
+     * released, for an OPTIONS with the given Call-ID and CSeq.
+     */
+    private SipMessageEvent newEvent(final String callId, final long cseq) {
+        final String msg = "OPTIONS sip:alice@example.com SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP 10.36.10.10:5060;branch=z9hG4bK-" + cseq + "\r\n"
+                + "Call-ID: " + callId + "\r\n"
+                + "CSeq: " + cseq + " OPTIONS\r\n"
+                + "Content-Length: 0\r\n"
+                + "\r\n";
+        this.decoder.writeInbound(new DatagramPacket(ascii(msg), LOCAL, InetEmbeddedChannel.REMOTE));
+        final SipMessageEvent decoded = this.decoder.readInbound();
+        assertNotNull(decoded);
+        this.decoded.add(decoded);
+        return new DefaultSipMessageEvent(decoded.getConnection(), null, 0, null, decoded.getHeaderIndex());
+    }
+
+}
@@ -0,0 +1,109 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import static io.sipstack.netty.codec.sip.InetEmbeddedChannel.ascii;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.pkts.buffer.Buffer;
+import io.pkts.buffer.Buffers;
+import io.pkts.packet.sip.SipMessage;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class SipMessageEncoderTest {
+
+    private static final String OK = "SIP/2.0 200 OK\r\n"
+            + "Via: SIP/2.0/UDP 10.36.10.10:5060;branch=z9hG4bK-1\r\n"
+            + "Call-ID: options-1\r\n"
+            + "CSeq: 1 OPTIONS\r\n"
+            + "Content-Length: 0\r\n";
+
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        this.channel = new EmbeddedChannel(new SipMessageEncoder());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.channel.finish();
+    }
+
+    @Test
+    public void testEncode() throws Exception {
+        assertTrue(this.channel.writeOutbound(message(Buffers.wrap(OK))));
+        assertEncoded(this.channel.readOutbound(), OK + "\r\n");
+        assertNull(this.channel.readOutbound());
+    }
+
+    /**
+     * Only the readable bytes of the encoded message are written.
+     */
+    @Test
+    public void testEncodeReadableBytesOnly() throws Exception {
+        final Buffer buffer = Buffers.wrap("garbage" + OK);
+        for (int i = 0; i < "garbage".length(); ++i) {
+            buffer.readByte();
+        }
+        assertEncoded(SipMessageEncoder.toByteBuf(message(buffer)), OK + "\r\n");
+    }
+
+    /**
+     * The encoded message may be a view of a section of a larger array, in
+     * which case its indexes are relative to the start of that section.
+     */
+    @Test
+    public void testEncodeSectionOfArray() throws Exception {
+        final byte[] array = ("garbage" + OK + "more garbage").getBytes(StandardCharsets.US_ASCII);
+        final Buffer buffer = Buffers.wrap(array, "garbage".length(), "garbage".length() + OK.length());
+        assertEncoded(SipMessageEncoder.toByteBuf(message(buffer)), OK + "\r\n");
+
+        final Buffer read = Buffers.wrap(array, "garbage".length(), "garbage".length() + OK.length());
+        for (int i = 0; i < "SIP/2.0 ".length(); ++i) {
+            read.readByte();
+        }
+        assertEncoded(SipMessageEncoder.toByteBuf(message(read)), OK.substring("SIP/2.0 ".length()) + "\r\n");
+    }
+
+    /**
+     * The CRLF is shared by every message so it must survive the messages
+     * being released.
+     */
+    @Test
+    public void testSharedCRLF() throws Exception {
+        for (int i = 0; i < 3; ++i) {
+            assertEncoded(SipMessageEncoder.toByteBuf(message(Buffers.wrap(OK))), OK + "\r\n");
+        }
+    }
+
+    private static SipMessage message(final Buffer buffer) {
+        final SipMessage msg = mock(SipMessage.class);
+        when(msg.toBuffer()).thenReturn(buffer);
+        return msg;
+    }
+
+    private static void assertEncoded(final Object msg, final String expected) {
+        final ByteBuf buffer = (ByteBuf) msg;
+        try {
+            assertEquals(expected, ascii(buffer));
+        } finally {
+            assertTrue(buffer.release());
+        }
+    }
+
+}
@@ -0,0 +1,328 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import static io.sipstack.netty.codec.sip.InetEmbeddedChannel.ascii;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class SipMessageStreamDecoderTest {
+
+    private static final String OPTIONS = "OPTIONS sip:alice@example.com SIP/2.0\r\n"
+            + "Via: SIP/2.0/TCP 10.36.10.10:5060;branch=z9hG4bK-1\r\n"
+            + "From: <sip:bob@example.com>;tag=1\r\n"
+            + "To: <sip:alice@example.com>\r\n"
+            + "Call-ID: options-1\r\n"
+            + "CSeq: 1 OPTIONS\r\n"
+            + "Content-Length: 0\r\n"
+            + "\r\n";
+
+    private static final String MESSAGE = "MESSAGE sip:alice@example.com SIP/2.0\r\n"
+            + "Via: SIP/2.0/TCP 10.36.10.10:5060;branch=z9hG4bK-2\r\n"
+            + "From: <sip:bob@example.com>;tag=2\r\n"
+            + "To: <sip:alice@example.com>\r\n"
+            + "Call-ID: message-1\r\n"
+            + "CSeq: 1 MESSAGE\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "Content-Length: 5\r\n"
+            + "\r\n"
+            + "hello";
+
+    private InetEmbeddedChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        final DecoderConfiguration config = DecoderConfiguration.with().lazyParsing(true).build();
+        this.channel = new InetEmbeddedChannel(new SipMessageStreamDecoder(new SystemClock(), config));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.channel.finish();
+    }
+
+    /**
+     * A message that arrives over several reads is only decoded once all of
+     * it is here.
+     */
+    @Test
+    public void testSplitMessage() throws Exception {
+        final int[] splits = { 1, 20, OPTIONS.indexOf("\r\n\r\n") + 2, OPTIONS.length() - 1 };
+        int start = 0;
+        for (final int split : splits) {
+            assertFalse(this.channel.writeInbound(ascii(OPTIONS.substring(start, split))));
+            start = split;
+        }
+        assertTrue(this.channel.writeInbound(ascii(OPTIONS.substring(start))));
+
+        assertMessage(this.channel.readInbound(), OPTIONS, "options-1");
+        assertNull(this.channel.readInbound());
+    }
+
+    /**
+     * A split right within the body.
+     */
+    @Test
+    public void testSplitBody() throws Exception {
+        final int split = MESSAGE.length() - 2;
+        assertFalse(this.channel.writeInbound(ascii(MESSAGE.substring(0, split))));
+        assertTrue(this.channel.writeInbound(ascii(MESSAGE.substring(split))));
+
+        assertMessage(this.channel.readInbound(), MESSAGE, "message-1");
+        assertNull(this.channel.readInbound());
+    }
+
+    /**
+     * Several messages in a single read are all decoded, in order.
+     */
+    @Test
+    public void testPipelinedMessages() throws Exception {
+        assertTrue(this.channel.writeInbound(ascii(OPTIONS + MESSAGE + OPTIONS)));
+
+        assertMessage(this.channel.readInbound(), OPTIONS, "options-1");
+        assertMessage(this.channel.readInbound(), MESSAGE, "message-1");
+        assertMessage(this.channel.readInbound(), OPTIONS, "options-1");
+        assertNull(this.channel.readInbound());
+    }
+
+    /**
+     * Pipelined messages where the last one is split across reads.
+     */
+    @Test
+    public void testPipelinedAndSplitMessages() throws Exception {
+        final String both = MESSAGE + OPTIONS;
+        final int split = MESSAGE.length() + 10;
+        assertTrue(this.channel.writeInbound(ascii(both.substring(0, split))));
+        assertMessage(this.channel.readInbound(), MESSAGE, "message-1");
+        assertNull(this.channel.readInbound());
+
+        assertTrue(this.channel.writeInbound(ascii(both.substring(split))));
+        assertMessage(this.channel.readInbound(), OPTIONS, "options-1");
+        assertNull(this.channel.readInbound());
+    }
+
+    /**
+     * No more than the configured number of messages are decoded per read,
+     * the rest are decoded in tasks of their own on the event loop of the
+     * channel (without waiting for another read), each of which is a batch
+     * that ends with a read complete of its own.
+     */
+    @Test
+    public void testMaxMessagesPerRead() throws Exception {
+        final DecoderConfiguration config = DecoderConfiguration.with().lazyParsing(true).maxMessagesPerRead(2)
+                .build();
+        final List<Integer> batches = new ArrayList<>();
+        final InetEmbeddedChannel channel = new InetEmbeddedChannel(new SipMessageStreamDecoder(new SystemClock(),
+                config), new ChannelInboundHandlerAdapter() {
+            private int batch;
+
+            @Override
+            public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+                ++this.batch;
+                ctx.fireChannelRead(msg);
+            }
+
+            @Override
+            public void channelReadComplete(final ChannelHandlerContext ctx) throws Exception {
+                batches.add(this.batch);
+                this.batch = 0;
+            }
+        });
+        try {
+            assertTrue(channel.writeInbound(ascii(OPTIONS + MESSAGE + OPTIONS + MESSAGE + OPTIONS)));
+            assertEquals(Arrays.asList(2, 2, 1), batches);
+
+            assertMessage(channel.readInbound(), OPTIONS, "options-1");
+            assertMessage(channel.readInbound(), MESSAGE, "message-1");
+            assertMessage(channel.readInbound(), OPTIONS, "options-1");
+            assertMessage(channel.readInbound(), MESSAGE, "message-1");
+            assertMessage(channel.readInbound(), OPTIONS, "options-1");
+            assertNull(channel.readInbound());
+        } finally {
+            channel.finish();
+        }
+    }
+
+    /**
+     * All the messages of a connection share the same {@link Connection}.
+     */
+    @Test
+    public void testConnectionPerChannel() throws Exception {
+        assertTrue(this.channel.writeInbound(ascii(OPTIONS + MESSAGE)));
+        final SipMessageEvent first = (SipMessageEvent) this.channel.readInbound();
+        final SipMessageEvent second = (SipMessageEvent) this.channel.readInbound();
+        try {
+            assertSame(first.getConnection(), second.getConnection());
+            assertTrue(first.getConnection().isTCP());
+            assertEquals(InetEmbeddedChannel.REMOTE, first.getConnection().getRemoteAddress());
+        } finally {
+            first.release();
+            second.release();
+        }
+    }
+
+    /**
+     * A message with a body larger than the maximum allowed content length
+     * gets the connection dropped, along with whatever else came with it.
+     */
+    @Test
+    public void testMaxContentLength() throws Exception {
+        final InetEmbeddedChannel channel = newChannel(DecoderConfiguration.with().lazyParsing(true)
+                .maxContentLength(4).build());
+        assertFalse(channel.writeInbound(ascii(MESSAGE + OPTIONS)));
+        assertNull(channel.readInbound());
+        assertFalse(channel.isOpen());
+        channel.finish();
+    }
+
+    /**
+     * An initial line longer than allowed gets the connection dropped, even
+     * if it is still incomplete.
+     */
+    @Test
+    public void testMaxInitialLineSize() throws Exception {
+        final InetEmbeddedChannel channel = newChannel(DecoderConfiguration.with().lazyParsing(true)
+                .maxInitialLineSize(16).build());
+        assertFalse(channel.writeInbound(ascii(OPTIONS.substring(0, 30))));
+        assertNull(channel.readInbound());
+        assertFalse(channel.isOpen());
+        channel.finish();
+    }
+
+    /**
+     * A body above the streaming threshold is handed over as streamed
+     * content, chunk by chunk as it arrives, and is still forwarded as part
+     * of the message.
+     */
+    @Test
+    public void testStreamedContent() throws Exception {
+        final InetEmbeddedChannel channel = newChannel(DecoderConfiguration.with().lazyParsing(true)
+                .streamingThreshold(2).build());
+        try {
+            final int headers = MESSAGE.indexOf("\r\n\r\n") + 4;
+            assertFalse(channel.writeInbound(ascii(MESSAGE.substring(0, headers + 1))));
+            assertFalse(channel.writeInbound(ascii(MESSAGE.substring(headers + 1, headers + 3))));
+            assertTrue(channel.writeInbound(ascii(MESSAGE.substring(headers + 3) + OPTIONS)));
+
+            final SipMessageEvent event = (SipMessageEvent) channel.readInbound();
+            try {
+                assertEquals("hello", ascii(event.getStreamedContent()));
+                final ByteBuf frame = ForwardedMessage.of(event).toByteBuf();
+                assertEquals(MESSAGE, ascii(frame));
+                frame.release();
+            } finally {
+                event.release();
+            }
+
+            // the next message, which is below the threshold, isn't streamed
+            final SipMessageEvent next = (SipMessageEvent) channel.readInbound();
+            assertNull(next.getStreamedContent());
+            assertMessage(next, OPTIONS, "options-1");
+            assertNull(channel.readInbound());
+        } finally {
+            channel.finish();
+        }
+    }
+
+    /**
+     * A keep-alive ping (a double CRLF, see RFC 5626) is answered with a
+     * single CRLF and never makes it up the pipeline.
+     */
+    @Test
+    public void testKeepAlive() throws Exception {
+        assertFalse(this.channel.writeInbound(ascii("\r\n\r\n")));
+        assertPongs(1);
+        assertNull(this.channel.readInbound());
+    }
+
+    /**
+     * A ping split across reads is still a ping, and one that is cut short
+     * by a message is not.
+     */
+    @Test
+    public void testSplitKeepAlive() throws Exception {
+        assertFalse(this.channel.writeInbound(ascii("\r\n\r")));
+        assertPongs(0);
+        assertFalse(this.channel.writeInbound(ascii("\n\r\n")));
+        assertPongs(1);
+
+        assertFalse(this.channel.writeInbound(ascii("\r\n")));
+        assertTrue(this.channel.writeInbound(ascii(OPTIONS)));
+        assertPongs(0);
+        assertMessage(this.channel.readInbound(), OPTIONS, "options-1");
+    }
+
+    /**
+     * Pings in between pipelined messages are answered one pong each and
+     * don't get in the way of the messages.
+     */
+    @Test
+    public void testKeepAliveBetweenMessages() throws Exception {
+        assertTrue(this.channel.writeInbound(ascii(OPTIONS + "\r\n\r\n\r\n\r\n" + MESSAGE)));
+        assertPongs(2);
+        assertMessage(this.channel.readInbound(), OPTIONS, "options-1");
+        assertMessage(this.channel.readInbound(), MESSAGE, "message-1");
+        assertNull(this.channel.readInbound());
+    }
+
+    /**
+     * The connection of a message is open for as long as its channel is,
+     * which is what tells whoever holds on to it (e.g. to route requests
+     * down a registered flow) to stop using it.
+     */
+    @Test
+    public void testConnectionIsOpen() throws Exception {
+        assertTrue(this.channel.writeInbound(ascii(OPTIONS)));
+        final SipMessageEvent event = (SipMessageEvent) this.channel.readInbound();
+        final Connection connection = event.getConnection();
+        event.release();
+
+        assertTrue(connection.isOpen());
+        this.channel.close();
+        assertFalse(connection.isOpen());
+    }
+
+    private void assertPongs(final int count) {
+        for (int i = 0; i < count; ++i) {
+            final ByteBuf pong = (ByteBuf) this.channel.readOutbound();
+            assertEquals("\r\n", ascii(pong));
+            pong.release();
+        }
+        assertNull(this.channel.readOutbound());
+    }
+
+    private static InetEmbeddedChannel newChannel(final DecoderConfiguration config) {
+        return new InetEmbeddedChannel(new SipMessageStreamDecoder(new SystemClock(), config));
+    }
+
+    private static void assertMessage(final Object msg, final String expected, final String callId) {
+        final SipMessageEvent event = (SipMessageEvent) msg;
+        try {
+            assertEquals(callId, event.getCallId().toString());
+            final ByteBuf frame = ForwardedMessage.of(event).toByteBuf();
+            assertEquals(expected, ascii(frame));
+            frame.release();
+        } finally {
+            event.release();
+        }
+    }
+
+}
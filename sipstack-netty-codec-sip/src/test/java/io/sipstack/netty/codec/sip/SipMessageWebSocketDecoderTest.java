@@ -0,0 +1,78 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import static io.sipstack.netty.codec.sip.InetEmbeddedChannel.ascii;
+import static io.sipstack.netty.codec.sip.InetEmbeddedChannel.direct;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class SipMessageWebSocketDecoderTest {
+
+    private static final String OPTIONS = "OPTIONS sip:alice@example.com SIP/2.0\r\n"
+            + "Via: SIP/2.0/WS df7jal23ls0d.invalid;branch=z9hG4bK-1\r\n"
+            + "From: <sip:bob@example.com>;tag=1\r\n"
+            + "To: <sip:alice@example.com>\r\n"
+            + "Call-ID: options-1\r\n"
+            + "CSeq: 1 OPTIONS\r\n"
+            + "Content-Length: 0\r\n"
+            + "\r\n";
+
+    private InetEmbeddedChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        final DecoderConfiguration config = DecoderConfiguration.with().lazyParsing(true).build();
+        this.channel = new InetEmbeddedChannel(new SipMessageWebSocketDecoder(new SystemClock(), config));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.channel.finish();
+    }
+
+    /**
+     * A WebSocket message that was fragmented (or simply read in several
+     * chunks) arrives as a composite, which isn't backed by a single array
+     * and has to be copied before it can be parsed. With lazy parsing that
+     * happens after the event has taken over the frame, which must then stay
+     * around until the event is released (and be released exactly once).
+     */
+    @Test
+    public void testLazyParsingOfCompositeFrame() throws Exception {
+        final int split = OPTIONS.indexOf("Call-ID") + 3;
+        final CompositeByteBuf content = Unpooled.compositeBuffer();
+        content.addComponent(ascii(OPTIONS.substring(0, split)));
+        content.addComponent(direct(OPTIONS.substring(split)));
+        content.writerIndex(OPTIONS.length());
+
+        assertTrue(this.channel.writeInbound(new TextWebSocketFrame(content)));
+        final SipMessageEvent event = this.channel.readInbound();
+        assertNull(this.channel.readInbound());
+        assertEquals(1, content.refCnt());
+
+        assertEquals("options-1", event.getCallId().toString());
+        assertEquals(1, content.refCnt());
+
+        final ByteBuf forwarded = ForwardedMessage.of(event).toByteBuf();
+        assertEquals(OPTIONS, ascii(forwarded));
+        forwarded.release();
+
+        assertTrue(event.release());
+        assertEquals(0, content.refCnt());
+    }
+
+}
@@ -0,0 +1,159 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import static io.sipstack.netty.codec.sip.InetEmbeddedChannel.ascii;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+import java.net.InetSocketAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class TcpConnectionTest {
+
+    private static final String PING = "\r\n\r\n";
+
+    private InetEmbeddedChannel channel;
+
+    private TcpConnection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        this.channel = new InetEmbeddedChannel();
+        this.connection = new TcpConnection(this.channel, InetEmbeddedChannel.REMOTE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.channel.finish();
+    }
+
+    /**
+     * As long as the channel is writable, the policy doesn't come into play.
+     */
+    @Test
+    public void testWritable() throws Exception {
+        final OutboundOverflow overflow = new OutboundOverflow(OverflowPolicy.REJECT);
+        this.channel.attr(OutboundOverflow.KEY).set(overflow);
+        assertTrue(this.connection.write(ascii(PING)));
+        assertEquals(PING, read());
+        assertEquals(0, overflow.getCount());
+    }
+
+    @Test
+    public void testReject() throws Exception {
+        final OutboundOverflow overflow = makeUnwritable(OverflowPolicy.REJECT);
+        final ByteBuf buffer = ascii(PING);
+        try {
+            this.connection.write(buffer);
+            fail("Expected an OutboundOverflowException");
+        } catch (final OutboundOverflowException e) {
+            // expected
+        }
+        assertEquals(0, buffer.refCnt());
+        assertEquals(1, overflow.getCount());
+        assertTrue(this.channel.isOpen());
+    }
+
+    @Test
+    public void testDrop() throws Exception {
+        final OutboundOverflow overflow = makeUnwritable(OverflowPolicy.DROP);
+        final ByteBuf buffer = ascii(PING);
+        assertFalse(this.connection.write(buffer));
+        assertEquals(0, buffer.refCnt());
+        assertEquals(1, overflow.getCount());
+        assertTrue(this.channel.isOpen());
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        final OutboundOverflow overflow = makeUnwritable(OverflowPolicy.CLOSE);
+        final ByteBuf buffer = ascii(PING);
+        assertFalse(this.connection.write(buffer));
+        assertEquals(0, buffer.refCnt());
+        assertEquals(1, overflow.getCount());
+        assertFalse(this.channel.isOpen());
+    }
+
+    /**
+     * Without a policy, the message is queued up anyway.
+     */
+    @Test
+    public void testNoPolicy() throws Exception {
+        makeUnwritable(null);
+        assertTrue(this.connection.write(ascii(PING)));
+    }
+
+    /**
+     * Each {@link OutboundOverflow} counts on its own, i.e., two stacks in
+     * the same process don't add up each other's overflows.
+     */
+    @Test
+    public void testCountersPerInstance() throws Exception {
+        final OutboundOverflow overflow = makeUnwritable(OverflowPolicy.DROP);
+        final OutboundOverflow other = new OutboundOverflow(OverflowPolicy.DROP);
+        this.connection.write(ascii(PING));
+        this.connection.write(ascii(PING));
+        assertEquals(2, overflow.getCount());
+        assertEquals(0, other.getCount());
+    }
+
+    /**
+     * The bytes queued up by the flows of a connection manager add up.
+     */
+    @Test
+    public void testQueuedBytes() throws Exception {
+        final ConnectionManager manager = new ConnectionManager(new InetSocketAddress("10.36.10.20", 5060),
+                new Bootstrap(), new ChannelInboundHandlerAdapter(), null);
+        final InetEmbeddedChannel flow = new InetEmbeddedChannel(manager.getFlowTracker());
+        try {
+            final TcpConnection connection = (TcpConnection) manager.find(TransportProtocol.TCP,
+                    InetEmbeddedChannel.REMOTE);
+            flow.write(ascii(PING));
+            flow.write(ascii(PING + PING));
+            assertEquals(3 * PING.length(), connection.getQueuedBytes());
+            assertEquals(3 * PING.length(), manager.getQueuedBytes());
+
+            flow.flush();
+            assertEquals(0, manager.getQueuedBytes());
+        } finally {
+            flow.finish();
+        }
+    }
+
+    /**
+     * Queue up more than the high water mark of the channel without flushing
+     * it.
+     */
+    private OutboundOverflow makeUnwritable(final OverflowPolicy policy) {
+        this.channel.config().setWriteBufferLowWaterMark(0);
+        this.channel.config().setWriteBufferHighWaterMark(1);
+        this.channel.write(ascii(PING));
+        assertFalse(this.channel.isWritable());
+        final OutboundOverflow overflow = policy == null ? null : new OutboundOverflow(policy);
+        this.channel.attr(OutboundOverflow.KEY).set(overflow);
+        return overflow;
+    }
+
+    private String read() {
+        final ByteBuf buffer = (ByteBuf) this.channel.readOutbound();
+        try {
+            return ascii(buffer);
+        } finally {
+            buffer.release();
+        }
+    }
+
+}
@@ -0,0 +1,273 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import static io.sipstack.netty.codec.sip.InetEmbeddedChannel.ascii;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class TcpFallbackTest {
+
+    private static final String INVITE = "INVITE sip:alice@example.com SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 10.36.10.20:5060;branch=z9hG4bK-1\r\n"
+            + "From: <sip:bob@example.com>;tag=1\r\n"
+            + "To: <sip:alice@example.com>\r\n"
+            + "Call-ID: invite-1\r\n"
+            + "CSeq: 1 INVITE\r\n"
+            + "Content-Length: 0\r\n"
+            + "\r\n";
+
+    private ConnectionManager manager;
+
+    /**
+     * The TCP flow to {@link InetEmbeddedChannel#REMOTE}.
+     */
+    private InetEmbeddedChannel flow;
+
+    private TcpFallback fallback;
+
+    /**
+     * The UDP socket the requests would have gone out over.
+     */
+    private EmbeddedChannel udp;
+
+    @Before
+    public void setUp() throws Exception {
+        final InetSocketAddress local = new InetSocketAddress("10.36.10.20", 5060);
+        this.manager = new ConnectionManager(local, new Bootstrap(), new ChannelInboundHandlerAdapter(), null);
+        this.flow = new InetEmbeddedChannel(this.manager.getFlowTracker());
+        this.fallback = new TcpFallback(100, this.manager);
+        this.udp = new EmbeddedChannel();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.flow.finish();
+        this.udp.finish();
+    }
+
+    @Test
+    public void testFindViaTransport() throws Exception {
+        assertViaTransport("INVITE sip:a SIP/2.0\r\nVia: SIP/2.0/UDP 10.36.10.20;branch=z9hG4bK-1\r\n\r\n");
+        assertViaTransport("INVITE sip:a SIP/2.0\r\nCall-ID: 1\r\nvia :SIP/2.0/udp 10.36.10.20\r\n\r\n");
+        assertNoViaTransport("INVITE sip:a SIP/2.0\r\nVia: SIP/2.0/TCP 10.36.10.20\r\n\r\n");
+        assertNoViaTransport("INVITE sip:a SIP/2.0\r\nVias: SIP/2.0/UDP 10.36.10.20\r\n\r\n");
+        assertNoViaTransport("INVITE sip:a SIP/2.0\r\nCall-ID: 1\r\n\r\nVia: SIP/2.0/UDP 10.36.10.20\r\n");
+    }
+
+    @Test
+    public void testFindViaTransportCompactForm() throws Exception {
+        assertViaTransport("INVITE sip:a SIP/2.0\r\nv: SIP/2.0/UDP 10.36.10.20;branch=z9hG4bK-1\r\n\r\n");
+        assertViaTransport("INVITE sip:a SIP/2.0\r\nCall-ID: 1\r\nV:SIP/2.0/UDP 10.36.10.20\r\n\r\n");
+        assertViaTransport("INVITE sip:a SIP/2.0\r\ni: 1\r\nv : SIP / 2.0 / UDP 10.36.10.20\r\n\r\n");
+        assertNoViaTransport("INVITE sip:a SIP/2.0\r\nv: SIP/2.0/TLS 10.36.10.20\r\n\r\n");
+        assertNoViaTransport("INVITE sip:a SIP/2.0\r\ni: 1\r\n v: SIP/2.0/UDP 10.36.10.20\r\n\r\n");
+    }
+
+    @Test
+    public void testSmallRequestStaysOnUdp() throws Exception {
+        final ByteBuf buffer = ascii("OPTIONS sip:a SIP/2.0\r\nv: SIP/2.0/UDP x\r\n\r\n");
+        assertFalse(this.fallback.send(true, buffer, this.udp, InetEmbeddedChannel.REMOTE));
+        assertEquals(1, buffer.refCnt());
+        assertNull(this.flow.readOutbound());
+    }
+
+    @Test
+    public void testOversizedResponseStaysOnUdp() throws Exception {
+        final ByteBuf buffer = ascii(INVITE);
+        assertFalse(this.fallback.send(false, buffer, this.udp, InetEmbeddedChannel.REMOTE));
+        assertEquals(1, buffer.refCnt());
+        assertEquals(1, this.fallback.getOversizedResponses());
+        assertNull(this.flow.readOutbound());
+    }
+
+    @Test
+    public void testOversizedRequest() throws Exception {
+        final ByteBuf buffer = ascii(INVITE);
+        assertTrue(this.fallback.send(true, buffer, this.udp, InetEmbeddedChannel.REMOTE));
+
+        final ByteBuf sent = this.flow.readOutbound();
+        assertEquals(INVITE.replace("SIP/2.0/UDP", "SIP/2.0/TCP"), ascii(sent));
+        sent.release();
+        assertEquals(0, buffer.refCnt());
+        assertEquals(1, this.fallback.getSwitchedRequests());
+        assertEquals(INVITE.length(), this.fallback.getSwitchedBytes());
+        assertEquals(0, this.fallback.getFailedSwitches());
+    }
+
+    /**
+     * If the TCP flow is backed up and its policy is to reject any further
+     * messages, the request goes out over UDP after all and nothing may
+     * leak.
+     */
+    @Test
+    public void testOversizedRequestRejectedByUnwritableFlow() throws Exception {
+        makeUnwritable(OverflowPolicy.REJECT);
+
+        final ByteBuf buffer = ascii(INVITE);
+        assertFalse(this.fallback.send(true, buffer, this.udp, InetEmbeddedChannel.REMOTE));
+        assertEquals(1, buffer.refCnt());
+        assertEquals(0, this.fallback.getSwitchedRequests());
+        assertEquals(1, this.fallback.getFailedSwitches());
+        buffer.release();
+    }
+
+    /**
+     * Same goes for a flow whose policy is to drop any further messages, the
+     * request isn't lost but goes out over UDP.
+     */
+    @Test
+    public void testOversizedRequestDroppedByUnwritableFlow() throws Exception {
+        makeUnwritable(OverflowPolicy.DROP);
+
+        final ByteBuf buffer = ascii(INVITE);
+        assertFalse(this.fallback.send(true, buffer, this.udp, InetEmbeddedChannel.REMOTE));
+        assertEquals(1, buffer.refCnt());
+        assertEquals(0, this.fallback.getSwitchedRequests());
+        assertEquals(1, this.fallback.getFailedSwitches());
+        buffer.release();
+    }
+
+    /**
+     * Without a flow to the destination, one is established and the request
+     * goes out over it once it has been.
+     */
+    @Test(timeout = 10000)
+    public void testOversizedRequestNewFlow() throws Exception {
+        final NioEventLoopGroup group = new NioEventLoopGroup(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final StringBuilder received = new StringBuilder();
+        try {
+            final Channel server = new ServerBootstrap().group(group).channel(NioServerSocketChannel.class)
+                    .childHandler(new ChannelInboundHandlerAdapter() {
+                        @Override
+                        public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+                            final ByteBuf buffer = (ByteBuf) msg;
+                            received.append(ascii(buffer));
+                            buffer.release();
+                            if (received.length() == INVITE.length()) {
+                                latch.countDown();
+                            }
+                        }
+                    }).bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+            final InetSocketAddress remote = (InetSocketAddress) server.localAddress();
+            final TcpFallback fallback = newFallback(group);
+
+            final ByteBuf buffer = ascii(INVITE);
+            assertTrue(fallback.send(true, buffer, this.udp, remote));
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertEquals(INVITE.replace("SIP/2.0/UDP", "SIP/2.0/TCP"), received.toString());
+
+            // the write completed on the one and only event loop
+            group.next().submit(() -> null).sync();
+            assertEquals(0, buffer.refCnt());
+            assertEquals(1, fallback.getSwitchedRequests());
+            assertEquals(0, fallback.getFailedSwitches());
+            assertNull(this.udp.readOutbound());
+            server.close().sync();
+        } finally {
+            group.shutdownGracefully(0, 0, TimeUnit.SECONDS).sync();
+        }
+    }
+
+    /**
+     * If we can't connect to the destination over TCP, the request goes out
+     * over UDP after all, just as it was.
+     */
+    @Test(timeout = 10000)
+    public void testOversizedRequestConnectFails() throws Exception {
+        final NioEventLoopGroup group = new NioEventLoopGroup(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<DatagramPacket> sent = new CopyOnWriteArrayList<>();
+        final EmbeddedChannel udp = new EmbeddedChannel(new ChannelOutboundHandlerAdapter() {
+            @Override
+            public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise) {
+                sent.add((DatagramPacket) msg);
+                promise.setSuccess();
+                latch.countDown();
+            }
+        });
+        try {
+            // nobody is listening on a port that was just given up
+            final Channel closed = new ServerBootstrap().group(group).channel(NioServerSocketChannel.class)
+                    .childHandler(new ChannelInboundHandlerAdapter()).bind(new InetSocketAddress("127.0.0.1", 0))
+                    .sync().channel();
+            final InetSocketAddress remote = (InetSocketAddress) closed.localAddress();
+            closed.close().sync();
+            final TcpFallback fallback = newFallback(group);
+
+            final ByteBuf buffer = ascii(INVITE);
+            assertTrue(fallback.send(true, buffer, udp, remote));
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+            final DatagramPacket packet = sent.get(0);
+            assertEquals(remote, packet.recipient());
+            assertEquals(INVITE, ascii(packet.content()));
+            assertEquals(1, buffer.refCnt());
+            assertEquals(0, fallback.getSwitchedRequests());
+            assertEquals(1, fallback.getFailedSwitches());
+            packet.release();
+        } finally {
+            udp.finish();
+            group.shutdownGracefully(0, 0, TimeUnit.SECONDS).sync();
+        }
+    }
+
+    private static TcpFallback newFallback(final NioEventLoopGroup group) {
+        final Bootstrap client = new Bootstrap().group(group).channel(NioSocketChannel.class);
+        final ConnectionManager manager = new ConnectionManager(new InetSocketAddress("127.0.0.1", 5060), client,
+                new ChannelInboundHandlerAdapter(), null);
+        return new TcpFallback(100, manager);
+    }
+
+    /**
+     * Queue up more than the high water mark of the flow without flushing it.
+     */
+    private void makeUnwritable(final OverflowPolicy policy) {
+        this.flow.config().setWriteBufferLowWaterMark(0);
+        this.flow.config().setWriteBufferHighWaterMark(1);
+        this.flow.write(ascii("\r\n\r\n"));
+        assertFalse(this.flow.isWritable());
+        this.flow.attr(OutboundOverflow.KEY).set(new OutboundOverflow(policy));
+    }
+
+    private static void assertViaTransport(final String msg) {
+        final int transport = TcpFallback.findViaTransport(ascii(msg));
+        assertTrue(msg, transport > 0);
+        assertEquals("udp", msg.substring(transport, transport + 3).toLowerCase());
+    }
+
+    private static void assertNoViaTransport(final String msg) {
+        assertEquals(msg, -1, TcpFallback.findViaTransport(ascii(msg)));
+    }
+
+}
@@ -0,0 +1,95 @@
+/**
+ * 
+ */
+package io.sipstack.netty.codec.sip;
+
+import static org.junit.Assert.assertEquals;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.handler.ssl.SslProvider;
+
+import java.io.File;
+
+import javax.net.ssl.SSLException;
+
+import org.junit.Test;
+
+/**
+ * @author jonas@jonasborjesson.com
+ */
+public class TlsConfigurationTest {
+
+    private static final File CERTIFICATE_CHAIN = new File("cert.pem");
+
+    private static final File PRIVATE_KEY = new File("key.pem");
+
+    /**
+     * Ticket keys that the JDK cannot use are refused instead of silently
+     * ignored, since a server that doesn't honor the tickets of the others
+     * is a configuration error.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testTicketKeysWithoutOpenSsl() throws Exception {
+        TlsConfiguration.with(CERTIFICATE_CHAIN, PRIVATE_KEY).provider(SslProvider.JDK)
+                .ticketKeys(new byte[TlsConfiguration.TICKET_KEYS_SIZE]).build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTicketKeysSize() throws Exception {
+        TlsConfiguration.with(CERTIFICATE_CHAIN, PRIVATE_KEY)
+                .ticketKeys(new byte[TlsConfiguration.TICKET_KEYS_SIZE + 1]).build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoTicketKeys() throws Exception {
+        TlsConfiguration.with(CERTIFICATE_CHAIN, PRIVATE_KEY).ticketKeys(new byte[0]).build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeTimeout() throws Exception {
+        TlsConfiguration.with(CERTIFICATE_CHAIN, PRIVATE_KEY).handshakeTimeout(-1).build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoPrivateKey() throws Exception {
+        TlsConfiguration.with(CERTIFICATE_CHAIN, null).build();
+    }
+
+    /**
+     * The tracker reports every handshake of its channel once, whether it
+     * succeeded or not.
+     */
+    @Test
+    public void testHandshakeTracker() throws Exception {
+        final TlsCounters counters = new TlsCounters();
+        final EmbeddedChannel success = new EmbeddedChannel(new TlsHandshakeTracker(counters));
+        success.pipeline().fireUserEventTriggered(SslHandshakeCompletionEvent.SUCCESS);
+        success.pipeline().fireUserEventTriggered(SslHandshakeCompletionEvent.SUCCESS);
+
+        final EmbeddedChannel failure = new EmbeddedChannel(new TlsHandshakeTracker(counters));
+        failure.pipeline().fireUserEventTriggered(new SslHandshakeCompletionEvent(new SSLException("bad")));
+
+        assertEquals(1, counters.getHandshakes());
+        assertEquals(1, counters.getFailedHandshakes());
+        // without an SslHandler there is no telling whether it was resumed
+        assertEquals(0, counters.getResumedHandshakes());
+        assertEquals(1, counters.getFullHandshakes());
+        success.finish();
+        failure.finish();
+    }
+
+    @Test
+    public void testCounters() throws Exception {
+        final TlsCounters counters = new TlsCounters();
+        counters.handshake(2000000, Boolean.TRUE);
+        counters.handshake(4000000, Boolean.FALSE);
+        counters.handshake(6000000, null);
+
+        assertEquals(3, counters.getHandshakes());
+        assertEquals(1, counters.getResumedHandshakes());
+        assertEquals(2, counters.getFullHandshakes());
+        assertEquals(4000, counters.getAverageHandshakeTime());
+        assertEquals(6000, counters.getLongestHandshakeTime());
+    }
+
+}